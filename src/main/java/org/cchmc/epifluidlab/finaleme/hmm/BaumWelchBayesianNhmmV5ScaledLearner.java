@@ -3,10 +3,13 @@ package org.cchmc.epifluidlab.finaleme.hmm;
 //import java.math.BigDecimal;
 //import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.util.Pair;
 
-import org.cchmc.epifluidlab.finaleme.utils.CcInferenceUtils;
 import be.ac.ulg.montefiore.run.jahmm.*;
 import be.ac.ulg.montefiore.run.jahmm.learn.BaumWelchScaledLearner;
 
@@ -28,11 +31,43 @@ extends BaumWelchScaledLearner
 	 */
 	private int nbIterations = 9;
 	
+	/**
+	 * Number of fragments handled together in the E-step.
+	 */
+	private static final int CHUNK_SIZE = 256;
+	
+	/**
+	 * Number of threads used in the E-step.
+	 */
+	private final int threads;
+	private ForkJoinPool pool = null;
+	
+	/**
+	 * Fragments shorter than this are left out of {@link #lnProbability()},
+	 * as in {@link KullbackLeiblerDistanceBayesianNhmmV5Calculator}.
+	 */
+	private static final int LIKELIHOOD_MIN_LENGTH = 10;
+	private double lnProbability = Double.NaN;
+	
 	/**
 	 * Initializes a Baum-Welch algorithm implementation.
 	 */
 	public BaumWelchBayesianNhmmV5ScaledLearner()
 	{
+		this(1);
+	}
+	
+	/**
+	 * Initializes a Baum-Welch algorithm implementation whose E-step runs on
+	 * <code>threads</code> threads. The learnt HMM does not depend on the
+	 * number of threads.
+	 */
+	public BaumWelchBayesianNhmmV5ScaledLearner(int threads)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("Number of threads must be " +
+					"strictly positive");
+		this.threads = threads;
 	}
 	
 	/**
@@ -48,6 +83,21 @@ extends BaumWelchScaledLearner
 	 */
 	public <O extends Observation> BayesianNhmmV5<O>
 	iterate(BayesianNhmmV5<O> hmm, List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>>> sequences)
+	{
+		return iterate(hmm, FragmentMatrix.of((List) sequences));
+	}
+	
+	/**
+	 * Performs one iteration of the Baum-Welch algorithm for non homogenous HMM
+	 * on the fragments of a {@link FragmentMatrix}.
+	 *
+	 * @param hmm A previously estimated HMM.
+	 * @param matrix The fragments on which the learning is based.  Each
+	 *         fragment must have a length higher or equal to 2.
+	 * @return A new, updated HMM.
+	 */
+	public <O extends Observation> BayesianNhmmV5<O>
+	iterate(BayesianNhmmV5<O> hmm, FragmentMatrix matrix)
 	{		
 		BayesianNhmmV5<O> nhmm;
 		try {
@@ -55,119 +105,32 @@ extends BaumWelchScaledLearner
 		} catch(CloneNotSupportedException e) {
 			throw new InternalError();
 		}
-			
-		/* gamma and xi arrays are those defined by Rabiner and Juang */
-		/* allGamma[n] = gamma array associated to observation sequence n */
-		double allGamma[][][] = new double[sequences.size()][][];
-	//	double allGammaWithMethy[][][] = new double[sequences.size()][][];
+		int nbFragments = matrix.nbFragments();
+		int nbStates = hmm.nbStates();
+		
+		int maxCpgDist = hmm.nbCpgDistState();
+		for (int n = 0; n < matrix.nbObservations(); n++)
+			maxCpgDist = Math.max(maxCpgDist, matrix.cpgDist(n));
+		
+		for (int i = 0; i < nbStates; i++)
+			if (!(hmm.getOpdf(i) instanceof OpdfMultiMixtureGaussian))
+				throw new IllegalArgumentException("Only OpdfMultiMixtureGaussian " +
+						"observation distributions are supported");
+		
+		//System.err.println("estimate xi and gamma");
+		ExpectationStatistics stats = expectation(hmm, matrix, maxCpgDist);
+		lnProbability = stats.lnProbNb > 0 ? stats.lnProbSum / stats.lnProbNb : stats.lnProbSumAll / nbFragments;
 		
 		/* a[i][j] = aijNum[i][j] / aijDen[i]
 		 * aijDen[i] = expected number of transitions from state i
 		 * aijNum[i][j] = expected number of transitions from state i to j
 		 */
-		double aijNum[][] = new double[hmm.nbStates()][hmm.nbStates()];
-		double aijDen[] = new double[hmm.nbStates()];
+		double aijNum[][] = stats.aijNum;
+		double aijDen[] = stats.aijDen;
 		HashMap<Integer,Pair<double[][], double[]>> arij = new HashMap<Integer,Pair<double[][], double[]>>();
-		
-			Arrays.fill(aijDen, 0.);
-	
-			for (int j = 0; j < hmm.nbStates(); j++)
-				Arrays.fill(aijNum[j], 0.);
-		
-			
-			
-		//System.err.println("estimate xi and gamma");
-		int g = 0;
-		for (Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair : sequences) {	    
-			ForwardBackwardBayesianNhmmV5ScaledCalculator fbc = 
-				generateForwardBackwardCalculator(obsSeqPair, hmm);
-			
-			double xi[][][] = estimateXi(obsSeqPair, fbc, hmm);
-		//	double xiWithMethy[][][] = estimateXiWithMethy(obsSeqPair, fbc, hmm);
-			//System.err.println(hmm.nbCpgDistStates() + "\t" + xi.length + "\t" + xi[0].length + "\t" + xi[0][0].length + "\t" + xi[0][0][0].length);
-			
-			//double gamma[][] = allGamma[g++] = estimateGamma(xi, fbc, obsSeqPair, hmm);
-			double gamma[][] = allGamma[g] = estimateGamma(xi, fbc);
-			//allGammaWithMethy[g] = estimateGamma(xiWithMethy, fbc);
-			g++;
-			//System.err.println(hmm.nbCpgDistStates() + "\t" + allGamma.length + "\t" + allGamma[0].length + "\t" + allGamma[0][0].length + "\t" + allGamma[0][0][0].length);
-			
-			//double gamma[][][] = allGamma[g];
-			//System.err.println(gamma.length + "\t" + gamma[0].length + "\t" + gamma[0][0].length);
-
-			
-			List<? extends O> obsSeq = obsSeqPair.getSecond();
-			HashMap<Integer, Pair<Integer, Double>> cpgDistState = obsSeqPair.getFirst();
-			/*
-			for (int i = 0; i < hmm.nbStates(); i++)
-				for (int t = 0; t < obsSeq.size() - 1; t++) {
-					double unmethy = xi[t][i][0]/(xi[t][i][0]+xi[t][i][1]);
-					double methy = xi[t][i][1]/(xi[t][i][0]+xi[t][i][1]);
-						unmethy = unmethy * (1-cpgDistState.get(t).getSecond());
-						methy = methy * (cpgDistState.get(t).getSecond());
-						if(arij.containsKey(cpgDistState.get(t+1).getFirst())){
-							Pair<double[][], double[]> tmp = arij.get(cpgDistState.get(t+1).getFirst());
-							double[] denTmp = tmp.getSecond();
-							double[][] numTmp = tmp.getFirst();
-							
-							for (int j = 0; j < hmm.nbStates(); j++){
-								denTmp[i] += (j % 2 == 0 ? unmethy : methy);
-								numTmp[i][j] += (j % 2 == 0 ? unmethy : methy);
-							}
-								
-							arij.put(cpgDistState.get(t+1).getFirst(), new Pair<double[][], double[]>(numTmp, denTmp));
-							
-						}else{
-							double numTmp[][] = new double[hmm.nbStates()][hmm.nbStates()];
-							double denTmp[] = new double[hmm.nbStates()];
-							Arrays.fill(denTmp, 0.);
-							for (int j = 0; j < hmm.nbStates(); j++)
-								Arrays.fill(numTmp[j], 0.);
-							for (int j = 0; j < hmm.nbStates(); j++){
-								denTmp[i] += (j % 2 == 0 ? unmethy : methy);
-								numTmp[i][j] += (j % 2 == 0 ? unmethy : methy);
-							}
-							arij.put(cpgDistState.get(t+1).getFirst(), new Pair<double[][], double[]>(numTmp, denTmp));
-						}
-						for (int j = 0; j < hmm.nbStates(); j++){
-							aijDen[i] += (j % 2 == 0 ? unmethy : methy);
-							aijNum[i][j] += (j % 2 == 0 ? unmethy : methy);
-						}
-							
-					
-				}
-			*/
-			
-			for (int i = 0; i < hmm.nbStates(); i++)
-				for (int t = 0; t < obsSeq.size() - 1; t++) {
-						aijDen[i] += gamma[t][i];
-						if(arij.containsKey(cpgDistState.get(t+1).getFirst())){
-							Pair<double[][], double[]> tmp = arij.get(cpgDistState.get(t+1).getFirst());
-							double[] denTmp = tmp.getSecond();
-							double[][] numTmp = tmp.getFirst();
-							denTmp[i] += gamma[t][i];
-							for (int j = 0; j < hmm.nbStates(); j++)
-								numTmp[i][j] += xi[t][i][j];
-							arij.put(cpgDistState.get(t+1).getFirst(), new Pair<double[][], double[]>(numTmp, denTmp));
-							
-						}else{
-							double numTmp[][] = new double[hmm.nbStates()][hmm.nbStates()];
-							double denTmp[] = new double[hmm.nbStates()];
-							Arrays.fill(denTmp, 0.);
-							for (int j = 0; j < hmm.nbStates(); j++)
-								Arrays.fill(numTmp[j], 0.);
-							denTmp[i] += gamma[t][i];
-							for (int j = 0; j < hmm.nbStates(); j++)
-								numTmp[i][j] += xi[t][i][j];
-							arij.put(cpgDistState.get(t+1).getFirst(), new Pair<double[][], double[]>(numTmp, denTmp));
-						}
-						for (int j = 0; j < hmm.nbStates(); j++)
-							aijNum[i][j] += xi[t][i][j];
-					
-				}
-				
-		}
-		
+		for (int r = 0; r <= maxCpgDist; r++)
+			if (stats.arijSeen[r])
+				arij.put(r, new Pair<double[][], double[]>(stats.arijNum[r], stats.arijDen[r]));
 		
 		
 		//System.err.println("estimate Arij");
@@ -210,31 +173,18 @@ extends BaumWelchScaledLearner
 			
 		
 		
-		for (int o = 0; o < sequences.size(); o++){
-			Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair = sequences.get(o);
-			Integer r = obsSeqPair.getFirst().get(0).getFirst();
+		for (int r = 0; r <= maxCpgDist; r++){
+			if (!stats.piSeen[r])
+				continue;
 				for (int i = 0; i < hmm.nbStates(); i++){
-					//System.err.println(o + "\t" + r + "\t" + i + "\t" + allGamma.length + "\t" + allGamma[0].length + "\t" + allGamma[0][0].length + "\t" + allGamma[o][0][i]);
-					
-				//	if(Double.isNaN(allGamma[o][0][i])){
-					//	nhmm.setPri(r, i,
-						//		nhmm.getPri(r, i) );
-				//	}else{
 						nhmm.setPri(r, i,
-								nhmm.getPri(r, i) + allGamma[o][0][i] / sequences.size());
-				//	}
-						//System.err.println("PRi: " + nhmm.getPri(r,i) + "\t" + r + "\t" + i);
+								nhmm.getPri(r, i) + stats.piNum[r][i] / nbFragments);
 				}
-
-			
-				
 		}
 		
 		
 		
 		
-		//System.err.println(nhmm.getPri(0,0) + "\t" + nhmm.getPri(0,1));
-		//System.err.println(nhmm.getPri(50,0) + "\t" + nhmm.getPri(50,1));
 		//rescale pi
 		HashMap<Integer, Double> sumPi = new HashMap<Integer, Double>();
 		
@@ -259,96 +209,18 @@ extends BaumWelchScaledLearner
 				
 			}
 		}
-		//System.err.println(nhmm.getPri(1,0) + "\t" + nhmm.getPri(1,1));
-		//System.err.println(nhmm.getPri(50,0) + "\t" + nhmm.getPri(50,1));
-		//System.err.println(sumPi);
 			
 		//System.err.println("estimate pdfs");
 		/* pdfs computation */
 		
 		for (int i = 0; i < hmm.nbStates(); i++) {
-			List<O> observations = CcInferenceUtils.flatPair(sequences);
-			double[] weights = new double[observations.size()];
-			double sum = 0.;
-			
-			int j = 0;
-			
-			int o = 0;
-			for (Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair : sequences) {
-				List<? extends O> obsSeq = obsSeqPair.getSecond();
-				for (int t = 0; t < obsSeq.size(); t++, j++){
-
-						sum += allGamma[o][t][i];
-						weights[j] += allGamma[o][t][i];
-						if(Double.isNaN(weights[j]) || Double.isInfinite(weights[j])){
-							
-							System.err.println(weights[j] + "\t" + sum + "\t" + allGamma[o][t][i] + "\t" + o + "\t" + t + "\t" + i);
-							System.exit(1);
-						}
-				}
-					
-				o++;
-			}
-			
-			for (j--; j >= 0; j--){
-				weights[j] /= sum;
-				if(Double.isNaN(weights[j]) || Double.isInfinite(weights[j])){
-					
-					System.err.println(weights[j] + "\t" + sum + "\t" +  j);
-					System.exit(1);
-				}
-			}
-				
-			
-			Opdf<O> opdf = nhmm.getOpdf(i);
-			opdf.fit(observations, weights);
-			
-		}
-		
-		/*
-		for (int i = 0; i < hmm.nbStates(); i++) {
-			List<O> observations = CcInferenceUtils.flatPair(sequences);
-			double[] weights = new double[observations.size()];
-			double sum = 0.;
-			BigDecimal[] weightsBg = new BigDecimal[observations.size()];
-			BigDecimal sumBg = BigDecimal.ZERO;
-			for (int t = 0; t < observations.size(); t++){
-				weightsBg[t] = BigDecimal.ZERO;
+			OpdfMultiMixtureGaussian opdf = (OpdfMultiMixtureGaussian) nhmm.getOpdf(i);
+			if(Double.isNaN(stats.opdfStats[i].weight()) || Double.isInfinite(stats.opdfStats[i].weight())){
+				System.err.println(stats.opdfStats[i].weight() + "\t" + i);
+				System.exit(1);
 			}
-			int j = 0;
-			
-			int o = 0;
-			for (Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair : sequences) {
-				List<? extends O> obsSeq = obsSeqPair.getSecond();
-				for (int t = 0; t < obsSeq.size(); t++, j++){
-
-						sumBg = sumBg.add(new BigDecimal(allGamma[o][t][i]));
-						weightsBg[j] = weightsBg[j].add(new BigDecimal(allGamma[o][t][i]));
-						
-				}
-					
-				o++;
-			}
-			
-			for (j--; j >= 0; j--){
-				weights[j]=weightsBg[j].divide(sumBg, 20, RoundingMode.HALF_UP).doubleValue();
-				
-			}
-			
-			
-			
-			
-			Opdf<O> opdf = nhmm.getOpdf(i);
-			opdf.fit(observations, weights);
-			
+			opdf.fit(stats.opdfStats[i]);
 		}
-		*/
-//System.err.println(hmm);
-//System.err.println(nhmm.getPri(1,0) + "\t" + nhmm.getPri(1,1));
-//System.err.println(nhmm.getPri(50,0) + "\t" + nhmm.getPri(50,1));
-//System.err.println(nhmm.getArij(1,0,0) + "\t" + nhmm.getArij(1,0,1) + "\t" + nhmm.getArij(1,1,0) + "\t" + nhmm.getArij(1,1,1));
-//System.err.println(nhmm.getArij(50,0,0) + "\t" + nhmm.getArij(50,0,1) + "\t" + nhmm.getArij(50,1,0) + "\t" + nhmm.getArij(50,1,1));
-//System.err.println(nhmm);
 		
 		return nhmm;
 	}
@@ -357,6 +229,22 @@ extends BaumWelchScaledLearner
 
 	
 	
+	/**
+	 * Returns the average over the fragments of the logarithm of their
+	 * probability divided by their length, under the HMM given to the last
+	 * call of {@link #iterate}. It is computed from the scaling factors of the
+	 * E-step, on the fragments with at least 10 CpGs (all of them if none is
+	 * that long).
+	 *
+	 * @return The average normalized log-likelihood, NaN before the first
+	 *         iteration.
+	 */
+	public double lnProbability()
+	{
+		return lnProbability;
+	}
+	
+	
 	/**
 	 * Does a fixed number of iterations (see {@link #getNbIterations}) of the
 	 * Baum-Welch algorithm.
@@ -374,135 +262,301 @@ extends BaumWelchScaledLearner
 	{
 		BayesianNhmmV5<O> hmm = initialNhmm;
 		
-		for (int i = 0; i < nbIterations; i++)
-			hmm = iterate(hmm, sequences);
+		try {
+			for (int i = 0; i < nbIterations; i++)
+				hmm = iterate(hmm, sequences);
+		} finally {
+			shutdown();
+		}
 		
 		return hmm;
 	}
 	
-	protected <O extends Observation> ForwardBackwardBayesianNhmmV5ScaledCalculator
-	generateForwardBackwardCalculator(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> sequence,
-			BayesianNhmmV5<O> hmm)
+	
+	/**
+	 * Stops the threads of the E-step. Callers of {@link #iterate} call it once
+	 * the learning is done; a later iteration starts new threads.
+	 */
+	public void shutdown()
 	{
-		return new ForwardBackwardBayesianNhmmV5ScaledCalculator(sequence, hmm, 
-				EnumSet.allOf(ForwardBackwardBayesianNhmmV5ScaledCalculator.Computation.class));
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
 	}
 	
-	
-	/* Here, the xi (and, thus, gamma) values are not divided by the
-	 probability of the sequence because this probability might be
-	 too small and induce an underflow. xi[t][i][j] still can be
-	 interpreted as P[q_t = i and q_(t+1) = j | obsSeq, hmm] because
-	 we assume that the scaling factors are such that their product
-	 is equal to the inverse of the probability of the sequence. */
-	protected <O extends Observation> double[][][]
-	estimateXi(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair, ForwardBackwardBayesianNhmmV5Calculator fbc,
-			BayesianNhmmV5<O> hmm)
-	{	
-		List<? extends O> sequence = obsSeqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = obsSeqPair.getFirst();
-		
-		if (sequence.size() <= 1)
-			throw new IllegalArgumentException("Observation sequence too " + 
-			"short");
-		
-		double xi[][][] = 
-			new double[sequence.size() - 1][hmm.nbStates()][hmm.nbStates()];
-		
-		Iterator<? extends O> seqIterator = sequence.iterator();
-		seqIterator.next();
+	/*
+	 * E-step over all the fragments. Fragments are cut into chunks of
+	 * CHUNK_SIZE fragments whatever the number of threads, each chunk sums its
+	 * own statistics, and the chunks are merged in their order, so the result
+	 * does not depend on the number of threads.
+	 */
+	private ExpectationStatistics
+	expectation(final BayesianNhmmV5<?> hmm, final FragmentMatrix matrix, final int maxCpgDist)
+	{
+		final int nbFragments = matrix.nbFragments();
+		int nbChunks = (nbFragments + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		ExpectationStatistics[] partial = new ExpectationStatistics[nbChunks];
+		
+		if (threads <= 1 || nbChunks <= 1) {
+			for (int c = 0; c < nbChunks; c++)
+				partial[c] = expectation(hmm, matrix, c * CHUNK_SIZE, Math.min(nbFragments, (c + 1) * CHUNK_SIZE), maxCpgDist);
+		} else {
+			if (pool == null)
+				pool = new ForkJoinPool(threads);
+			List<Callable<ExpectationStatistics>> tasks = new ArrayList<Callable<ExpectationStatistics>>(nbChunks);
+			for (int c = 0; c < nbChunks; c++) {
+				final int from = c * CHUNK_SIZE;
+				final int to = Math.min(nbFragments, (c + 1) * CHUNK_SIZE);
+				tasks.add(new Callable<ExpectationStatistics>() {
+					public ExpectationStatistics call()
+					{
+						return expectation(hmm, matrix, from, to, maxCpgDist);
+					}
+				});
+			}
+			List<Future<ExpectationStatistics>> results = pool.invokeAll(tasks);
+			for (int c = 0; c < nbChunks; c++) {
+				try {
+					partial[c] = results.get(c).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
 		
-		for (int t = 0; t < sequence.size() - 1; t++) {
-			O observation = seqIterator.next();
+		ExpectationStatistics stats = new ExpectationStatistics(hmm, maxCpgDist);
+		for (int c = 0; c < nbChunks; c++)
+			stats.add(partial[c]);
+		return stats;
+	}
+	
+	/*
+	 * E-step over fragments from to to-1. xi and gamma, as defined by Rabiner
+	 * and Juang, are computed one time step at a time and added to the
+	 * statistics right away, so nothing is kept per observation.
+	 */
+	private ExpectationStatistics
+	expectation(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int from, int to, int maxCpgDist)
+	{
+		int nbStates = hmm.nbStates();
+		ExpectationStatistics stats = new ExpectationStatistics(hmm, maxCpgDist);
+		double[] features = matrix.features();
+		int dimension = matrix.dimension();
+		double[][] xi = new double[nbStates][nbStates];
+		double[] gamma = new double[nbStates];
+		
+		double[][] emission = null;
+		for (int g = from; g < to; g++) {
+			emission = hmm.getOpdfProbs(matrix, g, emission);
+			ForwardBackwardBayesianNhmmV5ScaledCalculator fbc = 
+				generateForwardBackwardCalculator(matrix, g, hmm, emission);
+			
+			int offset = matrix.offset(g);
+			int length = matrix.length(g);
+			if (length <= 1)
+				throw new IllegalArgumentException("Observation sequence too " + 
+				"short");
 			
+			double lnProb = fbc.lnProbability() / length;
+			stats.lnProbSumAll += lnProb;
+			if (length >= LIKELIHOOD_MIN_LENGTH) {
+				stats.lnProbSum += lnProb;
+				stats.lnProbNb++;
+			}
 			
+			for (int t = 0; t < length - 1; t++) {
+				int n = offset + t + 1;
+				int r = matrix.cpgDist(n);
+				estimateXi(matrix, n, t, fbc, hmm, xi);
 				
-				if(cpgDistState.containsKey(t)){
-					
-					for (int i = 0; i < hmm.nbStates(); i++){
-						for (int j = 0; j < hmm.nbStates(); j++){
-							
-							xi[t][i][j] = fbc.alphaElement(t, i) *
-									hmm.getArij(cpgDistState.get(t+1).getFirst(), i, j) * 
-									//hmm.getOpdf(j).probability(observation) *
-									//hmm.getOpdfBayesianProb(j, cpgDistState.get(t+1),observation, sequence.size()) *
-									hmm.getOpdfProb(j,observation) *
-									fbc.betaElement(t + 1, j);
-							//if(Double.isNaN(xi[t][i][j]) || Double.compare(xi[t][i][j], 0.0) == 0){
-							if(Double.isNaN(xi[t][i][j])){
-								System.err.println(t + "\t" + i + "\t" + j + "\t" + cpgDistState.get(t) + "\t" + observation + "\t" +  hmm.getArij(cpgDistState.get(t).getFirst(), i, j));
-								System.err.println(fbc.alphaElement(t, i) + "\t" + hmm.getArij(cpgDistState.get(t).getFirst(), i, j) + "\t" + hmm.getOpdf(j).probability(observation) + "\t" + fbc.betaElement(t + 1, j));
-								//xi[t][i][j] = 0.;
-							}
-						}
-							
+				/* gamma[i] = sum over j of xi[i][j] */
+				for (int i = 0; i < nbStates; i++) {
+					gamma[i] = 0.;
+					for (int j = 0; j < nbStates; j++)
+						gamma[i] += xi[i][j];
+				}
+				if (t == 0) {
+					int r0 = matrix.cpgDist(offset);
+					stats.piSeen[r0] = true;
+					for (int i = 0; i < nbStates; i++)
+						stats.piNum[r0][i] += gamma[i];
+				}
+				
+				for (int i = 0; i < nbStates; i++) {
+					stats.aijDen[i] += gamma[i];
+					stats.arijDen[r][i] += gamma[i];
+					for (int j = 0; j < nbStates; j++) {
+						stats.arijNum[r][i][j] += xi[i][j];
+						stats.aijNum[i][j] += xi[i][j];
 					}
-						
-				}else{
-					for (int i = 0; i < hmm.nbStates(); i++)
-						for (int j = 0; j < hmm.nbStates(); j++)
-							xi[t][i][j] = 0.5;
+					stats.opdfStats[i].add(features, (n - 1) * dimension, gamma[i]);
 				}
+				stats.arijSeen[r] = true;
 				
+				/* the last gamma is the sum over i of the last xi[i][j] */
+				if (t == length - 2) {
+					for (int j = 0; j < nbStates; j++) {
+						gamma[j] = 0.;
+						for (int i = 0; i < nbStates; i++)
+							gamma[j] += xi[i][j];
+						stats.opdfStats[j].add(features, n * dimension, gamma[j]);
+					}
+				}
+			}
 		}
 		
-		return xi;
+		return stats;
+	}
+	
+	
+	/* Expected counts: initial states and transitions, overall and at each CpG distance, and the weighted emission statistics of each state */
+	private static class ExpectationStatistics
+	{
+		final double[][] aijNum;
+		final double[] aijDen;
+		final double[][][] arijNum;
+		final double[][] arijDen;
+		final boolean[] arijSeen;
+		final double[][] piNum;
+		final boolean[] piSeen;
+		final OpdfMultiMixtureGaussian.Statistics[] opdfStats;
+		/* sum of ln(P(fragment))/length, over the fragments of at least LIKELIHOOD_MIN_LENGTH CpGs and over all of them */
+		double lnProbSum = 0.;
+		long lnProbNb = 0;
+		double lnProbSumAll = 0.;
+		
+		ExpectationStatistics(BayesianNhmmV5<?> hmm, int maxCpgDist)
+		{
+			int nbStates = hmm.nbStates();
+			aijNum = new double[nbStates][nbStates];
+			aijDen = new double[nbStates];
+			arijNum = new double[maxCpgDist + 1][nbStates][nbStates];
+			arijDen = new double[maxCpgDist + 1][nbStates];
+			arijSeen = new boolean[maxCpgDist + 1];
+			piNum = new double[maxCpgDist + 1][nbStates];
+			piSeen = new boolean[maxCpgDist + 1];
+			opdfStats = new OpdfMultiMixtureGaussian.Statistics[nbStates];
+			for (int i = 0; i < nbStates; i++)
+				opdfStats[i] = ((OpdfMultiMixtureGaussian) hmm.getOpdf(i)).newStatistics();
+		}
+		
+		void add(ExpectationStatistics o)
+		{
+			lnProbSum += o.lnProbSum;
+			lnProbNb += o.lnProbNb;
+			lnProbSumAll += o.lnProbSumAll;
+			for (int i = 0; i < aijDen.length; i++) {
+				aijDen[i] += o.aijDen[i];
+				for (int j = 0; j < aijDen.length; j++)
+					aijNum[i][j] += o.aijNum[i][j];
+				opdfStats[i].add(o.opdfStats[i]);
+			}
+			for (int r = 0; r < arijSeen.length; r++) {
+				if (o.piSeen[r]) {
+					piSeen[r] = true;
+					for (int i = 0; i < aijDen.length; i++)
+						piNum[r][i] += o.piNum[r][i];
+				}
+				if (!o.arijSeen[r])
+					continue;
+				arijSeen[r] = true;
+				for (int i = 0; i < aijDen.length; i++) {
+					arijDen[r][i] += o.arijDen[r][i];
+					for (int j = 0; j < aijDen.length; j++)
+						arijNum[r][i][j] += o.arijNum[r][i][j];
+				}
+			}
+		}
+	}
+	
+	
+	protected ForwardBackwardBayesianNhmmV5ScaledCalculator
+	generateForwardBackwardCalculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm)
+	{
+		return generateForwardBackwardCalculator(matrix, fragment, hmm, null);
+	}
+	
+	
+	/* emission is the output of hmm.getOpdfProbs() for the fragment, shared with estimateXi through the calculator */
+	protected ForwardBackwardBayesianNhmmV5ScaledCalculator
+	generateForwardBackwardCalculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm, double[][] emission)
+	{
+		return new ForwardBackwardBayesianNhmmV5ScaledCalculator(matrix, fragment, hmm, 
+				EnumSet.allOf(ForwardBackwardBayesianNhmmV5ScaledCalculator.Computation.class), emission);
 	}
 	
-	protected <O extends Observation> double[][][]
-	estimateXiWithMethy(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair, ForwardBackwardBayesianNhmmV5Calculator fbc,
-			BayesianNhmmV5<O> hmm)
+	
+	/* Here, the xi (and, thus, gamma) values are not divided by the
+	 probability of the sequence because this probability might be
+	 too small and induce an underflow. xi[t][i][j] still can be
+	 interpreted as P[q_t = i and q_(t+1) = j | obsSeq, hmm] because
+	 we assume that the scaling factors are such that their product
+	 is equal to the inverse of the probability of the sequence. */
+	protected double[][][]
+	estimateXi(FragmentMatrix matrix, int fragment, ForwardBackwardBayesianNhmmV5Calculator fbc,
+			BayesianNhmmV5<?> hmm)
 	{	
-		List<? extends O> sequence = obsSeqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = obsSeqPair.getFirst();
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
 		
-		if (sequence.size() <= 1)
+		if (length <= 1)
 			throw new IllegalArgumentException("Observation sequence too " + 
 			"short");
 		
 		double xi[][][] = 
-			new double[sequence.size() - 1][hmm.nbStates()][hmm.nbStates()];
+			new double[length - 1][hmm.nbStates()][hmm.nbStates()];
 		
-		Iterator<? extends O> seqIterator = sequence.iterator();
-		seqIterator.next();
-		
-		for (int t = 0; t < sequence.size() - 1; t++) {
-			O observation = seqIterator.next();
-			
-			
-				
-				if(cpgDistState.containsKey(t)){
+		for (int t = 0; t < length - 1; t++) {
+			int n = offset + t + 1;
+			int r = matrix.cpgDist(n);
 					
 					for (int i = 0; i < hmm.nbStates(); i++){
 						for (int j = 0; j < hmm.nbStates(); j++){
 							
 							xi[t][i][j] = fbc.alphaElement(t, i) *
-									hmm.getArij(cpgDistState.get(t+1).getFirst(), i, j) * 
-									//hmm.getOpdf(j).probability(observation) *
+									hmm.getArij(r, i, j) * 
 									//hmm.getOpdfBayesianProb(j, cpgDistState.get(t+1),observation, sequence.size()) *
-									hmm.getOpdfProb(j,observation) *
+									fbc.emissionElement(t + 1, j) *
 									fbc.betaElement(t + 1, j);
-							//if(Double.isNaN(xi[t][i][j]) || Double.compare(xi[t][i][j], 0.0) == 0){
 							if(Double.isNaN(xi[t][i][j])){
-								System.err.println(t + "\t" + i + "\t" + j + "\t" + cpgDistState.get(t) + "\t" + observation + "\t" +  hmm.getArij(cpgDistState.get(t).getFirst(), i, j));
-								System.err.println(fbc.alphaElement(t, i) + "\t" + hmm.getArij(cpgDistState.get(t).getFirst(), i, j) + "\t" + hmm.getOpdf(j).probability(observation) + "\t" + fbc.betaElement(t + 1, j));
-								//xi[t][i][j] = 0.;
+								System.err.println(t + "\t" + i + "\t" + j + "\t" + matrix.cpgDist(n - 1) + "\t" + matrix.observation(n) + "\t" +  hmm.getArij(matrix.cpgDist(n - 1), i, j));
+								System.err.println(fbc.alphaElement(t, i) + "\t" + hmm.getArij(matrix.cpgDist(n - 1), i, j) + "\t" + fbc.emissionElement(t + 1, j) + "\t" + fbc.betaElement(t + 1, j));
 							}
 						}
 							
 					}
-						
-				}else{
-					for (int i = 0; i < hmm.nbStates(); i++)
-						for (int j = 0; j < hmm.nbStates(); j++)
-							xi[t][i][j] = 0.5;
-				}
 				
 		}
 		
 		return xi;
 	}
 	
+	/* xi[i][j] at time step t of the fragment, n is the index of the (t+1)-th observation in the matrix */
+	protected void
+	estimateXi(FragmentMatrix matrix, int n, int t, ForwardBackwardBayesianNhmmV5Calculator fbc,
+			BayesianNhmmV5<?> hmm, double[][] xi)
+	{
+		int r = matrix.cpgDist(n);
+		for (int i = 0; i < hmm.nbStates(); i++){
+			for (int j = 0; j < hmm.nbStates(); j++){
+				xi[i][j] = fbc.alphaElement(t, i) *
+						hmm.getArij(r, i, j) * 
+						fbc.emissionElement(t + 1, j) *
+						fbc.betaElement(t + 1, j);
+				if(Double.isNaN(xi[i][j])){
+					System.err.println(t + "\t" + i + "\t" + j + "\t" + matrix.cpgDist(n - 1) + "\t" + matrix.observation(n) + "\t" +  hmm.getArij(matrix.cpgDist(n - 1), i, j));
+					System.err.println(fbc.alphaElement(t, i) + "\t" + hmm.getArij(matrix.cpgDist(n - 1), i, j) + "\t" + fbc.emissionElement(t + 1, j) + "\t" + fbc.betaElement(t + 1, j));
+				}
+			}
+		}
+	}
+	
 	/* gamma[][] could be computed directly using the alpha and betacd 
 	 * arrays, but this (slower) method is prefered because it doesn't
 	 * change if the xi array has been scaled (and should be changed with
@@ -529,10 +583,10 @@ extends BaumWelchScaledLearner
 		return gamma;
 	}
 	
-	protected <O extends Observation> double[][]
-	estimateGamma(double[][][] xi, ForwardBackwardBayesianNhmmV5Calculator fbc, Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> obsSeqPair, BayesianNhmmV5<O> hmm)
+	protected double[][]
+	estimateGamma(double[][][] xi, ForwardBackwardBayesianNhmmV5Calculator fbc, FragmentMatrix matrix, int fragment)
 	{
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = obsSeqPair.getFirst();
+		int offset = matrix.offset(fragment);
 		
 		double[][] gamma = new double[xi.length + 1][xi[0].length];
 		
@@ -544,12 +598,12 @@ extends BaumWelchScaledLearner
 				for (int j = 0; j < xi[0][0].length; j++){
 					double unmethy = xi[t][i][0]/(xi[t][i][0]+xi[t][i][1]);
 					double methy = xi[t][i][1]/(xi[t][i][0]+xi[t][i][1]);
-						unmethy = unmethy * (1-cpgDistState.get(t).getSecond());
-						methy = methy * (cpgDistState.get(t).getSecond());
+						unmethy = unmethy * (1-matrix.methyPrior(offset + t));
+						methy = methy * (matrix.methyPrior(offset + t));
 						
 					gamma[t][i] +=  (j % 2 == 0 ? unmethy : methy);
 					if(Double.isNaN(gamma[t][i])){
-						System.err.println(t + "\t" + i + "\t" + j + "\t" + cpgDistState.get(t) + "\t" + xi[t][i][0] + "\t" +  xi[t][i][1]);
+						System.err.println(t + "\t" + i + "\t" + j + "\t" + matrix.methyPrior(offset + t) + "\t" + xi[t][i][0] + "\t" +  xi[t][i][1]);
 						System.err.println(unmethy + "\t" + methy);
 						//xi[t][i][j] = 0.;
 					}
@@ -565,11 +619,11 @@ extends BaumWelchScaledLearner
 				for (int i = 0; i < xi[0][0].length; i++){
 					double unmethy = xi[xi.length-1][i][0]/(xi[xi.length-1][i][0]+xi[xi.length-1][i][1]);
 					double methy = xi[xi.length-1][i][1]/(xi[xi.length-1][i][0]+xi[xi.length-1][i][1]);
-						unmethy = unmethy * (1-cpgDistState.get(xi.length-1).getSecond());
-						methy = methy * (cpgDistState.get(xi.length-1).getSecond());
+						unmethy = unmethy * (1-matrix.methyPrior(offset + xi.length-1));
+						methy = methy * (matrix.methyPrior(offset + xi.length-1));
 					gamma[xi.length][j] += (j % 2 == 0 ? unmethy : methy);
 					if(Double.isNaN(gamma[xi.length][j])){
-						System.err.println( i + "\t" + j + "\t" + cpgDistState.get(xi.length-1) + "\t" + xi[xi.length-1][i][0] + "\t" +  xi[xi.length-1][i][1]);
+						System.err.println( i + "\t" + j + "\t" + matrix.methyPrior(offset + xi.length-1) + "\t" + xi[xi.length-1][i][0] + "\t" +  xi[xi.length-1][i][1]);
 						System.err.println(unmethy + "\t" + methy);
 						//xi[t][i][j] = 0.;
 					}
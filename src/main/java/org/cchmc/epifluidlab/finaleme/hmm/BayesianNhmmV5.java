@@ -6,9 +6,14 @@
  */
 package org.cchmc.epifluidlab.finaleme.hmm;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -29,8 +34,12 @@ public class BayesianNhmmV5<O extends Observation>
 implements Serializable, Cloneable {
 
 	
-	private TreeMap<Integer, Double[]> pi;
-	private TreeMap<Integer, Double[][]>  a;
+	/* pi[r*nbStates+i] and a[(r*nbStates+i)*nbStates+j] for CpG distance r, with their logarithms for the Viterbi decoding.
+	 * They are serialized as the TreeMap<Integer, Double[]> and TreeMap<Integer, Double[][]> of the former versions (see writeObject), so the model files are unchanged. */
+	private transient double[] pi;
+	private transient double[]  a;
+	private transient double[] lnPi;
+	private transient double[] lnA;
 	private ArrayList<Opdf<O>> opdfs;
 	private int nbStates;
 	private int nbCpgDistStates;
@@ -45,6 +54,18 @@ implements Serializable, Cloneable {
 	 * 
 	 */
 	private static final long serialVersionUID = -1203330572216045699L;
+	
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("pi", TreeMap.class),
+		new ObjectStreamField("a", TreeMap.class),
+		new ObjectStreamField("opdfs", ArrayList.class),
+		new ObjectStreamField("nbStates", int.class),
+		new ObjectStreamField("nbCpgDistStates", int.class),
+		new ObjectStreamField("bayesianFactor", double.class),
+		new ObjectStreamField("methyState", int.class),
+		new ObjectStreamField("maxCpgInFrag", double.class),
+		new ObjectStreamField("minCpgInFrag", double.class)
+	};
 
 
 	public BayesianNhmmV5(int nbStates, int nbCpgDistStates, double bayesianFactor) {
@@ -54,13 +75,8 @@ implements Serializable, Cloneable {
 			"positive");
 		this.nbStates = nbStates;
 		this.nbCpgDistStates = nbCpgDistStates;
-		pi = new TreeMap<Integer, Double[]>();
 		this.bayesianFactor = bayesianFactor;
-		a = new TreeMap<Integer, Double[][]>();
-		for(int i = 0; i<= nbCpgDistStates; i++){
-			a.put(i, new Double[nbStates][nbStates]);
-			pi.put(i, new Double[nbStates]);
-		}
+		allocateTables(nbCpgDistStates + 1);
 		opdfs = new ArrayList<Opdf<O>>(nbStates);
 		for (int i = 0; i < nbStates; i++)
 			opdfs.add(null);
@@ -76,21 +92,16 @@ implements Serializable, Cloneable {
 			"strictly positive");
 		this.nbStates = nbStates;
 		this.nbCpgDistStates = nbCpgDistStates;
-		pi = new TreeMap<Integer, Double[]>();
-		a = new TreeMap<Integer, Double[][]>();
 		opdfs = new ArrayList<Opdf<O>>(nbStates);
 		this.bayesianFactor = bayesianFactor;
+		allocateTables(nbCpgDistStates + 1);
 			
 			for(int n = 0; n<= nbCpgDistStates; n++){
-				Double[][] t = new Double[nbStates][nbStates];
-				Double[] pit = new Double[nbStates];
 				for (int i = 0; i < nbStates; i++) {
-					pit[i] = 1. / ((double) nbStates);
+					setPri(n, i, 1. / ((double) nbStates));
 					for (int j = 0; j < nbStates; j++)
-						t[i][j] = 1. / ((double) nbStates);
+						setArij(n, i, j, 1. / ((double) nbStates));
 				}
-				a.put(n, t);
-				pi.put(n, pit);
 			}
 		
 		for (int i = 0; i < nbStates; i++) {
@@ -158,8 +169,8 @@ implements Serializable, Cloneable {
 		}
 		//System.err.println(methyPrior + "\t" + methyPriorScale + "\t" + unmethyPriorScale + "\t" + stateSum + "\t" + pi.get(dist)[stateNb] + "\t" + stateNb);
 		*/
-		double methyPriorScale = pi.get(dist)[1]*methyPrior;
-		double unmethyPriorScale = pi.get(dist)[0]*(1-methyPrior);
+		double methyPriorScale = getPri(dist, 1)*methyPrior;
+		double unmethyPriorScale = getPri(dist, 0)*(1-methyPrior);
 		//double methyPriorScale = methyPrior+pi.get(dist)[1];
 		//double unmethyPriorScale = 1-methyPrior+pi.get(dist)[0];
 		//double methyPriorScale = 1-methyPrior+pi.get(dist)[1];
@@ -181,15 +192,22 @@ implements Serializable, Cloneable {
 	public double getPri(int nbCpgDistStates, int stateNb)
 	{
 		//System.err.println(nbCpgDistStates + "\t" + stateNb + "\t" + pi.length + "\t" + pi[0].length + "\t" + pi[nbCpgDistStates][stateNb]);
-		return pi.get(nbCpgDistStates)[stateNb]; //TODO: should be 
+		return pi[nbCpgDistStates * nbStates + stateNb]; //TODO: should be 
+	}
+	
+	/**
+	 * Returns <code>Math.log(getPri(nbCpgDistStates, stateNb))</code>, precomputed.
+	 */
+	public double getLnPri(int nbCpgDistStates, int stateNb)
+	{
+		return lnPi[nbCpgDistStates * nbStates + stateNb];
 	}
 	
 	public void setPri(int nbCpgDistStates, int stateNb, double value)
 	{
 		//System.err.println(nbCpgDistStates + "\t" + stateNb + "\t" + pi.length + "\t" + pi[0].length + "\t" + pi[nbCpgDistStates][stateNb]);
-		Double[] t = pi.get(nbCpgDistStates);
-		t[stateNb]=value;
-		pi.put(nbCpgDistStates, t); 
+		pi[nbCpgDistStates * nbStates + stateNb] = value;
+		lnPi[nbCpgDistStates * nbStates + stateNb] = Math.log(value);
 	}
 	
 	public double getBayesianFactor()
@@ -260,8 +278,8 @@ implements Serializable, Cloneable {
 		
 		return state/stateSum;
 		*/
-		double methyPriorScale = 1-methyPrior+a.get(dist)[i][1];
-		double unmethyPriorScale = methyPrior+a.get(dist)[i][0];
+		double methyPriorScale = 1-methyPrior+getArij(dist, i, 1);
+		double unmethyPriorScale = methyPrior+getArij(dist, i, 0);
 		//double methyPriorScale = 1.5+a.get(dist)[i][1];
 		//double unmethyPriorScale = 0+a.get(dist)[i][0];
 		//System.err.println(methyPrior + "\t" + methyPriorScale + "\t" + unmethyPriorScale  + "\t" + pi.get(dist)[1]  + "\t" + pi.get(dist)[0] + "\t" + stateNb);
@@ -275,14 +293,31 @@ implements Serializable, Cloneable {
 	
 	public double getArij(int nbCpgDistStates, int i, int j)
 	{
-		return a.get(nbCpgDistStates)[i][j];
+		return a[(nbCpgDistStates * nbStates + i) * nbStates + j];
+	}
+	
+	/**
+	 * Returns <code>Math.log(getArij(nbCpgDistStates, i, j))</code>, precomputed.
+	 */
+	public double getLnArij(int nbCpgDistStates, int i, int j)
+	{
+		return lnA[(nbCpgDistStates * nbStates + i) * nbStates + j];
 	}
 	
 	public void setArij(int nbCpgDistStates, int i, int j, double value)
 	{
-		Double t[][] = a.get(nbCpgDistStates);
-		t[i][j]=value;
-		a.put(nbCpgDistStates, t);
+		a[(nbCpgDistStates * nbStates + i) * nbStates + j] = value;
+		lnA[(nbCpgDistStates * nbStates + i) * nbStates + j] = Math.log(value);
+	}
+	
+	private void allocateTables(int nbDist)
+	{
+		pi = new double[nbDist * nbStates];
+		lnPi = new double[nbDist * nbStates];
+		a = new double[nbDist * nbStates * nbStates];
+		lnA = new double[nbDist * nbStates * nbStates];
+		Arrays.fill(lnPi, Double.NEGATIVE_INFINITY);
+		Arrays.fill(lnA, Double.NEGATIVE_INFINITY);
 	}
 	
 	
@@ -537,6 +572,77 @@ implements Serializable, Cloneable {
 		
 		return opdfs.get(stateNb).probability(o);
 	}
+	
+	/**
+	 * Same as {@link #getOpdfProb(int, Observation)} for observation <code>n</code> of a {@link FragmentMatrix}.
+	 */
+	public double getOpdfProb(int stateNb, FragmentMatrix matrix, int n)
+	{
+		Opdf<O> opdf = opdfs.get(stateNb);
+		if(opdf instanceof OpdfMultiMixtureGaussian){
+			return ((OpdfMultiMixtureGaussian)opdf).probability(matrix.features(), n * matrix.dimension());
+		}
+		return opdf.probability((O)matrix.observation(n));
+	}
+	
+	/**
+	 * Evaluates the opdf of every state on every observation of fragment
+	 * <code>fragment</code>: <code>emission[t][i]</code> is the probability of
+	 * the t-th observation in state i. The calculators read these values
+	 * instead of evaluating the mixtures again.
+	 *
+	 * @param emission A buffer to reuse, or null. A new one is allocated if it
+	 *                 is too small.
+	 * @return The filled buffer.
+	 */
+	public double[][] getOpdfProbs(FragmentMatrix matrix, int fragment, double[][] emission)
+	{
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
+		if(emission == null || emission.length < length || (length > 0 && emission[0].length < nbStates())){
+			emission = new double[Math.max(length, emission == null ? 0 : emission.length)][nbStates()];
+		}
+		for(int t = 0; t < length; t++){
+			for(int i = 0; i < nbStates(); i++){
+				emission[t][i] = getOpdfProb(i, matrix, offset + t);
+			}
+		}
+		return emission;
+	}
+	
+	/**
+	 * Same as {@link #getOpdfBayesianProb(int, Pair, Observation, double)} for observation <code>n</code> of a {@link FragmentMatrix}.
+	 */
+	public double getOpdfBayesianProb(int stateNb, FragmentMatrix matrix, int n)
+	{
+		double[] emission = new double[nbStates()];
+		for(int i = 0; i < nbStates(); i++){
+			emission[i] = getOpdfProb(i, matrix, n);
+		}
+		return getOpdfBayesianProb(stateNb, matrix.methyPrior(n), emission);
+	}
+	
+	/**
+	 * Same as {@link #getOpdfBayesianProb(int, FragmentMatrix, int)} from the
+	 * already evaluated opdf probabilities of one observation (a row of
+	 * {@link #getOpdfProbs(FragmentMatrix, int, double[][])}).
+	 */
+	public double getOpdfBayesianProb(int stateNb, double prior, double[] emission)
+	{
+		double factor = getBayesianFactor();
+		double priorUpperBound = 0.5 + factor/2;
+		double priorLowerBound = 0.5 - factor/2;
+		double methyPrior = priorLowerBound + prior * factor;
+		double unmethyPrior = priorUpperBound - prior * factor;
+		double methyLikelihood = emission[methyState];
+		double unmethyLikelihood = emission[1-methyState];
+		
+		double unmethyLikelihoodScale = unmethyLikelihood/(unmethyLikelihood + methyLikelihood) ;
+		double methyLikelihoodScale = methyLikelihood/(unmethyLikelihood + methyLikelihood);
+		
+		return stateNb == methyState ? methyLikelihoodScale*methyPrior/(methyLikelihoodScale*methyPrior+unmethyLikelihoodScale*unmethyPrior) : 
+			unmethyLikelihoodScale*unmethyPrior/(methyLikelihoodScale*methyPrior+unmethyLikelihoodScale*unmethyPrior);
+	}
 
 	
 	/**
@@ -600,14 +706,15 @@ implements Serializable, Cloneable {
 		for (int i = 0; i < nbStates(); i++) {
 			s += "\nState " + i + "\n";
 			//s += "  Pi: " + getPri(1,i) + "\n";
-			s += "  Pi: " + nf.format(getPri(pi.keySet().toArray(new Integer[pi.keySet().size()])[pi.keySet().size()/2],i)) + " (" + nf.format(getPri(pi.firstKey(),i))+ ", " + nf.format(getPri(pi.lastKey(),i)) + ") " + "\n";
+			int nbDist = pi.length / nbStates;
+			s += "  Pi: " + nf.format(getPri(nbDist/2,i)) + " (" + nf.format(getPri(0,i))+ ", " + nf.format(getPri(nbDist-1,i)) + ") " + "\n";
 			
 			
 			s += "  Aij:";
 			
 			for (int j = 0; j < nbStates(); j++){
 			//	s += " " + nf.format(getArij(1,i,j));
-				s += " " + nf.format(getArij(pi.keySet().toArray(new Integer[pi.keySet().size()])[pi.keySet().size()/2],i,j)) + " (" + nf.format(getArij(pi.firstKey(),i,j)) + ", " + nf.format(getArij(pi.lastKey(),i,j)) + ") ";
+				s += " " + nf.format(getArij(nbDist/2,i,j)) + " (" + nf.format(getArij(0,i,j)) + ", " + nf.format(getArij(nbDist-1,i,j)) + ") ";
 			}
 				
 			s += "\n";
@@ -623,25 +730,69 @@ implements Serializable, Cloneable {
 		return toString(NumberFormat.getInstance());
 	}
 	
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		int nbDist = pi.length / nbStates;
+		TreeMap<Integer, Double[]> piMap = new TreeMap<Integer, Double[]>();
+		TreeMap<Integer, Double[][]> aMap = new TreeMap<Integer, Double[][]>();
+		for (int r = 0; r < nbDist; r++) {
+			Double[] pit = new Double[nbStates];
+			Double[][] t = new Double[nbStates][nbStates];
+			for (int i = 0; i < nbStates; i++) {
+				pit[i] = getPri(r, i);
+				for (int j = 0; j < nbStates; j++)
+					t[i][j] = getArij(r, i, j);
+			}
+			piMap.put(r, pit);
+			aMap.put(r, t);
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("pi", piMap);
+		fields.put("a", aMap);
+		fields.put("opdfs", opdfs);
+		fields.put("nbStates", nbStates);
+		fields.put("nbCpgDistStates", nbCpgDistStates);
+		fields.put("bayesianFactor", bayesianFactor);
+		fields.put("methyState", methyState);
+		fields.put("maxCpgInFrag", maxCpgInFrag);
+		fields.put("minCpgInFrag", minCpgInFrag);
+		out.writeFields();
+	}
+	
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		TreeMap<Integer, Double[]> piMap = (TreeMap<Integer, Double[]>) fields.get("pi", null);
+		TreeMap<Integer, Double[][]> aMap = (TreeMap<Integer, Double[][]>) fields.get("a", null);
+		opdfs = (ArrayList<Opdf<O>>) fields.get("opdfs", null);
+		nbStates = fields.get("nbStates", 0);
+		nbCpgDistStates = fields.get("nbCpgDistStates", 0);
+		bayesianFactor = fields.get("bayesianFactor", 0.);
+		methyState = fields.get("methyState", 1);
+		maxCpgInFrag = fields.get("maxCpgInFrag", 0.);
+		minCpgInFrag = fields.get("minCpgInFrag", 0.);
+		
+		allocateTables(Math.max(nbCpgDistStates, piMap.isEmpty() ? 0 : Math.max(piMap.lastKey(), aMap.lastKey())) + 1);
+		for (Integer r : piMap.keySet())
+			for (int i = 0; i < nbStates; i++)
+				if (piMap.get(r)[i] != null)
+					setPri(r, i, piMap.get(r)[i]);
+		for (Integer r : aMap.keySet())
+			for (int i = 0; i < nbStates; i++)
+				for (int j = 0; j < nbStates; j++)
+					if (aMap.get(r)[i][j] != null)
+						setArij(r, i, j, aMap.get(r)[i][j]);
+	}
+	
 	public BayesianNhmmV5<O> clone()throws CloneNotSupportedException{
 
 				BayesianNhmmV5<O> hmm = new BayesianNhmmV5<O>(nbStates(), nbCpgDistStates, bayesianFactor);
-				hmm.pi = (TreeMap<Integer, Double[]>) pi.clone();
-				for (Integer key : a.keySet()){
-						hmm.pi.put(key, pi.get(key).clone());
-					
-				}
+				hmm.pi = pi.clone();
+				hmm.lnPi = lnPi.clone();
+				hmm.a = a.clone();
+				hmm.lnA = lnA.clone();
 				
-				hmm.a = (TreeMap<Integer, Double[][]>) a.clone();
-				for (Integer key : a.keySet()){
-					Double[][] t = hmm.a.get(key);
-					for (int i = 0; i < a.get(key).length; i++){
-						
-						t[i] = a.get(key)[i].clone();
-					}
-					hmm.a.put(key, t);
-				}
-					
 				
 				for (int i = 0; i < hmm.opdfs.size(); i++)
 					hmm.opdfs.set(i, opdfs.get(i).clone());
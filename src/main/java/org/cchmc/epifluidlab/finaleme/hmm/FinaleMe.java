@@ -7,33 +7,50 @@
 package org.cchmc.epifluidlab.finaleme.hmm;
 
 
-import htsjdk.samtools.util.IntervalTree;
+import htsjdk.tribble.index.tabix.TabixFormat;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.tuple.Triple;
+import org.apache.commons.math3.linear.BlockRealMatrix;
 import org.apache.commons.math3.random.MersenneTwister;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
+import org.cchmc.epifluidlab.finaleme.utils.BgzfOutputStream;
+import org.cchmc.epifluidlab.finaleme.utils.FragmentIndex;
+import org.cchmc.epifluidlab.finaleme.utils.GenomeMask;
+import org.cchmc.epifluidlab.finaleme.utils.LongIntHashMap;
 import org.cchmc.epifluidlab.finaleme.utils.ObservationVector;
+import org.cchmc.epifluidlab.finaleme.utils.TabFieldReader;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -60,6 +77,9 @@ public class FinaleMe {
 	@Option(name="-decayRate",usage="distance changes less than decayRate, default: 0.01")
 	public double decayRate = 0.01;
 
+	@Option(name="-klConvergence",usage="measure the distance between iterations by the Kullback-Leibler distance of the two models, which costs two more forward passes per iteration, instead of the log-likelihood change computed in the E-step. default: false")
+	public boolean klConvergence = false;
+
 	@Option(name="-tolKmeans",usage="tolerence level for the K-means part, default: 0.005")
 	public double tolKmeans = 0.005;
 
@@ -133,12 +153,24 @@ public class FinaleMe {
 	@Option(name="-seed",usage="seed for randomness.when less than 0, it will be random and not repeatable. default: 2017")
 	public int seed = 2017;
 	
-	@Option(name="-region",usage="only look at data points within these regions. need to be bed format. default: null")
+	@Option(name="-region",usage="only look at data points within these regions. need to be bed format, or a binary mask written by BedToGenomeMask. default: null")
 	public String region = null;
 
-	@Option(name="-exclude",usage="exclude data points within these regions. need to be bed format. default: null")
+	@Option(name="-exclude",usage="exclude data points within these regions. need to be bed format, or a binary mask written by BedToGenomeMask (e.g. a blacklist and gap track merged once). default: null")
 	public String exclude = null;
 
+	@Option(name="-streamDecode",usage="decode fragments within a sliding genomic window instead of loading the whole matrix into memory. input_matrix need to be coordinate-sorted (the default output order of CpgMultiMetricsStats). Training (without -decodeModeOnly) still loads the training fragments into memory. default: false")
+	public boolean streamDecode = false;
+
+	@Option(name="-shards",usage="decode the fragments in N shards partitioned by read name, so that only one shard is loaded into memory at a time. the per-CpG counts of each shard are spilled to temporary files next to prediction.txt.gz and merged into one prediction file, CpGs ordered by the first appearance of their chromosome in input_matrix. Training (without -decodeModeOnly) still loads the training fragments into memory. default: 1")
+	public int shards = 1;
+
+	@Option(name="-threads",usage="number of threads used in the E-step of the HMM training and in the decoding. the results do not depend on the number of threads. default: 1")
+	public int threads = 1;
+
+	@Option(name="-tabix",usage="also write a tabix index (.tbi) of the prediction file. default: false")
+	public boolean tabix = false;
+
 	
 	@Option(name="-h",usage="show option information")
 	public boolean help = false;
@@ -147,14 +179,19 @@ public class FinaleMe {
 	@Argument
 	private List<String> arguments = new ArrayList<String>();
 
-	final private static String USAGE = "FinaleMe [opts] model input_matrix.txt[.gz] prediction.txt.gz";
+	final private static String USAGE = "FinaleMe [opts] model input_matrix.txt[.gz]/input_matrix.fmb prediction.txt.gz";
 	
 	private static Logger log = Logger.getLogger(FinaleMe.class);
+	private ForkJoinPool pool = null;
+	//rows of the -streamDecode window decoded at once, the batch grows when more rows are still open
+	private static final int STREAM_BATCH_ROWS = 1 << 16;
 
 	private static long startTime = -1;
 	private static long points = 0;
 	private MersenneTwister randomEngine;
 	private double maxCpgNum = Double.NEGATIVE_INFINITY;
+	private GenomeMask regionMask = null;
+	private GenomeMask excludeMask = null;
 	//private double minCpgNum = Double.POSITIVE_INFINITY;
 	//private int methylatedState = 1;
 
@@ -217,578 +254,504 @@ public class FinaleMe {
 					//	bayesianFactor=0;
 					//}
 					//training
-					MatrixObj matrixObj = processMatrixFile(inputFile);
-					//System.err.println(miniDataPoints + "\t" + matrixObj.matrix.size());
-					if(aucMode){
+					if(streamDecode && FragmentMatrixFile.isBinary(inputFile)){
+						log.warn("-streamDecode needs the coordinate-sorted text matrix, decode the binary matrix in memory instead");
+						streamDecode = false;
+					}
+					if(shards < 1){
+						throw new IllegalArgumentException("-shards should be at least 1: " + shards);
+					}
+					if(shards > 1 && FragmentMatrixFile.isBinary(inputFile)){
+						log.warn("-shards needs the text matrix, decode the binary matrix in memory instead");
+						shards = 1;
+					}
+					if(shards > 1 && streamDecode){
+						log.warn("-shards is ignored in -streamDecode mode");
+						shards = 1;
+					}
+					try{
+						if((streamDecode || shards > 1) && !aucMode){
+							if(!decodeModeOnly){
+								int miniDataPointsPre = miniDataPoints;
+								if(miniDataPoints < 2){
+									miniDataPoints = 2;
+								}
+								trainHmm(processMatrixFile(inputFile), modelFile);
+								miniDataPoints = miniDataPointsPre;
+							}
+							if(streamDecode){
+								streamDecodeHmm(modelFile, outputFile, inputFile);
+							}else{
+								shardDecodeHmm(modelFile, outputFile, inputFile);
+							}
+							finish();
+							return;
+						}
+						MatrixObj matrixObj = processMatrixFile(inputFile);
+						//System.err.println(miniDataPoints + "\t" + matrixObj.matrix.size());
+						if(aucMode){
 						
-						aucMode(matrixObj, modelFile, outputFile);
-					}else{
+							aucMode(matrixObj, modelFile, outputFile);
+						}else{
 						
-						if(!decodeModeOnly){
-							int miniDataPointsPre = miniDataPoints;
+							if(!decodeModeOnly){
+								int miniDataPointsPre = miniDataPoints;
 							
-							if(miniDataPoints < 2){
-								miniDataPoints = 2;
-								MatrixObj matrixObj2 = processMatrixFile(inputFile);
-								//System.err.println(miniDataPoints + "\t" + matrixObj2.matrix.size() + "\t" + matrixObj.matrix.size());
-								trainHmm(matrixObj2, modelFile);
-							}else{
-								trainHmm(matrixObj, modelFile);
+								if(miniDataPoints < 2){
+									miniDataPoints = 2;
+									MatrixObj matrixObj2 = processMatrixFile(inputFile);
+									//System.err.println(miniDataPoints + "\t" + matrixObj2.matrix.size() + "\t" + matrixObj.matrix.size());
+									trainHmm(matrixObj2, modelFile);
+								}else{
+									trainHmm(matrixObj, modelFile);
+								}
+								miniDataPoints = miniDataPointsPre;
 							}
-							miniDataPoints = miniDataPointsPre;
+							//System.err.println(miniDataPoints + "\t" + matrixObj.matrix.size());
+							decodeHmm(matrixObj, modelFile, outputFile, inputFile, false);
 						}
-						//System.err.println(miniDataPoints + "\t" + matrixObj.matrix.size());
-						decodeHmm(matrixObj, modelFile, outputFile, inputFile, false);
-					}
 					
 					
-					finish();
+						finish();
+					}finally{
+						shutdownPool();
+					}
 					
 
 	}
 	
 	private MatrixObj processMatrixFile(String matrixFile) throws FileNotFoundException, IOException, FileFormatException{
-		ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrix = new ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>>();
-		HashMap<String, TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>>> matrixProcess = new HashMap<String, TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>>>();
-		ArrayList<Pair<Integer, Double>> cpgDistFreq = new ArrayList<Pair<Integer, Double>>();
-		HashMap<String,IntervalTree<Integer>> overlapLoc = null;
-		//HashMap<String,Integer> fragLen = new HashMap<String,Integer>();
-		if(region!=null ){
-			log.info("Loading overalpped regions... ");
-			overlapLoc = new HashMap<String,IntervalTree<Integer>>();
-			GZIPInputStream gzipInputStream = null;
-			BufferedReader br;
-			if(region.endsWith(".gz")){
-				gzipInputStream = new GZIPInputStream(new FileInputStream(region));
-				br = new BufferedReader(new InputStreamReader(gzipInputStream));
-				
-			}else{
-				br = new BufferedReader(new FileReader(region));
-			}
-			String line;
-			while( (line = br.readLine()) != null){
-				if(line.startsWith("#"))
-					continue;
-				String[] splitLines = line.split("\t");
-				if(splitLines.length<3){
-					continue;
-				}
-				String chr = splitLines[0];
-				int start = Integer.parseInt(splitLines[1]);
-				int end = Integer.parseInt(splitLines[2]);
-				IntervalTree<Integer> tree;
-				if(overlapLoc.containsKey(chr)){
-					tree = overlapLoc.get(chr);
-				}else{
-					tree = new IntervalTree<Integer>();
-				}
-				tree.put(start, end, 1);
-				overlapLoc.put(chr, tree);
-					
-			}
-			if(region.endsWith(".gz")){
-				gzipInputStream.close();
-			}
-			br.close();
-
+		if(FragmentMatrixFile.isBinary(matrixFile)){
+			return processBinaryMatrixFile(matrixFile);
 		}
+		return processMatrixFile(matrixFile, null);
+	}
+	
+	//featureStats: mean and sd of the features used for the z-score, computed from matrixFile itself when null
+	private MatrixObj processMatrixFile(String matrixFile, StatisticalSummary[] featureStats) throws FileNotFoundException, IOException, FileFormatException{
+		//reads are numbered in order of first appearance, and looked up by their 64-bit fragment id rather than by read name
+		FragmentIndex readIndex = new FragmentIndex();
+		//HashMap<String,Integer> fragLen = new HashMap<String,Integer>();
+		loadRegionMasks();
 		
-		HashMap<String,IntervalTree<Integer>> excludeLoc = null;
-		if(exclude != null){
-			log.info("Loading excluded regions... ");
-			excludeLoc = new HashMap<String,IntervalTree<Integer>>();
-			GZIPInputStream gzipInputStream = null;
-			BufferedReader br;
-			if(exclude.endsWith(".gz")){
-				gzipInputStream = new GZIPInputStream(new FileInputStream(exclude));
-				br = new BufferedReader(new InputStreamReader(gzipInputStream));
-				
-			}else{
-				br = new BufferedReader(new FileReader(exclude));
-			}
-			String line;
-			while( (line = br.readLine()) != null){
-				if(line.startsWith("#"))
-					continue;
-				String[] splitLines = line.split("\t");
-				if(splitLines.length<3){
-					continue;
-				}
-				String chr = splitLines[0];
-				int start = Integer.parseInt(splitLines[1]);
-				int end = Integer.parseInt(splitLines[2]);
-				IntervalTree<Integer> tree;
-				if(excludeLoc.containsKey(chr)){
-					tree = excludeLoc.get(chr);
-				}else{
-					tree = new IntervalTree<Integer>();
-				}
-				tree.put(start, end, 1);
-				excludeLoc.put(chr, tree);
-					
-			}
-			if(exclude.endsWith(".gz")){
-				gzipInputStream.close();
-			}
-			br.close();
+		StatisticalSummary[] stats = featureStats;
+		if(stats == null){
+			stats = featureStats(matrixFile);
 		}
+		GenomeMask.Cursor overlapLoc = cursor(regionMask);
+		GenomeMask.Cursor excludeLoc = cursor(excludeMask);
 		
-		
-		GZIPInputStream gzipInputStream = null;
-		BufferedReader br;
-		if(matrixFile.endsWith(".gz")){
-			gzipInputStream = new GZIPInputStream(new FileInputStream(matrixFile));
-			br = new BufferedReader(new InputStreamReader(gzipInputStream));
-			
-		}else{
-			br = new BufferedReader(new FileReader(matrixFile));
-		}
-			
-			String line;
-			SummaryStatistics[] stats = new SummaryStatistics[3];
-			//HashMap<String, SummaryStatistics[]> stats = new HashMap<String, SummaryStatistics[]>();
-			for(int i = 0; i < 3; i++){
-				stats[i] = new SummaryStatistics();
-			}
-
-			while( (line = br.readLine()) != null){
-				if(line.startsWith("#"))
+		//rows are appended to the matrix in file order, so CpGs are numbered in the chromosome order of the input and the predictions come out sorted as the input.
+		//they are grouped by read once the whole file is read
+		FragmentMatrix matrix = new FragmentMatrix(features);
+		ReadRows rows = new ReadRows();
+		double[] value = new double[features];
+		TabFieldReader fields = TabFieldReader.open(matrixFile);
+		String chr = null;
+
+			while(fields.next()){
+				if(fields.startsWith('#'))
 					continue;
-				String[] splitLines = line.split("\t");
-				if(splitLines.length< (features + 4) || splitLines[1].equalsIgnoreCase("start") || Integer.parseInt(splitLines[4]) >= maxFragLen || Integer.parseInt(splitLines[4])  <= minFragLen || Double.parseDouble(splitLines[8]) <= 5){
+				if(fields.fieldCount()< (features + 4) || fields.fieldEqualsIgnoreCase(1, "start") || fields.intField(4) >= maxFragLen || fields.intField(4)  <= minFragLen || fields.doubleField(8) <= 5){
 					continue;
 				}
-				String chr = splitLines[0];
-				int start = Integer.parseInt(splitLines[1]);
-				int end = Integer.parseInt(splitLines[2]);
-				
-				if(region!=null ){
-					if(overlapLoc.containsKey(chr)){
-						if(overlapLoc.get(chr).minOverlapper(start, end)==null){
-							continue;
-						}
-						
-					}else{
-						continue;
-					}
-				}
+				chr = fields.field(0, chr);
+				int start = fields.intField(1);
+				int end = fields.intField(2);
 				
-				if(exclude !=null ){
-					if(excludeLoc.containsKey(chr)){
-						if(excludeLoc.get(chr).minOverlapper(start, end)!=null){
-							//System.err.println(chr + "\t" + start + "\t" + end + "\t" + excludeLoc.size() + "\t" + excludeLoc.get(chr).minOverlapper(start, end));
-							continue;
-						}
-					}
+				if(!withinRegions(chr, start, end, overlapLoc, excludeLoc)){
+					continue;
 				}
 				
-				Integer offset = Integer.parseInt(splitLines[9]);
+				int offset = fields.intField(9);
 				if(offset < 0){
 					continue;
 				}
-				Double methyPrior = Double.parseDouble(splitLines[11]);
+				double methyPrior = scaleFeatures(fields.doubleField(4), fields.doubleField(7), fields.doubleField(10), fields.doubleField(11), stats, value);
 				if(Double.isNaN(methyPrior)){
 					continue;
 				}
-				double DistToCenter = Double.parseDouble(splitLines[4])/2-Double.parseDouble(splitLines[10])+0.5;
-				stats[0].addValue(Double.parseDouble(splitLines[4]));
-				stats[1].addValue(Double.parseDouble(splitLines[7]));
-				stats[2].addValue(DistToCenter);
-				//if(lowCoverage){
-				//	stats[1].addValue(Double.parseDouble(splitLines[10]));
-					
-				//}else{
-				//	stats[1].addValue(Double.parseDouble(splitLines[7]));
-				//	stats[2].addValue(Double.parseDouble(splitLines[10]));
-				//}
-				
-				//stats[3].addValue(Double.parseDouble(splitLines[12])*Double.parseDouble(splitLines[4]));
-				//if(stats.containsKey(chr)){
-				//	SummaryStatistics[] statsTmp = stats.get(chr);
-					
-					//statsTmp[0].addValue(Double.parseDouble(splitLines[4]));
-					//statsTmp[1].addValue(Double.parseDouble(splitLines[7]));
-					//statsTmp[2].addValue(Double.parseDouble(splitLines[10]));
-				//	stats.put(chr,statsTmp);
-			//	}else{
-				//	SummaryStatistics[] statsTmp = new SummaryStatistics[features];
-			//		for(int i = 0; i < features; i++){
-			//			statsTmp[i] = new SummaryStatistics();
-						
-			//		}
-			//		statsTmp[0].addValue(Double.parseDouble(splitLines[4]));
-			//		statsTmp[1].addValue(Double.parseDouble(splitLines[7]));
-			//		statsTmp[2].addValue(Double.parseDouble(splitLines[10]));
-			//		stats.put(chr,statsTmp);
+				long readId = fields.fragmentIdField(3);
+				int readNameHash = fields.fieldHashCode(3);
+			////	if(!fragLen.containsKey(readName)){
+			//		fragLen.put(readName, Integer.parseInt(splitLines[4]));
 			//	}
 				
-				
-			}
-			if(matrixFile.endsWith(".gz")){
-				gzipInputStream.close();
+				points++;
+				int read = readIndex.indexOf(readId, readNameHash);
+				matrix.addObservation(value, 0, methyPrior, FragmentMatrixFile.observedState(fields, 6), chr, start, end);
+				rows.add(read, offset);
 			}
-			br.close();
-		
+			fields.close();
+			log.info("Number of point in total is loaded : " + points);
+			//for(int i = 0; i < features; i++){
+			//	log.info(stats.get("22")[i]);
+				
+			//}
+
+			TreeMap<Integer, Long[]> pi = new TreeMap<Integer, Long[]>();
+			TreeMap<Integer, Long[]> aij = new TreeMap<Integer, Long[]>();
+			int nbReads = readIndex.size();
+			readIndex = null;
+			groupReads(matrix, rows, nbReads, pi, aij);
+			return buildMatrixObj(matrix, pi, aij);
+	}
+	
+	//load the binary matrix written by CpgMatrixToBinary, its rows are already grouped by fragment and ordered by offset
+	private MatrixObj processBinaryMatrixFile(String matrixFile) throws IOException{
+		loadRegionMasks();
+		GenomeMask.Cursor overlapLoc = cursor(regionMask);
+		GenomeMask.Cursor excludeLoc = cursor(excludeMask);
 		
-		if(matrixFile.endsWith(".gz")){
-			gzipInputStream = new GZIPInputStream(new FileInputStream(matrixFile));
-			br = new BufferedReader(new InputStreamReader(gzipInputStream));
-			
+		FragmentMatrixFile input = new FragmentMatrixFile(matrixFile);
+		StatisticalSummary[] stats = new StatisticalSummary[3];
+		if(region == null && exclude == null && input.minFragLen() == minFragLen && input.maxFragLen() == maxFragLen){
+			for(int i = 0; i < 3; i++){
+				stats[i] = input.statistics(i);
+			}
 		}else{
-			br = new BufferedReader(new FileReader(matrixFile));
+			log.info("Feature statistics in the binary matrix header do not match -minFragLen/-maxFragLen/-region/-exclude, recompute them ... ");
+			SummaryStatistics[] summary = new SummaryStatistics[3];
+			for(int i = 0; i < 3; i++){
+				summary[i] = new SummaryStatistics();
+			}
+			for(long r = 0; r < input.nbRecords(); r++){
+				if(!keepRecord(input, r, overlapLoc, excludeLoc) || Double.isNaN(input.methyPrior(r))){
+					continue;
+				}
+				summary[0].addValue(input.fragLen(r));
+				summary[1].addValue(input.cov(r));
+				summary[2].addValue((double)input.fragLen(r)/2-input.distFragEnd(r)+0.5);
+			}
+			stats = summary;
 		}
 		for(int i = 0; i < 3; i++){
 			log.info("Feature " + i + ": " + stats[i]);
 		}
-			
-
-			while( (line = br.readLine()) != null){
-				if(line.startsWith("#"))
-					continue;
-				String[] splitLines = line.split("\t");
-				if(splitLines.length< (features + 4) || splitLines[1].equalsIgnoreCase("start") || Integer.parseInt(splitLines[4]) >= maxFragLen || Integer.parseInt(splitLines[4])  <= minFragLen || Double.parseDouble(splitLines[8]) <= 5){
-					continue;
-				}
-				String chr = splitLines[0];
-				int start = Integer.parseInt(splitLines[1]);
-				int end = Integer.parseInt(splitLines[2]);
-				String loc = chr + ":" + start + ":" + end;
-				String readName = splitLines[3];
-				
-				if(region!=null ){
-					if(overlapLoc.containsKey(chr)){
-						if(overlapLoc.get(chr).minOverlapper(start, end)==null){
-							continue;
-						}
-						
-					}else{
+		
+		TreeMap<Integer, Long[]> pi = new TreeMap<Integer, Long[]>();
+		TreeMap<Integer, Long[]> aij = new TreeMap<Integer, Long[]>();
+		FragmentMatrix matrix = new FragmentMatrix(features, (int)Math.min(input.nbRecords(), Integer.MAX_VALUE / features), input.nbFragments());
+		for(int c = 0; c < input.nbChrs(); c++){
+			matrix.chrIndex(input.chr(c));
+		}
+		ReadRows rows = new ReadRows();
+		double[] value = new double[features];
+		int nbReads = 0;
+		for(int b = 0; b < input.nbBlocks(); b++){
+			if(regionMask != null && !regionMask.hasChr(input.blockChr(b)) && !input.blockMixed(b)){
+				continue;
+			}
+			for(int f = input.blockFirstFragment(b); f < input.blockFirstFragment(b) + input.blockNbFragments(b); f++){
+				boolean readRows = false;
+				for(long r = input.firstRecord(f); r < input.firstRecord(f) + input.length(f); r++){
+					if(!keepRecord(input, r, overlapLoc, excludeLoc)){
 						continue;
 					}
-				}
-				if(exclude !=null ){
-					if(excludeLoc.containsKey(chr)){
-						if(excludeLoc.get(chr).minOverlapper(start, end)!=null){
-							continue;
-						}
+					double methyPrior = scaleFeatures(input.fragLen(r), input.cov(r), input.distFragEnd(r), input.methyPrior(r), stats, value);
+					if(Double.isNaN(methyPrior)){
+						continue;
 					}
+					points++;
+					matrix.addObservation(value, 0, methyPrior, input.observed(r), input.chrName(r), input.start(r), input.end(r));
+					rows.add(nbReads, input.offset(r));
+					readRows = true;
 				}
-				
-				Integer offset = Integer.parseInt(splitLines[9]);
-				if(offset < 0){
-					continue;
+				if(readRows){
+					nbReads++;
 				}
-				Double methyPrior = Double.parseDouble(splitLines[11]);
-				//if(noMethyPrior){
-				//	methyPrior = 50.0;
-				//}else{
-					if(Double.compare(methyPrior, 100.0)==0){
-						methyPrior -= 0.01;
-					}else if(Double.compare(methyPrior, 0.0)==0){
-						methyPrior += 0.01;
-					}
-				//}
+			}
+		}
+		input.close();
+		log.info("Number of point in total is loaded : " + points);
+		groupReads(matrix, rows, nbReads, pi, aij);
+		return buildMatrixObj(matrix, pi, aij);
+	}
+	
+	//same row filter as the text matrix: fragment length, baseQ, offset and regions
+	private boolean keepRecord(FragmentMatrixFile input, long r, GenomeMask.Cursor overlapLoc, GenomeMask.Cursor excludeLoc){
+		int fragLen = input.fragLen(r);
+		if(fragLen >= maxFragLen || fragLen <= minFragLen || input.baseQ(r) <= 5 || input.offset(r) < 0){
+			return false;
+		}
+		return withinRegions(input.chrName(r), input.start(r), input.end(r), overlapLoc, excludeLoc);
+	}
+	
+	//z-scored features of one CpG row written into value, returns the scaled methylation prior, NaN if the row is filtered out (undefined prior or coverage outlier)
+	private double scaleFeatures(double fragLen, double cov, double distFragEnd, double methyPrior, StatisticalSummary[] stats, double[] value){
+		//if(noMethyPrior){
+		//	methyPrior = 50.0;
+		//}else{
+			if(Double.compare(methyPrior, 100.0)==0){
+				methyPrior -= 0.01;
+			}else if(Double.compare(methyPrior, 0.0)==0){
+				methyPrior += 0.01;
+			}
+		//}
 
-				methyPrior /= 100;
-				if(Double.isNaN(methyPrior)){
-					continue;
+		methyPrior /= 100;
+		if(Double.isNaN(methyPrior)){
+			return Double.NaN;
+		}
+		//filter out those regions with too much variation to the mean?
+		double DistToCenter = fragLen/2-distFragEnd+0.5;
+		if(covOutlier > 0 && ((cov-stats[1].getMean())/stats[1].getStandardDeviation() > covOutlier || 
+				(fragLen-stats[0].getMean())/stats[0].getStandardDeviation() > covOutlier ||
+				(DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation() > covOutlier)){
+			return Double.NaN;
+		}
+
+		if(lowCoverage){
+			value[0] = (fragLen-stats[0].getMean())/stats[0].getStandardDeviation();
+			value[1] = (DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation();
+			
+		}else{
+			value[0] = (fragLen-stats[0].getMean())/stats[0].getStandardDeviation();
+			value[1] = (cov-stats[1].getMean())/stats[1].getStandardDeviation();
+			value[2] = (DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation();
+		}
+		return methyPrior;
+	}
+	
+	//group the rows appended to the matrix by read, reads in order of first appearance and rows sorted by offset inside each read (the first row wins for a repeated offset),
+	//then keep the reads passing addRead, with their binned CpG distances. pi and aij are null when decoding only
+	private void groupReads(FragmentMatrix matrix, ReadRows rows, int nbReads, TreeMap<Integer, Long[]> pi, TreeMap<Integer, Long[]> aij){
+		int[] readStarts = new int[nbReads + 1];
+		for(int i = 0; i < rows.size; i++){
+			readStarts[rows.reads[i] + 1]++;
+		}
+		for(int read = 0; read < nbReads; read++){
+			readStarts[read + 1] += readStarts[read];
+		}
+		int[] sorted = new int[rows.size];
+		int[] fill = Arrays.copyOf(readStarts, nbReads);
+		for(int i = 0; i < rows.size; i++){
+			sorted[fill[rows.reads[i]]++] = i;
+		}
+		fill = null;
+		rows.reads = null;
+		
+		int[] offsets = rows.offsets;
+		int[] cpgDists = new int[rows.size];
+		int[] fragmentLengths = new int[nbReads];
+		int nbKept = 0;
+		int nbFragments = 0;
+		for(int read = 0; read < nbReads; read++){
+			int from = readStarts[read];
+			int to = readStarts[read + 1];
+			//stable insertion sort by offset, reads are short
+			for(int i = from + 1; i < to; i++){
+				int row = sorted[i];
+				int j = i - 1;
+				while(j >= from && offsets[sorted[j]] > offsets[row]){
+					sorted[j + 1] = sorted[j];
+					j--;
+				}
+				sorted[j + 1] = row;
+			}
+			int length = 0;
+			for(int i = from; i < to; i++){
+				if(length == 0 || offsets[sorted[i]] != offsets[sorted[from + length - 1]]){
+					sorted[from + length++] = sorted[i];
 				}
-				double strand =splitLines[5].equalsIgnoreCase("-") ? 1.0 : 0.0;
-				//filter out those regions with too much variation to the mean?
-				//double baseQ = 1-Math.pow(10, (-Double.parseDouble(splitLines[8])/10.0));
-				double DistToCenter = Double.parseDouble(splitLines[4])/2-Double.parseDouble(splitLines[10])+0.5;
-				if(covOutlier > 0 && ((Double.parseDouble(splitLines[7])-stats[1].getMean())/stats[1].getStandardDeviation() > covOutlier || 
-						(Double.parseDouble(splitLines[4])-stats[0].getMean())/stats[0].getStandardDeviation() > covOutlier ||
-						(DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation() > covOutlier)){
+			}
+			if(addRead(matrix, sorted, from, length, offsets, cpgDists, pi, aij)){
+				//kept reads are packed at the beginning of sorted, never past the rows still to read
+				System.arraycopy(sorted, from, sorted, nbKept, length);
+				System.arraycopy(cpgDists, from, cpgDists, nbKept, length);
+				nbKept += length;
+				fragmentLengths[nbFragments++] = length;
+			}
+		}
+		matrix.regroup(sorted, cpgDists, nbKept, fragmentLengths, nbFragments);
+	}
+	
+	//check one read (rows ordered by offset) and write its binned CpG distances into cpgDists, and count the observed initial and transition states when the read is kept
+	private boolean addRead(FragmentMatrix matrix, int[] rows, int from, int length, int[] offsets, int[] cpgDists, TreeMap<Integer, Long[]> pi, TreeMap<Integer, Long[]> aij){
+		int rowSize = 0;
+		boolean omitRead = false;
+		boolean kept = false;
+		for(int i = 0; i < length; i++){
+			int offset = offsets[rows[from + i]];
+			int cpgDist;
+			if(i == 0){
+				if(offset < 0){
+					omitRead = true;
 					continue;
 				}
-				double[] value;
-
-				if(lowCoverage){
-					value = new double[]{
-							(Double.parseDouble(splitLines[4])-stats[0].getMean())/stats[0].getStandardDeviation(),
-							(DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation(),
-					};
-					
-				}else{
-					value = new double[]{
-							(Double.parseDouble(splitLines[4])-stats[0].getMean())/stats[0].getStandardDeviation(),
-							//Double.parseDouble(splitLines[4]),
-							(Double.parseDouble(splitLines[7])-stats[1].getMean())/stats[1].getStandardDeviation(),
-							//Double.parseDouble(splitLines[7]),
-							(DistToCenter-stats[2].getMean())/stats[2].getStandardDeviation(),
-							//Double.parseDouble(splitLines[10]),
-							//(Double.parseDouble(splitLines[12])*Double.parseDouble(splitLines[4])-stats[3].getMean())/stats[3].getStandardDeviation(),
-							//Double.parseDouble(splitLines[12])*Double.parseDouble(splitLines[4]),
-							
-					};
+				if(offset > maxCpgDist){
+					omitRead = true;
+					break;
 				}
-				
-				ObservationVector vector = new ObservationVector(value);
-			////	if(!fragLen.containsKey(readName)){
-			//		fragLen.put(readName, Integer.parseInt(splitLines[4]));
-			//	}
-				
-				points++;
-				if(matrixProcess.containsKey(readName)){
-					TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>> readStat = matrixProcess.get(readName);
-					if(readStat.containsKey(offset)){
-						//throw new FileFormatException("Contain duplicate reads with the same read name and same offsets:" + readName + "\tOffset:" + offset);
-						//TODO: find out why??
-					}else{
-						readStat.put(offset, Triple.of(splitLines[6], vector, new Pair<String, Double>(loc, methyPrior)));
-					}
-					matrixProcess.put(readName, readStat);
-					
-				}else{
-					TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>> readStat =  new TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>>();
-					readStat.put(offset, Triple.of(splitLines[6], vector, new Pair<String, Double>(loc, methyPrior)));
-					matrixProcess.put(readName, readStat);
+				cpgDist = (int)(offset/bin);
+			}else{
+				cpgDist = (int)((offset - offsets[rows[from + i - 1]])/bin);
+				if(cpgDist<0){
+					omitRead = true;
+					break;
+				}
+				if(cpgDist*bin > maxCpgDist){
+					omitRead = true;
+					break;
 				}
-				
-	
-				
-			}
-			if(matrixFile.endsWith(".gz")){
-				gzipInputStream.close();
 			}
-			br.close();
-			log.info("Number of point in total is loaded : " + points);
-			//for(int i = 0; i < features; i++){
-			//	log.info(stats.get("22")[i]);
-				
-			//}
-
-			ArrayList<ObservationVector> matrixU = new ArrayList<ObservationVector>();
-			ArrayList<ObservationVector> matrixM = new ArrayList<ObservationVector>();
-			ArrayList<ArrayList<Integer>> matrixObserved = new ArrayList<ArrayList<Integer>>();
-			TreeMap<Integer, Long[]> pi = new TreeMap<Integer, Long[]>();
-			TreeMap<Integer, Long[]> aij = new TreeMap<Integer, Long[]>();
-			
-			for(String key : matrixProcess.keySet()){
-				TreeMap<Integer, Triple<String, ObservationVector, Pair<String, Double>>> readStat = matrixProcess.get(key);
-				
-				
-				ArrayList<ObservationVector> matrixRow = new ArrayList<ObservationVector>();
-				HashMap<Integer, Pair<Integer, Double>> cpgDistRow = new HashMap<Integer, Pair<Integer, Double>>();
-				ArrayList<String> locRow = new ArrayList<String>();
-				Integer[] offsets = readStat.keySet().toArray(new Integer[readStat.keySet().size()]);
-				boolean omitRead = false;
-				for(int i = 0; i < offsets.length; i++){
-					
-					if(i == 0){
-						if(offsets[i] < 0){
-							omitRead = true;
+			cpgDists[from + i] = cpgDist;
+			rowSize++;
+		}
+		if(omitRead){
+			return false;
+		}
+		if(rowSize >= miniDataPoints && rowSize <= maxCpgs){
+			kept = true;
+			for(int i = 0; pi != null && i < length; i++){
+				int offset = offsets[rows[from + i]];
+				byte observed = matrix.observed(rows[from + i]);
+				if(i==0 && offset < 0){
+					continue;
+				}
+				if(i>0 && (int)((offset-offsets[rows[from + i - 1]]))<0 ){
+					continue;
+				}
+				if(observed == FragmentMatrix.UNMETHYLATED){
+					if(i==0){
+						if(offset > maxCpgDist){
 							continue;
 						}
-						if(offsets[i] > maxCpgDist){
-							omitRead = true;
-							break;
+						
+						if(pi.containsKey(offset)){
+							Long[] piTmp = pi.get(offset);
+							piTmp[0]++;
+							pi.put((int)offset/bin, piTmp);
+						}else{
+							Long[] piTmp = new Long[]{0L,0L};
+							piTmp[0]++;
+							pi.put((int)offset/bin, piTmp);
 						}
-						cpgDistRow.put(i, new Pair<Integer, Double>((int)(offsets[i]/bin), readStat.get(offsets[i]).getRight().getSecond()));
+							
 					}else{
-						int cpgDist = (int)((offsets[i] - offsets[i-1])/bin);
-						if(cpgDist<0){
-							omitRead = true;
-							break;
-						}
+						int cpgDist = (int)((offset-offsets[rows[from + i - 1]])/bin);
 						if(cpgDist*bin > maxCpgDist){
-							omitRead = true;
-							break;
+							continue;
+						}
+						byte previous = matrix.observed(rows[from + i - 1]);
+						if(previous == FragmentMatrix.UNMETHYLATED){
+							
+							if(aij.containsKey(cpgDist)){
+								Long[] aijTmp = aij.get(cpgDist);
+								aijTmp[0]++;
+								aij.put(cpgDist, aijTmp);
+							}else{
+								Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
+								aijTmp[0]++;
+								aij.put(cpgDist, aijTmp);
+							}
+							
+						}else if(previous == FragmentMatrix.METHYLATED){
+							if(aij.containsKey(cpgDist)){
+								Long[] aijTmp = aij.get(cpgDist);
+								aijTmp[2]++;
+								aij.put(cpgDist, aijTmp);
+							}else{
+								Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
+								aijTmp[2]++;
+								aij.put(cpgDist, aijTmp);
+							}
 						}
-						cpgDistRow.put(i, new Pair<Integer, Double>(cpgDist, readStat.get(offsets[i]).getRight().getSecond()));
 					}
-					matrixRow.add(readStat.get(offsets[i]).getMiddle());
-					locRow.add(readStat.get(offsets[i]).getRight().getFirst());
-				}
-				if(omitRead){
-					continue;
-				}
-				if(matrixRow.size() >= miniDataPoints && matrixRow.size() <= maxCpgs){
-					matrix.add(Triple.of(cpgDistRow, matrixRow, locRow));
-					ArrayList<Integer> matrixRowObserved = new ArrayList<Integer>();
-					for(int i = 0; i < offsets.length; i++){
-						if(i==0 && offsets[0] < 0){
+
+				}else if(observed == FragmentMatrix.METHYLATED){
+					if(i==0){
+						if(offset > maxCpgDist){
 							continue;
 						}
-						if(i>0 && (int)((offsets[i]-offsets[i-1]))<0 ){
+						if(pi.containsKey(offset)){
+							Long[] piTmp = pi.get(offset);
+							piTmp[1]++;
+							pi.put((int)offset/bin, piTmp);
+						}else{
+							Long[] piTmp = new Long[]{0L,0L};
+							piTmp[1]++;
+							pi.put((int)offset/bin, piTmp);
+						}
+					}else{
+						int cpgDist = (int)((offset-offsets[rows[from + i - 1]])/bin);
+						if(cpgDist*bin > maxCpgDist){
 							continue;
 						}
-						if(readStat.get(offsets[i]).getLeft().equalsIgnoreCase("u")){
-							matrixU.add(readStat.get(offsets[i]).getMiddle());
-							if(i==0){
-								if(offsets[0] > maxCpgDist){
-									continue;
-								}
-								
-								if(pi.containsKey(offsets[0])){
-									Long[] piTmp = pi.get(offsets[0]);
-									piTmp[0]++;
-									pi.put((int)offsets[0]/bin, piTmp);
-								}else{
-									Long[] piTmp = new Long[]{0L,0L};
-									piTmp[0]++;
-									pi.put((int)offsets[0]/bin, piTmp);
-								}
-									
-								cpgDistFreq.add(new Pair<Integer, Double>(offsets[0]/bin,readStat.get(offsets[0]).getRight().getSecond()));
-								//if(cpgDistFreq.containsKey(offsets[0])){
-								//	cpgDistFreq.put(offsets[0], cpgDistFreq.get(offsets[0])+1);
-								//}else{
-								//	cpgDistFreq.put(offsets[0], 1L);
-								//}
+						byte previous = matrix.observed(rows[from + i - 1]);
+						if(previous == FragmentMatrix.UNMETHYLATED){
+							if(aij.containsKey(cpgDist)){
+								Long[] aijTmp = aij.get(cpgDist);
+								aijTmp[1]++;
+								aij.put(cpgDist, aijTmp);
 							}else{
-								int cpgDist = (int)((offsets[i]-offsets[i-1])/bin);
-								if(cpgDist*bin > maxCpgDist){
-									continue;
-								}
-								if(readStat.get(offsets[i-1]).getLeft().equalsIgnoreCase("u")){
-									
-									if(aij.containsKey(cpgDist)){
-										Long[] aijTmp = aij.get(cpgDist);
-										aijTmp[0]++;
-										aij.put(cpgDist, aijTmp);
-									}else{
-										Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
-										aijTmp[0]++;
-										aij.put(cpgDist, aijTmp);
-									}
-									
-								}else if(readStat.get(offsets[i-1]).getLeft().equalsIgnoreCase("m")){
-									if(aij.containsKey(cpgDist)){
-										Long[] aijTmp = aij.get(cpgDist);
-										aijTmp[2]++;
-										aij.put(cpgDist, aijTmp);
-									}else{
-										Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
-										aijTmp[2]++;
-										aij.put(cpgDist, aijTmp);
-									}
-								}
-								cpgDistFreq.add(new Pair<Integer, Double>(cpgDist,readStat.get(offsets[i]).getRight().getSecond()));
-								//if(cpgDistFreq.containsKey(cpgDist)){
-								//	cpgDistFreq.put(cpgDist, cpgDistFreq.get(cpgDist)+1);
-								//}else{
-								//	cpgDistFreq.put(cpgDist, 1L);
-								//}
+								Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
+								aijTmp[1]++;
+								aij.put(cpgDist, aijTmp);
 							}
-
-							matrixRowObserved.add(0);
-						}else if(readStat.get(offsets[i]).getLeft().equalsIgnoreCase("m")){
-							matrixM.add(readStat.get(offsets[i]).getMiddle());
-							if(i==0){
-								if(offsets[0] > maxCpgDist){
-									continue;
-								}
-								if(pi.containsKey(offsets[0])){
-									Long[] piTmp = pi.get(offsets[0]);
-									piTmp[1]++;
-									pi.put((int)offsets[0]/bin, piTmp);
-								}else{
-									Long[] piTmp = new Long[]{0L,0L};
-									piTmp[1]++;
-									pi.put((int)offsets[0]/bin, piTmp);
-								}
-								cpgDistFreq.add(new Pair<Integer, Double>(offsets[0]/bin,readStat.get(offsets[0]).getRight().getSecond()));
-								//if(cpgDistFreq.containsKey(offsets[0])){
-								//	cpgDistFreq.put(offsets[0], cpgDistFreq.get(offsets[0])+1);
-								//}else{
-								//	cpgDistFreq.put(offsets[0], 1L);
-								//}
+							
+						}else if(previous == FragmentMatrix.METHYLATED){
+							if(aij.containsKey(cpgDist)){
+								Long[] aijTmp = aij.get(cpgDist);
+								aijTmp[3]++;
+								aij.put(cpgDist, aijTmp);
 							}else{
-								int cpgDist = (int)((offsets[i]-offsets[i-1])/bin);
-								if(cpgDist*bin > maxCpgDist){
-									continue;
-								}
-								if(readStat.get(offsets[i-1]).getLeft().equalsIgnoreCase("u")){
-									if(aij.containsKey(cpgDist)){
-										Long[] aijTmp = aij.get(cpgDist);
-										aijTmp[1]++;
-										aij.put(cpgDist, aijTmp);
-									}else{
-										Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
-										aijTmp[1]++;
-										aij.put(cpgDist, aijTmp);
-									}
-									
-								}else if(readStat.get(offsets[i-1]).getLeft().equalsIgnoreCase("m")){
-									if(aij.containsKey(cpgDist)){
-										Long[] aijTmp = aij.get(cpgDist);
-										aijTmp[3]++;
-										aij.put(cpgDist, aijTmp);
-									}else{
-										Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
-										aijTmp[3]++;
-										aij.put(cpgDist, aijTmp);
-									}
-								}
-								cpgDistFreq.add(new Pair<Integer, Double>(cpgDist,readStat.get(offsets[i]).getRight().getSecond()));
-								//if(cpgDistFreq.containsKey(cpgDist)){
-								//	cpgDistFreq.put(cpgDist, cpgDistFreq.get(cpgDist)+1);
-								//}else{
-								//	cpgDistFreq.put(cpgDist, 1L);
-								//}
+								Long[] aijTmp = new Long[]{0L,0L, 0L, 0L};
+								aijTmp[3]++;
+								aij.put(cpgDist, aijTmp);
 							}
-							
-							matrixRowObserved.add(1);
 						}
 					}
-					matrixObserved.add(matrixRowObserved);
-					//double cpgDense = (double)matrixRow.size()/(double)fragLen.get(key);
-					
-					
-					
-					//if(cpgDense<this.minCpgNum){
-					//	this.minCpgNum = cpgDense;
-					//}
-					//
-				}
-				if(cpgNumClip < 0){
-					double cpgDense = (double)matrixRow.size();
-					if(cpgDense>this.maxCpgNum){
-						this.maxCpgNum = cpgDense;
-					}
-					
 				}
 			}
-			TreeMap<Integer, double[]> piScale = new TreeMap<Integer, double[]>();
-			for(Integer cpgDist : pi.keySet()){
-				Long[] piTmp = pi.get(cpgDist);
-				double[] piScaleTmp = new double[]{(double)piTmp[0]/(double)(piTmp[0] + piTmp[1]), 
-						(double)piTmp[1]/(double)(piTmp[0] + piTmp[1])};
-				piScale.put(cpgDist, piScaleTmp);
-				
+		}
+		if(cpgNumClip < 0){
+			double cpgDense = (double)rowSize;
+			if(cpgDense>this.maxCpgNum){
+				this.maxCpgNum = cpgDense;
 			}
 			
+		}
+		return kept;
+	}
+	
+	private MatrixObj buildMatrixObj(FragmentMatrix matrix, TreeMap<Integer, Long[]> pi, TreeMap<Integer, Long[]> aij){
+		matrix.trimToSize();
+		TreeMap<Integer, double[]> piScale = new TreeMap<Integer, double[]>();
+		for(Integer cpgDist : pi.keySet()){
+			Long[] piTmp = pi.get(cpgDist);
+			double[] piScaleTmp = new double[]{(double)piTmp[0]/(double)(piTmp[0] + piTmp[1]), 
+					(double)piTmp[1]/(double)(piTmp[0] + piTmp[1])};
+			piScale.put(cpgDist, piScaleTmp);
 			
-			TreeMap<Integer, double[][]> aijScale = new TreeMap<Integer, double[][]>();
-			for(Integer cpgDist : aij.keySet()){
-				Long[] aijTmp = aij.get(cpgDist);
-				double[][] aiScaleTmp = new double[][]{{(double)aijTmp[0]/(double)(aijTmp[0] + aijTmp[1]),
-					(double)aijTmp[1]/(double)(aijTmp[0] + aijTmp[1])},
-					{(double)aijTmp[2]/(double)(aijTmp[2] + aijTmp[3]),
-						(double)aijTmp[3]/(double)(aijTmp[2] + aijTmp[3])}};
-				aijScale.put(cpgDist, aiScaleTmp);
-				
-			}
-		//	System.out.println(this.maxCpgNum + "\t" + this.minCpgNum);
-			//output cpg distance distribution to see what is the best model...
-			//System.out.println(matrix.size());
+		}
+		
 		
-			log.info("maximum number of cpg in fragment is: " + this.maxCpgNum);
-		log.info("The number of fragments used for training: " + matrix.size());
-		return new MatrixObj(matrix, matrixU, matrixM, piScale, aijScale, matrixObserved, cpgDistFreq);
+		TreeMap<Integer, double[][]> aijScale = new TreeMap<Integer, double[][]>();
+		for(Integer cpgDist : aij.keySet()){
+			Long[] aijTmp = aij.get(cpgDist);
+			double[][] aiScaleTmp = new double[][]{{(double)aijTmp[0]/(double)(aijTmp[0] + aijTmp[1]),
+				(double)aijTmp[1]/(double)(aijTmp[0] + aijTmp[1])},
+				{(double)aijTmp[2]/(double)(aijTmp[2] + aijTmp[3]),
+					(double)aijTmp[3]/(double)(aijTmp[2] + aijTmp[3])}};
+			aijScale.put(cpgDist, aiScaleTmp);
+			
+		}
+	//	System.out.println(this.maxCpgNum + "\t" + this.minCpgNum);
+		//output cpg distance distribution to see what is the best model...
+		//System.out.println(matrix.size());
+	
+		log.info("maximum number of cpg in fragment is: " + this.maxCpgNum);
+		log.info("The number of fragments used for training: " + matrix.nbFragments());
+		return new MatrixObj(matrix, piScale, aijScale);
 	}
 	
+	
 	//initiate HMM && training HMM
 	private void trainHmm(MatrixObj matrixObj, String modelFile) throws IOException, CloneNotSupportedException{
 		System.out.println("HMM training new ....");
-		List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> matrix = new ArrayList<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>>();
-		
-		for(Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>> row : matrixObj.matrix){
-			matrix.add(new Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>(row.getLeft(), row.getMiddle()));
-			
-		}
-		BayesianNhmmV5<ObservationVector> hmm = wgbs ? buildInitNhmm(matrixObj, true) : (gmm ? buildInitNhmmByGMM(matrixObj, matrix) :buildInitNhmmRandom(matrixObj, true));
+		FragmentMatrix matrix = matrixObj.matrix;
+		BayesianNhmmV5<ObservationVector> hmm = wgbs ? buildInitNhmm(matrixObj, true) : (gmm ? buildInitNhmmByGMM(matrixObj) :buildInitNhmmRandom(matrixObj, true));
 		//System.err.println(matrixObj.cpgDistFreq.size() + matrixObj.cpgDistFreq.toArray(new Double[matrixObj.cpgDistFreq.size()])[0]);
 		//Regression reg = new Regression(ArrayUtils.toPrimitive(matrixObj.cpgDistFreq.toArray(new Double[matrixObj.cpgDistFreq.size()])),1.0);
 		//reg.poisson();
@@ -801,7 +764,7 @@ public class FinaleMe {
 		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
 		hmm.setMinCpgNum(1);
 		
-		BaumWelchBayesianNhmmV5ScaledLearner bwl = new BaumWelchBayesianNhmmV5ScaledLearner();
+		BaumWelchBayesianNhmmV5ScaledLearner bwl = new BaumWelchBayesianNhmmV5ScaledLearner(threads);
 
 		BayesianNhmmV5<ObservationVector> prevHmm = null;
 		try {
@@ -811,65 +774,84 @@ public class FinaleMe {
 		}
 		
 		// This object measures the distance between two HMMs
-		KullbackLeiblerDistanceBayesianNhmmV5Calculator klc = 
-			new KullbackLeiblerDistanceBayesianNhmmV5Calculator(matrix);
+		KullbackLeiblerDistanceBayesianNhmmV5Calculator klc = klConvergence ?
+			new KullbackLeiblerDistanceBayesianNhmmV5Calculator(matrix) : null;
 		
 		double distance = Double.MAX_VALUE;
 		double distancePre = 0.01;
+		double lnProbPre = Double.NaN;
 		int a = 0;
-		// Incrementally improve the solution
-		//while(Math.abs(distance) >= tol && a < iteration){
-			while(Math.abs((Math.abs(distance)-Math.abs(distancePre))/distancePre) >= decayRate && Math.abs(distance) >= tol && a < iteration){
-			a++;
+		try{
+			// Incrementally improve the solution
+			//while(Math.abs(distance) >= tol && a < iteration){
+				while(Math.abs((Math.abs(distance)-Math.abs(distancePre))/distancePre) >= decayRate && Math.abs(distance) >= tol && a < iteration){
+				a++;
 			
-			try {
-				prevHmm = hmm.clone();
-			} catch (CloneNotSupportedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			System.out.println("HMM pre:\n" + prevHmm);
-			//double[][] covU = ((OpdfMultiGaussian)prevHmm.getOpdf(0)).covariance();
-			//String s = "";
-			//for(int x = 0; x < covU.length; x++){
-			//	for(int y = 0; y < covU[x].length; y++){
-			//		s = s + "\t" + covU[x][y];
-			//	}
-			//	s += "\n";
-			//}
-			//System.out.println("State 0:\n" + s);
-			//double[][] covM = ((OpdfMultiGaussian)prevHmm.getOpdf(1)).covariance();
-			//s = "";
-			//for(int x = 0; x < covM.length; x++){
-			//	for(int y = 0; y < covM[x].length; y++){
-			//		s = s + "\t" + covM[x][y];
-			//	}
-			//	s += "\n";
-			//}
-			//System.out.println("State 1:\n" + s);
-			//hmm = bwl.iterate(hmm, result.value);
-			//for (int r = 0; r <= hmm.nbCpgDistState(); r++) {
-			//	for (int i = 0; i < hmm.nbStates(); i++) {
+				try {
+					prevHmm = hmm.clone();
+				} catch (CloneNotSupportedException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				System.out.println("HMM pre:\n" + prevHmm);
+				//double[][] covU = ((OpdfMultiGaussian)prevHmm.getOpdf(0)).covariance();
+				//String s = "";
+				//for(int x = 0; x < covU.length; x++){
+				//	for(int y = 0; y < covU[x].length; y++){
+				//		s = s + "\t" + covU[x][y];
+				//	}
+				//	s += "\n";
+				//}
+				//System.out.println("State 0:\n" + s);
+				//double[][] covM = ((OpdfMultiGaussian)prevHmm.getOpdf(1)).covariance();
+				//s = "";
+				//for(int x = 0; x < covM.length; x++){
+				//	for(int y = 0; y < covM[x].length; y++){
+				//		s = s + "\t" + covM[x][y];
+				//	}
+				//	s += "\n";
+				//}
+				//System.out.println("State 1:\n" + s);
+				//hmm = bwl.iterate(hmm, result.value);
+				//for (int r = 0; r <= hmm.nbCpgDistState(); r++) {
+				//	for (int i = 0; i < hmm.nbStates(); i++) {
 					
-			//		for (int j = 0; j < hmm.nbStates(); j++) {
+				//		for (int j = 0; j < hmm.nbStates(); j++) {
 						
-			//			System.err.println("Arji: " + hmm.getArij(r, i, j) + "\t" + r + "\t" + i + "\t" + j);
-			//		}
-			//	}
+				//			System.err.println("Arji: " + hmm.getArij(r, i, j) + "\t" + r + "\t" + i + "\t" + j);
+				//		}
+				//	}
 			
-			//}
-			hmm = bwl.iterate(hmm, matrix);
-			distancePre = distance;
-			distance = klc.distance(prevHmm, hmm, true);
-			System.out.println("Distance at iteration " + a + ": " +
-					distance + "\t" + Math.abs((Math.abs(distance)-Math.abs(distancePre))/distancePre));
-			if(Double.isNaN(distance)){
-				System.out.println("Random initiaton this time does not work. Restart at the new random point...");
-				hmm =  wgbs ? buildInitNhmm(matrixObj, true) : (gmm ? buildInitNhmmByGMM(matrixObj, matrix) :buildInitNhmmRandom(matrixObj, true));
-				distance = Double.MAX_VALUE;
-				distancePre = 0.01;
-			}
-		}  
+				//}
+				hmm = bwl.iterate(hmm, matrix);
+				if(klConvergence){
+					distancePre = distance;
+					distance = klc.distance(prevHmm, hmm, true);
+					System.out.println("Distance at iteration " + a + ": " +
+							distance + "\t" + Math.abs((Math.abs(distance)-Math.abs(distancePre))/distancePre));
+				}else{
+					//the E-step gives the likelihood of the model before this iteration, so the distance is the one of the update made by the previous iteration
+					double lnProb = bwl.lnProbability();
+					System.out.println("Log-likelihood before iteration " + a + ": " + lnProb);
+					if(!Double.isNaN(lnProbPre) || Double.isNaN(lnProb)){
+						distancePre = distance;
+						distance = lnProbPre - lnProb;
+						System.out.println("Distance at iteration " + (a-1) + ": " +
+								distance + "\t" + Math.abs((Math.abs(distance)-Math.abs(distancePre))/distancePre));
+					}
+					lnProbPre = lnProb;
+				}
+				if(Double.isNaN(distance)){
+					System.out.println("Random initiaton this time does not work. Restart at the new random point...");
+					hmm =  wgbs ? buildInitNhmm(matrixObj, true) : (gmm ? buildInitNhmmByGMM(matrixObj) :buildInitNhmmRandom(matrixObj, true));
+					distance = Double.MAX_VALUE;
+					distancePre = 0.01;
+					lnProbPre = Double.NaN;
+				}
+			}  
+		}finally{
+			bwl.shutdown();
+		}
 			/*
 			BayesianNhmmV5<ObservationVector> hmmMethy1 = hmm.clone();
 			
@@ -962,278 +944,867 @@ public class FinaleMe {
 			
 			
 			
-			for(int i = 0; i < hiddenState.length; i++){
-				String loc = locRow.get(i);
+			for(int i = 0; i < hiddenState.length; i++){
+				String loc = locRow.get(i);
+				
+				int methyPredict = 0;
+				int unmethyPredict = 0;
+				if(hiddenState[i] % 2 == 1 ){
+					methyPredict++;
+				}else if(hiddenState[i]  % 2 == 0 ){
+					unmethyPredict++;
+				}
+				
+				if(methySummary.containsKey(loc)){
+					Pair<Pair<Integer,Integer>, Pair<Integer,Integer>> tmp = methySummary.get(loc);
+					tmp = new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(tmp.getFirst().getFirst()+methyPredict,tmp.getFirst().getSecond()+(methyPredict + unmethyPredict)), 
+																				new Pair<Integer,Integer>(tmp.getSecond().getFirst()+observedState[i],tmp.getSecond().getSecond()+1));
+					methySummary.put(loc, tmp);
+				}else{
+					methySummary.put(loc, new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(methyPredict,(methyPredict + unmethyPredict)), new Pair<Integer,Integer>(observedState[i],1)));
+				}
+
+				if(observedState[i]==0){
+					countUnmethy++;
+					if(hiddenState[i] % 2 == 0 ){
+						countCorrect++;
+						countUnmethyCorrect++;
+					}
+				}else{
+					countMethy++;
+					if(hiddenState[i] % 2 == 1){
+						countCorrect++;
+						countMethyCorrect++;
+					}
+				}
+				count++;
+				
+			}		
+			//ForwardBackwardScaledCalculator fbsc = new ForwardBackwardScaledCalculator(matrix.get(j), hmm);
+		}
+		
+		OutputStreamWriter writer = predictionWriter(outputFile);
+		
+		writer.write("#chr\tstart\tend\tmethy_perc_predict\tmethy_count_predict\ttotal_count_predict\tmethy_perc_obs\tmethy_count_obs\ttotal_count_obs\n");
+		
+		
+		
+		double[][] predData = new double[methySummary.size()][2];
+		int i = 0;
+		for(String loc : methySummary.keySet()){
+			int methyPred = methySummary.get(loc).getFirst().getFirst();
+			int totalPred = methySummary.get(loc).getFirst().getSecond();
+			int methyObs = methySummary.get(loc).getSecond().getFirst();
+			int totalObs = methySummary.get(loc).getSecond().getSecond();
+			String[] locTmp = loc.split(":");
+			String chr = locTmp[0];
+			int start = Integer.parseInt(locTmp[1]);
+			int end = Integer.parseInt(locTmp[2]);
+			double pred = 100*(double)methyPred/(double)totalPred;
+			double obs = 100*(double)methyObs/(double)totalObs;
+			writer.write(chr + "\t" + start + "\t" + end + "\t" + pred + "\t" + methyPred + "\t" + totalPred + 
+					"\t" + obs + "\t" + methyObs + "\t" + totalObs + "\n");
+			predData[i][0]=pred;
+			predData[i][1]=obs;
+			i++;
+		}
+		writer.close();
+		PearsonsCorrelation pearson =  new PearsonsCorrelation(predData);
+		System.out.println(pearson.getCorrelationMatrix());
+		System.out.println(pearson.getCorrelationPValues());
+		System.out.println("counted point in total: " + count + "\tCorrect predicted:" + countCorrect + "\tPerc:" + 100*(double)countCorrect/(double)count + "%");
+		System.out.println("counted point in methy: " + countMethy + "\tCorrect predicted:" + countMethyCorrect + "\tPerc:" + 100*(double)countMethyCorrect/(double)countMethy + "%");
+		System.out.println("counted point in unmethy: " + countUnmethy + "\tCorrect predicted:" + countUnmethyCorrect + "\tPerc:" + 100*(double)countUnmethyCorrect/(double)countUnmethy + "%");
+		
+		
+		
+		
+		//for(int f=0;f<=features;f++){
+		//	System.err.println( unmethyCorrectSummary.get(f).getMean() + "\t"  + unmethyCorrectSummary.get(f).getStandardDeviation() + "\t" + unmethyCorrectSummary.get(f).getPercentile(50));
+		//	System.err.println( unmethyWrongSummary.get(f).getMean() + "\t"  + unmethyWrongSummary.get(f).getStandardDeviation() + "\t" + unmethyWrongSummary.get(f).getPercentile(50));
+		//	System.err.println( methyCorrectSummary.get(f).getMean() + "\t"  + methyCorrectSummary.get(f).getStandardDeviation() + "\t" + methyCorrectSummary.get(f).getPercentile(50));
+		//	System.err.println( methyWrongSummary.get(f).getMean() + "\t"  + methyWrongSummary.get(f).getStandardDeviation() + "\t" + methyWrongSummary.get(f).getPercentile(50));
+		//}
+		
+	}
+	*/
+	
+	//decoding HMM 
+	private double decodeHmm(MatrixObj matrixObj, String hmmFile, String outputFile, String inputFile, boolean reestimate) throws Exception{
+		System.out.println("\nDecoding ...\n");
+		//System.out.println("\nMethylation state is:" + methylatedState);
+		FragmentMatrix matrix = matrixObj.matrix;
+
+	    ObjectInputStream objectinputstream = new ObjectInputStream(new FileInputStream(hmmFile));
+	    BayesianNhmmV5<ObservationVector> hmm = (BayesianNhmmV5<ObservationVector>) objectinputstream.readObject();
+		objectinputstream.close();
+		hmm.setBayesianFactor(bayesianFactor);
+		hmm.setMethyState(this.methylatedState);
+		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
+		hmm.setMinCpgNum(1);
+		DecodedMatrix decoded = new DecodedMatrix(matrix, hmm);
+		long[] cpgs = decoded.cpgs;
+		int[] cpgRow = decoded.cpgRow;
+		int[] methySummary = decoded.methySummary;
+		
+		//if(!notAutomateIdentifyMethyState && !reestimate){
+			//if((double)countMethyCorrect/(double)countMethy < 0.4){
+			//System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihood);	
+		//	methylatedState = 1- methylatedState;
+		//		System.out.println("\nre-estimate the reversed methylation states\n");
+				//re-train
+		//		int miniDataPointsPre = miniDataPoints;
+		//		if(miniDataPoints==1){
+		//			miniDataPoints = 2;
+		//			matrixObj = processMatrixFile(inputFile);
+		//		}
+		//		trainHmm(matrixObj, hmmFile);
+				
+				//re-decoding
+		//		if(miniDataPoints != miniDataPointsPre){
+		//			miniDataPoints = miniDataPointsPre;
+		//			matrixObj = processMatrixFile(inputFile);
+		//		}
+		//		double likelihoodCompared = decodeHmm(matrixObj, hmmFile, outputFile, inputFile, true);
+				//System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihoodCompared);	
+				//if(likelihoodCompared > likelihood)
+				//	return likelihoodCompared;
+				
+			//	methylatedState = 1- methylatedState;
+
+			//}
+		//}
+		
+		OutputStreamWriter writer = predictionWriter(outputFile);
+		
+		writer.write("#chr\tstart\tend\tmethy_perc_predict\tmethy_count_predict\ttotal_count_predict\tmethy_perc_obs\tmethy_count_obs\ttotal_count_obs\n");
+		
+		
+		double[][] predData = new double[cpgs.length][2];
+		int i = 0;
+		for(int cpg = 0; cpg < cpgs.length; cpg++){
+			int methyPred = methySummary[cpg * 4];
+			int totalPred = methySummary[cpg * 4 + 1];
+			int methyObs = methySummary[cpg * 4 + 2];
+			int totalObs = methySummary[cpg * 4 + 3];
+			String chr = matrix.chr(cpgRow[cpg]);
+			int start = matrix.start(cpgRow[cpg]);
+			int end = matrix.end(cpgRow[cpg]);
+			double pred = 100*(double)methyPred/(double)totalPred;
+			double obs = 100*(double)methyObs/(double)totalObs;
+			writer.write(chr + "\t" + start + "\t" + end + "\t" + pred + "\t" + methyPred + "\t" + totalPred + 
+					"\t" + obs + "\t" + methyObs + "\t" + totalObs + "\n");
+			predData[i][0]=pred;
+			predData[i][1]=obs;
+			i++;
+		}
+		writer.close();
+		PearsonsCorrelation pearson =  new PearsonsCorrelation(predData);
+		System.out.println(pearson.getCorrelationMatrix());
+		System.out.println(pearson.getCorrelationPValues());
+		System.out.println("counted point in total: " + decoded.count + "\tCorrect predicted:" + decoded.countCorrect + "\tPerc:" + 100*(double)decoded.countCorrect/(double)decoded.count + "%");
+		System.out.println("counted point in methy: " + decoded.countMethy + "\tCorrect predicted:" + decoded.countMethyCorrect + "\tPerc:" + 100*(double)decoded.countMethyCorrect/(double)decoded.countMethy + "%");
+		System.out.println("counted point in unmethy: " + decoded.countUnmethy + "\tCorrect predicted:" + decoded.countUnmethyCorrect + "\tPerc:" + 100*(double)decoded.countUnmethyCorrect/(double)decoded.countUnmethy + "%");
+		System.out.println("methyState " + methylatedState + "\tLikelihood is:" + decoded.likelihood);	
+		System.out.println("methyState " + methylatedState + "\tLikelihoodWithMethy is:" + decoded.likelihoodWithMethy);	
+		//return (double)countMethyCorrect/(double)countMethy;
+		return decoded.likelihood;
+		//for(int f=0;f<=features;f++){
+		//	System.err.println( unmethyCorrectSummary.get(f).getMean() + "\t"  + unmethyCorrectSummary.get(f).getStandardDeviation() + "\t" + unmethyCorrectSummary.get(f).getPercentile(50));
+		//	System.err.println( unmethyWrongSummary.get(f).getMean() + "\t"  + unmethyWrongSummary.get(f).getStandardDeviation() + "\t" + unmethyWrongSummary.get(f).getPercentile(50));
+		//	System.err.println( methyCorrectSummary.get(f).getMean() + "\t"  + methyCorrectSummary.get(f).getStandardDeviation() + "\t" + methyCorrectSummary.get(f).getPercentile(50));
+		//	System.err.println( methyWrongSummary.get(f).getMean() + "\t"  + methyWrongSummary.get(f).getStandardDeviation() + "\t" + methyWrongSummary.get(f).getPercentile(50));
+		//}
+		
+	}
+	
+	
+	//BGZF compressed in -threads threads, with a tabix index when -tabix is set (the index is skipped with a warning if the CpGs are not sorted)
+	private OutputStreamWriter predictionWriter(String outputFile) throws IOException{
+		FileOutputStream output = new FileOutputStream(outputFile);
+		if(tabix){
+			return new OutputStreamWriter(new BgzfOutputStream(output, threads, TabixFormat.BED, new File(outputFile + ".tbi")), "UTF-8");
+		}
+		return new OutputStreamWriter(new BgzfOutputStream(output, threads), "UTF-8");
+	}
+	
+	//Viterbi decoding of all the fragments in -threads threads. results are written at the rows (hiddenStates, cpgOf) or the index (lnProb, lnProbWithMethy) of each fragment, so they do not depend on the number of threads
+	private void decodeFragments(final FragmentMatrix matrix, final BayesianNhmmV5<ObservationVector> hmm, final double p, final byte[] hiddenStates, 
+			final double[] lnProb, final double[] lnProbWithMethy, final long[] cpgs, final int[] cpgOf) throws Exception{
+		int nbFragments = matrix.nbFragments();
+		int chunkSize = 256;
+		if(threads <= 1){
+			decodeFragments(matrix, hmm, p, 0, nbFragments, hiddenStates, lnProb, lnProbWithMethy, cpgs, cpgOf);
+			return;
+		}
+		if(pool == null){
+			pool = new ForkJoinPool(threads);
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for(int from = 0; from < nbFragments; from += chunkSize){
+			final int start = from;
+			final int end = Math.min(nbFragments, from + chunkSize);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					decodeFragments(matrix, hmm, p, start, end, hiddenStates, lnProb, lnProbWithMethy, cpgs, cpgOf);
+					return null;
+				}
+			});
+		}
+		for(Future<Object> result : pool.invokeAll(tasks)){
+			try{
+				result.get();
+			}catch(ExecutionException e){
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+	
+	private void decodeFragments(FragmentMatrix matrix, BayesianNhmmV5<ObservationVector> hmm, double p, int from, int to, byte[] hiddenStates, 
+			double[] lnProb, double[] lnProbWithMethy, long[] cpgs, int[] cpgOf){
+		double[][] emission = new double[16][hmm.nbStates()];
+		for(int j = from; j < to; j++){
+			if(matrix.length(j) > emission.length){
+				emission = new double[matrix.length(j)][hmm.nbStates()];
+			}
+			ViterbiBayesianNhmmV5Calculator vb = new ViterbiBayesianNhmmV5Calculator(matrix, j, hmm, methylatedState, p, emission);
+			int[] hiddenState = vb.stateSequence();
+			int offset = matrix.offset(j);
+			for(int i = 0; i < hiddenState.length; i++){
+				hiddenStates[offset + i] = (byte)hiddenState[i];
+				if(cpgOf != null){
+					cpgOf[offset + i] = Arrays.binarySearch(cpgs, matrix.coordinate(offset + i));
+				}
+			}
+			if(lnProb != null){
+				lnProb[j] = vb.lnProbability();
+				lnProbWithMethy[j] = vb.lnProbability(true);
+			}
+		}
+	}
+	
+	//sorted coordinates of the distinct CpGs in the matrix
+	private long[] uniqueCoordinates(FragmentMatrix matrix){
+		long[] coordinates = new long[matrix.nbObservations()];
+		for(int n = 0; n < coordinates.length; n++){
+			coordinates[n] = matrix.coordinate(n);
+		}
+		if(threads > 1){
+			Arrays.parallelSort(coordinates);
+		}else{
+			Arrays.sort(coordinates);
+		}
+		int k = 0;
+		for(int n = 0; n < coordinates.length; n++){
+			if(k == 0 || coordinates[n] != coordinates[k - 1]){
+				coordinates[k++] = coordinates[n];
+			}
+		}
+		return Arrays.copyOf(coordinates, k);
+	}
+	
+	
+	//decoding HMM in a sliding window along the coordinate-sorted input matrix, so that only fragments overlapping the current position are kept in memory
+	private void streamDecodeHmm(String hmmFile, String outputFile, String inputFile) throws Exception{
+		System.out.println("\nStreaming decoding ...\n");
+		loadRegionMasks();
+		
+		//first pass: feature mean and sd for z-score
+		SummaryStatistics[] stats = featureStats(inputFile);
+		GenomeMask.Cursor overlapLoc = cursor(regionMask);
+		GenomeMask.Cursor excludeLoc = cursor(excludeMask);
+		
+	    ObjectInputStream objectinputstream = new ObjectInputStream(new FileInputStream(hmmFile));
+	    BayesianNhmmV5<ObservationVector> hmm = (BayesianNhmmV5<ObservationVector>) objectinputstream.readObject();
+		objectinputstream.close();
+		if(cpgNumClip < 0 && Double.isInfinite(maxCpgNum)){
+			log.warn("-cpgNumClip < 0 could not be estimated before decoding in -streamDecode mode, use -maxCpgs instead: " + maxCpgs);
+			maxCpgNum = maxCpgs;
+		}
+		hmm.setBayesianFactor(bayesianFactor);
+		hmm.setMethyState(this.methylatedState);
+		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
+		hmm.setMinCpgNum(1);
+		
+		StreamDecodeSummary summary = new StreamDecodeSummary(hmm, outputFile);
+		
+		//second pass: rows are appended to the window as processMatrixFile does, fragments are complete once the scan is maxFragLen away from their first CpG
+		StreamWindow window = new StreamWindow();
+		int batchRows = STREAM_BATCH_ROWS;
+		HashSet<String> finishedChrs = new HashSet<String>();
+		String currentChr = null;
+		int currentStart = -1;
+		double[] value = new double[features];
+		TabFieldReader fields = TabFieldReader.open(inputFile);
+		while(fields.next()){
+			if(fields.startsWith('#'))
+				continue;
+			if(fields.fieldCount()< (features + 4) || fields.fieldEqualsIgnoreCase(1, "start") || fields.intField(4) >= maxFragLen || fields.intField(4)  <= minFragLen || fields.doubleField(8) <= 5){
+				continue;
+			}
+			String chr = fields.field(0, currentChr);
+			int start = fields.intField(1);
+			int end = fields.intField(2);
+			
+			if(!chr.equals(currentChr)){
+				if(currentChr != null){
+					window.decode(Integer.MAX_VALUE, summary);
+					summary.flush(Integer.MAX_VALUE);
+					finishedChrs.add(currentChr);
+				}
+				if(finishedChrs.contains(chr)){
+					throw new IllegalArgumentException("Input matrix is not coordinate-sorted, " + chr + " appears in more than one block. -streamDecode requires coordinate-sorted input");
+				}
+				currentChr = chr;
+				currentStart = -1;
+				summary.setChr(chr);
+			}else if(start < currentStart){
+				throw new IllegalArgumentException("Input matrix is not coordinate-sorted at " + chr + ":" + start + " after " + chr + ":" + currentStart + ". -streamDecode requires coordinate-sorted input");
+			}
+			if(start > currentStart){
+				currentStart = start;
+				if(window.size() >= batchRows){
+					window.decode(start, summary);
+					batchRows = Math.max(STREAM_BATCH_ROWS, window.size() * 2);
+				}
+				summary.flush(window.size() == 0 ? start : window.firstStart());
+			}
+			
+			if(!withinRegions(chr, start, end, overlapLoc, excludeLoc)){
+				continue;
+			}
+			int offset = fields.intField(9);
+			if(offset < 0){
+				continue;
+			}
+			double methyPrior = scaleFeatures(fields.doubleField(4), fields.doubleField(7), fields.doubleField(10), fields.doubleField(11), stats, value);
+			if(Double.isNaN(methyPrior)){
+				continue;
+			}
+			points++;
+			window.add(fields.fragmentIdField(3), value, methyPrior, FragmentMatrixFile.observedState(fields, 6), chr, start, end, offset);
+		}
+		fields.close();
+		window.decode(Integer.MAX_VALUE, summary);
+		summary.flush(Integer.MAX_VALUE);
+		summary.close();
+		log.info("Number of point in total is loaded : " + points);
+	}
+	
+	//decoding HMM shard by shard: fragments are partitioned by read name into -shards temporary matrix files, each of them is loaded and decoded alone
+	//and its per-CpG counts are spilled as a sorted run. the runs are merged at the end, so each CpG is written once with the counts of all the shards
+	private void shardDecodeHmm(String hmmFile, String outputFile, String inputFile) throws Exception{
+		System.out.println("\nDecoding in " + shards + " shards ...\n");
+		loadRegionMasks();
+		//z-score is computed on the whole matrix, not per shard
+		SummaryStatistics[] stats = featureStats(inputFile);
+		
+		File tmpDir = new File(outputFile).getAbsoluteFile().getParentFile();
+		LinkedHashMap<String, Integer> chrs = new LinkedHashMap<String, Integer>();
+		File[] shardFiles = splitMatrixFile(inputFile, tmpDir, chrs);
+		if(cpgNumClip < 0 && Double.isInfinite(maxCpgNum)){
+			log.info("Scanning the shards for the maximum number of cpg in fragment ...");
+			long pointsPre = points;
+			for(File shardFile : shardFiles){
+				processMatrixFile(shardFile.getPath(), stats);
+			}
+			points = pointsPre;
+		}
+		
+	    ObjectInputStream objectinputstream = new ObjectInputStream(new FileInputStream(hmmFile));
+	    BayesianNhmmV5<ObservationVector> hmm = (BayesianNhmmV5<ObservationVector>) objectinputstream.readObject();
+		objectinputstream.close();
+		hmm.setBayesianFactor(bayesianFactor);
+		hmm.setMethyState(this.methylatedState);
+		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
+		hmm.setMinCpgNum(1);
+		
+		StreamDecodeSummary summary = new StreamDecodeSummary(hmm, outputFile);
+		File[] runFiles = new File[shards];
+		for(int s = 0; s < shards; s++){
+			log.info("Decoding shard " + (s + 1) + "/" + shards + " ...");
+			runFiles[s] = File.createTempFile("FinaleMe.", ".run", tmpDir);
+			runFiles[s].deleteOnExit();
+			decodeShard(shardFiles[s], stats, hmm, summary, chrs, runFiles[s]);
+			shardFiles[s].delete();
+		}
+		mergeRuns(runFiles, summary, new ArrayList<String>(chrs.keySet()));
+		summary.close();
+		for(File runFile : runFiles){
+			runFile.delete();
+		}
+	}
+	
+	//partition the text matrix by read name into -shards temporary files, with the same hash as SplitInputMatrix. chromosomes are numbered in the order they first appear
+	private File[] splitMatrixFile(String matrixFile, File tmpDir, LinkedHashMap<String, Integer> chrs) throws IOException{
+		File[] shardFiles = new File[shards];
+		BgzfOutputStream[] outputs = new BgzfOutputStream[shards];
+		for(int s = 0; s < shards; s++){
+			shardFiles[s] = File.createTempFile("FinaleMe.", ".txt.gz", tmpDir);
+			shardFiles[s].deleteOnExit();
+			outputs[s] = new BgzfOutputStream(new FileOutputStream(shardFiles[s]), 0);
+		}
+		TabFieldReader fields = TabFieldReader.open(matrixFile);
+		String chr = null;
+		while(fields.next()){
+			if(fields.startsWith('#'))
+				continue;
+			if(fields.fieldCount() < 5 || fields.fieldEqualsIgnoreCase(1, "start")){
+				continue;
+			}
+			if(chr == null || !fields.fieldEquals(0, chr)){
+				chr = fields.field(0);
+				if(!chrs.containsKey(chr)){
+					chrs.put(chr, chrs.size());
+				}
+			}
+			int s = (fields.fieldHashCode(3) & 0x7fffffff) % shards;
+			fields.writeLine(outputs[s]);
+		}
+		fields.close();
+		for(BgzfOutputStream output : outputs){
+			output.close();
+		}
+		return shardFiles;
+	}
+	
+	//load and decode one shard, then write its CpGs to runFile ordered by chromosome (numbered in chrs), start and end
+	private void decodeShard(File shardFile, StatisticalSummary[] stats, BayesianNhmmV5<ObservationVector> hmm, StreamDecodeSummary summary, 
+			HashMap<String, Integer> chrs, File runFile) throws Exception{
+		FragmentMatrix matrix = processMatrixFile(shardFile.getPath(), stats).matrix;
+		DecodedMatrix decoded = new DecodedMatrix(matrix, hmm);
+		summary.add(decoded);
+		
+		//decoded CpGs are sorted by the chromosome index of this shard's matrix, so each chromosome is a block which is moved to its place in chrs
+		TreeMap<Integer, int[]> blocks = new TreeMap<Integer, int[]>();
+		int from = 0;
+		for(int cpg = 1; cpg <= decoded.cpgs.length; cpg++){
+			if(cpg == decoded.cpgs.length || !matrix.chr(decoded.cpgRow[cpg]).equals(matrix.chr(decoded.cpgRow[from]))){
+				blocks.put(chrs.get(matrix.chr(decoded.cpgRow[from])), new int[]{from, cpg});
+				from = cpg;
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16));
+		for(Map.Entry<Integer, int[]> block : blocks.entrySet()){
+			for(int cpg = block.getValue()[0]; cpg < block.getValue()[1]; cpg++){
+				int row = decoded.cpgRow[cpg];
+				out.writeInt(block.getKey());
+				out.writeInt(matrix.start(row));
+				out.writeInt(matrix.end(row));
+				for(int i = 0; i < 4; i++){
+					out.writeInt(decoded.methySummary[cpg * 4 + i]);
+				}
+			}
+		}
+		out.close();
+	}
+	
+	//k-way merge of the sorted runs of the shards, the counts of a CpG decoded in more than one shard are summed up
+	private void mergeRuns(File[] runFiles, StreamDecodeSummary summary, List<String> chrNames) throws IOException{
+		PriorityQueue<CpgRun> queue = new PriorityQueue<CpgRun>();
+		for(File runFile : runFiles){
+			CpgRun run = new CpgRun(runFile);
+			if(run.next()){
+				queue.add(run);
+			}else{
+				run.close();
+			}
+		}
+		int chr = -1;
+		int start = -1;
+		int end = -1;
+		int[] counts = new int[4];
+		while(!queue.isEmpty()){
+			CpgRun run = queue.poll();
+			if(run.chr != chr || run.start != start || run.end != end){
+				if(chr >= 0){
+					summary.write(chrNames.get(chr), start, end, counts[0], counts[1], counts[2], counts[3]);
+				}
+				chr = run.chr;
+				start = run.start;
+				end = run.end;
+				Arrays.fill(counts, 0);
+			}
+			for(int i = 0; i < 4; i++){
+				counts[i] += run.counts[i];
+			}
+			if(run.next()){
+				queue.add(run);
+			}else{
+				run.close();
+			}
+		}
+		if(chr >= 0){
+			summary.write(chrNames.get(chr), start, end, counts[0], counts[1], counts[2], counts[3]);
+		}
+	}
+	
+	//first pass over the text matrix: feature mean and sd for z-score, same filter as processMatrixFile
+	private SummaryStatistics[] featureStats(String matrixFile) throws IOException{
+		SummaryStatistics[] stats = new SummaryStatistics[3];
+		for(int i = 0; i < 3; i++){
+			stats[i] = new SummaryStatistics();
+		}
+		GenomeMask.Cursor overlapLoc = cursor(regionMask);
+		GenomeMask.Cursor excludeLoc = cursor(excludeMask);
+		TabFieldReader fields = TabFieldReader.open(matrixFile);
+		String chr = null;
+		while(fields.next()){
+			if(fields.startsWith('#'))
+				continue;
+			if(fields.fieldCount()< (features + 4) || fields.fieldEqualsIgnoreCase(1, "start")){
+				continue;
+			}
+			int fragLen = fields.intField(4);
+			if(fragLen >= maxFragLen || fragLen <= minFragLen || fields.doubleField(8) <= 5){
+				continue;
+			}
+			chr = fields.field(0, chr);
+			if(!withinRegions(chr, fields.intField(1), fields.intField(2), overlapLoc, excludeLoc)){
+				continue;
+			}
+			if(fields.intField(9) < 0 || Double.isNaN(fields.doubleField(11))){
+				continue;
+			}
+			double DistToCenter = (double)fragLen/2-fields.doubleField(10)+0.5;
+			stats[0].addValue(fragLen);
+			stats[1].addValue(fields.doubleField(7));
+			stats[2].addValue(DistToCenter);
+		}
+		fields.close();
+		for(int i = 0; i < 3; i++){
+			log.info("Feature " + i + ": " + stats[i]);
+		}
+		return stats;
+	}
+	
+	private boolean withinRegions(String chr, int start, int end, GenomeMask.Cursor overlapLoc, GenomeMask.Cursor excludeLoc){
+		if(overlapLoc != null){
+			if(!overlapLoc.overlaps(chr, start, end)){
+				return false;
+			}
+		}
+		if(excludeLoc != null){
+			if(excludeLoc.overlaps(chr, start, end)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	//-region and -exclude are loaded once, then shared by all the passes over the input
+	private void loadRegionMasks() throws IOException{
+		if(region != null && regionMask == null){
+			log.info("Loading overalpped regions... ");
+			regionMask = GenomeMask.load(region);
+		}
+		if(exclude != null && excludeMask == null){
+			log.info("Loading excluded regions... ");
+			excludeMask = GenomeMask.load(exclude);
+		}
+	}
+	
+	//a cursor per pass, as the rows of a pass are mostly sorted
+	private static GenomeMask.Cursor cursor(GenomeMask mask){
+		return mask == null ? null : mask.cursor();
+	}
+	
+	//Viterbi decoding of a whole matrix summarized per CpG
+	private class DecodedMatrix{
+		final long[] cpgs;
+		final int[] cpgRow;
+		final int[] methySummary;
+		long count = 0;
+		long countCorrect = 0;
+		long countMethy = 0;
+		long countMethyCorrect = 0;
+		long countUnmethy = 0;
+		long countUnmethyCorrect = 0;
+		double likelihood = 0;
+		double likelihoodWithMethy = 0;
+		
+		DecodedMatrix(FragmentMatrix matrix, BayesianNhmmV5<ObservationVector> hmm) throws Exception{
+			//each CpG is identified by its index in the sorted unique coordinates, counters are predicted methylated, predicted total, observed methylated and observed total
+			cpgs = uniqueCoordinates(matrix);
+			int[] cpgOf = new int[matrix.nbObservations()];
+			cpgRow = new int[cpgs.length];
+			methySummary = new int[cpgs.length * 4];
+			byte[] hiddenStates = new byte[matrix.nbObservations()];
+			double[] lnProb = new double[matrix.nbFragments()];
+			double[] lnProbWithMethy = new double[matrix.nbFragments()];
+			decodeFragments(matrix, hmm, decodeP, hiddenStates, lnProb, lnProbWithMethy, cpgs, cpgOf);
+			
+			for(int j=0; j < matrix.nbFragments(); j++){
+				//System.err.println(vb.lnProbability(true) + "\t" + vb.lnProbability() + "\t" + hiddenState.length);
+				//double prob = vb.lnProbability(true);
+				double prob = lnProb[j];
+				if(Double.isNaN(prob) || Double.isInfinite(prob)){
+					
+				}else{
+					likelihood += prob/matrix.length(j);
+				}
+				double probWithMethy = lnProbWithMethy[j];
+				if(Double.isNaN(probWithMethy) || Double.isInfinite(probWithMethy)){
+					
+				}else{
+					likelihoodWithMethy += probWithMethy/matrix.length(j);
+				}
+			}
+			
+			for(int n = 0; n < matrix.nbObservations(); n++){
+				int observedState = matrix.observed(n);
+				if(observedState == FragmentMatrix.UNKNOWN){
+					throw new IllegalArgumentException("HiddenState Length does not match with observed state length");
+				}
+				int hiddenState = hiddenStates[n];
+				int cpg = cpgOf[n];
+				cpgRow[cpg] = n;
 				
 				int methyPredict = 0;
 				int unmethyPredict = 0;
-				if(hiddenState[i] % 2 == 1 ){
+				if(hiddenState == methylatedState ){
 					methyPredict++;
-				}else if(hiddenState[i]  % 2 == 0 ){
+				}else if(hiddenState  == (1-methylatedState) ){
 					unmethyPredict++;
 				}
+				methySummary[cpg * 4] += methyPredict;
+				methySummary[cpg * 4 + 1] += methyPredict + unmethyPredict;
+				methySummary[cpg * 4 + 2] += observedState;
+				methySummary[cpg * 4 + 3]++;
 				
-				if(methySummary.containsKey(loc)){
-					Pair<Pair<Integer,Integer>, Pair<Integer,Integer>> tmp = methySummary.get(loc);
-					tmp = new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(tmp.getFirst().getFirst()+methyPredict,tmp.getFirst().getSecond()+(methyPredict + unmethyPredict)), 
-																				new Pair<Integer,Integer>(tmp.getSecond().getFirst()+observedState[i],tmp.getSecond().getSecond()+1));
-					methySummary.put(loc, tmp);
-				}else{
-					methySummary.put(loc, new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(methyPredict,(methyPredict + unmethyPredict)), new Pair<Integer,Integer>(observedState[i],1)));
-				}
-
-				if(observedState[i]==0){
+				if(observedState==0){
 					countUnmethy++;
-					if(hiddenState[i] % 2 == 0 ){
+					if(hiddenState == (1-methylatedState) ){
 						countCorrect++;
 						countUnmethyCorrect++;
 					}
 				}else{
 					countMethy++;
-					if(hiddenState[i] % 2 == 1){
+					if(hiddenState == methylatedState){
 						countCorrect++;
 						countMethyCorrect++;
 					}
 				}
 				count++;
-				
-			}		
-			//ForwardBackwardScaledCalculator fbsc = new ForwardBackwardScaledCalculator(matrix.get(j), hmm);
+			}
 		}
+	}
+	
+	//rows of the sliding window of -streamDecode, appended with the read of each row as processMatrixFile does. the reads are numbered in order of first appearance
+	private class StreamWindow{
+		FragmentMatrix matrix = new FragmentMatrix(features);
+		ReadRows rows = new ReadRows();
+		LongIntHashMap readIndex = new LongIntHashMap();
+		long[] readIds = new long[256];
+		int[] firstStarts = new int[256];
 		
-		FileOutputStream output = new FileOutputStream(outputFile);
-		OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
-		
-		writer.write("#chr\tstart\tend\tmethy_perc_predict\tmethy_count_predict\ttotal_count_predict\tmethy_perc_obs\tmethy_count_obs\ttotal_count_obs\n");
+		void add(long readId, double[] value, double methyPrior, byte observed, String chr, int start, int end, int offset){
+			int read = readOf(readId, start);
+			matrix.addObservation(value, 0, methyPrior, observed, chr, start, end);
+			rows.add(read, offset);
+		}
 		
+		private int readOf(long readId, int firstStart){
+			int read = readIndex.get(readId);
+			if(read < 0){
+				read = readIndex.size();
+				readIndex.put(readId, read);
+				if(read == readIds.length){
+					readIds = Arrays.copyOf(readIds, read * 2);
+					firstStarts = Arrays.copyOf(firstStarts, read * 2);
+				}
+				readIds[read] = readId;
+				firstStarts[read] = firstStart;
+			}
+			return read;
+		}
 		
+		int size(){
+			return rows.size;
+		}
 		
-		double[][] predData = new double[methySummary.size()][2];
-		int i = 0;
-		for(String loc : methySummary.keySet()){
-			int methyPred = methySummary.get(loc).getFirst().getFirst();
-			int totalPred = methySummary.get(loc).getFirst().getSecond();
-			int methyObs = methySummary.get(loc).getSecond().getFirst();
-			int totalObs = methySummary.get(loc).getSecond().getSecond();
-			String[] locTmp = loc.split(":");
-			String chr = locTmp[0];
-			int start = Integer.parseInt(locTmp[1]);
-			int end = Integer.parseInt(locTmp[2]);
-			double pred = 100*(double)methyPred/(double)totalPred;
-			double obs = 100*(double)methyObs/(double)totalObs;
-			writer.write(chr + "\t" + start + "\t" + end + "\t" + pred + "\t" + methyPred + "\t" + totalPred + 
-					"\t" + obs + "\t" + methyObs + "\t" + totalObs + "\n");
-			predData[i][0]=pred;
-			predData[i][1]=obs;
-			i++;
+		//rows are in file order, so the first row has the first start of all the reads in the window
+		int firstStart(){
+			return matrix.start(0);
 		}
-		writer.close();
-		output.close();
-		PearsonsCorrelation pearson =  new PearsonsCorrelation(predData);
-		System.out.println(pearson.getCorrelationMatrix());
-		System.out.println(pearson.getCorrelationPValues());
-		System.out.println("counted point in total: " + count + "\tCorrect predicted:" + countCorrect + "\tPerc:" + 100*(double)countCorrect/(double)count + "%");
-		System.out.println("counted point in methy: " + countMethy + "\tCorrect predicted:" + countMethyCorrect + "\tPerc:" + 100*(double)countMethyCorrect/(double)countMethy + "%");
-		System.out.println("counted point in unmethy: " + countUnmethy + "\tCorrect predicted:" + countUnmethyCorrect + "\tPerc:" + 100*(double)countUnmethyCorrect/(double)countUnmethy + "%");
 		
+		//decode the reads which are maxFragLen away from the given position, through the same FragmentMatrix as the in-memory decoding. the other reads stay in the window
+		void decode(int position, StreamDecodeSummary summary) throws Exception{
+			FragmentMatrix complete = new FragmentMatrix(features, rows.size, readIndex.size());
+			ReadRows completeRows = new ReadRows();
+			StreamWindow open = new StreamWindow();
+			int[] completeIndex = new int[readIndex.size()];
+			Arrays.fill(completeIndex, -1);
+			int nbComplete = 0;
+			for(int n = 0; n < rows.size; n++){
+				int read = rows.reads[n];
+				if(position - firstStarts[read] >= maxFragLen){
+					if(completeIndex[read] < 0){
+						completeIndex[read] = nbComplete++;
+					}
+					complete.addObservation(matrix, n);
+					completeRows.add(completeIndex[read], rows.offsets[n]);
+				}else{
+					open.rows.add(open.readOf(readIds[read], firstStarts[read]), rows.offsets[n]);
+					open.matrix.addObservation(matrix, n);
+				}
+			}
+			matrix = open.matrix;
+			rows = open.rows;
+			readIndex = open.readIndex;
+			readIds = open.readIds;
+			firstStarts = open.firstStarts;
+			if(nbComplete > 0){
+				groupReads(complete, completeRows, nbComplete, null, null);
+				summary.decode(complete);
+			}
+		}
+	}
+	
+	//CpG records of one shard written by decodeShard: chromosome number, start, end and the 4 counters of DecodedMatrix
+	private static class CpgRun implements Comparable<CpgRun>{
+		static final int RECORD_BYTES = 7 * 4;
+		final DataInputStream in;
+		long remaining;
+		int chr;
+		int start;
+		int end;
+		final int[] counts = new int[4];
 		
+		CpgRun(File runFile) throws IOException{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 1 << 16));
+			remaining = runFile.length() / RECORD_BYTES;
+		}
 		
+		boolean next() throws IOException{
+			if(remaining == 0){
+				return false;
+			}
+			remaining--;
+			chr = in.readInt();
+			start = in.readInt();
+			end = in.readInt();
+			for(int i = 0; i < 4; i++){
+				counts[i] = in.readInt();
+			}
+			return true;
+		}
 		
-		//for(int f=0;f<=features;f++){
-		//	System.err.println( unmethyCorrectSummary.get(f).getMean() + "\t"  + unmethyCorrectSummary.get(f).getStandardDeviation() + "\t" + unmethyCorrectSummary.get(f).getPercentile(50));
-		//	System.err.println( unmethyWrongSummary.get(f).getMean() + "\t"  + unmethyWrongSummary.get(f).getStandardDeviation() + "\t" + unmethyWrongSummary.get(f).getPercentile(50));
-		//	System.err.println( methyCorrectSummary.get(f).getMean() + "\t"  + methyCorrectSummary.get(f).getStandardDeviation() + "\t" + methyCorrectSummary.get(f).getPercentile(50));
-		//	System.err.println( methyWrongSummary.get(f).getMean() + "\t"  + methyWrongSummary.get(f).getStandardDeviation() + "\t" + methyWrongSummary.get(f).getPercentile(50));
-		//}
+		void close() throws IOException{
+			in.close();
+		}
 		
+		public int compareTo(CpgRun other){
+			if(chr != other.chr){
+				return Integer.compare(chr, other.chr);
+			}
+			if(start != other.start){
+				return Integer.compare(start, other.start);
+			}
+			return Integer.compare(end, other.end);
+		}
 	}
-	*/
 	
-	//decoding HMM 
-	private double decodeHmm(MatrixObj matrixObj, String hmmFile, String outputFile, String inputFile, boolean reestimate) throws Exception{
-		System.out.println("\nDecoding ...\n");
-		//System.out.println("\nMethylation state is:" + methylatedState);
-		List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> matrix = new ArrayList<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>>();
-		List<ArrayList<String>> matrixLoc = new ArrayList<ArrayList<String>>();
-		for(Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>> row : matrixObj.matrix){
-			matrix.add(new Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>(row.getLeft(), row.getMiddle()));
-			matrixLoc.add(row.getRight());
-		}
-		
-		ArrayList<ArrayList<Integer>> matrixObserved = matrixObj.matrixObserved;
-
-	    ObjectInputStream objectinputstream = new ObjectInputStream(new FileInputStream(hmmFile));
-	    BayesianNhmmV5<ObservationVector> hmm = (BayesianNhmmV5<ObservationVector>) objectinputstream.readObject();
-		objectinputstream.close();
-		hmm.setBayesianFactor(bayesianFactor);
-		hmm.setMethyState(this.methylatedState);
-		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
-		hmm.setMinCpgNum(1);
+	//per-CpG predict/observed counts of the current chromosome, written out once no open fragment could still cover the CpG.
+	//-shards writes the merged CpGs and adds the counters of each shard through it as well
+	private class StreamDecodeSummary{
+		final BayesianNhmmV5<ObservationVector> hmm;
+		final OutputStreamWriter writer;
+		final TreeMap<Long, int[]> methySummary = new TreeMap<Long, int[]>(); //cpgKey(start, end) -> methy predict, total predict, methy observed, total observed
+		final SimpleRegression regression = new SimpleRegression();
+		String chr;
 		long count = 0;
 		long countCorrect = 0;
 		long countMethy = 0;
 		long countMethyCorrect = 0;
 		long countUnmethy = 0;
 		long countUnmethyCorrect = 0;
+		double likelihood = 0;
+		double likelihoodWithMethy = 0;
 		
+		StreamDecodeSummary(BayesianNhmmV5<ObservationVector> hmm, String outputFile) throws IOException{
+			this.hmm = hmm;
+			writer = predictionWriter(outputFile);
+			writer.write("#chr\tstart\tend\tmethy_perc_predict\tmethy_count_predict\ttotal_count_predict\tmethy_perc_obs\tmethy_count_obs\ttotal_count_obs\n");
+		}
 		
-		HashMap<String,Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>> methySummary = new HashMap<String,Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>>(); //predict, observed
+		void setChr(String chr){
+			this.chr = chr;
+		}
 		
-		double likelihood = 0;
-		double likelihoodWithMethy = 0;
-		for(int j=0; j < matrix.size(); j++){
-			
-			ViterbiBayesianNhmmV5Calculator vb = new ViterbiBayesianNhmmV5Calculator(matrix.get(j), hmm, methylatedState, decodeP);
-			int[] hiddenState = vb.stateSequence();
-			//System.err.println(vb.lnProbability(true) + "\t" + vb.lnProbability() + "\t" + hiddenState.length);
-			//double prob = vb.lnProbability(true);
-			double prob = vb.lnProbability();
-			if(Double.isNaN(prob) || Double.isInfinite(prob)){
-				
-			}else{
-				likelihood += prob/hiddenState.length;
-			}
-			double probWithMethy = vb.lnProbability(true);
-			if(Double.isNaN(probWithMethy) || Double.isInfinite(probWithMethy)){
-				
-			}else{
-				likelihoodWithMethy += probWithMethy/hiddenState.length;
-			}
-			
-			Integer[] observedState = matrixObserved.get(j).toArray(new Integer[matrixObserved.get(j).size()]);
-			
-			ArrayList<String> locRow = matrixLoc.get(j);
-			
-			
-			if(hiddenState.length != observedState.length){
-				throw new IllegalArgumentException("HiddenState Length does not match with observed state length");
+		//Viterbi decoding of the fragments completed in the sliding window, their counters are added to the CpGs which are not written yet
+		void decode(FragmentMatrix matrix) throws Exception{
+			if(matrix.nbFragments() == 0){
+				return;
 			}
-			for(int i = 0; i < hiddenState.length; i++){
-				
-				String loc = locRow.get(i);
-				
-				int methyPredict = 0;
-				int unmethyPredict = 0;
-				if(hiddenState[i] == methylatedState ){
-					methyPredict++;
-				}else if(hiddenState[i]  == (1-methylatedState) ){
-					unmethyPredict++;
-				}
-				
-				
-				if(methySummary.containsKey(loc)){
-					Pair<Pair<Integer,Integer>, Pair<Integer,Integer>> tmp = methySummary.get(loc);
-					tmp = new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(tmp.getFirst().getFirst()+methyPredict,tmp.getFirst().getSecond()+(methyPredict + unmethyPredict)), 
-																				new Pair<Integer,Integer>(tmp.getSecond().getFirst()+observedState[i],tmp.getSecond().getSecond()+1));
-					methySummary.put(loc, tmp);
-				}else{
-					methySummary.put(loc, new Pair<Pair<Integer,Integer>, Pair<Integer,Integer>>(new Pair<Integer,Integer>(methyPredict,(methyPredict + unmethyPredict)), new Pair<Integer,Integer>(observedState[i],1)));
+			DecodedMatrix decoded = new DecodedMatrix(matrix, hmm);
+			add(decoded);
+			for(int cpg = 0; cpg < decoded.cpgs.length; cpg++){
+				int row = decoded.cpgRow[cpg];
+				long key = cpgKey(matrix.start(row), matrix.end(row));
+				int[] tmp = methySummary.get(key);
+				if(tmp == null){
+					tmp = new int[4];
+					methySummary.put(key, tmp);
 				}
-				
-				
-				if(observedState[i]==0){
-					countUnmethy++;
-					if(hiddenState[i] == (1-methylatedState) ){
-						countCorrect++;
-						countUnmethyCorrect++;
-					}
-				}else{
-					countMethy++;
-					if(hiddenState[i] == methylatedState){
-						countCorrect++;
-						countMethyCorrect++;
-					}
+				for(int i = 0; i < 4; i++){
+					tmp[i] += decoded.methySummary[cpg * 4 + i];
 				}
-				count++;
-			}		
-			//ForwardBackwardScaledCalculator fbsc = new ForwardBackwardScaledCalculator(matrix.get(j), hmm);
+			}
 		}
 		
-		//if(!notAutomateIdentifyMethyState && !reestimate){
-			//if((double)countMethyCorrect/(double)countMethy < 0.4){
-			//System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihood);	
-		//	methylatedState = 1- methylatedState;
-		//		System.out.println("\nre-estimate the reversed methylation states\n");
-				//re-train
-		//		int miniDataPointsPre = miniDataPoints;
-		//		if(miniDataPoints==1){
-		//			miniDataPoints = 2;
-		//			matrixObj = processMatrixFile(inputFile);
-		//		}
-		//		trainHmm(matrixObj, hmmFile);
-				
-				//re-decoding
-		//		if(miniDataPoints != miniDataPointsPre){
-		//			miniDataPoints = miniDataPointsPre;
-		//			matrixObj = processMatrixFile(inputFile);
-		//		}
-		//		double likelihoodCompared = decodeHmm(matrixObj, hmmFile, outputFile, inputFile, true);
-				//System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihoodCompared);	
-				//if(likelihoodCompared > likelihood)
-				//	return likelihoodCompared;
-				
-			//	methylatedState = 1- methylatedState;
-
-			//}
-		//}
-		
-		FileOutputStream output = new FileOutputStream(outputFile);
-		OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
-		
-		writer.write("#chr\tstart\tend\tmethy_perc_predict\tmethy_count_predict\ttotal_count_predict\tmethy_perc_obs\tmethy_count_obs\ttotal_count_obs\n");
+		//CpGs are told apart by start and end, as in the in-memory decoding, and ordered by start then end
+		long cpgKey(int start, int end){
+			return (long)start << 32 | end;
+		}
 		
+		//write out CpGs located before the given position
+		void flush(int before) throws IOException{
+			while(!methySummary.isEmpty() && (int)(methySummary.firstKey() >>> 32) < before){
+				Map.Entry<Long, int[]> entry = methySummary.pollFirstEntry();
+				int[] tmp = entry.getValue();
+				write(chr, (int)(entry.getKey() >>> 32), (int)(long)entry.getKey(), tmp[0], tmp[1], tmp[2], tmp[3]);
+			}
+		}
 		
-		double[][] predData = new double[methySummary.size()][2];
-		int i = 0;
-		for(String loc : methySummary.keySet()){
-			int methyPred = methySummary.get(loc).getFirst().getFirst();
-			int totalPred = methySummary.get(loc).getFirst().getSecond();
-			int methyObs = methySummary.get(loc).getSecond().getFirst();
-			int totalObs = methySummary.get(loc).getSecond().getSecond();
-			String[] locTmp = loc.split(":");
-			String chr = locTmp[0];
-			int start = Integer.parseInt(locTmp[1]);
-			int end = Integer.parseInt(locTmp[2]);
+		void write(String chr, int start, int end, int methyPred, int totalPred, int methyObs, int totalObs) throws IOException{
 			double pred = 100*(double)methyPred/(double)totalPred;
 			double obs = 100*(double)methyObs/(double)totalObs;
 			writer.write(chr + "\t" + start + "\t" + end + "\t" + pred + "\t" + methyPred + "\t" + totalPred + 
 					"\t" + obs + "\t" + methyObs + "\t" + totalObs + "\n");
-			predData[i][0]=pred;
-			predData[i][1]=obs;
-			i++;
+			regression.addData(pred, obs);
+		}
+		
+		void add(DecodedMatrix decoded){
+			count += decoded.count;
+			countCorrect += decoded.countCorrect;
+			countMethy += decoded.countMethy;
+			countMethyCorrect += decoded.countMethyCorrect;
+			countUnmethy += decoded.countUnmethy;
+			countUnmethyCorrect += decoded.countUnmethyCorrect;
+			likelihood += decoded.likelihood;
+			likelihoodWithMethy += decoded.likelihoodWithMethy;
 		}
-		writer.close();
-		output.close();
-		PearsonsCorrelation pearson =  new PearsonsCorrelation(predData);
-		System.out.println(pearson.getCorrelationMatrix());
-		System.out.println(pearson.getCorrelationPValues());
-		System.out.println("counted point in total: " + count + "\tCorrect predicted:" + countCorrect + "\tPerc:" + 100*(double)countCorrect/(double)count + "%");
-		System.out.println("counted point in methy: " + countMethy + "\tCorrect predicted:" + countMethyCorrect + "\tPerc:" + 100*(double)countMethyCorrect/(double)countMethy + "%");
-		System.out.println("counted point in unmethy: " + countUnmethy + "\tCorrect predicted:" + countUnmethyCorrect + "\tPerc:" + 100*(double)countUnmethyCorrect/(double)countUnmethy + "%");
-		System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihood);	
-		System.out.println("methyState " + methylatedState + "\tLikelihoodWithMethy is:" + likelihoodWithMethy);	
-		//return (double)countMethyCorrect/(double)countMethy;
-		return likelihood;
-		//for(int f=0;f<=features;f++){
-		//	System.err.println( unmethyCorrectSummary.get(f).getMean() + "\t"  + unmethyCorrectSummary.get(f).getStandardDeviation() + "\t" + unmethyCorrectSummary.get(f).getPercentile(50));
-		//	System.err.println( unmethyWrongSummary.get(f).getMean() + "\t"  + unmethyWrongSummary.get(f).getStandardDeviation() + "\t" + unmethyWrongSummary.get(f).getPercentile(50));
-		//	System.err.println( methyCorrectSummary.get(f).getMean() + "\t"  + methyCorrectSummary.get(f).getStandardDeviation() + "\t" + methyCorrectSummary.get(f).getPercentile(50));
-		//	System.err.println( methyWrongSummary.get(f).getMean() + "\t"  + methyWrongSummary.get(f).getStandardDeviation() + "\t" + methyWrongSummary.get(f).getPercentile(50));
-		//}
 		
+		void close() throws IOException{
+			writer.close();
+			double r = regression.getR();
+			double p = regression.getSignificance();
+			System.out.println(new BlockRealMatrix(new double[][]{{1.0, r},{r, 1.0}}));
+			System.out.println(new BlockRealMatrix(new double[][]{{0.0, p},{p, 0.0}}));
+			System.out.println("counted point in total: " + count + "\tCorrect predicted:" + countCorrect + "\tPerc:" + 100*(double)countCorrect/(double)count + "%");
+			System.out.println("counted point in methy: " + countMethy + "\tCorrect predicted:" + countMethyCorrect + "\tPerc:" + 100*(double)countMethyCorrect/(double)countMethy + "%");
+			System.out.println("counted point in unmethy: " + countUnmethy + "\tCorrect predicted:" + countUnmethyCorrect + "\tPerc:" + 100*(double)countUnmethyCorrect/(double)countUnmethy + "%");
+			System.out.println("methyState " + methylatedState + "\tLikelihood is:" + likelihood);	
+			System.out.println("methyState " + methylatedState + "\tLikelihoodWithMethy is:" + likelihoodWithMethy);	
+		}
 	}
 	
 	
 	//decoding HMM 
 	private void aucMode(MatrixObj matrixObj, String hmmFile, String outputFile) throws Exception{
 		System.out.println("\nROC curve ...\n");	
-		List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> matrix = new ArrayList<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>>();
-		
-		for(Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>> row : matrixObj.matrix){
-			matrix.add(new Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>(row.getLeft(), row.getMiddle()));
-		
-		}
-		ArrayList<ArrayList<Integer>> matrixObserved = matrixObj.matrixObserved;
+		FragmentMatrix matrix = matrixObj.matrix;
 
 	    ObjectInputStream objectinputstream = new ObjectInputStream(new FileInputStream(hmmFile));
 	    BayesianNhmmV5<ObservationVector> hmm = (BayesianNhmmV5<ObservationVector>) objectinputstream.readObject();
@@ -1243,6 +1814,7 @@ public class FinaleMe {
 		hmm.setMaxCpgNum(cpgNumClip < 0 ? maxCpgNum : cpgNumClip);
 		hmm.setMinCpgNum(1);
 		boolean outFlag = false;
+		byte[] hiddenStates = new byte[matrix.nbObservations()];
 		double[] ps = new double[]{-1,-0.999, -0.99, -0.95, -0.9,-0.8,-0.7,-0.5,-0.1,0.0, 0.1,0.5,0.7,0.8,0.9,0.95,0.99,0.999,1.0};
 		//for(double p=-1; p < 1; p+=0.1){
 		for(double p : ps){
@@ -1256,18 +1828,25 @@ public class FinaleMe {
 			
 			
 			
-			for(int j=0; j < matrix.size(); j++){
-
-				int[] hiddenState = (new ViterbiBayesianNhmmV5Calculator(matrix.get(j), hmm, methylatedState, p)).stateSequence();
+			decodeFragments(matrix, hmm, p, hiddenStates, null, null, null, null);
+			
+			for(int j=0; j < matrix.nbFragments(); j++){
 
-				Integer[] observedState = matrixObserved.get(j).toArray(new Integer[matrixObserved.get(j).size()]);
-				if(hiddenState.length != observedState.length){
-					throw new IllegalArgumentException("HiddenState Length does not match with observed state length");
+				int offset = matrix.offset(j);
+				int[] hiddenState = new int[matrix.length(j)];
+				for(int i = 0; i < hiddenState.length; i++){
+					hiddenState[i] = hiddenStates[offset + i];
+				}
+				int[] observedState = new int[hiddenState.length];
+				for(int i = 0; i < observedState.length; i++){
+					observedState[i] = matrix.observed(offset + i);
+					if(observedState[i] == FragmentMatrix.UNKNOWN){
+						throw new IllegalArgumentException("HiddenState Length does not match with observed state length");
+					}
 				}
 				if(randomPerm){
-					HashMap<Integer, Pair<Integer, Double>> cpgDistState = matrix.get(j).getFirst();
 					for(int i = 0; i < observedState.length; i++){
-						Double methyPrior = cpgDistState.get(i).getSecond();
+						double methyPrior = matrix.methyPrior(offset + i);
 						double rand = randomEngine.nextDouble();
 						if(rand < methyPrior+p){
 							hiddenState[i]=1;
@@ -1327,9 +1906,9 @@ public class FinaleMe {
 	protected BayesianNhmmV5<ObservationVector> buildInitNhmm(MatrixObj matrixObj, boolean addRandomFluct){	
 		
 		OpdfMultiMixtureGaussian omgU = new OpdfMultiMixtureGaussian(features, mixNumberInFeature);
-		omgU.fit(matrixObj.matrixU);
+		omgU.fit(matrixObj.matrix.features(FragmentMatrix.UNMETHYLATED));
 		OpdfMultiMixtureGaussian omgM = new OpdfMultiMixtureGaussian(features, mixNumberInFeature);
-		omgM.fit(matrixObj.matrixM);
+		omgM.fit(matrixObj.matrix.features(FragmentMatrix.METHYLATED));
 		
 		BayesianNhmmV5<ObservationVector> hmm = new BayesianNhmmV5<ObservationVector>(states, maxCpgDist/bin, new OpdfMultiMixtureGaussianFactory(features, mixNumberInFeature), bayesianFactor);
 		for(int i = 0; i < states; i++){
@@ -1397,8 +1976,9 @@ public class FinaleMe {
 	}
 	
 	
-	protected BayesianNhmmV5<ObservationVector> buildInitNhmmByGMM(MatrixObj matrixObj, List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> matrix){	
+	protected BayesianNhmmV5<ObservationVector> buildInitNhmmByGMM(MatrixObj matrixObj){	
 		System.out.println("GMMLearner...");
+		List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> matrix = matrixObj.matrix.toSequences();
 		//KMeansPlusLearner kl = new KMeansPlusLearner(states, new OpdfMultiMixtureGaussianFactory(features, mixNumberInFeature),matrix,maxCpgDist/bin,features, mixNumberInFeature,bayesianFactor, randomEngine, tolKmeans,decayKmeans, cpgNumClip, 1, lowCoverage);
 		GMMLearner kl = new GMMLearner(states, new OpdfMultiMixtureGaussianFactory(features, mixNumberInFeature),matrix,maxCpgDist/bin,features, mixNumberInFeature,bayesianFactor, randomEngine, tolKmeans,decayKmeans, cpgNumClip, 1, lowCoverage);
 		BayesianNhmmV5<ObservationVector> hmm = kl.learn();
@@ -1409,15 +1989,22 @@ public class FinaleMe {
 	
 	protected BayesianNhmmV5<ObservationVector> buildInitNhmmRandom(MatrixObj matrixObj, boolean addRandomFluct){	
 		
-		ArrayList<ObservationVector> matrixAll = new ArrayList<ObservationVector>();
-		matrixAll.addAll(matrixObj.matrixU);
-		matrixAll.addAll(matrixObj.matrixM);
+		FragmentMatrix matrix = matrixObj.matrix;
+		ArrayList<Integer> matrixAll = new ArrayList<Integer>();
+		for(int n = 0; n < matrix.nbObservations(); n++){
+			if(matrix.observed(n) == FragmentMatrix.UNMETHYLATED)
+				matrixAll.add(n);
+		}
+		for(int n = 0; n < matrix.nbObservations(); n++){
+			if(matrix.observed(n) == FragmentMatrix.METHYLATED)
+				matrixAll.add(n);
+		}
 		Collections.shuffle(matrixAll);
 		int size = matrixAll.size();
 		OpdfMultiMixtureGaussian omgU = new OpdfMultiMixtureGaussian(features, mixNumberInFeature);
-		omgU.fit(matrixAll.subList(0, (int)(size/2.0)));
+		omgU.fit(packFeatures(matrix, matrixAll.subList(0, (int)(size/2.0))));
 		OpdfMultiMixtureGaussian omgM = new OpdfMultiMixtureGaussian(features, mixNumberInFeature);
-		omgM.fit(matrixAll.subList((int)(size/2.0)+1, size));
+		omgM.fit(packFeatures(matrix, matrixAll.subList((int)(size/2.0)+1, size)));
 		
 		BayesianNhmmV5<ObservationVector> hmm = new BayesianNhmmV5<ObservationVector>(states,maxCpgDist/bin, new OpdfMultiMixtureGaussianFactory(features, mixNumberInFeature), bayesianFactor);
 		
@@ -1459,6 +2046,17 @@ public class FinaleMe {
 		
 	}
 	
+	private static double[] packFeatures(FragmentMatrix matrix, List<Integer> rows){
+		int dimension = matrix.dimension();
+		double[] packed = new double[rows.size() * dimension];
+		int i = 0;
+		for(int n : rows){
+			System.arraycopy(matrix.features(), n * dimension, packed, i * dimension, dimension);
+			i++;
+		}
+		return packed;
+	}
+	
 	/*
 	protected BayesianNhmm<ObservationVector> buildInitNhmmRandom(MatrixObj matrixObj, boolean addRandomFluct){	
 		
@@ -1517,6 +2115,14 @@ public class FinaleMe {
 		
 	}
 
+	//the decoding threads are not needed any more, also when the decoding failed
+	private void shutdownPool(){
+		if(pool != null){
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
 	private void finish(){
 		long endTime   = System.currentTimeMillis();
 		double totalTime = endTime - startTime;
@@ -1529,64 +2135,34 @@ public class FinaleMe {
 	}
 	
 	public class MatrixObj{
-		ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrix;
-		ArrayList<ArrayList<Integer>> matrixObserved;
-		ArrayList<ObservationVector> matrixU;
-		ArrayList<ObservationVector> matrixM;
+		FragmentMatrix matrix;
 		TreeMap<Integer, double[]> pi;
 		TreeMap<Integer, double[][]> a;
-		ArrayList<Pair<Integer, Double>> cpgDistFreq; //number of instance at each CpG distance
 		//HashMap<String, SummaryStatistics[]> stats;
 		//double[] mean;
 		//double[] variance;
 		
-		public MatrixObj(ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrix, ArrayList<ObservationVector> matrixU,
-		ArrayList<ObservationVector> matrixM, TreeMap<Integer, double[]> pi, TreeMap<Integer, double[][]> a){
+		public MatrixObj(FragmentMatrix matrix, TreeMap<Integer, double[]> pi, TreeMap<Integer, double[][]> a){
 			this.matrix = matrix;
-			this.matrixU = matrixU;
-			this.matrixM = matrixM;
 			this.pi = pi;
 			this.a = a;
-			
-		}
-		
-		public MatrixObj(ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrix, ArrayList<ObservationVector> matrixU,
-				ArrayList<ObservationVector> matrixM, TreeMap<Integer, double[]> pi, TreeMap<Integer, double[][]> a, ArrayList<ArrayList<Integer>> matrixObserved){
-					this.matrix = matrix;
-					this.matrixU = matrixU;
-					this.matrixM = matrixM;
-					this.pi = pi;
-					this.a = a;
-					this.matrixObserved = matrixObserved;
-		}
-		
-		public MatrixObj(ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrix, ArrayList<ObservationVector> matrixU,
-				ArrayList<ObservationVector> matrixM, TreeMap<Integer, double[]> pi, TreeMap<Integer, double[][]> a, 
-				ArrayList<ArrayList<Integer>> matrixObserved, ArrayList<Pair<Integer, Double>> cpgDistFreq){
-					this.matrix = matrix;
-					this.matrixU = matrixU;
-					this.matrixM = matrixM;
-					this.pi = pi;
-					this.a = a;
-					this.matrixObserved = matrixObserved;
-					this.cpgDistFreq = cpgDistFreq;
-				//	this.stats = stats;
-				//	mean = new double[3];
-				//	variance = new double[3];
-				//	for(int i = 0; i < 3; i++){
-				//		mean[i] = stats[i].getMean();
-				//		variance[i] = stats[i].getVariance();
-				//	}
 		}
+	}
+	
+	//read number and offset of each row appended to the matrix before the rows are grouped by read
+	private static class ReadRows{
+		int[] reads = new int[1024];
+		int[] offsets = new int[1024];
+		int size = 0;
 		
-		public List<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> getSampled(int n){
-			ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>> matrixTmp = (ArrayList<Triple<HashMap<Integer, Pair<Integer, Double>>, ArrayList<ObservationVector>, ArrayList<String>>>) matrix.clone();
-			Collections.shuffle(matrixTmp);
-			if(matrixTmp.size()<n){
-				return matrixTmp;
-			}else{
-				return matrixTmp.subList(0, n);
+		void add(int read, int offset){
+			if(size == reads.length){
+				reads = Arrays.copyOf(reads, size + (size >> 1));
+				offsets = Arrays.copyOf(offsets, size + (size >> 1));
 			}
+			reads[size] = read;
+			offsets[size] = offset;
+			size++;
 		}
 	}
 
@@ -8,7 +8,6 @@ package org.cchmc.epifluidlab.finaleme.hmm;
 
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.math3.util.Pair;
@@ -51,6 +50,8 @@ public class ForwardBackwardBayesianNhmmV5Calculator {
 	protected double[][] beta = null;
 	protected double probability;
 	protected double[][] alphaTmp = null;
+	/* emission[t][i] = opdf probability of the t-th observation in state i */
+	protected double[][] emission = null;
 	
 	
 	protected ForwardBackwardBayesianNhmmV5Calculator()
@@ -71,18 +72,50 @@ public class ForwardBackwardBayesianNhmmV5Calculator {
 	ForwardBackwardBayesianNhmmV5Calculator(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair,
 			BayesianNhmmV5<O> hmm, EnumSet<Computation> flags)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
-		//HashMap<Integer, Integer> cpgDistState = oseqPair.getFirst();
-		if (oseq.isEmpty())
+		this(FragmentMatrix.of((Pair) oseqPair), 0, hmm, flags);
+	}
+	
+	
+	/**
+	 * Computes the probability of occurence of fragment <code>fragment</code>
+	 * of <code>matrix</code> given a Hidden Markov Model.
+	 *
+	 * @param matrix The fragments.
+	 * @param fragment The index of the fragment in <code>matrix</code>.
+	 * @param hmm A Hidden Markov Model;
+	 * @param flags How the computation should be done. See the
+	 *              {@link Computation Computation} enum.
+	 */
+	public ForwardBackwardBayesianNhmmV5Calculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm, EnumSet<Computation> flags)
+	{
+		this(matrix, fragment, hmm, flags, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #ForwardBackwardBayesianNhmmV5Calculator(FragmentMatrix, int, BayesianNhmmV5, EnumSet)}
+	 * with the opdf probabilities of the fragment already evaluated by
+	 * {@link BayesianNhmmV5#getOpdfProbs(FragmentMatrix, int, double[][])}.
+	 *
+	 * @param emission The opdf probabilities of the fragment, or null to
+	 *                 evaluate them here.
+	 */
+	public ForwardBackwardBayesianNhmmV5Calculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm, EnumSet<Computation> flags, double[][] emission)
+	{
+		if (matrix.length(fragment) == 0)
 			throw new IllegalArgumentException("Invalid empty sequence");
 		
+		this.emission = emission == null ? hmm.getOpdfProbs(matrix, fragment, null) : emission;
+		
 		if (flags.contains(Computation.ALPHA))
-			computeAlpha(hmm, oseqPair);
+			computeAlpha(hmm, matrix, fragment);
 		
 		if (flags.contains(Computation.BETA))
-			computeBeta(hmm, oseqPair);
+			computeBeta(hmm, matrix, fragment);
 		
-		computeProbability(oseqPair, hmm, flags);
+		computeProbability(matrix, fragment, hmm, flags);
 	}
 	
 	
@@ -99,169 +132,95 @@ public class ForwardBackwardBayesianNhmmV5Calculator {
 	}
 	
 	
+	public ForwardBackwardBayesianNhmmV5Calculator(FragmentMatrix matrix, int fragment, BayesianNhmmV5<?> hmm)
+	{
+		this(matrix, fragment, hmm, EnumSet.of(Computation.ALPHA));
+	}
+	
+	
 	/* Computes the content of the alpha array */
-	protected <O extends Observation> void
-	computeAlpha(BayesianNhmmV5<? super O> hmm, Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair)
+	protected void
+	computeAlpha(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int fragment)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
 		
-		alpha = new double[oseq.size()][hmm.nbStates()];
-		alphaTmp = new double[oseq.size()][hmm.nbStates()];
+		alpha = new double[length][hmm.nbStates()];
+		alphaTmp = new double[length][hmm.nbStates()];
 		for (int i = 0; i < hmm.nbStates(); i++)
-			computeAlphaInit(hmm, oseq.get(0), cpgDistState.get(0), i, oseq.size());
+			computeAlphaInit(hmm, matrix, offset, i);
 		
 		if((Double.compare(alpha[0][0], 0.0) == 0 && Double.compare(alpha[0][1], 0.0) == 0)){
-			//alpha[0][0]=0.5;
-			//alpha[0][1]=0.5;
-			System.err.println("alpha\t" + cpgDistState.get(0) + "\t" + cpgDistState.get(0).getSecond());
+			System.err.println("alpha\t" + matrix.cpgDist(offset) + "\t" + matrix.methyPrior(offset));
 			System.err.println(Double.compare(alpha[0][0], alpha[0][1]));
-			System.err.println(hmm.getPri(cpgDistState.get(0).getFirst(), 0) + "\t" + hmm.getOpdfProb(0,oseq.get(0)) );
-			System.err.println(hmm.getPri(cpgDistState.get(0).getFirst(), 1) + "\t" + hmm.getOpdfProb(1,oseq.get(0)) );
+			System.err.println(hmm.getPri(matrix.cpgDist(offset), 0) + "\t" + emission[0][0] );
+			System.err.println(hmm.getPri(matrix.cpgDist(offset), 1) + "\t" + emission[0][1] );
 
 			System.exit(1);
 		}
-		//double unmethy = alpha[0][0]/(alpha[0][0]+alpha[0][1]);
-		//double methy = alpha[0][1]/(alpha[0][0]+alpha[0][1]);
-		//unmethy = unmethy * (1-cpgDistState.get(0).getSecond());
-		//methy = methy * (cpgDistState.get(0).getSecond());
-		//alpha[0][0] = unmethy/(unmethy + methy);
-		//alpha[0][1] = methy/(unmethy + methy);
 		
-		Iterator<? extends O> seqIterator = oseq.iterator();
-		if (seqIterator.hasNext())
-			seqIterator.next();
-		
-		for (int t = 1; t < oseq.size(); t++) {
-			O observation = seqIterator.next();
-			
+		for (int t = 1; t < length; t++) {
 			for (int i = 0; i < hmm.nbStates(); i++)
-				computeAlphaStep(hmm, observation, cpgDistState.get(t), t, i, oseq.size());
-			
-			//double unmethyS = alpha[t][0]/(alpha[t][0]+alpha[t][1]);
-			//double methyS = alpha[t][1]/(alpha[t][0]+alpha[t][1]);
-			//unmethyS = unmethyS * (1-cpgDistState.get(t).getSecond());
-			//methyS = methyS * (cpgDistState.get(t).getSecond());
-			//alpha[t][0] = unmethyS/(unmethyS + methyS);
-			//alpha[t][1] = methyS/(unmethyS + methyS);
+				computeAlphaStep(hmm, matrix, offset + t, t, i);
 		}
 	}
 	
 	
-	/* Computes alpha[0][i] */
-	protected <O extends Observation> void
-	computeAlphaInit(BayesianNhmmV5<? super O> hmm, O o, Pair<Integer, Double> r, int i, int numCpg)
+	/* Computes alpha[0][i], n is the index of the first observation of the fragment */
+	protected void
+	computeAlphaInit(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int n, int i)
 	{
-		//System.err.println(r + "\t" + i);
-		//System.err.println(hmm.getPri(r.getFirst(), i));
-		//alpha[0][i] = hmm.getPri(r.getFirst(), i) * hmm.getOpdf(i).probability(o);
 		//alpha[0][i] = hmm.getPri(r.getFirst(), i) * hmm.getOpdfBayesianProb(i, r,o, numCpg);
-		alpha[0][i] = hmm.getPri(r.getFirst(), i) * hmm.getOpdfProb(i,o);
-		//alpha[0][i] = hmm.getBayesianPri(r, i) * hmm.getOpdfProb(i,o);
-		
-		
-		//if(Double.compare(alpha[0][i], 0.0) == 0){
-		//	alpha[0][i] += 0.001;
-		//}
-		if(Double.isNaN(alpha[0][i]) || (Double.compare(alpha[0][0], 0.0) == 0 && Double.compare(alpha[0][1], 0.0) == 0)){
-			//alpha[0][0]=0.5;
-			//alpha[0][1]=0.5;
-		//	System.err.println("alpha\t" + r + "\t" + i + "\t" + r.getSecond());
-		//	System.err.println(Double.compare(alpha[0][0], alpha[0][1]));
-		//	System.err.println(hmm.getPri(r.getFirst(), 0) + "\t" + hmm.getOpdfProb(0,o) );
-		//	System.err.println(hmm.getPri(r.getFirst(), 1) + "\t" + hmm.getOpdfProb(1,o) );
-		//	System.err.println(hmm.getOpdf(i));
-		//	System.exit(1);
-		}
+		alpha[0][i] = hmm.getPri(matrix.cpgDist(n), i) * emission[0][i];
 	}
 	
 	
-	/* Computes alpha[t][j] (t > 0) */
-	protected <O extends Observation> void 
-	computeAlphaStep(BayesianNhmmV5<? super O> hmm, O o, Pair<Integer, Double> r, int t, int j, int numCpg)
+	/* Computes alpha[t][j] (t > 0), n is the index of the t-th observation of the fragment */
+	protected void 
+	computeAlphaStep(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int n, int t, int j)
 	{
 		double sum = 0.;
+		int r = matrix.cpgDist(n);
 		
 		for (int i = 0; i < hmm.nbStates(); i++)
-			sum += alpha[t-1][i] * hmm.getArij(r.getFirst(), i, j);		
+			sum += alpha[t-1][i] * hmm.getArij(r, i, j);		
 
-		//alpha[t][j] = sum * hmm.getOpdf(j).probability(o);
 		//alpha[t][j] = sum * hmm.getOpdfBayesianProb(j, r,o, numCpg);
-		alpha[t][j] = sum * hmm.getOpdfProb(j,o);
-		
-		if(Double.isNaN(alpha[t][j]) || (Double.compare(alpha[t][0], 0.0) == 0 && Double.compare(alpha[t][1], 0.0) == 0)){
-			//alpha[t][0]=0.5;
-			//alpha[t][1]=0.5;
-			//System.err.println("xxalpha\t" + r + "\t" + j + "\t" + t + "\t" + sum);
-			//System.err.println(Double.compare(alpha[t][0], alpha[t][1]));
-			//System.err.println(alpha[t-1][0] + "\t" + alpha[t-1][1] + "\t" + hmm.getArij(r.getFirst(), 0, j) + "\t" + hmm.getArij(r.getFirst(), 1, j) + "\t" + hmm.getOpdf(j).probability(o)  + "\t" + o + "\t" + r.getFirst());
-			//System.err.println(hmm.getOpdf(j));
-			//for (int s = 0; s < t; s++) {
-			//	System.err.println(alpha[s][0] + "\t" + alpha[s][1]);
-			//}
-			//System.exit(1);
-		}
+		alpha[t][j] = sum * emission[t][j];
 	}
 	
 	
-	/* Computes the content of the beta array.  Needs a O(1) access time
-	 to the elements of oseq to get a theoretically optimal algorithm. */
-	protected <O extends Observation> void 
-	computeBeta(BayesianNhmmV5<? super O> hmm, Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair)
+	/* Computes the content of the beta array. */
+	protected void 
+	computeBeta(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int fragment)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
 		
-		beta = new double[oseq.size()][hmm.nbStates()];
+		beta = new double[length][hmm.nbStates()];
 		
 		for (int i = 0; i < hmm.nbStates(); i++)
-			beta[oseq.size()-1][i] = 1.;
-		//System.err.println(beta[1][0] + "\t" + beta[1][1] + "\t" + (oseq.size()-1));
-		for (int t = oseq.size()-2; t >= 0; t--)
+			beta[length-1][i] = 1.;
+		for (int t = length-2; t >= 0; t--)
 			for (int i = 0; i < hmm.nbStates(); i++)
-				computeBetaStep(hmm, oseq.get(t+1), cpgDistState.get(t+1), t, i, oseq.size());
+				computeBetaStep(hmm, matrix, offset + t + 1, t, i);
 	}
 	
 	
-	/* Computes beta[t][i] (t < obs. seq.le length - 1) */
-	protected <O extends Observation> void 
-	computeBetaStep(BayesianNhmmV5<? super O> hmm, O o, Pair<Integer, Double> r, int t, int i, int numCpg)
+	/* Computes beta[t][i] (t < obs. seq.le length - 1), n is the index of the (t+1)-th observation of the fragment */
+	protected void 
+	computeBetaStep(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int n, int t, int i)
 	{
 		double sum = 0.;
+		int r = matrix.cpgDist(n);
 		
 		for (int j = 0; j < hmm.nbStates(); j++){
-			//if(Double.isNaN(beta[t+1][j]) || Double.isInfinite(beta[t+1][j])){
-			//	beta[t+1][0] = 0.5;
-			//	beta[t+1][1] = 0.5;
-			//}
-					
-			sum += beta[t+1][j] * hmm.getArij(r.getFirst(), i, j) * 
+			sum += beta[t+1][j] * hmm.getArij(r, i, j) * 
 					//hmm.getOpdfBayesianProb(j, r,o, numCpg);
-					hmm.getOpdfProb(j, o);
+					emission[t+1][j];
 		}
-			
-			//hmm.getOpdf(j).probability(o);
-		
-		//double unmethyS = beta[t+1][0] * hmm.getArij(r.getFirst(), i, 0) * hmm.getOpdf(0).probability(o);
-		//double methyS = beta[t+1][1] * hmm.getArij(r.getFirst(), i, 1) * hmm.getOpdf(1).probability(o);
-		//double unmethy = unmethyS/(unmethyS + methyS);
-		//double methy = methyS/(unmethyS + methyS);
-		//unmethy = unmethy * (1-r.getSecond());
-		//methy = methy * (r.getSecond());
-		//beta[t][i] = unmethy + methy;
 		
 		beta[t][i] = sum;
-		if(Double.isNaN(beta[t][i]) || Double.isInfinite(beta[t][i])){
-		//	beta[t][0]=0.5;
-		//	beta[t][1]=0.5;
-		//	System.err.println("beta\t" + r + "\t" + i + "\t" + t);
-		//	System.err.println(beta[t+1][0] + "\t" + beta[t+1][1] + "\t" +  hmm.getArij(r.getFirst(), i, 0) + "\t" + hmm.getArij(r.getFirst(), i, 1) + "\t" + hmm.getOpdf(0).probability(o)  + "\t" + hmm.getOpdf(1).probability(o));
-		//	System.err.println(beta[t][0] + "\t" + beta[t][1]);
-		
-		//	System.err.println(hmm.getOpdf(i));
-		//if(Double.isNaN(beta[t][i])){
-			//System.exit(1);
-		}
 	}
 	
 	
@@ -309,30 +268,32 @@ public class ForwardBackwardBayesianNhmmV5Calculator {
 	}
 	
 	
-	private <O extends Observation> void 
-	computeProbability(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair, BayesianNhmmV5<? super O> hmm, 
+	/**
+	 * Returns the opdf probability of the t-th observation of the fragment
+	 * in state i, as used by the alpha and beta arrays.
+	 */
+	public double emissionElement(int t, int i)
+	{
+		return emission[t][i];
+	}
+	
+	
+	private void 
+	computeProbability(FragmentMatrix matrix, int fragment, BayesianNhmmV5<?> hmm, 
 			EnumSet<Computation> flags)
 	{
 		probability = 0.;
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
+		int offset = matrix.offset(fragment);
 		
 		if (flags.contains(Computation.ALPHA))
 			for (int i = 0; i < hmm.nbStates(); i++) 
-				probability += alpha[oseq.size()-1][i];
+				probability += alpha[matrix.length(fragment)-1][i];
 		else
 			for (int i = 0; i < hmm.nbStates(); i++){
-				//double unmethy = Math.log(hmm.getOpdf(i).probability(oseq.get(0)))+ Math.log(1-cpgDistState.get(i).getSecond() )*hmm.getBayesianFactor();
-				//double methy = Math.log(hmm.getOpdf(i).probability(oseq.get(0))) + Math.log(cpgDistState.get(i).getSecond())*hmm.getBayesianFactor();
-				//unmethy = Math.exp(unmethy);
-				//methy = Math.exp(methy);
-				//probability += hmm.getPri(cpgDistState.get(0).getFirst(), i) * (i % 2 == 0 ? unmethy : methy)* beta[0][i];
 				probability +=
-						//hmm.getBayesianPri(cpgDistState.get(0),i) *
-								hmm.getPri(cpgDistState.get(0).getFirst(),i) *
+								hmm.getPri(matrix.cpgDist(offset),i) *
 					//hmm.getOpdfBayesianProb(i, cpgDistState.get(0),oseq.get(0), oseq.size()) * beta[0][i];
-					hmm.getOpdfProb(i, oseq.get(0)) * beta[0][i];
-				//	hmm.getOpdf(i).probability(oseq.get(0)) * beta[0][i];
+					emission[0][i] * beta[0][i];
 			}
 				
 	}
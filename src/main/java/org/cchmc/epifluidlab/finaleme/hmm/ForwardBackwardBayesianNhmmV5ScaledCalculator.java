@@ -9,7 +9,6 @@ package org.cchmc.epifluidlab.finaleme.hmm;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.math3.util.Pair;
@@ -48,22 +47,58 @@ public class ForwardBackwardBayesianNhmmV5ScaledCalculator extends ForwardBackwa
 	ForwardBackwardBayesianNhmmV5ScaledCalculator(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair,
 			BayesianNhmmV5<O> hmm, EnumSet<Computation> flags)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
+		this(FragmentMatrix.of((Pair) oseqPair), 0, hmm, flags);
+	}
+	
+	
+	/**
+	 * Computes the probability of occurence of fragment <code>fragment</code>
+	 * of <code>matrix</code> given a Hidden Markov Model.  The algorithms
+	 * implemented use scaling to avoid underflows.
+	 *
+	 * @param matrix The fragments.
+	 * @param fragment The index of the fragment in <code>matrix</code>.
+	 * @param hmm A Hidden Markov Model;
+	 * @param flags How the computation should be done. See the
+	 *              {@link ForwardBackwardCalculator.Computation}.
+	 *              The alpha array is always computed.
+	 */
+	public ForwardBackwardBayesianNhmmV5ScaledCalculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm, EnumSet<Computation> flags)
+	{
+		this(matrix, fragment, hmm, flags, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #ForwardBackwardBayesianNhmmV5ScaledCalculator(FragmentMatrix, int, BayesianNhmmV5, EnumSet)}
+	 * with the opdf probabilities of the fragment already evaluated by
+	 * {@link BayesianNhmmV5#getOpdfProbs(FragmentMatrix, int, double[][])}.
+	 *
+	 * @param emission The opdf probabilities of the fragment, or null to
+	 *                 evaluate them here.
+	 */
+	public ForwardBackwardBayesianNhmmV5ScaledCalculator(FragmentMatrix matrix, int fragment,
+			BayesianNhmmV5<?> hmm, EnumSet<Computation> flags, double[][] emission)
+	{
+		int length = matrix.length(fragment);
 		
-		if (oseq.isEmpty())
+		if (length == 0)
 			throw new IllegalArgumentException();
 		
-		ctFactors = new double[oseq.size()];
+		this.emission = emission == null ? hmm.getOpdfProbs(matrix, fragment, null) : emission;
+		
+		ctFactors = new double[length];
 		Arrays.fill(ctFactors, 0.);
-		ctFactorsTmp = new double[oseq.size()];
+		ctFactorsTmp = new double[length];
 		Arrays.fill(ctFactorsTmp, 0.);
 		
-		computeAlpha(hmm, oseqPair);
+		computeAlpha(hmm, matrix, fragment);
 		
 		if (flags.contains(Computation.BETA))
-			computeBeta(hmm, oseqPair);
+			computeBeta(hmm, matrix, fragment);
 		
-		computeProbability(oseq, hmm, flags);
+		computeProbability(length);
 	}
 	
 	
@@ -80,84 +115,59 @@ public class ForwardBackwardBayesianNhmmV5ScaledCalculator extends ForwardBackwa
 	}
 	
 	
+	public ForwardBackwardBayesianNhmmV5ScaledCalculator(FragmentMatrix matrix, int fragment, BayesianNhmmV5<?> hmm)
+	{
+		this(matrix, fragment, hmm, EnumSet.of(Computation.ALPHA));
+	}
+	
+	
 	/* Computes the content of the scaled alpha array */
-	protected <O extends Observation> void
-	computeAlpha(BayesianNhmmV5<? super O> hmm, Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair)
+	protected void
+	computeAlpha(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int fragment)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
 		
-		alpha = new double[oseq.size()][hmm.nbStates()];
-		alphaTmp = new double[oseq.size()][hmm.nbStates()];
+		alpha = new double[length][hmm.nbStates()];
+		alphaTmp = new double[length][hmm.nbStates()];
 		
 		for (int i = 0; i < hmm.nbStates(); i++)
-			computeAlphaInit(hmm, oseq.get(0), cpgDistState.get(0), i, oseq.size());
+			computeAlphaInit(hmm, matrix, offset, i);
 		scale(ctFactors, alpha, 0, hmm);
-		//scale(ctFactorsTmp, alphaTmp, 0);
-		
-		Iterator<? extends O> seqIterator = oseq.iterator();
-		if (seqIterator.hasNext())
-			seqIterator.next();
 		
-		for (int t = 1; t < oseq.size(); t++) {
-			O observation = seqIterator.next();
-			
+		for (int t = 1; t < length; t++) {
 			for (int i = 0; i < hmm.nbStates(); i++)
-				computeAlphaStep(hmm, observation, cpgDistState.get(t), t, i, oseq.size());
+				computeAlphaStep(hmm, matrix, offset + t, t, i);
 			scale(ctFactors, alpha, t, hmm);
-			//scale(ctFactorsTmp, alphaTmp, t);
 		}
 	}
 	
 	
 	/* Computes the content of the scaled beta array.  The scaling factors are
 	 those computed for alpha. */
-	protected <O extends Observation> void 
-	computeBeta(BayesianNhmmV5<? super O> hmm, Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair)
+	protected void 
+	computeBeta(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int fragment)
 	{	
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
 		
-		beta = new double[oseq.size()][hmm.nbStates()];
+		beta = new double[length][hmm.nbStates()];
 		for (int i = 0; i < hmm.nbStates(); i++)
-			beta[oseq.size()-1][i] = 1. / ctFactors[oseq.size()-1];
+			beta[length-1][i] = 1. / ctFactors[length-1];
 		
-		for (int t = oseq.size() - 2; t >= 0; t--)
+		for (int t = length - 2; t >= 0; t--)
 			for (int i = 0; i < hmm.nbStates(); i++) {
-				computeBetaStep(hmm, oseq.get(t+1), cpgDistState.get(t+1), t, i, oseq.size());
+				computeBetaStep(hmm, matrix, offset + t + 1, t, i);
 				beta[t][i] /= ctFactors[t];
 				if(Double.isNaN(beta[t][i]) || Double.isInfinite(beta[t][i])){
-					//beta[t][0]=0.5;
-					//beta[t][1]=0.5;
 					System.err.println("beta\t" + ctFactors[t] + "\t" + i + "\t" + t);
 				}
 			}
-	/*
-		for (int i = 0; i < hmm.nbStates(); i++){
-			if(ctFactors[oseq.size()-1]==0){
-				beta[oseq.size()-1][i] = 0;
-			}else{
-				beta[oseq.size()-1][i] = 1. / ctFactors[oseq.size()-1];
-			}
-		}
-			
-		
-		for (int t = oseq.size() - 2; t >= 0; t--)
-			for (int i = 0; i < hmm.nbStates(); i++) {
-				computeBetaStep(hmm, oseq.get(t+1), cpgDistState.get(t+1), t, i);
-				if(ctFactors[t]==0){
-					beta[t][i]=0;
-				}else{
-					beta[t][i] /= ctFactors[t];
-				}
-				
-			}
-			*/
 	}
 	
 	
 	/* Normalize alpha[t] and put the normalization factor in ctFactors[t] */
-	private <O extends Observation> void scale(double[] ctFactors, double[][] array, int t, BayesianNhmmV5<? super O> hmm)
+	private void scale(double[] ctFactors, double[][] array, int t, BayesianNhmmV5<?> hmm)
 	{
 		double[] table = array[t];
 		double sum = 0.;
@@ -220,18 +230,13 @@ public class ForwardBackwardBayesianNhmmV5ScaledCalculator extends ForwardBackwa
 	}
 	
 	
-	private <O extends Observation> void
-	computeProbability(List<O> oseq, BayesianNhmmV5<? super O> hmm, 
-			EnumSet<Computation> flags)
+	private void
+	computeProbability(int length)
 	{	
 		lnProbability = 0.;
 		
-		for (int t = 0; t < oseq.size(); t++){
+		for (int t = 0; t < length; t++){
 			lnProbability += Math.log(ctFactors[t]);
-			//if(Double.compare(ctFactorsTmp[t], 0.0) == 0){
-			//	continue;
-			//}
-			//lnProbability += Math.log(ctFactorsTmp[t]);
 		}
 		
 		probability = Math.exp(lnProbability);
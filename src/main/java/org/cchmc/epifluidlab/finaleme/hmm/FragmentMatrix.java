@@ -0,0 +1,407 @@
+package org.cchmc.epifluidlab.finaleme.hmm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+
+import org.cchmc.epifluidlab.finaleme.utils.ObservationVector;
+
+
+/**
+ * Column oriented store of the fragments used by the HMM. Each CpG observation
+ * occupies one row: <code>dimension</code> z-scored features, the binned
+ * distance to the previous CpG in the fragment (or to the fragment start for the
+ * first CpG), the methylation prior, the observed methylation call and the packed
+ * CpG coordinate. Rows of one fragment are contiguous, fragment <code>f</code>
+ * covers rows <code>offset(f)</code> to <code>offset(f+1)-1</code>.
+ */
+public class FragmentMatrix implements Serializable {
+
+	public static final byte UNMETHYLATED = 0;
+	public static final byte METHYLATED = 1;
+	public static final byte UNKNOWN = -1;
+
+	private static final int START_SHIFT = 16;
+	private static final int CHR_SHIFT = 48;
+	private static final long START_MASK = 0x7FFFFFFFL;
+	private static final long SPAN_MASK = 0xFFFFL;
+	private static final int MAX_CHR_INDEX = 0x7FFF;
+
+	private final int dimension;
+	private double[] features;
+	private int[] cpgDist;
+	private float[] methyPrior;
+	private byte[] observed;
+	private long[] coordinates; // chr index << 48 | start << 16 | (end - start)
+	private int[] fragmentOffsets;
+	private int nbObservations = 0;
+	private int nbFragments = 0;
+	private final ArrayList<String> chrs = new ArrayList<String>();
+	private transient HashMap<String, Integer> chrIndex = new HashMap<String, Integer>();
+
+	private static final long serialVersionUID = 6212374460231915417L;
+
+
+	public FragmentMatrix(int dimension)
+	{
+		this(dimension, 1024, 256);
+	}
+
+	public FragmentMatrix(int dimension, int expectedObservations, int expectedFragments)
+	{
+		if (dimension <= 0)
+			throw new IllegalArgumentException("Dimension must be strictly " +
+					"positive");
+		this.dimension = dimension;
+		expectedObservations = Math.max(expectedObservations, 1);
+		features = new double[expectedObservations * dimension];
+		cpgDist = new int[expectedObservations];
+		methyPrior = new float[expectedObservations];
+		observed = new byte[expectedObservations];
+		coordinates = new long[expectedObservations];
+		fragmentOffsets = new int[Math.max(expectedFragments, 1) + 1];
+	}
+
+	/**
+	 * Appends one CpG observation to the fragment under construction. The
+	 * fragment is closed by {@link #endFragment()}.
+	 */
+	public void addObservation(double[] value, int cpgDist, double methyPrior, byte observed, String chr, int start, int end)
+	{
+		if (value.length != dimension)
+			throw new IllegalArgumentException("Vector has a wrong " +
+			"dimension");
+		ensureObservationCapacity(nbObservations + 1);
+		System.arraycopy(value, 0, features, nbObservations * dimension, dimension);
+		this.cpgDist[nbObservations] = cpgDist;
+		this.methyPrior[nbObservations] = (float) methyPrior;
+		this.observed[nbObservations] = observed;
+		this.coordinates[nbObservations] = packCoordinate(chr, start, end);
+		nbObservations++;
+	}
+
+	/**
+	 * Appends observation <code>n</code> of <code>other</code> to the fragment
+	 * under construction, with its features, distance, prior, observed state
+	 * and coordinate.
+	 */
+	public void addObservation(FragmentMatrix other, int n)
+	{
+		if (other.dimension != dimension)
+			throw new IllegalArgumentException("Vector has a wrong " +
+			"dimension");
+		ensureObservationCapacity(nbObservations + 1);
+		System.arraycopy(other.features, n * dimension, features, nbObservations * dimension, dimension);
+		this.cpgDist[nbObservations] = other.cpgDist[n];
+		this.methyPrior[nbObservations] = other.methyPrior[n];
+		this.observed[nbObservations] = other.observed[n];
+		this.coordinates[nbObservations] = packCoordinate(other.chr(n), other.start(n), other.end(n));
+		nbObservations++;
+	}
+
+	/**
+	 * Closes the fragment made of the observations added since the last call.
+	 * Empty fragments are ignored.
+	 */
+	public void endFragment()
+	{
+		if (nbObservations == fragmentOffsets[nbFragments])
+			return;
+		if (nbFragments + 2 > fragmentOffsets.length)
+			fragmentOffsets = Arrays.copyOf(fragmentOffsets, Math.max(fragmentOffsets.length * 2, nbFragments + 2));
+		nbFragments++;
+		fragmentOffsets[nbFragments] = nbObservations;
+	}
+
+	/**
+	 * Drops the observations added since the last {@link #endFragment()}.
+	 */
+	public void discardFragment()
+	{
+		nbObservations = fragmentOffsets[nbFragments];
+	}
+
+	/**
+	 * Releases the unused capacity once the matrix is loaded.
+	 */
+	public void trimToSize()
+	{
+		features = Arrays.copyOf(features, nbObservations * dimension);
+		cpgDist = Arrays.copyOf(cpgDist, nbObservations);
+		methyPrior = Arrays.copyOf(methyPrior, nbObservations);
+		observed = Arrays.copyOf(observed, nbObservations);
+		coordinates = Arrays.copyOf(coordinates, nbObservations);
+		fragmentOffsets = Arrays.copyOf(fragmentOffsets, nbFragments + 1);
+	}
+
+	/**
+	 * Reorders the observations added without fragments into fragments, for
+	 * loaders that only know the fragment of a row once the whole input is read.
+	 * Row <code>i</code> of the new matrix is the former row
+	 * <code>rows[i]</code>, with distance <code>cpgDist[i]</code>; the other
+	 * rows are dropped. The columns are gathered one at a time.
+	 */
+	public void regroup(int[] rows, int[] cpgDist, int nbRows, int[] fragmentLengths, int nbFragments)
+	{
+		if (this.nbFragments != 0)
+			throw new IllegalStateException("Fragments of the matrix are already built");
+		double[] newFeatures = new double[nbRows * dimension];
+		for (int i = 0; i < nbRows; i++)
+			System.arraycopy(features, rows[i] * dimension, newFeatures, i * dimension, dimension);
+		features = newFeatures;
+		float[] newMethyPrior = new float[nbRows];
+		for (int i = 0; i < nbRows; i++)
+			newMethyPrior[i] = methyPrior[rows[i]];
+		methyPrior = newMethyPrior;
+		byte[] newObserved = new byte[nbRows];
+		for (int i = 0; i < nbRows; i++)
+			newObserved[i] = observed[rows[i]];
+		observed = newObserved;
+		long[] newCoordinates = new long[nbRows];
+		for (int i = 0; i < nbRows; i++)
+			newCoordinates[i] = coordinates[rows[i]];
+		coordinates = newCoordinates;
+		this.cpgDist = Arrays.copyOf(cpgDist, nbRows);
+		fragmentOffsets = new int[nbFragments + 1];
+		for (int f = 0; f < nbFragments; f++)
+			fragmentOffsets[f + 1] = fragmentOffsets[f] + fragmentLengths[f];
+		if (fragmentOffsets[nbFragments] != nbRows)
+			throw new IllegalArgumentException("Fragment lengths do not add up to the number of rows");
+		this.nbObservations = nbRows;
+		this.nbFragments = nbFragments;
+	}
+
+	public int dimension()
+	{
+		return dimension;
+	}
+
+	public int nbFragments()
+	{
+		return nbFragments;
+	}
+
+	public int nbObservations()
+	{
+		return nbObservations;
+	}
+
+	/**
+	 * @return The index of the first observation of fragment <code>f</code>.
+	 */
+	public int offset(int f)
+	{
+		return fragmentOffsets[f];
+	}
+
+	public int length(int f)
+	{
+		return fragmentOffsets[f+1] - fragmentOffsets[f];
+	}
+
+	/**
+	 * Returns the backing feature array (not a copy). Observation <code>n</code>
+	 * occupies <code>features()[n*dimension()]</code> to
+	 * <code>features()[(n+1)*dimension()-1]</code>.
+	 */
+	public double[] features()
+	{
+		return features;
+	}
+
+	public double feature(int n, int d)
+	{
+		return features[n * dimension + d];
+	}
+
+	public int cpgDist(int n)
+	{
+		return cpgDist[n];
+	}
+
+	public double methyPrior(int n)
+	{
+		return methyPrior[n];
+	}
+
+	public byte observed(int n)
+	{
+		return observed[n];
+	}
+
+	public String chr(int n)
+	{
+		return chrs.get((int) (coordinates[n] >>> CHR_SHIFT));
+	}
+
+	public int start(int n)
+	{
+		return (int) ((coordinates[n] >>> START_SHIFT) & START_MASK);
+	}
+
+	public int end(int n)
+	{
+		return start(n) + (int) (coordinates[n] & SPAN_MASK);
+	}
+
+	/**
+	 * Returns the packed coordinate of observation <code>n</code>. Observations
+	 * of the same CpG share the same value, and the values are ordered by
+	 * chromosome (see {@link #chrIndex(String)}), start and end.
+	 */
+	public long coordinate(int n)
+	{
+		return coordinates[n];
+	}
+
+	/**
+	 * Returns the index of chromosome <code>chr</code>, numbering it if it is
+	 * new. Chromosomes are numbered in order of first appearance; registering
+	 * them in the order of the input before adding the fragments makes the
+	 * coordinates follow the input order rather than the fragment order.
+	 */
+	public int chrIndex(String chr)
+	{
+		Integer idx = chrIndex.get(chr);
+		if (idx == null) {
+			idx = chrs.size();
+			// the sign bit stays clear, so the packed coordinates sort by chromosome
+			if (idx > MAX_CHR_INDEX)
+				throw new IllegalArgumentException("Too many chromosomes in the input matrix, at most " + (MAX_CHR_INDEX + 1) + " are supported");
+			chrs.add(chr);
+			chrIndex.put(chr, idx);
+		}
+		return idx;
+	}
+
+	/**
+	 * Builds a new {@link ObservationVector} for observation <code>n</code>, for
+	 * code that still works on the jahmm observation API.
+	 */
+	public ObservationVector observation(int n)
+	{
+		return new ObservationVector(Arrays.copyOfRange(features, n * dimension, (n + 1) * dimension));
+	}
+
+	/**
+	 * Returns the features of all observations with the given observed state,
+	 * packed the same way as {@link #features()}.
+	 */
+	public double[] features(byte observedState)
+	{
+		int n = 0;
+		for (int i = 0; i < nbObservations; i++)
+			if (observed[i] == observedState)
+				n++;
+		double[] subset = new double[n * dimension];
+		n = 0;
+		for (int i = 0; i < nbObservations; i++)
+			if (observed[i] == observedState){
+				System.arraycopy(features, i * dimension, subset, n * dimension, dimension);
+				n++;
+			}
+		return subset;
+	}
+
+	/**
+	 * Converts the fragment list used by the jahmm style API. The coordinates are
+	 * unknown there, and the observed state is {@link #UNKNOWN}.
+	 */
+	public static FragmentMatrix of(List<? extends Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>>> sequences)
+	{
+		int nbObs = 0;
+		for (Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>> sequence : sequences)
+			nbObs += sequence.getSecond().size();
+		int dimension = nbObs == 0 ? 1 : firstObservation(sequences).dimension();
+		FragmentMatrix matrix = new FragmentMatrix(dimension, nbObs, sequences.size());
+		for (Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>> sequence : sequences)
+			matrix.add(sequence);
+		return matrix;
+	}
+
+	public static FragmentMatrix of(Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>> sequence)
+	{
+		if (sequence.getSecond().isEmpty())
+			throw new IllegalArgumentException("Invalid empty sequence");
+		FragmentMatrix matrix = new FragmentMatrix(sequence.getSecond().get(0).dimension(), sequence.getSecond().size(), 1);
+		matrix.add(sequence);
+		return matrix;
+	}
+
+	/**
+	 * Converts back to the fragment list used by the jahmm style API (e.g.
+	 * {@link GMMLearner}).
+	 */
+	public List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> toSequences()
+	{
+		List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>> sequences = new ArrayList<Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>>(nbFragments);
+		for (int f = 0; f < nbFragments; f++) {
+			HashMap<Integer, Pair<Integer, Double>> cpgDistRow = new HashMap<Integer, Pair<Integer, Double>>();
+			List<ObservationVector> row = new ArrayList<ObservationVector>(length(f));
+			for (int t = 0, n = offset(f); t < length(f); t++, n++) {
+				cpgDistRow.put(t, new Pair<Integer, Double>(cpgDist[n], methyPrior(n)));
+				row.add(observation(n));
+			}
+			sequences.add(new Pair<HashMap<Integer, Pair<Integer, Double>>, List<ObservationVector>>(cpgDistRow, row));
+		}
+		return sequences;
+	}
+
+	private void add(Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>> sequence)
+	{
+		HashMap<Integer, Pair<Integer, Double>> cpgDistState = sequence.getFirst();
+		List<? extends ObservationVector> oseq = sequence.getSecond();
+		for (int t = 0; t < oseq.size(); t++) {
+			Pair<Integer, Double> r = cpgDistState.get(t);
+			ensureObservationCapacity(nbObservations + 1);
+			System.arraycopy(oseq.get(t).getPoint(), 0, features, nbObservations * dimension, dimension);
+			cpgDist[nbObservations] = r.getFirst();
+			methyPrior[nbObservations] = r.getSecond().floatValue();
+			observed[nbObservations] = UNKNOWN;
+			nbObservations++;
+		}
+		endFragment();
+	}
+
+	private static ObservationVector firstObservation(List<? extends Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>>> sequences)
+	{
+		for (Pair<HashMap<Integer, Pair<Integer, Double>>, ? extends List<? extends ObservationVector>> sequence : sequences)
+			if (!sequence.getSecond().isEmpty())
+				return sequence.getSecond().get(0);
+		return null;
+	}
+
+	private long packCoordinate(String chr, int start, int end)
+	{
+		if (chr == null)
+			return 0L;
+		if (start < 0 || end - start < 0 || end - start > SPAN_MASK)
+			throw new IllegalArgumentException("CpG coordinate span is out of range: " + chr + ":" + start + "-" + end);
+		return ((long) chrIndex(chr) << CHR_SHIFT) | (((long) start) << START_SHIFT) | (end - start);
+	}
+
+	private void ensureObservationCapacity(int capacity)
+	{
+		if (capacity <= cpgDist.length)
+			return;
+		int newCapacity = Math.max(cpgDist.length + (cpgDist.length >> 1), capacity);
+		features = Arrays.copyOf(features, newCapacity * dimension);
+		cpgDist = Arrays.copyOf(cpgDist, newCapacity);
+		methyPrior = Arrays.copyOf(methyPrior, newCapacity);
+		observed = Arrays.copyOf(observed, newCapacity);
+		coordinates = Arrays.copyOf(coordinates, newCapacity);
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		chrIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < chrs.size(); i++)
+			chrIndex.put(chrs.get(i), i);
+	}
+
+}
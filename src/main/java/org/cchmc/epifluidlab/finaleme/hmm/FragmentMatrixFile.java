@@ -0,0 +1,576 @@
+package org.cchmc.epifluidlab.finaleme.hmm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummaryValues;
+import org.cchmc.epifluidlab.finaleme.utils.TabFieldReader;
+
+
+/**
+ * Binary version of the CpG detail matrix written by CpgMultiMetricsStats, so
+ * that FinaleMe does not need to inflate and split the text file at every run.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header    : magic, version, header size, minFragLen, maxFragLen, nbFragments,
+ *             nbRecords, 3 x feature statistics (n, mean, variance, min, max, sum)
+ * chr names : number of chromosomes, names
+ * chr index : per chromosome block: chromosome, first fragment, number of
+ *             fragments, first record, number of records, mixed flag
+ * fragments : int number of records of each fragment
+ * records   : RECORD_SIZE bytes per CpG, grouped per fragment and sorted by offset
+ * </pre>
+ * The fragment table and the records are memory-mapped, nothing is read in
+ * memory per fragment. The first record of a fragment is found from the first
+ * record of its block, so fragments are best read in order (see
+ * {@link #firstRecord(int)}).
+ * Fragments (rows sharing a read name) are grouped in blocks by the chromosome of
+ * their first CpG. The feature statistics are computed with the same row filter
+ * as FinaleMe (fragment length strictly between minFragLen and maxFragLen, baseQ
+ * above 5, non negative offset, defined methylation prior) without any region
+ * filter. The records keep the raw column values, so every FinaleMe filter could
+ * still be applied when the file is loaded.
+ */
+public class FragmentMatrixFile implements Closeable {
+
+	public static final String EXTENSION = ".fmb";
+	public static final int MAGIC = 0x464D4231; // "FMB1"
+	public static final int VERSION = 1;
+	public static final int RECORD_SIZE = 48;
+	public static final int FEATURES = 3; // FragLen, Norm_Frag_cov, distance to fragment center
+
+	private static final int RECORDS_PER_CHUNK = Integer.MAX_VALUE / RECORD_SIZE;
+	private static final int FRAGMENTS_PER_CHUNK = Integer.MAX_VALUE / 4;
+	// magic, version, header size, minFragLen, maxFragLen, nbFragments, nbRecords and the feature statistics
+	private static final int FIXED_HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 8 + FEATURES * 48;
+	private static final int BLOCK_ENTRY_SIZE = 4 + 4 + 4 + 8 + 8 + 1;
+
+	private final int minFragLen;
+	private final int maxFragLen;
+	private final StatisticalSummary[] stats = new StatisticalSummary[FEATURES];
+	private final String[] chrs;
+	private final int[] blockChr;
+	private final int[] blockFirstFragment;
+	private final int[] blockNbFragments;
+	private final boolean[] blockMixed;
+	private final long[] blockFirstRecord;
+	private final int nbFragments;
+	private final long nbRecords;
+	private final MappedByteBuffer[] lengthChunks;
+	private final MappedByteBuffer[] chunks;
+	private final RandomAccessFile file;
+	// last fragment looked up by firstRecord, and its first record
+	private int cursorFragment = -1;
+	private long cursorRecord = 0;
+
+	/**
+	 * Memory-maps an existing binary matrix file.
+	 */
+	public FragmentMatrixFile(String path) throws IOException
+	{
+		file = new RandomAccessFile(path, "r");
+		FileChannel channel = file.getChannel();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		long headerSize;
+		long tableStart = FIXED_HEADER_SIZE;
+		try{
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("Not a binary fragment matrix file: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported binary fragment matrix version " + version + " in " + path);
+			headerSize = in.readLong();
+			minFragLen = in.readInt();
+			maxFragLen = in.readInt();
+			nbFragments = in.readInt();
+			nbRecords = in.readLong();
+			for (int i = 0; i < FEATURES; i++) {
+				long n = in.readLong();
+				double mean = in.readDouble();
+				double variance = in.readDouble();
+				double min = in.readDouble();
+				double max = in.readDouble();
+				double sum = in.readDouble();
+				stats[i] = new StatisticalSummaryValues(mean, variance, n, max, min, sum);
+			}
+			chrs = new String[in.readInt()];
+			tableStart += 4;
+			for (int i = 0; i < chrs.length; i++) {
+				chrs[i] = in.readUTF();
+				tableStart += utfLength(chrs[i]);
+			}
+			int nbBlocks = in.readInt();
+			tableStart += 4 + (long) nbBlocks * BLOCK_ENTRY_SIZE;
+			blockChr = new int[nbBlocks];
+			blockFirstFragment = new int[nbBlocks];
+			blockNbFragments = new int[nbBlocks];
+			blockMixed = new boolean[nbBlocks];
+			blockFirstRecord = new long[nbBlocks];
+			long nextRecord = 0;
+			int nextFragment = 0;
+			for (int b = 0; b < nbBlocks; b++) {
+				blockChr[b] = in.readInt();
+				blockFirstFragment[b] = in.readInt();
+				blockNbFragments[b] = in.readInt();
+				blockFirstRecord[b] = in.readLong();
+				long blockNbRecords = in.readLong();
+				blockMixed[b] = in.readBoolean();
+				if (blockFirstFragment[b] != nextFragment || blockFirstRecord[b] != nextRecord)
+					throw new IllegalArgumentException("Corrupted chromosome index in binary fragment matrix file: " + path);
+				nextFragment += blockNbFragments[b];
+				nextRecord += blockNbRecords;
+			}
+			if (nextFragment != nbFragments || nextRecord != nbRecords)
+				throw new IllegalArgumentException("Corrupted chromosome index in binary fragment matrix file: " + path);
+		}finally{
+			in.close();
+		}
+		if (tableStart + 4L * nbFragments != headerSize || channel.size() != headerSize + nbRecords * RECORD_SIZE)
+			throw new IllegalArgumentException("Truncated or corrupted binary fragment matrix file: " + path);
+
+		int nbLengthChunks = (int) (((long) nbFragments + FRAGMENTS_PER_CHUNK - 1) / FRAGMENTS_PER_CHUNK);
+		lengthChunks = new MappedByteBuffer[nbLengthChunks];
+		for (int c = 0; c < nbLengthChunks; c++) {
+			long first = (long) c * FRAGMENTS_PER_CHUNK;
+			long size = Math.min(FRAGMENTS_PER_CHUNK, nbFragments - first) * 4;
+			lengthChunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, tableStart + first * 4, size);
+		}
+
+		int nbChunks = (int) ((nbRecords + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK);
+		chunks = new MappedByteBuffer[nbChunks];
+		for (int c = 0; c < nbChunks; c++) {
+			long first = (long) c * RECORDS_PER_CHUNK;
+			long size = Math.min(RECORDS_PER_CHUNK, nbRecords - first) * RECORD_SIZE;
+			chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, headerSize + first * RECORD_SIZE, size);
+		}
+	}
+
+	public static boolean isBinary(String path)
+	{
+		return path.endsWith(EXTENSION);
+	}
+
+	/**
+	 * @return The minimum fragment length used for the header statistics.
+	 */
+	public int minFragLen()
+	{
+		return minFragLen;
+	}
+
+	/**
+	 * @return The maximum fragment length used for the header statistics.
+	 */
+	public int maxFragLen()
+	{
+		return maxFragLen;
+	}
+
+	/**
+	 * @return Summary of feature <code>i</code> (0: FragLen, 1: Norm_Frag_cov,
+	 *         2: distance to the fragment center).
+	 */
+	public StatisticalSummary statistics(int i)
+	{
+		return stats[i];
+	}
+
+	public int nbChrs()
+	{
+		return chrs.length;
+	}
+
+	public String chr(int chrIndex)
+	{
+		return chrs[chrIndex];
+	}
+
+	public int nbBlocks()
+	{
+		return blockChr.length;
+	}
+
+	/**
+	 * @return The chromosome of the first CpG of every fragment in block
+	 *         <code>b</code>.
+	 */
+	public String blockChr(int b)
+	{
+		return chrs[blockChr[b]];
+	}
+
+	public int blockFirstFragment(int b)
+	{
+		return blockFirstFragment[b];
+	}
+
+	public int blockNbFragments(int b)
+	{
+		return blockNbFragments[b];
+	}
+
+	/**
+	 * @return <code>true</code> if some fragments of block <code>b</code> also
+	 *         have CpGs on other chromosomes.
+	 */
+	public boolean blockMixed(int b)
+	{
+		return blockMixed[b];
+	}
+
+	public int nbFragments()
+	{
+		return nbFragments;
+	}
+
+	public long nbRecords()
+	{
+		return nbRecords;
+	}
+
+	/**
+	 * Sums the lengths of the fragments before <code>fragment</code> from the
+	 * last fragment looked up, or from the first fragment of its block. Reading
+	 * the fragments in order costs one step per fragment. Not thread safe.
+	 */
+	public long firstRecord(int fragment)
+	{
+		if (cursorFragment < 0 || fragment < cursorFragment || fragment - cursorFragment > fragment - blockFirstFragment[block(fragment)]) {
+			int b = block(fragment);
+			cursorFragment = blockFirstFragment[b];
+			cursorRecord = blockFirstRecord[b];
+		}
+		for (; cursorFragment < fragment; cursorFragment++)
+			cursorRecord += length(cursorFragment);
+		return cursorRecord;
+	}
+
+	public int length(int fragment)
+	{
+		return lengthChunks[fragment / FRAGMENTS_PER_CHUNK].getInt((fragment % FRAGMENTS_PER_CHUNK) * 4);
+	}
+
+	// block of a fragment, blocks hold consecutive fragments
+	private int block(int fragment)
+	{
+		int lo = 0;
+		int hi = blockFirstFragment.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (blockFirstFragment[mid] <= fragment)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	public int start(long r)
+	{
+		return chunk(r).getInt(position(r));
+	}
+
+	public int end(long r)
+	{
+		return chunk(r).getInt(position(r) + 4);
+	}
+
+	public int fragLen(long r)
+	{
+		return chunk(r).getInt(position(r) + 8);
+	}
+
+	public int offset(long r)
+	{
+		return chunk(r).getInt(position(r) + 12);
+	}
+
+	public double cov(long r)
+	{
+		return chunk(r).getDouble(position(r) + 16);
+	}
+
+	public double distFragEnd(long r)
+	{
+		return chunk(r).getDouble(position(r) + 24);
+	}
+
+	/**
+	 * @return The methylation prior as written in the text matrix (percentage).
+	 */
+	public double methyPrior(long r)
+	{
+		return chunk(r).getDouble(position(r) + 32);
+	}
+
+	public float baseQ(long r)
+	{
+		return chunk(r).getFloat(position(r) + 40);
+	}
+
+	/**
+	 * @return One of {@link FragmentMatrix#UNMETHYLATED},
+	 *         {@link FragmentMatrix#METHYLATED} or {@link FragmentMatrix#UNKNOWN}.
+	 */
+	public byte observed(long r)
+	{
+		return chunk(r).get(position(r) + 44);
+	}
+
+	public char strand(long r)
+	{
+		return (char) chunk(r).get(position(r) + 45);
+	}
+
+	public int chrIndex(long r)
+	{
+		return chunk(r).getShort(position(r) + 46) & 0xFFFF;
+	}
+
+	public String chrName(long r)
+	{
+		return chrs[chrIndex(r)];
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	private ByteBuffer chunk(long r)
+	{
+		return chunks[(int) (r / RECORDS_PER_CHUNK)];
+	}
+
+	private static int position(long r)
+	{
+		return (int) (r % RECORDS_PER_CHUNK) * RECORD_SIZE;
+	}
+
+	// bytes written by DataOutputStream.writeUTF
+	private static int utfLength(String s)
+	{
+		int length = 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				length++;
+			else if (c > 0x07FF)
+				length += 3;
+			else
+				length += 2;
+		}
+		return length;
+	}
+
+	public static byte observedState(String methyStat)
+	{
+		if (methyStat.equalsIgnoreCase("u"))
+			return FragmentMatrix.UNMETHYLATED;
+		else if (methyStat.equalsIgnoreCase("m"))
+			return FragmentMatrix.METHYLATED;
+		else
+			return FragmentMatrix.UNKNOWN;
+	}
+
+	public static byte observedState(TabFieldReader fields, int column)
+	{
+		if (fields.fieldEqualsIgnoreCase(column, "u"))
+			return FragmentMatrix.UNMETHYLATED;
+		else if (fields.fieldEqualsIgnoreCase(column, "m"))
+			return FragmentMatrix.METHYLATED;
+		else
+			return FragmentMatrix.UNKNOWN;
+	}
+
+
+	/**
+	 * Writes a binary matrix file. Fragments have to be added chromosome block by
+	 * chromosome block, each one with its records sorted by offset. The fragment
+	 * lengths and the records are spooled to temporary files next to the output,
+	 * and {@link #close()} writes the header, whose size is known from the
+	 * counts, in front of them.
+	 */
+	public static class Writer implements Closeable {
+
+		private final File output;
+		private final File spool;
+		private final DataOutputStream records;
+		private final File lengthSpool;
+		private final DataOutputStream lengths;
+		private final int minFragLen;
+		private final int maxFragLen;
+		private final StatisticalSummary[] stats;
+		private final ArrayList<String> chrs = new ArrayList<String>();
+		private final HashMap<String, Integer> chrIndex = new HashMap<String, Integer>();
+		private final ArrayList<int[]> blocks = new ArrayList<int[]>(); // chr, first fragment, number of fragments
+		private final ArrayList<Long> blockFirstRecord = new ArrayList<Long>();
+		private final ArrayList<Boolean> blockMixed = new ArrayList<Boolean>();
+		private int nbFragments = 0;
+		private int currentLength = 0;
+		private long nbRecords = 0;
+
+		public Writer(String path, int minFragLen, int maxFragLen, StatisticalSummary[] stats) throws IOException
+		{
+			if (stats.length != FEATURES)
+				throw new IllegalArgumentException("Expect statistics of " + FEATURES + " features");
+			this.output = new File(path);
+			this.spool = new File(path + ".records.tmp");
+			this.records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 1 << 20));
+			this.lengthSpool = new File(path + ".lengths.tmp");
+			this.lengths = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lengthSpool), 1 << 20));
+			this.minFragLen = minFragLen;
+			this.maxFragLen = maxFragLen;
+			this.stats = stats;
+		}
+
+		/**
+		 * Starts the block of fragments whose first CpG is on <code>chr</code>.
+		 */
+		public void startBlock(String chr)
+		{
+			if (currentLength != 0)
+				throw new IllegalStateException("Previous fragment is not ended");
+			int idx = chrIndex(chr);
+			for (int[] block : blocks)
+				if (block[0] == idx)
+					throw new IllegalArgumentException("Chromosome block " + chr + " is written twice");
+			blocks.add(new int[]{idx, nbFragments, 0});
+			blockFirstRecord.add(nbRecords);
+			blockMixed.add(false);
+		}
+
+		public void addRecord(String chr, int start, int end, int fragLen, int offset, double cov, double distFragEnd,
+				double methyPrior, float baseQ, byte observed, char strand) throws IOException
+		{
+			if (blocks.isEmpty())
+				throw new IllegalStateException("No chromosome block is started");
+			int idx = chrIndex(chr);
+			int block = blocks.size() - 1;
+			if (idx != blocks.get(block)[0])
+				blockMixed.set(block, true);
+			records.writeInt(start);
+			records.writeInt(end);
+			records.writeInt(fragLen);
+			records.writeInt(offset);
+			records.writeDouble(cov);
+			records.writeDouble(distFragEnd);
+			records.writeDouble(methyPrior);
+			records.writeFloat(baseQ);
+			records.writeByte(observed);
+			records.writeByte(strand);
+			records.writeShort(idx);
+			currentLength++;
+			nbRecords++;
+		}
+
+		public void endFragment() throws IOException
+		{
+			if (currentLength == 0)
+				return;
+			if (nbFragments == Integer.MAX_VALUE)
+				throw new IllegalStateException("Too many fragments for a binary matrix: " + nbFragments);
+			lengths.writeInt(currentLength);
+			nbFragments++;
+			blocks.get(blocks.size() - 1)[2]++;
+			currentLength = 0;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			endFragment();
+			records.close();
+			lengths.close();
+			long headerSize = FIXED_HEADER_SIZE + 4 + 4 + (long) blocks.size() * BLOCK_ENTRY_SIZE + 4L * nbFragments;
+			for (String chr : chrs)
+				headerSize += utfLength(chr);
+
+			DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 20));
+			try{
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				header.writeLong(headerSize);
+				header.writeInt(minFragLen);
+				header.writeInt(maxFragLen);
+				header.writeInt(nbFragments);
+				header.writeLong(nbRecords);
+				for (StatisticalSummary stat : stats) {
+					header.writeLong(stat.getN());
+					header.writeDouble(stat.getMean());
+					header.writeDouble(stat.getVariance());
+					header.writeDouble(stat.getMin());
+					header.writeDouble(stat.getMax());
+					header.writeDouble(stat.getSum());
+				}
+				header.writeInt(chrs.size());
+				for (String chr : chrs)
+					header.writeUTF(chr);
+				header.writeInt(blocks.size());
+				for (int b = 0; b < blocks.size(); b++) {
+					int[] block = blocks.get(b);
+					long firstRecord = blockFirstRecord.get(b);
+					long lastRecord = b + 1 < blocks.size() ? blockFirstRecord.get(b + 1) : nbRecords;
+					header.writeInt(block[0]);
+					header.writeInt(block[1]);
+					header.writeInt(block[2]);
+					header.writeLong(firstRecord);
+					header.writeLong(lastRecord - firstRecord);
+					header.writeBoolean(blockMixed.get(b));
+				}
+				if (header.size() + lengthSpool.length() != headerSize)
+					throw new IllegalStateException("Header of " + output + " is " + (header.size() + lengthSpool.length()) + " bytes instead of " + headerSize);
+				copy(lengthSpool, header);
+				copy(spool, header);
+			}finally{
+				header.close();
+				lengthSpool.delete();
+				spool.delete();
+			}
+		}
+
+		private static void copy(File file, OutputStream out) throws IOException
+		{
+			FileInputStream in = new FileInputStream(file);
+			try{
+				byte[] buf = new byte[1 << 20];
+				int n;
+				while ((n = in.read(buf)) > 0)
+					out.write(buf, 0, n);
+			}finally{
+				in.close();
+			}
+		}
+
+		private int chrIndex(String chr)
+		{
+			Integer idx = chrIndex.get(chr);
+			if (idx == null) {
+				idx = chrs.size();
+				if (idx > 0xFFFF)
+					throw new IllegalArgumentException("Too many chromosomes in the input matrix");
+				chrs.add(chr);
+				chrIndex.put(chr, idx);
+			}
+			return idx;
+		}
+	}
+
+}
@@ -23,15 +23,23 @@ public class KullbackLeiblerDistanceBayesianNhmmV5Calculator<O extends Observati
 	private int sequencesLength = 10;
 	private int nbSequences = 10000;
 	//private ArrayList<Pair<Integer, Double>> cpgDistFreq; //maybe just fit cpg distance distribution with gaussian/poisson mixture model for the simplicity first?
-	private List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>>> matrix;
+	private FragmentMatrix matrix;
 	private MersenneTwister randomEngine;
 	public KullbackLeiblerDistanceBayesianNhmmV5Calculator(List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>>> matrix, MersenneTwister randomEngine){ //cpg distance is a poisson distribution
+		this(FragmentMatrix.of((List) matrix), randomEngine);
+	}
+	
+	public KullbackLeiblerDistanceBayesianNhmmV5Calculator(List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>>> matrix){ //cpg distance is a poisson distribution
+		this(FragmentMatrix.of((List) matrix));
+	}
+	
+	public KullbackLeiblerDistanceBayesianNhmmV5Calculator(FragmentMatrix matrix, MersenneTwister randomEngine){
 		this.matrix = matrix;
 		this.randomEngine = randomEngine;
-		this.nbSequences = Math.max(this.nbSequences, matrix.size()/100);
+		this.nbSequences = Math.max(this.nbSequences, matrix.nbFragments()/100);
 	}
 	
-	public KullbackLeiblerDistanceBayesianNhmmV5Calculator(List<Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>>> matrix){ //cpg distance is a poisson distribution
+	public KullbackLeiblerDistanceBayesianNhmmV5Calculator(FragmentMatrix matrix){
 		this.matrix = matrix;
 	}
 	
@@ -54,21 +62,13 @@ public class KullbackLeiblerDistanceBayesianNhmmV5Calculator<O extends Observati
 		for (int i = 0; i < nbSequences; i++) {
 			//Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair = new BayesianNhmmV5MarkovGenerator<O>(hmm1, cpgDistFreq).
 			//observationSequence(sequencesLength);
-			Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair = matrix.get(randomEngine.nextInt(matrix.size()));
-			while(oseqPair.getSecond().size()<sequencesLength){
-				oseqPair = matrix.get(randomEngine.nextInt(matrix.size()));
+			int f = randomEngine.nextInt(matrix.nbFragments());
+			while(matrix.length(f)<sequencesLength){
+				f = randomEngine.nextInt(matrix.nbFragments());
 			}
-			//for(int s = 0; s < oseqPair.getSecond().size(); s++){
-			//	System.err.print(oseqPair.getSecond().get(s));
-			//}
-			//System.err.println();
-			//for(int s = 0; s < oseqPair.getSecond().size(); s++){
-			//	System.err.print(oseqPair.getFirst().get(s) + "\t");
-			//}
-			//System.err.println();
-			double prob1 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(oseqPair, hmm1).
+			double prob1 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(matrix, f, hmm1).
 					lnProbability();
-			double prob2 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(oseqPair, hmm2).
+			double prob2 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(matrix, f, hmm2).
 					lnProbability();
 			//if(Double.isNaN(prob1) || Double.isNaN(prob2) || Double.isInfinite(prob1) || Double.isInfinite(prob2)){
 			//	i--;
@@ -79,7 +79,7 @@ public class KullbackLeiblerDistanceBayesianNhmmV5Calculator<O extends Observati
 			//	}
 			//	continue;
 			//}else{
-				distance +=  (prob1 - prob2) / oseqPair.getSecond().size();
+				distance +=  (prob1 - prob2) / matrix.length(f);
 			//	tried = 0;
 			//}
 			
@@ -101,18 +101,16 @@ public class KullbackLeiblerDistanceBayesianNhmmV5Calculator<O extends Observati
 	{			
 		double distance = 0.;
 		long num = 0;
-		for (Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair : matrix) {
-			//Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair = new BayesianNhmmV5MarkovGenerator<O>(hmm1, cpgDistFreq).
-			//observationSequence(sequencesLength);
-			if(oseqPair.getSecond().size()<sequencesLength){
+		for (int f = 0; f < matrix.nbFragments(); f++) {
+			if(matrix.length(f)<sequencesLength){
 				continue;
 			}
 			
-			double prob1 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(oseqPair, hmm1).
+			double prob1 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(matrix, f, hmm1).
 					lnProbability();
-			double prob2 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(oseqPair, hmm2).
+			double prob2 = new ForwardBackwardBayesianNhmmV5ScaledCalculator(matrix, f, hmm2).
 					lnProbability();
-			distance +=  (prob1 - prob2) / oseqPair.getSecond().size();
+			distance +=  (prob1 - prob2) / matrix.length(f);
 			num++;
 		}
 		
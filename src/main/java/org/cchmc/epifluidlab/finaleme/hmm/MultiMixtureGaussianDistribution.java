@@ -42,6 +42,12 @@ implements MultiRandomDistribution
 	private ArrayList<ArrayList<Double>> varianceInEachGaussian;
 	private ArrayList<ArrayList<Double>> propInEachGaussian;
 	private ArrayList<ArrayList<GaussianDistribution>> GaussianDistributions;
+	/* flat copies of the mixtures used by probability(), the components of feature i are componentStart[i] to componentStart[i+1]-1 */
+	private transient int[] componentStart;
+	private transient double[] componentMean;
+	private transient double[] componentVariance;
+	private transient double[] componentNorm; // (2*pi*variance)^-0.5
+	private transient double[] componentProp;
 	final private double[] mean;
 	final private double[][] covariance;
 	private double[][] covarianceL = null; // covariance' Cholesky decomposition
@@ -88,7 +94,7 @@ implements MultiRandomDistribution
 			}
 			this.GaussianDistributions.add(GaussianDistributionsTmp);
 		}
-		
+		buildComponents();
 	}
 	
 	
@@ -142,8 +148,7 @@ implements MultiRandomDistribution
 			this.propInEachGaussian.add(propInEachGaussianTmp);
 			this.GaussianDistributions.add(GaussianDistributionsTmp);
 		}
-		
-	
+		buildComponents();
 	}
 	
 	
@@ -194,10 +199,64 @@ implements MultiRandomDistribution
 			this.propInEachGaussian.add(propInEachGaussianTmp);
 			this.GaussianDistributions.add(GaussianDistributionsTmp);
 		}
-		
+		buildComponents();
+	}
+	
+	/* copies the mixtures into the primitive arrays read by probability() */
+	private void buildComponents()
+	{
+		componentStart = new int[dimension + 1];
+		for (int i = 0; i < dimension; i++)
+			componentStart[i + 1] = componentStart[i] + GaussianDistributions.get(i).size();
+		int nbComponents = componentStart[dimension];
+		componentMean = new double[nbComponents];
+		componentVariance = new double[nbComponents];
+		componentNorm = new double[nbComponents];
+		componentProp = new double[nbComponents];
+		for (int i = 0; i < dimension; i++){
+			for (int j = 0; j < GaussianDistributions.get(i).size(); j++){
+				GaussianDistribution gaussian = GaussianDistributions.get(i).get(j);
+				int c = componentStart[i] + j;
+				componentMean[c] = gaussian.mean();
+				componentVariance[c] = gaussian.variance();
+				componentNorm[c] = Math.pow(2. * Math.PI * gaussian.variance(), -.5);
+				componentProp[c] = propInEachGaussian.get(i).get(j);
+			}
+		}
+	}
+	
+	
+	private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		buildComponents();
+	}
+	
+	
+	/* index of the first mixture component of feature i in the component arrays */
+	int componentStart(int i)
+	{
+		return componentStart[i];
+	}
+	
+	int nbComponents()
+	{
+		return componentStart[dimension];
+	}
+	
+	double componentMean(int c)
+	{
+		return componentMean[c];
+	}
 	
+	/* weight times density of mixture component c at value */
+	double componentProbability(int c, double value)
+	{
+		double vmm = value - componentMean[c];
+		return componentProp[c] * (componentNorm[c] * Math.exp(-.5 * vmm * vmm / componentVariance[c]));
 	}
 	
+	
 	public int dimension()
 	{
 		return dimension;
@@ -340,17 +399,35 @@ implements MultiRandomDistribution
 			throw new IllegalArgumentException("Argument array size is not " +
 					"compatible with this distribution");
 		
+		return probability(v, 0);
+	}
+	
+	/**
+	 * Same as {@link #probability(double[])} for the vector stored in
+	 * <code>v[offset]</code> to <code>v[offset+dimension()-1]</code>.
+	 */
+	public double probability(double[] v, int offset)
+	{
+		return Math.exp(logProbability(v, offset));
+	}
+	
+	/**
+	 * Returns the logarithm of {@link #probability(double[], int)}, without
+	 * the exp/log round trip.
+	 */
+	public double logProbability(double[] v, int offset)
+	{
 		double sumAll = 1.;
 		
-		for (int i = 0; i < GaussianDistributions.size(); i++){
-			ArrayList<GaussianDistribution> GaussianDistributionsTmp = GaussianDistributions.get(i);
-			double value = v[i];
+		for (int i = 0; i < dimension; i++){
+			double value = v[offset + i];
 			double sum = 0.;
-			ArrayList<Double> propInEachGaussianTmp = propInEachGaussian.get(i);
-			for (int j = 0; j < GaussianDistributionsTmp.size(); j++){
-				sum += GaussianDistributionsTmp.get(j).probability(value) * propInEachGaussianTmp.get(j);
+			for (int c = componentStart[i]; c < componentStart[i + 1]; c++){
+				double vmm = value - componentMean[c];
+				//same operation order as GaussianDistribution.probability()
+				sum += componentNorm[c] * Math.exp(-.5 * vmm * vmm / componentVariance[c]) * componentProp[c];
 				if(Double.isNaN(sum)){
-					System.err.println(GaussianDistributionsTmp.get(j).mean() + "\t" + GaussianDistributionsTmp.get(j).variance() + "\t" + GaussianDistributionsTmp.get(j).probability(value) + "\t" + propInEachGaussianTmp.get(j));
+					System.err.println(componentMean[c] + "\t" + componentVariance[c] + "\t" + componentNorm[c] * Math.exp(-.5 * vmm * vmm / componentVariance[c]) + "\t" + componentProp[c]);
 					System.err.println("Need to reduce the number of mixture in feature " + (i+1));
 					System.exit(1);
 				}
@@ -363,9 +440,8 @@ implements MultiRandomDistribution
 			//}
 			
 		}
-			
 		
-		return Math.exp(sumAll);
+		return sumAll;
 	}
 	/*
 	public double probability(double[] v, double bayesianFactor)
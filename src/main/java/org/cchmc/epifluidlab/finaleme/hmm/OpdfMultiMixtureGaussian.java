@@ -123,7 +123,24 @@ implements Opdf<ObservationVector>
 			throw new IllegalArgumentException("Vector has a wrong " +
 			"dimension");
 		
-		return distribution.probability(o.values());
+		return distribution.probability(o.getPoint(), 0);
+	}
+	
+	/**
+	 * Returns the probability of the vector stored in <code>features[offset]</code>
+	 * to <code>features[offset+dimension()-1]</code>.
+	 */
+	public double probability(double[] features, int offset)
+	{
+		return distribution.probability(features, offset);
+	}
+	
+	/**
+	 * Returns the logarithm of {@link #probability(double[], int)}.
+	 */
+	public double logProbability(double[] features, int offset)
+	{
+		return distribution.logProbability(features, offset);
 	}
 	
 	/*
@@ -160,6 +177,23 @@ implements Opdf<ObservationVector>
 	}
 	
 	
+	/**
+	 * Fits the distribution with equal weights on vectors packed in one array,
+	 * laid out as in {@link #fit(double[], double[])}.
+	 */
+	public void fit(double[] features)
+	{
+		int n = features.length / dimension();
+		if (n == 0)
+			throw new IllegalArgumentException("Empty observation set");
+		
+		double[] weights = new double[n];
+		Arrays.fill(weights, 1. / n);
+		
+		fit(features, weights);
+	}
+	
+	
 	public void fit(ObservationVector[] o, double[] weights)
 	{
 		fit(Arrays.asList(o), weights);
@@ -171,32 +205,53 @@ implements Opdf<ObservationVector>
 		if (co.isEmpty() || co.size() != weights.length)
 			throw new IllegalArgumentException();
 		
-		double[] mean = new double[dimension()];
-		double[] variance = new double[dimension()];
+		double[] features = new double[co.size() * dimension()];
+		int i = 0;
+		for (ObservationVector o : co) {
+			if (o.dimension() != dimension())
+				throw new IllegalArgumentException("Vector has a wrong " +
+				"dimension");
+			System.arraycopy(o.getPoint(), 0, features, i * dimension(), dimension());
+			i++;
+		}
+		fit(features, weights);
+	}
+	
+	/**
+	 * Fits the distribution on vectors packed in one array, vector <code>n</code>
+	 * being <code>features[n*dimension()]</code> to
+	 * <code>features[(n+1)*dimension()-1]</code>.
+	 */
+	public void fit(double[] features, double[] weights)
+	{
+		int dimension = dimension();
+		int n = weights.length;
+		if (n == 0 || features.length < n * dimension)
+			throw new IllegalArgumentException();
 		
-		ObservationVector[] allO = co.toArray(new ObservationVector[co.size()]);
+		double[] mean = new double[dimension];
+		double[] variance = new double[dimension];
 		
 		ArrayList<ArrayList<Double>> meanInEachGaussian = new ArrayList<ArrayList<Double>>();
 		ArrayList<ArrayList<Double>> varianceInEachGaussian = new ArrayList<ArrayList<Double>>();
 		ArrayList<ArrayList<Double>> propInEachGaussian = new ArrayList<ArrayList<Double>>();
 		
 		ArrayList<Integer> mixtureNumber = mixtureNumber();
-		for(int z = 0; z < dimension(); z++){
+		for(int z = 0; z < dimension; z++){
 			ArrayList<Double> meanInEachGaussianTmp = new ArrayList<Double>();
 			ArrayList<Double> varianceInEachGaussianTmp = new ArrayList<Double>();
 			ArrayList<Double> propInEachGaussianTmp = new ArrayList<Double>();
 			
 			
 			if(mixtureNumber.get(z) == 1){
-				int i = 0;
-				for (ObservationVector o : co){
-					mean[z] += o.values()[z] * weights[i++];
+				for (int i = 0; i < n; i++){
+					mean[z] += features[i * dimension + z] * weights[i];
 				}
 				
 				
-				i = 0;
-				for (ObservationVector o : co){
-					variance[z] += (o.values()[z]-mean[z])*(o.values()[z]-mean[z]) * weights[i++];
+				for (int i = 0; i < n; i++){
+					double omm = features[i * dimension + z]-mean[z];
+					variance[z] += omm*omm * weights[i];
 				}
 				meanInEachGaussianTmp.add(mean[z]);
 				varianceInEachGaussianTmp.add(variance[z]);
@@ -204,9 +259,9 @@ implements Opdf<ObservationVector>
 				
 			}else{
 				
-				double[] o = new double[co.size()];
-				for (int i = 0; i < co.size(); i++){
-					o[i] = allO[i].value(z);
+				double[] o = new double[n];
+				for (int i = 0; i < n; i++){
+					o[i] = features[i * dimension + z];
 				}
 				double[][] delta = getDelta(o, z);
 				//System.err.println(o[0] + "\t" + delta[0][0]);
@@ -228,30 +283,212 @@ implements Opdf<ObservationVector>
 			propInEachGaussian.add(propInEachGaussianTmp);
 		}
 		
-		double[][] covariance = new double[dimension()][dimension()];
-		int i = 0;
-		for (ObservationVector o : co) {
-			double[] obs = o.values();
-			double[] omm = new double[obs.length];
-			
-			for (int j = 0; j < obs.length; j++)
-				omm[j] = obs[j] - mean[j];
+		double[][] covariance = new double[dimension][dimension];
+		double[] omm = new double[dimension];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < dimension; j++)
+				omm[j] = features[i * dimension + j] - mean[j];
 			
-			for (int r = 0; r < dimension(); r++){
-				for (int c = 0; c < dimension(); c++){
+			for (int r = 0; r < dimension; r++){
+				for (int c = 0; c < dimension; c++){
 					covariance[r][c] += omm[r] * omm[c] * weights[i];
 					
 				}
 					
 			}
-				
+		}
+		distribution =  new MultiMixtureGaussianDistribution(mean, covariance, mixtureNumber, meanInEachGaussian, varianceInEachGaussian, propInEachGaussian);
+		
+	}
+	
+	/**
+	 * Fits the distribution from weighted sums accumulated by a
+	 * {@link Statistics} created on this distribution. It gives the same
+	 * estimates as {@link #fit(double[], double[])} on the same vectors and
+	 * weights, without keeping the vectors.
+	 */
+	public void fit(Statistics statistics)
+	{
+		if (statistics.distribution != distribution)
+			throw new IllegalArgumentException("Statistics are not computed " +
+					"on this distribution");
+		if (!(statistics.weight > 0.))
+			throw new IllegalArgumentException("Empty observation set");
+		
+		int dimension = dimension();
+		double w = statistics.weight;
+		double[] mean = new double[dimension];
+		double[] variance = new double[dimension];
+		double[] center = distribution.mean();
+		
+		ArrayList<ArrayList<Double>> meanInEachGaussian = new ArrayList<ArrayList<Double>>();
+		ArrayList<ArrayList<Double>> varianceInEachGaussian = new ArrayList<ArrayList<Double>>();
+		ArrayList<ArrayList<Double>> propInEachGaussian = new ArrayList<ArrayList<Double>>();
+		
+		ArrayList<Integer> mixtureNumber = mixtureNumber();
+		for(int z = 0; z < dimension; z++){
+			ArrayList<Double> meanInEachGaussianTmp = new ArrayList<Double>();
+			ArrayList<Double> varianceInEachGaussianTmp = new ArrayList<Double>();
+			ArrayList<Double> propInEachGaussianTmp = new ArrayList<Double>();
+			int first = distribution.componentStart(z);
 			
-			i++;
+			if(mixtureNumber.get(z) == 1){
+				double shift = statistics.s1[first] / w;
+				mean[z] = distribution.componentMean(first) + shift;
+				variance[z] = statistics.s2[first] / w - shift * shift;
+				meanInEachGaussianTmp.add(mean[z]);
+				varianceInEachGaussianTmp.add(variance[z]);
+				propInEachGaussianTmp.add(1.0);
+			}else{
+				//same as computeNewMixingProportions(), computeNewMeans() and computeNewVariances() with the weights normalized to 1
+				double[] num = new double[mixtureNumber.get(z)];
+				double sum = 0.;
+				for(int j = 0; j < num.length; j++){
+					num[j] = statistics.s0[first + j] / w;
+					sum += num[j];
+					if(Double.compare(num[j], 0.0) == 0){
+						num[j] += 0.0001;
+						sum += 0.0001;
+					}
+				}
+				for(int j = 0; j < num.length; j++){
+					int c = first + j;
+					double newMixingProportion = num[j] / sum;
+					double newMean = distribution.componentMean(c) + statistics.s1[c] / statistics.s0[c];
+					double newVariance = statistics.s2[c] / statistics.s0[c];
+					mean[z] += newMixingProportion * newMean;
+					variance[z] += newMixingProportion * newVariance;
+					meanInEachGaussianTmp.add(newMean);
+					varianceInEachGaussianTmp.add(newVariance);
+					propInEachGaussianTmp.add(newMixingProportion);
+				}
+			}
+			meanInEachGaussian.add(meanInEachGaussianTmp);
+			varianceInEachGaussian.add(varianceInEachGaussianTmp);
+			propInEachGaussian.add(propInEachGaussianTmp);
+		}
+		
+		//second moments around the old mean, moved to the new mean
+		double[][] covariance = new double[dimension][dimension];
+		for (int r = 0; r < dimension; r++){
+			double dr = mean[r] - center[r];
+			double er = statistics.f1[r] / w;
+			for (int c = 0; c < dimension; c++){
+				double dc = mean[c] - center[c];
+				double ec = statistics.f1[c] / w;
+				covariance[r][c] = statistics.f2[r * dimension + c] / w - dr * ec - er * dc + dr * dc;
+			}
 		}
 		distribution =  new MultiMixtureGaussianDistribution(mean, covariance, mixtureNumber, meanInEachGaussian, varianceInEachGaussian, propInEachGaussian);
+	}
+	
+	
+	/**
+	 * Creates empty sufficient statistics for one re-estimation of this
+	 * distribution by {@link #fit(Statistics)}.
+	 */
+	public Statistics newStatistics()
+	{
+		return new Statistics(distribution);
+	}
+	
+	
+	/**
+	 * Weighted sums over the observations needed to re-estimate the
+	 * distribution: for each mixture component c of feature z, with
+	 * <code>delta</code> the posterior of the component and <code>mu</code> its
+	 * current mean, sum(w*delta), sum(w*delta*(o-mu)) and sum(w*delta*(o-mu)^2),
+	 * plus the first and cross second moments of the vectors around the current
+	 * mean. The moments are centered for numerical stability.
+	 */
+	public static class Statistics
+	{
+		private final MultiMixtureGaussianDistribution distribution;
+		private final double[] center;
+		private double weight = 0.;
+		private final double[] s0;
+		private final double[] s1;
+		private final double[] s2;
+		private final double[] f1;
+		private final double[] f2;
+		private final double[] omm;
 		
+		private Statistics(MultiMixtureGaussianDistribution distribution)
+		{
+			this.distribution = distribution;
+			int dimension = distribution.dimension();
+			center = distribution.mean();
+			s0 = new double[distribution.nbComponents()];
+			s1 = new double[s0.length];
+			s2 = new double[s0.length];
+			f1 = new double[dimension];
+			f2 = new double[dimension * dimension];
+			omm = new double[dimension];
+		}
+		
+		/**
+		 * Adds the vector <code>features[offset]</code> to
+		 * <code>features[offset+dimension-1]</code> with weight <code>w</code>.
+		 */
+		public void add(double[] features, int offset, double w)
+		{
+			int dimension = f1.length;
+			weight += w;
+			for (int z = 0; z < dimension; z++){
+				double value = features[offset + z];
+				int first = distribution.componentStart(z);
+				int last = distribution.componentStart(z + 1);
+				if (last - first == 1){
+					double vmm = value - distribution.componentMean(first);
+					s0[first] += w;
+					s1[first] += w * vmm;
+					s2[first] += w * vmm * vmm;
+				}else{
+					double total = 0.;
+					for (int c = first; c < last; c++)
+						total += distribution.componentProbability(c, value);
+					for (int c = first; c < last; c++){
+						double delta = distribution.componentProbability(c, value) / total;
+						if (Double.isNaN(delta))
+							delta = 0.0;
+						double vmm = value - distribution.componentMean(c);
+						s0[c] += w * delta;
+						s1[c] += w * delta * vmm;
+						s2[c] += w * delta * vmm * vmm;
+					}
+				}
+				omm[z] = value - center[z];
+				f1[z] += w * omm[z];
+			}
+			for (int r = 0; r < dimension; r++)
+				for (int c = 0; c < dimension; c++)
+					f2[r * dimension + c] += w * omm[r] * omm[c];
+		}
+		
+		/**
+		 * Adds sums computed on other vectors for the same distribution.
+		 */
+		public void add(Statistics o)
+		{
+			weight += o.weight;
+			for (int c = 0; c < s0.length; c++){
+				s0[c] += o.s0[c];
+				s1[c] += o.s1[c];
+				s2[c] += o.s2[c];
+			}
+			for (int z = 0; z < f1.length; z++)
+				f1[z] += o.f1[z];
+			for (int k = 0; k < f2.length; k++)
+				f2[k] += o.f2[k];
+		}
+		
+		public double weight()
+		{
+			return weight;
+		}
 	}
 	
+	
 	private double[][] getDelta(double[] o, int z)
 	{
 		double[][] delta = new double[distribution.nbGaussians(z)][o.length];
@@ -7,7 +7,6 @@
 package org.cchmc.epifluidlab.finaleme.hmm;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.math3.util.Pair;
@@ -26,6 +25,8 @@ public class ViterbiBayesianNhmmV5Calculator {
 	private double[][] delta; 
 	private double[][] deltaWithMethyPrior; 
 	private int[][] psy;
+	/* emission[t][i] = opdf probability of the t-th observation in state i */
+	private double[][] emission;
 	private int[] stateSequence;
 	private double lnProbability;
 	private double lnProbabilityWithMethyPrior;
@@ -43,192 +44,110 @@ public class ViterbiBayesianNhmmV5Calculator {
 	public <O extends Observation> 
 	ViterbiBayesianNhmmV5Calculator(Pair<HashMap<Integer, Pair<Integer, Double>>, List<O>> oseqPair, BayesianNhmmV5<O> hmm, int methylatedState, double pCriteria)
 	{
-		List<? extends O> oseq = oseqPair.getSecond();
-		HashMap<Integer, Pair<Integer, Double>> cpgDistState = oseqPair.getFirst();
-		if (oseq.isEmpty())
+		this(FragmentMatrix.of((Pair) oseqPair), 0, hmm, methylatedState, pCriteria);
+	}
+	
+	
+	/**
+	 * Computes the most likely state sequence of fragment <code>fragment</code>
+	 * of <code>matrix</code> given an HMM.
+	 *
+	 * @param matrix The fragments.
+	 * @param fragment The index of the fragment in <code>matrix</code>.
+	 * @param hmm A Hidden Markov Model;
+	 */
+	public ViterbiBayesianNhmmV5Calculator(FragmentMatrix matrix, int fragment, BayesianNhmmV5<?> hmm, int methylatedState, double pCriteria)
+	{
+		this(matrix, fragment, hmm, methylatedState, pCriteria, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #ViterbiBayesianNhmmV5Calculator(FragmentMatrix, int, BayesianNhmmV5, int, double)}
+	 * reusing <code>emission</code> as the buffer of the opdf probabilities
+	 * (see {@link BayesianNhmmV5#getOpdfProbs(FragmentMatrix, int, double[][])}).
+	 *
+	 * @param emission A buffer to reuse, or null.
+	 */
+	public ViterbiBayesianNhmmV5Calculator(FragmentMatrix matrix, int fragment, BayesianNhmmV5<?> hmm, int methylatedState, double pCriteria, double[][] emission)
+	{
+		int offset = matrix.offset(fragment);
+		int length = matrix.length(fragment);
+		if (length == 0)
 			throw new IllegalArgumentException("Invalid empty sequence");
 		this.pCriteria = pCriteria;
-		delta = new double[oseq.size()][hmm.nbStates()];
-		deltaWithMethyPrior = new double[oseq.size()][hmm.nbStates()];
+		delta = new double[length][hmm.nbStates()];
+		deltaWithMethyPrior = new double[length][hmm.nbStates()];
 		
-		psy = new int[oseq.size()][hmm.nbStates()];
-		stateSequence = new int[oseq.size()];
+		psy = new int[length][hmm.nbStates()];
+		stateSequence = new int[length];
 		this.methylatedState = methylatedState;
+		this.emission = hmm.getOpdfProbs(matrix, fragment, emission);
 		for (int i = 0; i < hmm.nbStates(); i++) {
-			delta[0][i] = -Math.log(hmm.getPri(cpgDistState.get(0).getFirst(), i)) -
-					Math.log(hmm.getOpdf(i).probability(oseq.get(0)));
-			//delta[0][i] = -Math.log(hmm.getBayesianPri(cpgDistState.get(0), i)) -
-			//				Math.log(hmm.getOpdf(i).probability(oseq.get(0)));
-					//Math.log(hmm.getOpdfBayesianProb(i, cpgDistState.get(0), oseq.get(0)));
-					//Math.log(hmm.getOpdf(i).probability(oseq.get(0)))  - hmm.getBayesianFactor()*Math.log((i % 2 == 0 ? 1-cpgDistState.get(0).getSecond() : cpgDistState.get(0).getSecond()));
+			delta[0][i] = -hmm.getLnPri(matrix.cpgDist(offset), i) -
+					Math.log(this.emission[0][i]);
 			psy[0][i] = 0;
 			deltaWithMethyPrior[0][i] = delta[0][i];
 		}
 		
-		Iterator<? extends O> oseqIterator = oseq.iterator();
-		O prevO = null;
-		if (oseqIterator.hasNext()){
-			prevO = oseqIterator.next();
-		}
-			
-		
-		int t = 1;
-		while (oseqIterator.hasNext()) {
-			O observation = oseqIterator.next();
-			
+		for (int t = 1; t < length; t++) {
 			for (int i = 0; i < hmm.nbStates(); i++)
-				computeStep(hmm, observation, cpgDistState.get(t), t, i,cpgDistState.get(t-1), prevO, oseq.size());
-			prevO = observation;
-			t++;
+				computeStep(hmm, matrix, offset + t, t, i);
 		}
 		
 		lnProbability = Double.MAX_VALUE;
 		lnProbabilityWithMethyPrior = Double.MAX_VALUE;
-		/*
-		for (int i = 0; i < hmm.nbStates(); i++) {
-			double thisProbability = delta[oseq.size()-1][i];
-			
-			if (lnProbability > thisProbability) {
-				lnProbability = thisProbability;
-				stateSequence[oseq.size() - 1] = i;
-			}
-		}
-		lnProbability = -lnProbability;
-		*/
 		
-		
-		
-		double unmethyDelta = delta[oseq.size()-1][1-methylatedState];
-		double methyDelta = delta[oseq.size()-1][methylatedState];
-		//if(methylatedState == 0){
-		//	unmethyDelta = delta[oseq.size()-1][1];
-		//	methyDelta = delta[oseq.size()-1][0];
-		//}
+		double unmethyDelta = delta[length-1][1-methylatedState];
+		double methyDelta = delta[length-1][methylatedState];
 		
 		unmethyDelta = Math.exp(0-unmethyDelta);
 		methyDelta = Math.exp(0-methyDelta);
-		/*
-		double factor = hmm.getBayesianFactor();
-		double priorUpperBound = 0.5 + factor/2;
-		double priorLowerBound = 0.5 - factor/2;
-		double methyPrior = priorLowerBound + cpgDistState.get(t-1).getSecond() * factor;
-		double unmethyPrior = priorUpperBound - cpgDistState.get(t-1).getSecond() * factor;
-		double methyPosterior = methyDelta*methyPrior/(methyDelta*methyPrior+unmethyDelta*unmethyPrior);
-		double unmethyPosterior = unmethyDelta*unmethyPrior/(methyDelta*methyPrior+unmethyDelta*unmethyPrior);
-		*/
 		
 		if((methyDelta/(unmethyDelta+methyDelta)) > (unmethyDelta/(unmethyDelta+methyDelta)+pCriteria)){
-			lnProbability = -delta[oseq.size()-1][methylatedState];
-			stateSequence[oseq.size() - 1] = methylatedState;
-			lnProbabilityWithMethyPrior = -deltaWithMethyPrior[oseq.size()-1][methylatedState];
+			lnProbability = -delta[length-1][methylatedState];
+			stateSequence[length - 1] = methylatedState;
+			lnProbabilityWithMethyPrior = -deltaWithMethyPrior[length-1][methylatedState];
 		}else{
-			lnProbability = -delta[oseq.size()-1][1-methylatedState];
-			stateSequence[oseq.size() - 1] = 1-methylatedState;
-			lnProbabilityWithMethyPrior = -deltaWithMethyPrior[oseq.size()-1][1-methylatedState];
+			lnProbability = -delta[length-1][1-methylatedState];
+			stateSequence[length - 1] = 1-methylatedState;
+			lnProbabilityWithMethyPrior = -deltaWithMethyPrior[length-1][1-methylatedState];
 		}
 		
 		
-		for (int t2 = oseq.size() - 2; t2 >= 0; t2--)
+		for (int t2 = length - 2; t2 >= 0; t2--)
 			stateSequence[t2] = psy[t2+1][stateSequence[t2+1]];
 	}
 	
 	
 	/*
-	 * Computes delta and psy[t][j] (t > 0) 
+	 * Computes delta and psy[t][j] (t > 0), n is the index of the t-th observation of the fragment
 	 */
-	private <O extends Observation> void
-	computeStep(BayesianNhmmV5<O> hmm, O o, Pair<Integer, Double> r, int t, int j, Pair<Integer, Double> s, O prevO, int numCpg) 
+	private void
+	computeStep(BayesianNhmmV5<?> hmm, FragmentMatrix matrix, int n, int t, int j) 
 	{
 		double minDelta = Double.MAX_VALUE;
 		int min_psy = 0;
+		int r = matrix.cpgDist(n);
+		int prev = n - 1;
 
-		/*
-		for (int i = 0; i < hmm.nbStates(); i++) {
-			
-					
-			//if(i==1){
-			//	thisDelta -= Math.log(pCriteria);
-			//}
-			if (minDelta > thisDelta) {
-				minDelta = thisDelta;
-				min_psy = i;
-			}
-		}
-		*/
-		
-		//double unmethyDelta = delta[t-1][0] + Math.log(hmm.getOpdfProb(0, prevO)) - Math.log(hmm.getOpdfBayesianProb(0, s, prevO)) - Math.log(hmm.getArij(r.getFirst(), 0, j));
-		//double methyDelta = delta[t-1][1]  + Math.log(hmm.getOpdfProb(1, prevO)) - Math.log(hmm.getOpdfBayesianProb(1, s, prevO)) - Math.log(hmm.getArij(r.getFirst(), 1, j));
-		/*
-		double unmethyDelta = delta[t-1][1-methylatedState] + Math.log(hmm.getOpdfProb(1-methylatedState, prevO)) - Math.log(hmm.getOpdfBayesianProb(1-methylatedState, s, prevO)) - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-		double methyDelta = delta[t-1][methylatedState]  + Math.log(hmm.getOpdfProb(methylatedState, prevO)) - Math.log(hmm.getOpdfBayesianProb(methylatedState, s, prevO)) - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
-		if(noMethyPrior){
-			unmethyDelta = delta[t-1][1-methylatedState]  - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-			methyDelta = delta[t-1][methylatedState] - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
-			
-		}
-		
-		unmethyDelta = Math.exp(0-unmethyDelta);
-		methyDelta = Math.exp(0-methyDelta);
-				
-		if((methyDelta/(unmethyDelta+methyDelta)) > (unmethyDelta/(unmethyDelta+methyDelta)+pCriteria)){
-			minDelta = delta[t-1][methylatedState] - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
-			min_psy = methylatedState;
-			
-		}else{
-			minDelta = delta[t-1][1-methylatedState] - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-			min_psy = 1-methylatedState;
-		}
-		delta[t][j] = minDelta - Math.log(hmm.getOpdfProb(j,o));
-		*/
-
-			/*
-			double unmethyLikelihood = delta[t-1][1-methylatedState]  - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-			double methyLikelihood = delta[t-1][methylatedState]  - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
-
-
-			//double unmethyPosterior = Math.exp(0-unmethyLikelihood);
-			//double methyPosterior = Math.exp(0-methyLikelihood);
-			unmethyLikelihood = Math.exp(0-unmethyLikelihood);
-			methyLikelihood = Math.exp(0-methyLikelihood);
-			double factor = hmm.getBayesianFactor();
-			double priorUpperBound = 0.5 + factor/2;
-			double priorLowerBound = 0.5 - factor/2;
-			double methyPrior = priorLowerBound + s.getSecond() * factor;
-			double unmethyPrior = priorUpperBound - s.getSecond() * factor;
-			double methyPosterior = methyLikelihood*methyPrior/(methyLikelihood*methyPrior+unmethyLikelihood*unmethyPrior);
-			double unmethyPosterior = unmethyLikelihood*unmethyPrior/(methyLikelihood*methyPrior+unmethyLikelihood*unmethyPrior);
-
-			//double methyPrior = s.getSecond();
-			//double methyPosterior = methyLikelihood*methyPrior/(methyLikelihood*methyPrior+unmethyLikelihood*(1-methyPrior));
-			//double unmethyPosterior = unmethyLikelihood*(1-methyPrior)/(methyLikelihood*methyPrior+unmethyLikelihood*(1-methyPrior));
-			if((methyPosterior/(methyPosterior+unmethyPosterior)) > (unmethyPosterior/(methyPosterior+unmethyPosterior)+pCriteria)){
-				minDelta = delta[t-1][methylatedState] - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
-				min_psy = methylatedState;
-
-			}else{
-				minDelta = delta[t-1][1-methylatedState] - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-				min_psy = 1-methylatedState;
-			}
-			delta[t][j] = minDelta - Math.log(hmm.getOpdfProb(j,o));
-			*/
-
-
-			double unmethyDelta = delta[t-1][1-methylatedState] + Math.log(hmm.getOpdfProb(1-methylatedState, prevO)) - Math.log(hmm.getOpdfBayesianProb(1-methylatedState, s, prevO, numCpg)) - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
-			double methyDelta = delta[t-1][methylatedState]  + Math.log(hmm.getOpdfProb(methylatedState, prevO)) - Math.log(hmm.getOpdfBayesianProb(methylatedState, s, prevO, numCpg)) - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
+			double prior = matrix.methyPrior(prev);
+			double unmethyDelta = delta[t-1][1-methylatedState] + Math.log(emission[t-1][1-methylatedState]) - Math.log(hmm.getOpdfBayesianProb(1-methylatedState, prior, emission[t-1])) - hmm.getLnArij(r, 1-methylatedState, j);
+			double methyDelta = delta[t-1][methylatedState]  + Math.log(emission[t-1][methylatedState]) - Math.log(hmm.getOpdfBayesianProb(methylatedState, prior, emission[t-1])) - hmm.getLnArij(r, methylatedState, j);
 			
 			
 			unmethyDelta = Math.exp(0-unmethyDelta);
 			methyDelta = Math.exp(0-methyDelta);
 					
 			if((methyDelta/(unmethyDelta+methyDelta)) > (unmethyDelta/(unmethyDelta+methyDelta)+pCriteria)){
-				minDelta = delta[t-1][methylatedState] - Math.log(hmm.getArij(r.getFirst(), methylatedState, j));
+				minDelta = delta[t-1][methylatedState] - hmm.getLnArij(r, methylatedState, j);
 				min_psy = methylatedState;
 				
 			}else{
-				minDelta = delta[t-1][1-methylatedState] - Math.log(hmm.getArij(r.getFirst(), 1-methylatedState, j));
+				minDelta = delta[t-1][1-methylatedState] - hmm.getLnArij(r, 1-methylatedState, j);
 				min_psy = 1-methylatedState;
 			}
-			delta[t][j] = minDelta - Math.log(hmm.getOpdfProb(j,o));
+			delta[t][j] = minDelta - Math.log(emission[t][j]);
 
 
 		psy[t][j] = min_psy;
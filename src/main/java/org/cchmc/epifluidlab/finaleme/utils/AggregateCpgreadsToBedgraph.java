@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.Argument;
@@ -125,7 +124,7 @@ public class AggregateCpgreadsToBedgraph {
 
 						
 						FileOutputStream output = new FileOutputStream(outputFile);
-						OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+						OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 						
 						long lineNum=0;
 						for(BedEntry entry : inputIntervalSet){
@@ -30,7 +30,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
@@ -205,7 +204,7 @@ public class BamToFragBasesPair {
 					
 					log.info("Processing bam file ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//header file
 					if(splitCpgMode){
@@ -11,17 +11,13 @@ package org.cchmc.epifluidlab.finaleme.utils;
 import htsjdk.samtools.util.IntervalTree;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.log4j.BasicConfigurator;
@@ -104,41 +100,31 @@ public class BedCovMethyCor {
 							initiate(outputFile);
 							log.info("Parsing input bed file ...");
 							
-							GZIPInputStream gzipInputStream = null;
-							BufferedReader br;
-							if(inputFile.endsWith(".gz")){
-								gzipInputStream = new GZIPInputStream(new FileInputStream(inputFile));
-								br = new BufferedReader(new InputStreamReader(gzipInputStream));
-								
-							}else{
-								br = new BufferedReader(new FileReader(inputFile));
-							}
+							TabFieldReader fields = TabFieldReader.open(inputFile);
 							String line;
+							String bedChr = null;
 
-							HashMap<String, IntervalTree<String>> cpgCollections = new HashMap<String, IntervalTree<String>>();
-							while( (line = br.readLine()) != null){
-								if((skipProcessFirstRow && lineNum==0) || line.startsWith("#")){
+							//methylation level, coverage and number of C+T of each CpG, parsed once instead of at each overlapping window
+							HashMap<String, IntervalTree<double[]>> cpgCollections = new HashMap<String, IntervalTree<double[]>>();
+							while(fields.next()){
+								if((skipProcessFirstRow && lineNum==0) || fields.startsWith('#')){
 									continue;
 								}else{
-									String[] splitin = line.split("\t");
-									String chr = splitin[0];
-									int start = Integer.parseInt(splitin[1]);
-									int end = Integer.parseInt(splitin[2]);
-									IntervalTree<String> tree = null;
-									if(cpgCollections.containsKey(chr)){
-										tree = cpgCollections.get(chr);
+									bedChr = fields.field(0, bedChr);
+									int start = fields.intField(1);
+									int end = fields.intField(2);
+									IntervalTree<double[]> tree = null;
+									if(cpgCollections.containsKey(bedChr)){
+										tree = cpgCollections.get(bedChr);
 									}else{
-										tree = new IntervalTree<String>();
+										tree = new IntervalTree<double[]>();
 									}
-									tree.put(start,  end,  line);
-									cpgCollections.put(chr, tree);
+									tree.put(start,  end,  new double[]{fields.doubleField(4), fields.doubleField(6), fields.intField(5)});
+									cpgCollections.put(bedChr, tree);
 								}
 
 							}
-							if(inputFile.endsWith(".gz")){
-								gzipInputStream.close();
-							}
-							br.close();
+							fields.close();
 							
 							log.info("Processing each window ...");
 							BufferedReader br1 = new BufferedReader(new FileReader(refSizeFile));
@@ -147,21 +133,21 @@ public class BedCovMethyCor {
 								String chr = splitin[0];
 								int len = Integer.parseInt(splitin[1]);
 								if(cpgCollections.containsKey(chr)){
-									IntervalTree<String> tree = cpgCollections.get(chr);
+									IntervalTree<double[]> tree = cpgCollections.get(chr);
 									for(int start = 0; start < len - window; start += step){
 										int end = start + window;
 										ArrayList<Double> methyList = new ArrayList<Double>();
 										ArrayList<Double> covList = new ArrayList<Double>();
 										//ArrayList<Integer> numCList = new ArrayList<Integer>();
 										//ArrayList<Integer> numTList = new ArrayList<Integer>();
-										Iterator<IntervalTree.Node<String>> it = tree.overlappers(start, end);
+										Iterator<IntervalTree.Node<double[]>> it = tree.overlappers(start, end);
 										while(it.hasNext()){
-											String[] splitit = it.next().getValue().split("\t");
-											double meth = Double.parseDouble(splitit[4]);
-											double cov = Double.parseDouble(splitit[6]);
+											double[] cpg = it.next().getValue();
+											double meth = cpg[0];
+											double cov = cpg[1];
 											//methyList.add(meth);
 											//covList.add(Double.parseDouble(splitit[6]));
-											int numCT = Integer.parseInt(splitit[5]);
+											int numCT = (int)cpg[2];
 											int numC = (int)(meth*numCT);
 											int numT = numCT - numC;
 											for(int i=1; i <= numC; i++){
@@ -212,7 +198,7 @@ public class BedCovMethyCor {
 	
 	private void initiate(String outputFile) throws Exception{
 		startTime = System.currentTimeMillis();
-		writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFile)), "UTF-8");
+		writer = new OutputStreamWriter(new BgzfOutputStream(new FileOutputStream(outputFile)), "UTF-8");
 
 	}
 
@@ -0,0 +1,83 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+
+/**
+ * Merges BED files (plain or gzipped, e.g. the ENCODE blacklist and the gap
+ * track) into one binary {@link GenomeMask}, which FinaleMe's -region and
+ * -exclude read in place of a BED file without parsing it again.
+ */
+public class BedToGenomeMask {
+
+	@Option(name="-h",usage="show option information")
+	public boolean help = false;
+
+	final private static String USAGE = "BedToGenomeMask [opts] output" + GenomeMask.EXTENSION + " input1.bed[.gz] [input2.bed[.gz] ...]";
+
+	@Argument
+	private List<String> arguments = new ArrayList<String>();
+
+	private static Logger log = Logger.getLogger(BedToGenomeMask.class);
+	private static long startTime = -1;
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		BedToGenomeMask btgm = new BedToGenomeMask();
+		btgm.doMain(args);
+	}
+
+	public void doMain(String[] args)
+			throws Exception {
+
+		CmdLineParser parser = new CmdLineParser(this);
+		//parser.setUsageWidth(80);
+		try
+		{
+			if(help || args.length < 2) throw new CmdLineException(parser, USAGE, new Throwable());
+			parser.parseArgument(args);
+
+
+		}
+		catch (CmdLineException e)
+		{
+			System.err.println(e.getMessage());
+			// print the list of available options
+			parser.printUsage(System.err);
+			System.err.println();
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		String outputFile = arguments.get(0);
+		if(!GenomeMask.isBinary(outputFile)){
+			throw new IllegalArgumentException("Output file name should end with " + GenomeMask.EXTENSION + ": " + outputFile);
+		}
+
+		log.info("Loading regions ... ");
+		GenomeMask mask = GenomeMask.load(arguments.subList(1, arguments.size()));
+		log.info("Writing " + mask.size() + " merged intervals ... ");
+		mask.save(outputFile);
+		finish();
+	}
+
+	private void finish(){
+		long endTime   = System.currentTimeMillis();
+		double totalTime = endTime - startTime;
+		totalTime /= 1000;
+		double totalTimeMins = totalTime/60;
+		double totalTimeHours = totalTime/3600;
+
+		log.info("BedToGenomeMask's running time is: " + String.format("%.2f",totalTime) + " secs, " + String.format("%.2f",totalTimeMins) +  " mins, " + String.format("%.2f",totalTimeHours) +  " hours");
+	}
+
+}
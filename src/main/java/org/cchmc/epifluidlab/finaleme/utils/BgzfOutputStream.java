@@ -0,0 +1,501 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * Drop-in replacement of GZIPOutputStream that writes BGZF (blocked gzip, as
+ * bgzip and samtools do). The output is still read by zcat and
+ * GZIPInputStream, but its 64kb blocks are compressed independently by a pool
+ * of threads and written in order, so compression is no longer limited to one
+ * core, and the file can be indexed by tabix.
+ *
+ * With a TabixFormat, the .tbi index is built while the lines are written. If
+ * the lines turn out not to be sorted, or a position column is not a number,
+ * no index is written and a warning is logged. A stream written in another
+ * thread and appended with {@link #appendBgzf(File, LineFeatures)} can record
+ * the features of its lines instead, so they are indexed without reading the
+ * appended file back.
+ *
+ * flush() only writes the blocks already compressed, a block is compressed
+ * once it is full or the stream is closed.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+	private static Logger log = Logger.getLogger(BgzfOutputStream.class);
+
+	// uncompressed bytes per block, small enough that even a stored
+	// (incompressible) block fits in the 64kb BGZF limit, as in htslib
+	private static final int BLOCK_SIZE = 0xff00;
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+	private long blocksSubmitted = 0;
+	private long blocksWritten = 0;
+	// compressed bytes written so far, the address of the next block
+	private long address = 0;
+	private boolean closed = false;
+
+	// tabix index, built from the lines as they are written, or the features recorded for a later appendBgzf
+	private TabixIndexCreator indexCreator = null;
+	private LineFeatures lineFeatures = null;
+	private TabixFormat indexFormat;
+	private File indexFile;
+	private byte[] line = new byte[256];
+	private int lineLength = 0;
+	private boolean inLine = false;
+	private long lineBlock;
+	private int lineOffset;
+	private long lines = 0;
+	// lines whose block is not written yet, and the address of the written blocks they may start in
+	private final ArrayDeque<PendingFeature> pendingFeatures = new ArrayDeque<PendingFeature>();
+	private final ArrayDeque<long[]> blockAddresses = new ArrayDeque<long[]>();
+
+	public BgzfOutputStream(OutputStream out) {
+		this(out, 1);
+	}
+
+	/**
+	 * @param threads number of threads compressing the blocks, 0 to compress
+	 *                them in the writing thread
+	 */
+	public BgzfOutputStream(OutputStream out, int threads) {
+		this.out = out;
+		if (threads > 0) {
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bgzf");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			maxPending = threads * 4;
+		} else {
+			pool = null;
+			maxPending = 0;
+		}
+	}
+
+	/**
+	 * Also writes a tabix index of the lines to <code>indexFile</code> when the
+	 * stream is closed.
+	 */
+	public BgzfOutputStream(OutputStream out, int threads, TabixFormat indexFormat, File indexFile) {
+		this(out, threads);
+		this.indexFormat = indexFormat;
+		this.indexFile = indexFile;
+		indexCreator = new TabixIndexCreator(indexFormat);
+	}
+
+	/**
+	 * Records the feature and the position of each line, returned by
+	 * {@link #lineFeatures()} once the stream is closed, instead of writing an
+	 * index.
+	 */
+	public BgzfOutputStream(OutputStream out, int threads, TabixFormat indexFormat) {
+		this(out, threads);
+		this.indexFormat = indexFormat;
+		lineFeatures = new LineFeatures();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (blockLength == BLOCK_SIZE) {
+				submitBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - blockLength);
+			if (indexing()) {
+				scanLines(b, off, n);
+			}
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Appends the blocks of another BGZF file (e.g. written in parallel by
+	 * another BgzfOutputStream) without recompressing them. The lines written
+	 * so far need to be complete. <code>features</code> are the
+	 * {@link #lineFeatures()} of the stream that wrote the file, needed when
+	 * this stream writes an index (the index is dropped if they are null).
+	 */
+	public void appendBgzf(File bgzfFile, LineFeatures features) throws IOException {
+		if (inLine) {
+			throw new IllegalStateException("Cannot append a BGZF file after an incomplete line");
+		}
+		if (blockLength > 0) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeNextBlock();
+		}
+		long base = address;
+		long length = bgzfFile.length();
+		if (endsWithEmptyBlock(bgzfFile)) {
+			length -= BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+		}
+		InputStream in = new FileInputStream(bgzfFile);
+		byte[] buffer = new byte[1 << 16];
+		long remaining = length;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+		in.close();
+		address += length;
+
+		if (indexing()) {
+			if (features == null) {
+				disableIndex("the lines of " + bgzfFile + " have no recorded positions");
+				return;
+			}
+			// the positions are relative to the start of the appended file
+			for (int i = 0; i < features.size && indexing(); i++) {
+				long pointer = features.positions[i];
+				addFeature(new SimpleFeature(features.chrs[i], features.starts[i], features.ends[i]),
+						((base + (pointer >>> 16)) << 16) | (pointer & 0xFFFF));
+			}
+		}
+	}
+
+	/**
+	 * The features of the lines written to a stream created with
+	 * {@link #BgzfOutputStream(OutputStream, int, TabixFormat)}, once it is
+	 * closed, or null if a line had no position.
+	 */
+	public LineFeatures lineFeatures() {
+		return lineFeatures;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (blockLength > 0) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeNextBlock();
+		}
+		long dataEnd = address;
+		out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		address += BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+		out.close();
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (indexing()) {
+			if (inLine) {
+				// last line without newline
+				endLine();
+				resolveFeatures();
+			}
+			if (indexCreator != null) {
+				indexCreator.finalizeIndex(dataEnd << 16).write(indexFile.toPath());
+			}
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		if (pool == null) {
+			pending.add(CompletableFuture.completedFuture(compress(data, length)));
+		} else {
+			pending.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return compress(data, length);
+				}
+			}));
+		}
+		blocksSubmitted++;
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+		while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > maxPending)) {
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pending.poll().get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		out.write(compressed);
+		if (indexing()) {
+			blockAddresses.add(new long[] { blocksWritten, address });
+			resolveFeatures();
+		}
+		address += compressed.length;
+		blocksWritten++;
+	}
+
+	private static byte[] compress(byte[] data, int length) {
+		byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		int header = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+		int maxDeflated = compressed.length - header - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		int deflated = deflate(data, length, compressed, header, maxDeflated,
+				BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+		if (deflated < 0) {
+			deflated = deflate(data, length, compressed, header, maxDeflated, Deflater.NO_COMPRESSION);
+		}
+		int blockSize = header + deflated + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		// gzip header with the BC extra field holding the block size - 1
+		byte[] gzipHeader = { 31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 'B', 'C', 2, 0,
+				(byte) ((blockSize - 1) & 0xFF), (byte) ((blockSize - 1) >> 8) };
+		System.arraycopy(gzipHeader, 0, compressed, 0, header);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int footer = header + deflated;
+		putInt(compressed, footer, (int) crc.getValue());
+		putInt(compressed, footer + 4, length);
+		return Arrays.copyOf(compressed, blockSize);
+	}
+
+	// raw deflate, -1 if the result does not fit
+	private static int deflate(byte[] data, int length, byte[] output, int offset, int maxLength, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int deflated = deflater.deflate(output, offset, maxLength);
+			return deflater.finished() ? deflated : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+		b[offset + 2] = (byte) (value >> 16);
+		b[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static boolean endsWithEmptyBlock(File bgzfFile) throws IOException {
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		if (bgzfFile.length() < eof.length) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(bgzfFile, "r");
+		byte[] tail = new byte[eof.length];
+		raf.seek(bgzfFile.length() - eof.length);
+		raf.readFully(tail);
+		raf.close();
+		return Arrays.equals(tail, eof);
+	}
+
+	private void scanLines(byte[] b, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			byte c = b[off + i];
+			if (!inLine) {
+				inLine = true;
+				lineBlock = blocksSubmitted;
+				lineOffset = blockLength + i;
+				lineLength = 0;
+			}
+			if (c == '\n') {
+				endLine();
+			} else {
+				if (lineLength == line.length) {
+					line = Arrays.copyOf(line, lineLength * 2);
+				}
+				line[lineLength++] = c;
+			}
+		}
+	}
+
+	private void endLine() {
+		inLine = false;
+		Feature feature = lineFeature(line, lineLength);
+		if (feature != null) {
+			pendingFeatures.add(new PendingFeature(feature, lineBlock, lineOffset));
+		}
+	}
+
+	// the feature of a data line, null for the header lines
+	private Feature lineFeature(byte[] bytes, int length) {
+		lines++;
+		if (lines <= indexFormat.numHeaderLinesToSkip || (length > 0 && bytes[0] == indexFormat.metaCharacter)) {
+			return null;
+		}
+		String chr = null;
+		int start = -1;
+		int end = -1;
+		int column = 1;
+		int columnStart = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i < length && bytes[i] != '\t') {
+				continue;
+			}
+			if (column == indexFormat.sequenceColumn) {
+				chr = new String(bytes, columnStart, i - columnStart);
+			} else if (column == indexFormat.startPositionColumn) {
+				start = parseInt(bytes, columnStart, i);
+			} else if (column == indexFormat.endPositionColumn) {
+				end = parseInt(bytes, columnStart, i);
+			}
+			column++;
+			columnStart = i + 1;
+		}
+		if (chr == null || start < 0) {
+			disableIndex("line " + lines + " has no position: " + new String(bytes, 0, length));
+			return null;
+		}
+		if ((indexFormat.flags & TabixFormat.ZERO_BASED) != 0) {
+			start++;
+		}
+		return new SimpleFeature(chr, start, end < 0 ? start : end);
+	}
+
+	private static int parseInt(byte[] bytes, int from, int to) {
+		if (from == to) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] < '0' || bytes[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value;
+	}
+
+	private void resolveFeatures() {
+		while (!pendingFeatures.isEmpty() && indexing()) {
+			PendingFeature feature = pendingFeatures.peek();
+			while (!blockAddresses.isEmpty() && blockAddresses.peek()[0] < feature.block) {
+				blockAddresses.poll();
+			}
+			if (blockAddresses.isEmpty()) {
+				return;
+			}
+			pendingFeatures.poll();
+			addFeature(feature.feature, (blockAddresses.peek()[1] << 16) | feature.offset);
+		}
+		// no later line can start in a block before the current one
+		long firstNeeded = inLine ? lineBlock : blocksSubmitted;
+		while (blockAddresses.size() > 1 && blockAddresses.peek()[0] < firstNeeded) {
+			blockAddresses.poll();
+		}
+	}
+
+	private boolean indexing() {
+		return indexCreator != null || lineFeatures != null;
+	}
+
+	private void addFeature(Feature feature, long filePosition) {
+		if (lineFeatures != null) {
+			lineFeatures.add(feature, filePosition);
+			return;
+		}
+		try {
+			indexCreator.addFeature(feature, filePosition);
+		} catch (IllegalArgumentException e) {
+			disableIndex(e.getMessage());
+		}
+	}
+
+	private void disableIndex(String reason) {
+		log.warn("No tabix index is written for the output: " + reason);
+		indexCreator = null;
+		lineFeatures = null;
+		pendingFeatures.clear();
+		blockAddresses.clear();
+	}
+
+	/**
+	 * Chromosome, start, end and BGZF virtual position of each line of a
+	 * stream, in the order of the lines.
+	 */
+	public static class LineFeatures {
+		private String[] chrs = new String[1024];
+		private int[] starts = new int[1024];
+		private int[] ends = new int[1024];
+		private long[] positions = new long[1024];
+		private int size = 0;
+
+		private void add(Feature feature, long position) {
+			if (size == chrs.length) {
+				chrs = Arrays.copyOf(chrs, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			// consecutive lines share the chromosome name
+			chrs[size] = size > 0 && chrs[size - 1].equals(feature.getContig()) ? chrs[size - 1] : feature.getContig();
+			starts[size] = feature.getStart();
+			ends[size] = feature.getEnd();
+			positions[size] = position;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+
+	private static class PendingFeature {
+		final Feature feature;
+		final long block;
+		final int offset;
+
+		PendingFeature(Feature feature, long block, int offset) {
+			this.feature = feature;
+			this.block = block;
+			this.offset = offset;
+		}
+	}
+
+}
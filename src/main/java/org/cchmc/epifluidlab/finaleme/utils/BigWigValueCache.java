@@ -0,0 +1,241 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import edu.unc.genomics.io.BigWigFileReader;
+import edu.unc.genomics.io.WigFileException;
+
+/**
+ * Values of a BigWig file kept in memory per chromosome. The first lookup on a
+ * chromosome reads it once from the file and stores it as runs of bases with
+ * the same value (<code>int[]</code> starts/ends and <code>float[]</code>
+ * values, NaN bases dropped), so the following lookups are binary searches
+ * instead of an R-tree walk and a block inflation per query. A run costs 12
+ * bytes, so a chromosome with more than one run per 3 bases (e.g. a
+ * methylation track) is stored instead as one <code>float</code> per base
+ * from its first to its last value, NaN where there is none. Only the most
+ * recently used chromosomes are kept, and the instance can be shared by
+ * several threads.
+ *
+ * {@link Chromosome#mean(int, int)} and {@link Chromosome#sum(int, int)}
+ * return the same values as BigWigFileReader.queryStats(chr, low, high)
+ * getMean()/getSum(), NaN where queryStats has no value.
+ */
+public class BigWigValueCache implements Closeable {
+
+	// bases read from the file per query when a chromosome is loaded
+	private static final int LOAD_CHUNK = 1 << 20;
+
+	private final BigWigFileReader reader;
+	private final int maxCached;
+	private final LinkedHashMap<String, Chromosome> cache = new LinkedHashMap<String, Chromosome>(16, 0.75f, true);
+
+	public BigWigValueCache(File file) throws IOException {
+		this(file, 2);
+	}
+
+	/**
+	 * @param maxCached number of chromosomes kept in memory
+	 */
+	public BigWigValueCache(File file, int maxCached) throws IOException {
+		this.maxCached = Math.max(maxCached, 1);
+		reader = new BigWigFileReader(file.toPath());
+	}
+
+	public synchronized Chromosome chromosome(String chr) throws IOException, WigFileException {
+		Chromosome chromosome = cache.get(chr);
+		if (chromosome == null) {
+			chromosome = load(chr);
+			cache.put(chr, chromosome);
+			Iterator<String> it = cache.keySet().iterator();
+			while (cache.size() > maxCached) {
+				it.next();
+				it.remove();
+			}
+		}
+		return chromosome;
+	}
+
+	@Override
+	public synchronized void close() {
+		cache.clear();
+		reader.close();
+	}
+
+	private Chromosome load(String chr) throws IOException, WigFileException {
+		int[] starts = new int[1024];
+		int[] ends = new int[1024];
+		float[] values = new float[1024];
+		int size = 0;
+		// per base layout, once the runs would take more memory
+		float[] dense = null;
+		int denseStart = 0;
+		int last = 0;
+		if (reader.includes(chr)) {
+			int chrStop = reader.getChrStop(chr);
+			for (int low = Math.max(reader.getChrStart(chr), 1); low <= chrStop; low += LOAD_CHUNK) {
+				int high = (int) Math.min((long) low + LOAD_CHUNK - 1, chrStop);
+				float[] chunk = reader.query(chr, low, high).getValues();
+				for (int i = 0; i < chunk.length; i++) {
+					float value = chunk[i];
+					if (Float.isNaN(value)) {
+						continue;
+					}
+					int pos = low + i;
+					last = pos;
+					if (dense != null) {
+						dense[pos - denseStart] = value;
+						continue;
+					}
+					if (size > 0 && ends[size - 1] == pos - 1 && values[size - 1] == value) {
+						ends[size - 1] = pos;
+						continue;
+					}
+					if (size == starts.length) {
+						if (denser(size, starts[0], chrStop)) {
+							denseStart = starts[0];
+							dense = toDense(starts, ends, values, size, denseStart, chrStop);
+							starts = ends = null;
+							values = null;
+							dense[pos - denseStart] = value;
+							continue;
+						}
+						starts = Arrays.copyOf(starts, size * 2);
+						ends = Arrays.copyOf(ends, size * 2);
+						values = Arrays.copyOf(values, size * 2);
+					}
+					starts[size] = pos;
+					ends[size] = pos;
+					values[size] = value;
+					size++;
+				}
+			}
+		}
+		if (dense != null) {
+			return new Chromosome(chr, Arrays.copyOf(dense, last - denseStart + 1), denseStart);
+		}
+		if (size > 0 && denser(size, starts[0], last)) {
+			return new Chromosome(chr, toDense(starts, ends, values, size, starts[0], last), starts[0]);
+		}
+		return new Chromosome(chr, Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), Arrays.copyOf(values, size));
+	}
+
+	// 12 bytes per run against 4 bytes per base from first to last
+	private static boolean denser(int nbRuns, int first, int last) {
+		return nbRuns * 3L > (long) last - first + 1;
+	}
+
+	private static float[] toDense(int[] starts, int[] ends, float[] values, int size, int first, int last) {
+		float[] dense = new float[last - first + 1];
+		Arrays.fill(dense, Float.NaN);
+		for (int i = 0; i < size; i++) {
+			Arrays.fill(dense, starts[i] - first, ends[i] - first + 1, values[i]);
+		}
+		return dense;
+	}
+
+	/**
+	 * Values of one chromosome, positions are 1-based and intervals inclusive as
+	 * in BigWigFileReader.queryStats.
+	 */
+	public static class Chromosome {
+		private final String name;
+		// runs of bases with the same value
+		private final int[] starts;
+		private final int[] ends;
+		private final float[] values;
+		// or one value per base from denseStart, NaN where there is none
+		private final float[] dense;
+		private final int denseStart;
+
+		Chromosome(String name, int[] starts, int[] ends, float[] values) {
+			this.name = name;
+			this.starts = starts;
+			this.ends = ends;
+			this.values = values;
+			this.dense = null;
+			this.denseStart = 0;
+		}
+
+		Chromosome(String name, float[] dense, int denseStart) {
+			this.name = name;
+			this.starts = null;
+			this.ends = null;
+			this.values = null;
+			this.dense = dense;
+			this.denseStart = denseStart;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * Mean of the bases with a value in [low, high], NaN if there is none.
+		 */
+		public double mean(int low, int high) {
+			return stat(low, high, true);
+		}
+
+		/**
+		 * Sum of the bases with a value in [low, high], NaN if there is none.
+		 */
+		public double sum(int low, int high) {
+			return stat(low, high, false);
+		}
+
+		// base by base, in the order and with the arithmetic of SummaryStatistics,
+		// so that the result is the same to the last bit
+		private double stat(int low, int high, boolean mean) {
+			long n = 0;
+			double sum = 0;
+			double m1 = 0;
+			if (dense != null) {
+				int end = (int) Math.min(high, (long) denseStart + dense.length - 1);
+				for (int pos = Math.max(low, denseStart); pos <= end; pos++) {
+					double value = dense[pos - denseStart];
+					if (Double.isNaN(value)) {
+						continue;
+					}
+					n++;
+					sum += value;
+					m1 += (value - m1) / (double) n;
+				}
+			} else {
+				for (int i = firstRunEndingAtOrAfter(low); i < starts.length && starts[i] <= high; i++) {
+					double value = values[i];
+					int end = Math.min(ends[i], high);
+					for (int pos = Math.max(starts[i], low); pos <= end; pos++) {
+						n++;
+						sum += value;
+						m1 += (value - m1) / (double) n;
+					}
+				}
+			}
+			if (n == 0) {
+				return Double.NaN;
+			}
+			return mean ? m1 : sum;
+		}
+
+		private int firstRunEndingAtOrAfter(int pos) {
+			int lo = 0;
+			int hi = ends.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (ends[mid] < pos) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+}
@@ -4,10 +4,12 @@ package org.cchmc.epifluidlab.finaleme.utils;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,11 +40,15 @@ import org.apache.commons.lang3.tuple.Triple;
 import org.apache.commons.math3.util.Pair;
 import org.broadinstitute.gatk.utils.BaseUtils;
 
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.TextCigarCodec;
 import htsjdk.samtools.util.CigarUtil;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalTree;
@@ -903,57 +909,34 @@ public class CcInferenceUtils implements Serializable{
 	
 	
 	public static LinkedHashMap<String, Double> kmerFreqSearch(byte[] strings, int kmer){
-		//byte[] strings = string.getBytes();
-		HashMap<String, Integer> kmerCount = new HashMap<String, Integer>();
-		
-
-		int totalCount=0;
-		for(int i = 0; i < strings.length - kmer + 1; i++, totalCount++){
-			String bases = "";
-			for(int j=i, index = 0; index < kmer; j++,index++){
-				bases = bases + Character.toUpperCase((char)strings[j]);
-			}
-			if(kmerCount.containsKey(bases)){
-				kmerCount.put(bases, kmerCount.get(bases)+1);
-			}else{
-				kmerCount.put(bases, 1);
-			}
-		}
-		//System.err.println(new String(strings) + "\t" + kmer + "\t" + kmerCount.size() + "\t" + totalCount);
-		//for(String key : kmerCount.keySet()){
-		//	System.err.print(key + "\t" + kmerCount.get(key) + "\t");
-		//}
-		//System.err.println();
 		LinkedHashMap<String, Double> kmerFreq = new LinkedHashMap<String, Double>();
-		for(byte[] k : SequenceUtil.generateAllKmers(kmer)){
-			String p = new String(k);
-			if(kmerCount.containsKey(p)){
-				kmerFreq.put(p, 100*(double)kmerCount.get(p)/(double)totalCount);
-			//	System.err.print("\t" + kmerCount.get(p));
-			}else{
-				kmerFreq.put(p, 0.0);
-			}
-		}
-		//System.err.println();
-		//System.err.println(pattern + "\t" + new String(strings) + "\t" + count + "\t" + totalCount);
+		kmerFreqSearch(strings, new KmerCounter(kmer, kmer), kmerFreq);
 		return kmerFreq;
 	}	
 	
+	//frequencies of the k-mers of every length of counter, as kmerFreqSearch(strings, k) for each length, put in kmerFreq.
+	//the counter is meant to be created once and reused for every sequence
+	public static void kmerFreqSearch(byte[] strings, KmerCounter counter, Map<String, Double> kmerFreq){
+		counter.count(strings, 0, strings.length);
+		for(int k = counter.minK(); k <= counter.maxK(); k++){
+			counter.putFrequencies(k, kmerFreq);
+		}
+	}	
+	
 	
 	//From ben's picardUtils, need to test it in paired end space
+	//the MD tag is scanned in place (numbers, mismatched bases, ^deleted bases) instead of with a regex, and the reference is written in a byte array
 	public static byte[] refStrFromMd(String seq, String md, Cigar cigar, String readName)
 			throws Exception
 			{
 				if (seq == null) throw new Exception("Can not run refStrFromMd with a null seq variable");
 				if (md == null) throw new Exception("Can not run refStrFromMd with a null MD variable. Reads is: " + readName);
 				
-				//Pattern mdPat = Pattern.compile("\\G(?:([0-9]+)|([ACTGNactgn])|(\\^[ACTGNactgn]+))");
-				Pattern mdPat = Pattern.compile("\\G(?:([0-9]+)|([ABCDGHKMNRSTVWXYabcdghkmnrstvwxy])|(\\^[ABCDGHKMNRSTVWXYabcdghkmnrstvwxy]+))");
-				
-				// Use sb as the reference output string
-				StringBuilder sb = new StringBuilder(500*2+1);
+				// the reference output
+				byte[] ref = new byte[seq.length()];
+				int refLength = 0;
 
-				Matcher match = mdPat.matcher(md);
+				int mdPos = 0;
 				int curSeqPos = 0;
 				//int curMdPos = 0; // Not the same as seq pos when you have indels
 
@@ -962,9 +945,6 @@ public class CcInferenceUtils implements Serializable{
 				{
 					int cigElLen = cigEl.getLength();
 					CigarOperator cigElOp = cigEl.getOperator();
-//					System.err.printf("\tCigar El: len=%d, op=%s, consumesRead=%b, consumesRef=%b\n",
-//							cigElLen,cigElOp,cigElOp.consumesReadBases(), cigElOp.consumesReferenceBases());
-					
 					
 					// If it consumes reference bases, it's either a match or a deletion in the sequence
 					// read.  Either way, we're going to need to parse throught the MD.
@@ -976,44 +956,26 @@ public class CcInferenceUtils implements Serializable{
 						// Do we have any saved matched bases?
 						while ((savedBases>0) && (basesMatched < cigElLen))
 						{
-							sb.append(seq.charAt(curSeqPos++));
+							ref = appendBase(ref, refLength++, (byte) seq.charAt(curSeqPos++));
 							savedBases--;
 							basesMatched++;
-//							System.err.printf("\t\tDepleting saved bases, saved=%d, curSeqPos=%d, basesMatched=%d\n",savedBases,curSeqPos,basesMatched); 
 						}
 
 						while (basesMatched < cigElLen)
 						{
-							boolean matched = match.find();
-							if (matched)
+							if (mdPos < md.length() && Character.isDigit(md.charAt(mdPos)))
 							{
-//								System.err.println("Matched , basesMatched=" + basesMatched + ", match=" + match.group() + "," + match.group(1) + "," + match.group(2) + ", start=" + match.start());
-								String mg;
-								if ( ((mg = match.group(1)) !=null) && (mg.length() > 0) )
+								// It's a number , meaning a series of matches
+								int num = 0;
+								while (mdPos < md.length() && Character.isDigit(md.charAt(mdPos)))
 								{
-									// It's a number , meaning a series of matches
-									int num = Integer.parseInt(mg);
-									for (int i = 0; i < num; i++)
-									{
-										if (basesMatched<cigElLen)
-										{
-											sb.append(seq.charAt(curSeqPos));
-											curSeqPos++;
-										}
-										else
-										{
-											savedBases++;
-										}
-										basesMatched++;
-									}
+									num = num * 10 + (md.charAt(mdPos++) - '0');
 								}
-
-								else if ( ((mg = match.group(2)) !=null) && (mg.length() > 0) )
+								for (int i = 0; i < num; i++)
 								{
-									// It's a single nucleotide, meaning a mismatch
 									if (basesMatched<cigElLen)
 									{
-										sb.append(mg.charAt(0));
+										ref = appendBase(ref, refLength++, (byte) seq.charAt(curSeqPos));
 										curSeqPos++;
 									}
 									else
@@ -1022,43 +984,50 @@ public class CcInferenceUtils implements Serializable{
 									}
 									basesMatched++;
 								}
-								else if ( ((mg = match.group(3)) !=null) && (mg.length() > 0) )
+							}
+							else if (mdPos < md.length() && isMdBase(md.charAt(mdPos)))
+							{
+								// It's a single nucleotide, meaning a mismatch
+								if (basesMatched<cigElLen)
 								{
-									// It's a deletion, starting with a caret
-									// don't include caret
-									for (int i = 1; i < mg.length(); i++)
-									{
-										// Since this function is actually just meant to make a reference that lines up nucleotide 
-										//  for nucleotide with the sequence read, we don't actually add the insertion to the reference.
-										//sb.append(mg.charAt(i));
-										basesMatched++;
-									}
-									
-									// Check just to make sure.
-									if (basesMatched != cigElLen)
-									{
-										throw new Exception("Got a deletion in CIGAR (" + cigar + ", deletion " + cigElLen + 
-												" length) with an unequal ref insertion in MD (" + md + ", md " + basesMatched + " length" + "in Read: " + readName);
-									}
-									if (cigElOp != CigarOperator.DELETION)
-									{
-										throw new Exception ("Got an insertion in MD ("+md+") without a corresponding deletion in cigar ("+cigar+")" + "in Read: " + readName);
-									}
-									
+									ref = appendBase(ref, refLength++, (byte) md.charAt(mdPos));
+									curSeqPos++;
 								}
 								else
 								{
-									matched = false;
-									
+									savedBases++;
 								}
+								basesMatched++;
+								mdPos++;
 							}
-
-							if (!matched)
+							else if (mdPos + 1 < md.length() && md.charAt(mdPos) == '^' && isMdBase(md.charAt(mdPos + 1)))
+							{
+								// It's a deletion, starting with a caret
+								// don't include caret
+								mdPos++;
+								while (mdPos < md.length() && isMdBase(md.charAt(mdPos)))
+								{
+									// Since this function is actually just meant to make a reference that lines up nucleotide 
+									//  for nucleotide with the sequence read, we don't actually add the insertion to the reference.
+									basesMatched++;
+									mdPos++;
+								}
+								
+								// Check just to make sure.
+								if (basesMatched != cigElLen)
+								{
+									throw new Exception("Got a deletion in CIGAR (" + cigar + ", deletion " + cigElLen + 
+											" length) with an unequal ref insertion in MD (" + md + ", md " + basesMatched + " length" + "in Read: " + readName);
+								}
+								if (cigElOp != CigarOperator.DELETION)
+								{
+									throw new Exception ("Got an insertion in MD ("+md+") without a corresponding deletion in cigar ("+cigar+")" + "in Read: " + readName);
+								}
+							}
+							else
 							{
 								throw new Exception("Illegal MD pattern: " + md + "in Read: " + readName);
 							}
-
-//							System.err.println("SavedBasesMatched=" + savedBases);
 						}
 
 					}
@@ -1067,8 +1036,8 @@ public class CcInferenceUtils implements Serializable{
 						// We have an insertion in read
 						for (int i = 0; i < cigElLen; i++)
 						{
-							char c = (cigElOp == CigarOperator.SOFT_CLIP) ? '0' : '-';
-							sb.append( c );
+							byte c = (byte) ((cigElOp == CigarOperator.SOFT_CLIP) ? '0' : '-');
+							ref = appendBase(ref, refLength++, c);
 							curSeqPos++;
 						}
 					}
@@ -1079,9 +1048,27 @@ public class CcInferenceUtils implements Serializable{
 
 				}
 				
-				return sb.toString().getBytes();
+				return refLength == ref.length ? ref : Arrays.copyOf(ref, refLength);
 			}
 	
+	//IUPAC codes accepted as a base of the MD tag
+	private static boolean isMdBase(char c){
+		switch (Character.toUpperCase(c)) {
+		case 'A': case 'B': case 'C': case 'D': case 'G': case 'H': case 'K': case 'M':
+		case 'N': case 'R': case 'S': case 'T': case 'V': case 'W': case 'X': case 'Y':
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private static byte[] appendBase(byte[] bases, int length, byte base){
+		if (length == bases.length) {
+			bases = Arrays.copyOf(bases, Math.max(length * 2, 16));
+		}
+		bases[length] = base;
+		return bases;
+	}
 
 	public static byte[] refStrFromMd(SAMRecord read)
 			throws Exception
@@ -1327,18 +1314,27 @@ public class CcInferenceUtils implements Serializable{
 	}
 	
 	public static int intervalDistance(IntervalTree.Node<String> a, IntervalTree.Node<String> b){
+		return intervalDistance(a.getStart(), a.getEnd(), a.getValue(), b.getStart(), b.getEnd());
+	}
+	
+	public static int intervalDistance(IntervalTree.Node<String> a, int bStart, int bEnd){
+		return intervalDistance(a.getStart(), a.getEnd(), a.getValue(), bStart, bEnd);
+	}
+	
+	//a is [aStart, aEnd] on strand aStrand ("+", "-", or anything else for the absolute distance), as held by the IntervalTree nodes
+	public static int intervalDistance(int aStart, int aEnd, String aStrand, int bStart, int bEnd){
 		
 		
 		//overlap
-	if((b.getStart() >= a.getStart() && b.getStart() <= a.getEnd())||(b.getEnd() >= a.getStart() && b.getEnd() <= a.getEnd())){
+	if((bStart >= aStart && bStart <= aEnd)||(bEnd >= aStart && bEnd <= aEnd)){
 		return 0;
 	}
 	
 			int[] distances = new int[]{
-				b.getStart() - a.getStart(),
-				b.getStart() - a.getEnd(),
-				b.getEnd() - a.getStart(),
-				b.getEnd() - a.getEnd()
+				bStart - aStart,
+				bStart - aEnd,
+				bEnd - aStart,
+				bEnd - aEnd
 			};
 			int minAbs = Math.abs(distances[0]);
 			int minDis = distances[0];
@@ -1349,9 +1345,9 @@ public class CcInferenceUtils implements Serializable{
 				}
 			}
 			
-			if(a.getValue().equalsIgnoreCase("-")){
+			if(aStrand.equalsIgnoreCase("-")){
 				return 0-minDis;
-			}else if(a.getValue().equalsIgnoreCase("+")){
+			}else if(aStrand.equalsIgnoreCase("+")){
 				return minDis;
 			}else{
 				return minAbs;
@@ -1422,23 +1418,22 @@ public class CcInferenceUtils implements Serializable{
 	}
 	
 	static public byte[] modifyRefSeqByCigar(byte[] seqByte, String cigarString){ //mainly for "I" and "D" CIGAR string
-		char[] cigarList = CigarUtil.cigarArrayFromString(cigarString);
+		Cigar cigar = TextCigarCodec.decode(cigarString);
 
-		ArrayList<Byte> seqsNew = new ArrayList<Byte>();
-		//System.err.println(new String(seqByte) + "\t" + seqByte.length + "\t" + cigarString);
+		byte[] seqsNew = new byte[seqByte.length];
+		int length = 0;
 		int offSet = 0;
-		for(char cigar : cigarList){
-			if(cigar == 'M' || cigar == 'I'){
-				seqsNew.add(seqByte[offSet]);
-				offSet++;
-			}else if(cigar == 'D'){
-				//seqsNew.add(SequenceUtil.N);
-				
-			}else if(cigar == 'S'){
-				offSet++;
+		for(CigarElement element : cigar.getCigarElements()){
+			CigarOperator op = element.getOperator();
+			if(op == CigarOperator.M || op == CigarOperator.I){
+				System.arraycopy(seqByte, offSet, seqsNew, length, element.getLength());
+				length += element.getLength();
+				offSet += element.getLength();
+			}else if(op == CigarOperator.S){
+				offSet += element.getLength();
 			}
 		}
-		return ArrayUtils.toPrimitive(seqsNew.toArray(new Byte[seqsNew.size()]));
+		return Arrays.copyOf(seqsNew, length);
 	}
 
 	static public byte[] modifyRefBasesByCigar(byte[] seqByte, String cigarString){ //mainly for "I" and "D" CIGAR string
@@ -1562,6 +1557,27 @@ public class CcInferenceUtils implements Serializable{
 		return truncatedBases;
 	}
 	
+	//total number of reads (mapped and unmapped, including the reads without coordinate) recorded in the meta data of the bam index, so the bam file itself is not read.
+	//return -1 when there is no index or the index has no meta data
+	static public long totalReadsFromIndex(SamReader reader){
+		if(!reader.hasIndex())
+			return -1;
+		BAMIndex index = reader.indexing().getIndex();
+		long total = 0;
+		for(int i = 0; i < reader.getFileHeader().getSequenceDictionary().size(); i++){
+			BAMIndexMetaData metaData = index.getMetaData(i);
+			if(metaData == null)
+				return -1;
+			total += metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+		}
+		if(index instanceof AbstractBAMFileIndex){
+			Long noCoordinateCount = ((AbstractBAMFileIndex)index).getNoCoordinateCount();
+			if(noCoordinateCount != null)
+				total += noCoordinateCount;
+		}
+		return total > 0 ? total : -1;
+	}
+	
 	static public byte[] complementArray(byte[] a){
 		byte[] b = new byte[a.length];
 		for(int i = 0; i < a.length; i++){
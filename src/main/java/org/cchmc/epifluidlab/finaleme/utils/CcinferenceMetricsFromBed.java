@@ -24,7 +24,6 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
@@ -137,7 +136,7 @@ public class CcinferenceMetricsFromBed {
 					log.info("Output value for each CpG in each DNA fragment ... ");
 					
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//basic
 					writer.write("chr\tstart\tend\treadName\tFragLen\tFrag_strand\tmethy_stat\tNorm_Frag_cov\tbaseQ\tOffset_frag\tDist_frag_end");
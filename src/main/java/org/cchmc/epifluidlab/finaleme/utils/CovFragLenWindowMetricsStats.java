@@ -29,7 +29,6 @@ import java.util.List;
 
 
 
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.exception.MathIllegalArgumentException;
 import org.apache.commons.math3.exception.MathIllegalStateException;
@@ -105,7 +104,7 @@ public class CovFragLenWindowMetricsStats {
 					String summaryFile = arguments.get(2);
 					initiate();
 					FileOutputStream output = new FileOutputStream(summaryFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					writer.write("#chr\tstart\tend\tnum_frag\tmean_frag_len\tsd_frag_len\tmedian_frag_len");
 					ArrayList<TabixFeatureReader<BEDFeature, ?>> bedReaders = new ArrayList<TabixFeatureReader<BEDFeature, ?>>();
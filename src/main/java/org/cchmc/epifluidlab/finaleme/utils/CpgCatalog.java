@@ -0,0 +1,415 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * CpG list of a BED file, sorted per chromosome and held in primitive arrays
+ * (<code>int</code> start and end, one byte of strand per CpG) instead of an
+ * IntervalTree with a String per CpG. The chromosomes are in karyotypic order
+ * (see {@link #KARYOTYPIC_ORDER}), so the tools iterate them in the same order
+ * at every run.
+ * <p>
+ * The catalog can be saved once in a binary file (see {@link #main(String[])}),
+ * which is memory-mapped instead of parsed when it is loaded. Layout (big
+ * endian):
+ * <pre>
+ * header      : magic, version, number of chromosomes
+ * chromosomes : name, number of CpGs
+ * data        : per chromosome, int starts, int ends, byte strands
+ * </pre>
+ * Coordinates are kept as in the BED file (0-based start, end excluded), and a
+ * (start, end) present several times is kept once.
+ */
+public class CpgCatalog implements Closeable {
+
+	public static final String EXTENSION = ".cpgb";
+	public static final int MAGIC = 0x43504731; // "CPG1"
+	public static final int VERSION = 1;
+
+	private static final String[] STRANDS = { ".", "+", "-" };
+
+	private static Logger log = Logger.getLogger(CpgCatalog.class);
+
+	/**
+	 * chr1, chr2, ..., chr10, ..., chrX, chrY, chrM, then the other chromosomes
+	 * by name. The "chr" prefix and the case are ignored.
+	 */
+	public static final Comparator<String> KARYOTYPIC_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			long rankA = rank(a);
+			long rankB = rank(b);
+			if (rankA != rankB) {
+				return rankA < rankB ? -1 : 1;
+			}
+			return a.compareTo(b);
+		}
+
+		private long rank(String chr) {
+			String name = chr.regionMatches(true, 0, "chr", 0, 3) ? chr.substring(3) : chr;
+			if (name.length() > 0 && name.length() <= 9 && name.chars().allMatch(Character::isDigit)) {
+				return Long.parseLong(name);
+			}
+			if (name.equalsIgnoreCase("X")) {
+				return 1L << 32;
+			} else if (name.equalsIgnoreCase("Y")) {
+				return (1L << 32) + 1;
+			} else if (name.equalsIgnoreCase("M") || name.equalsIgnoreCase("MT")) {
+				return (1L << 32) + 2;
+			}
+			return Long.MAX_VALUE;
+		}
+	};
+
+	private final Chromosome[] chromosomes;
+	private final HashMap<String, Chromosome> byName = new HashMap<String, Chromosome>();
+	private final RandomAccessFile file;
+
+	private CpgCatalog(Chromosome[] chromosomes, RandomAccessFile file) {
+		this.chromosomes = chromosomes;
+		this.file = file;
+		for (Chromosome chromosome : chromosomes) {
+			byName.put(chromosome.name, chromosome);
+		}
+	}
+
+	/**
+	 * Reads a BED file (optionally gzipped), or memory-maps a catalog saved with
+	 * the {@link #EXTENSION} extension.
+	 */
+	public static CpgCatalog load(String path) throws IOException {
+		if (path.endsWith(EXTENSION)) {
+			return map(path);
+		}
+		return fromBed(path);
+	}
+
+	public static CpgCatalog fromBed(String bedFile) throws IOException {
+		HashMap<String, long[]> keys = new HashMap<String, long[]>();
+		HashMap<String, Integer> sizes = new HashMap<String, Integer>();
+		BufferedReader br;
+		if (bedFile.endsWith(".gz")) {
+			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(bedFile))));
+		} else {
+			br = new BufferedReader(new FileReader(bedFile));
+		}
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith("#"))
+				continue;
+			String[] splitLines = line.split("\t");
+			if (splitLines.length < 3) {
+				continue;
+			}
+			String chr = splitLines[0];
+			int start = Integer.parseInt(splitLines[1]);
+			int end = Integer.parseInt(splitLines[2]);
+			if (start < 0 || end < 0) {
+				br.close();
+				throw new IllegalArgumentException("Negative coordinate in " + bedFile + ": " + line);
+			}
+			int strand = 0;
+			if (splitLines.length >= 6) {
+				if (splitLines[5].equalsIgnoreCase("+")) {
+					strand = 1;
+				} else if (splitLines[5].equalsIgnoreCase("-")) {
+					strand = 2;
+				}
+			}
+			long[] chrKeys = keys.get(chr);
+			int size = chrKeys == null ? 0 : sizes.get(chr);
+			if (chrKeys == null) {
+				chrKeys = new long[1024];
+			} else if (size == chrKeys.length) {
+				chrKeys = Arrays.copyOf(chrKeys, size * 2);
+			}
+			// start, end and strand in one long that sorts as (start, end), see sortKey
+			chrKeys[size] = sortKey(((long) start << 33) | ((long) end << 2) | strand);
+			keys.put(chr, chrKeys);
+			sizes.put(chr, size + 1);
+		}
+		br.close();
+
+		String[] names = keys.keySet().toArray(new String[keys.size()]);
+		Arrays.sort(names, KARYOTYPIC_ORDER);
+		Chromosome[] chromosomes = new Chromosome[names.length];
+		long offset = 0;
+		for (int c = 0; c < names.length; c++) {
+			long[] chrKeys = keys.remove(names[c]);
+			int size = sizes.get(names[c]);
+			Arrays.sort(chrKeys, 0, size);
+			int[] starts = new int[size];
+			int[] ends = new int[size];
+			byte[] strands = new byte[size];
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				long key = sortKey(chrKeys[i]);
+				int start = (int) (key >>> 33);
+				int end = (int) ((key >>> 2) & 0x7FFFFFFF);
+				if (n > 0 && starts[n - 1] == start && ends[n - 1] == end) {
+					n--;
+				}
+				starts[n] = start;
+				ends[n] = end;
+				strands[n] = (byte) (key & 3);
+				n++;
+			}
+			chromosomes[c] = new Chromosome(names[c], offset, IntBuffer.wrap(Arrays.copyOf(starts, n)),
+					IntBuffer.wrap(Arrays.copyOf(ends, n)), ByteBuffer.wrap(Arrays.copyOf(strands, n)));
+			offset += n;
+		}
+		return new CpgCatalog(chromosomes, null);
+	}
+
+	// start takes the sign bit, so flip it to sort the keys as unsigned
+	private static long sortKey(long key) {
+		return key ^ Long.MIN_VALUE;
+	}
+
+	private static CpgCatalog map(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		String[] names;
+		int[] sizes;
+		long headerSize;
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("Not a CpG catalog file: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported CpG catalog version " + version + " in " + path);
+			names = new String[in.readInt()];
+			sizes = new int[names.length];
+			for (int c = 0; c < names.length; c++) {
+				names[c] = in.readUTF();
+				sizes[c] = in.readInt();
+			}
+			headerSize = headerSize(names);
+		} finally {
+			in.close();
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		FileChannel channel = file.getChannel();
+		Chromosome[] chromosomes = new Chromosome[names.length];
+		long position = headerSize;
+		long offset = 0;
+		for (int c = 0; c < names.length; c++) {
+			long size = sizes[c];
+			if (position + size * 9 > channel.size()) {
+				file.close();
+				throw new IllegalArgumentException("Truncated CpG catalog file: " + path);
+			}
+			IntBuffer starts = channel.map(FileChannel.MapMode.READ_ONLY, position, size * 4).asIntBuffer();
+			IntBuffer ends = channel.map(FileChannel.MapMode.READ_ONLY, position + size * 4, size * 4).asIntBuffer();
+			ByteBuffer strands = channel.map(FileChannel.MapMode.READ_ONLY, position + size * 8, size);
+			chromosomes[c] = new Chromosome(names[c], offset, starts, ends, strands);
+			position += size * 9;
+			offset += size;
+		}
+		return new CpgCatalog(chromosomes, file);
+	}
+
+	private static long headerSize(String[] names) throws IOException {
+		DataOutputStream header = new DataOutputStream(new ByteArrayOutputStream());
+		writeHeader(header, names, new int[names.length]);
+		return header.size();
+	}
+
+	private static void writeHeader(DataOutputStream out, String[] names, int[] sizes) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(names.length);
+		for (int c = 0; c < names.length; c++) {
+			out.writeUTF(names[c]);
+			out.writeInt(sizes[c]);
+		}
+	}
+
+	/**
+	 * Saves the catalog in the binary format, to be loaded with
+	 * {@link #load(String)}.
+	 */
+	public void write(String path) throws IOException {
+		String[] names = new String[chromosomes.length];
+		int[] sizes = new int[chromosomes.length];
+		for (int c = 0; c < chromosomes.length; c++) {
+			names[c] = chromosomes[c].name;
+			sizes[c] = chromosomes[c].size();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		writeHeader(out, names, sizes);
+		for (Chromosome chromosome : chromosomes) {
+			for (int i = 0; i < chromosome.size(); i++) {
+				out.writeInt(chromosome.start(i));
+			}
+			for (int i = 0; i < chromosome.size(); i++) {
+				out.writeInt(chromosome.end(i));
+			}
+			for (int i = 0; i < chromosome.size(); i++) {
+				out.writeByte(chromosome.strands.get(i));
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * @return The chromosome names in karyotypic order.
+	 */
+	public String[] chromosomes() {
+		String[] names = new String[chromosomes.length];
+		for (int c = 0; c < chromosomes.length; c++) {
+			names[c] = chromosomes[c].name;
+		}
+		return names;
+	}
+
+	/**
+	 * @return The CpGs of <code>chr</code>, null if it has none.
+	 */
+	public Chromosome chromosome(String chr) {
+		return byName.get(chr);
+	}
+
+	/**
+	 * @return The total number of CpGs.
+	 */
+	public long size() {
+		if (chromosomes.length == 0) {
+			return 0;
+		}
+		Chromosome last = chromosomes[chromosomes.length - 1];
+		return last.offset + last.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+
+	/**
+	 * CpGs of one chromosome sorted by (start, end), addressed by their index.
+	 */
+	public static class Chromosome {
+		private final String name;
+		private final long offset;
+		private final IntBuffer starts;
+		private final IntBuffer ends;
+		private final ByteBuffer strands;
+
+		Chromosome(String name, long offset, IntBuffer starts, IntBuffer ends, ByteBuffer strands) {
+			this.name = name;
+			this.offset = offset;
+			this.starts = starts;
+			this.ends = ends;
+			this.strands = strands;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public int size() {
+			return starts.limit();
+		}
+
+		/**
+		 * @return The number of CpGs in the chromosomes before this one, so that
+		 *         <code>offset() + i</code> numbers the CpGs of the whole catalog.
+		 */
+		public long offset() {
+			return offset;
+		}
+
+		public int start(int i) {
+			return starts.get(i);
+		}
+
+		public int end(int i) {
+			return ends.get(i);
+		}
+
+		/**
+		 * @return "+", "-", or "." when the BED file has no strand.
+		 */
+		public String strand(int i) {
+			return STRANDS[strands.get(i)];
+		}
+
+		/**
+		 * Same as IntervalTree.min(start, end): the index of the first CpG >=
+		 * (start, end) in (start, end) order, size() if there is none.
+		 */
+		public int ceiling(int start, int end) {
+			int lo = 0;
+			int hi = size();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int s = starts.get(mid);
+				if (s < start || (s == start && ends.get(mid) < end)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Same as IntervalTree.max(start, end): the index of the last CpG <=
+		 * (start, end) in (start, end) order, -1 if there is none.
+		 */
+		public int floor(int start, int end) {
+			int i = ceiling(start, end);
+			if (i < size() && starts.get(i) == start && ends.get(i) == end) {
+				return i;
+			}
+			return i - 1;
+		}
+
+		/**
+		 * Signed distance from the i-th CpG to [start, end], as
+		 * CcInferenceUtils.intervalDistance for an IntervalTree node holding the
+		 * strand.
+		 */
+		public int distance(int i, int start, int end) {
+			return CcInferenceUtils.intervalDistance(start(i), end(i), strand(i), start, end);
+		}
+	}
+
+	/**
+	 * Saves a BED file of CpGs as a binary catalog.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("CpgCatalog cpg_list.bed[.gz] cpg_list" + EXTENSION);
+			System.exit(1);
+		}
+		log.info("Loading CpG interval file ... ");
+		CpgCatalog catalog = fromBed(args[0]);
+		log.info("Writing " + catalog.size() + " CpGs in " + catalog.chromosomes.length + " chromosomes ... ");
+		catalog.write(args[1]);
+		log.info("Done");
+	}
+
+}
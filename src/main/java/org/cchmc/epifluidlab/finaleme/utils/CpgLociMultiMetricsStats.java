@@ -13,7 +13,6 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.util.Interval;
-import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.IntervalTree;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.IntervalTree.Node;
@@ -32,21 +31,16 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
-import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
 import org.broadinstitute.gatk.utils.BaseUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import edu.unc.genomics.io.BigWigFileReader;
-
 /**
  *
  */
@@ -64,7 +58,7 @@ public class CpgLociMultiMetricsStats {
 	@Option(name="-maxCov",usage="maximum coverage allowed to check. Default: 250")
 	public int maxCov = 250;
 	
-	@Option(name="-kmerLen",usage="the K-mer length to check. Default: 4")
+	@Option(name="-kmerLen",usage="the K-mer length to check, at most 12. Default: 4")
 	public int kmerLen = 4;
 
 	@Option(name="-kmerString",usage="the fiel contain selected K-mer to check. Otherwise, use -kmerLen to automately generate all the k-mer. Default: null")
@@ -126,6 +120,8 @@ public class CpgLociMultiMetricsStats {
 					{
 						if(help || args.length < 4) throw new CmdLineException(parser, USAGE, new Throwable());
 						parser.parseArgument(args);
+						if(kmerLen > KmerCounter.MAX_K)
+							throw new CmdLineException(parser, "-kmerLen can not be larger than " + KmerCounter.MAX_K + ": " + kmerLen, new Throwable());
 						
 					
 					}
@@ -149,7 +145,8 @@ public class CpgLociMultiMetricsStats {
 					
 					//initiate different kinds of reader
 					//reference genome
-					TwoBitParser refParser = new TwoBitParser(new File(refFile));
+					TwoBitReference reference = new TwoBitReference(new File(refFile));
+					TwoBitReference.Chromosome refChr = null;
 					
 					//String[] names = p.getSequenceNames();
 					//for(int i=0;i<names.length;i++) {
@@ -318,11 +315,11 @@ public class CpgLociMultiMetricsStats {
 						
 					}
 					
-					HashMap<String, Pair<Integer, BigWigFileReader>> valueWigReaders = null;
+					HashMap<String, Pair<Integer, BigWigValueCache>> valueWigReaders = null;
 					LinkedHashSet<String> valueWigLocString = new LinkedHashSet<String>();
 					if(valueWigs != null){
 						log.info("Loading value interval big wig file ... ");
-						valueWigReaders =  new HashMap<String, Pair<Integer,BigWigFileReader>>();
+						valueWigReaders =  new HashMap<String, Pair<Integer, BigWigValueCache>>();
 						for(String valueWigString : valueWigs){
 							String[] splitStrings = valueWigString.split(":");
 							if(splitStrings.length < 3){
@@ -332,7 +329,7 @@ public class CpgLociMultiMetricsStats {
 							int valueWigExt = Integer.parseInt(splitStrings[1]);
 							String valueRegion = splitStrings[2];
 							valueWigLocString.add(valueWigName);
-							valueWigReaders.put(valueWigName,new Pair<Integer, BigWigFileReader>(valueWigExt,new BigWigFileReader(new File(valueRegion).toPath())));
+							valueWigReaders.put(valueWigName,new Pair<Integer, BigWigValueCache>(valueWigExt,new BigWigValueCache(new File(valueRegion))));
 						}
 						
 					}
@@ -393,44 +390,28 @@ public class CpgLociMultiMetricsStats {
 					
 					
 					log.info("Loading CpG interval file ... ");	 //CpG file need to be merged two strand file (so the distance to next CpG is not always the other strand one...)
-					IntervalList cpgCollectionsUnsorted = new IntervalList(wgsReader.getFileHeader());
-					BufferedReader br = new BufferedReader(new FileReader(cpgListFile));
-					String line;
-					while( (line = br.readLine()) != null){
-						if(line.startsWith("#"))
-							continue;
-						String[] splitLines = line.split("\t");
-						if(splitLines.length<3){
-							continue;
-						}else{
-							String chr = splitLines[0];
-							int start = Integer.parseInt(splitLines[1])+1;
-							int end = Integer.parseInt(splitLines[2]);
-							if(splitLines.length < 6){
-								cpgCollectionsUnsorted.add(new Interval(chr, start, end));
-							}else{
-								boolean negStrand = splitLines[5].equalsIgnoreCase("-") ? true : false;
-								cpgCollectionsUnsorted.add(new Interval(chr, start, end, negStrand, splitLines[3]));
-							}
-						}
-						
-					}
-					br.close();
-					IntervalList cpgCollections = cpgCollectionsUnsorted.sorted();
+					CpgCatalog cpgCatalog = CpgCatalog.load(cpgListFile);
+					String[] cpgChrs = cpgCatalog.chromosomes();
 					
 					log.info("Get total reads number used for scaling ... ");
-					SAMRecordIterator wgsIt = wgsReader.iterator();
-					double readsNumTotal = 0;
-					while(wgsIt.hasNext()){
-						wgsIt.next();
-						readsNumTotal++;
+					//the bam index records the number of reads, so only count them in the bam file when the index has no meta data
+					double readsNumTotal = CcInferenceUtils.totalReadsFromIndex(wgsReader);
+					SAMRecordIterator wgsIt;
+					if(readsNumTotal < 0){
+						log.warn("No read count in the bam index, count the reads in bam file ... ");
+						readsNumTotal = 0;
+						wgsIt = wgsReader.iterator();
+						while(wgsIt.hasNext()){
+							wgsIt.next();
+							readsNumTotal++;
+						}
+						wgsIt.close();
 					}
-					wgsIt.close();
 					log.info((long)readsNumTotal + " reads in total ...");
 					readsNumTotal = readsNumTotal/1000000;
 					log.info("Output value for each CpG loci ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//basic
 					writer.write("chr\tstart\tend\tmethyLevel\tnorm_frag_cov\tcpg_strand\tmethylationReads\tfragSB\tdist_nearest_CpG");
@@ -459,18 +440,27 @@ public class CpgLociMultiMetricsStats {
 					
 					
 					String prevChr = "";
-					for( int i = 0; i < cpgCollections.size(); i++){
+					//k-mers of length 2 to kmerLen are counted once per window, with the same counter for every CpG
+					KmerCounter kmerCounter = kmerLen >= 2 ? new KmerCounter(2, kmerLen) : null;
+					//i numbers the CpGs of all the chromosomes, cpgIndex the CpGs of the current chromosome
+					CpgCatalog.Chromosome cpgs = null;
+					int c = -1;
+					for( long i = 0; i < cpgCatalog.size(); i++){
 						//log.info("start" + i);
-						Interval cpg = cpgCollections.getIntervals().get(i);
-						String chr = cpg.getContig();
-						int start = cpg.getStart();
-						int end = cpg.getEnd();
+						while(cpgs == null || i >= cpgs.offset() + cpgs.size()){
+							cpgs = cpgCatalog.chromosome(cpgChrs[++c]);
+						}
+						int cpgIndex = (int)(i - cpgs.offset());
+						String chr = cpgs.name();
+						int start = cpgs.start(cpgIndex)+1;
+						int end = cpgs.end(cpgIndex);
+						Interval cpg = new Interval(chr, start, end);
 						int fragMostLeft = start;
 						int fragMostRight = end;
 						wgsIt = wgsReader.queryOverlapping(chr,start,end);
 						HashMap<String, SAMRecord> countedReads = new HashMap<String, SAMRecord>();
 						
-						//log.info("testincpg" + i + "\t" + cpgCollections.size() + "\t" + wgsIt.hasNext() + "\t" + chr + "\t" + start + "\t" + end);
+						//log.info("testincpg" + i + "\t" + cpgCatalog.size() + "\t" + wgsIt.hasNext() + "\t" + chr + "\t" + start + "\t" + end);
 						int readNumber =0;
 						while(wgsIt.hasNext()){
 							SAMRecord r = wgsIt.next();
@@ -562,10 +552,10 @@ public class CpgLociMultiMetricsStats {
 						double normalizedFragCov = (double)countedReads.size()/readsNumTotal;
 						//System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" + readsNumTotal);
 						if(!chr.equalsIgnoreCase(prevChr)){
-							refParser.setCurrentSequence(chr);
+							refChr = reference.chromosome(chr);
 							prevChr = chr;
 						}
-						byte[] refBasesExt = refParser.loadFragment(end - kmerExt+1, kmerExt*2+1).getBytes();
+						byte[] refBasesExt = refChr.slice(end - kmerExt+1, kmerExt*2+1);
 						byte refBase = refBasesExt[kmerExt];
 						
 						
@@ -575,20 +565,20 @@ public class CpgLociMultiMetricsStats {
 						boolean cpgNegStrand = false;
 						double nearestCpg = Double.NaN;
 						if(BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)){
-							if(i < cpgCollections.size()-2){
+							if(i < cpgCatalog.size()-2){
 								if(i>=1){
-									Interval downstreamCpg = cpgCollections.getIntervals().get(i+2);
-									Interval upstreamCpg = cpgCollections.getIntervals().get(i-1);
-									nearestCpg = Math.min(Math.abs(CcInferenceUtils.intervalDistance(downstreamCpg, cpg)),Math.abs(CcInferenceUtils.intervalDistance(upstreamCpg, cpg)));
+									int downstreamDistance = neighbourDistance(cpgs, cpgIndex+2, cpg);
+									int upstreamDistance = neighbourDistance(cpgs, cpgIndex-1, cpg);
+									nearestCpg = Math.min(downstreamDistance,upstreamDistance);
 									
 								}else{
-									Interval downstreamCpg = cpgCollections.getIntervals().get(i+2);
-									nearestCpg = Math.abs(CcInferenceUtils.intervalDistance(downstreamCpg, cpg));
+									int downstreamDistance = neighbourDistance(cpgs, cpgIndex+2, cpg);
+									nearestCpg = downstreamDistance;
 								}
 							}else{
 								if(i>=1){
-									Interval upstreamCpg = cpgCollections.getIntervals().get(i-1);
-									nearestCpg = Math.abs(CcInferenceUtils.intervalDistance(upstreamCpg, cpg));
+									int upstreamDistance = neighbourDistance(cpgs, cpgIndex-1, cpg);
+									nearestCpg = upstreamDistance;
 								}else{
 									
 								}
@@ -596,19 +586,19 @@ public class CpgLociMultiMetricsStats {
 						}else if(BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)){
 							cpgNegStrand = true;
 							if(i >= 2){
-								if(i < cpgCollections.size()-1){
-									Interval downstreamCpg = cpgCollections.getIntervals().get(i+1);
-									Interval upstreamCpg = cpgCollections.getIntervals().get(i-2);
-									nearestCpg = Math.min(Math.abs(CcInferenceUtils.intervalDistance(downstreamCpg, cpg)),Math.abs(CcInferenceUtils.intervalDistance(upstreamCpg, cpg)));
+								if(i < cpgCatalog.size()-1){
+									int downstreamDistance = neighbourDistance(cpgs, cpgIndex+1, cpg);
+									int upstreamDistance = neighbourDistance(cpgs, cpgIndex-2, cpg);
+									nearestCpg = Math.min(downstreamDistance,upstreamDistance);
 									
 								}else{
-									Interval upstreamCpg = cpgCollections.getIntervals().get(i-2);
-									nearestCpg = Math.abs(CcInferenceUtils.intervalDistance(upstreamCpg, cpg));
+									int upstreamDistance = neighbourDistance(cpgs, cpgIndex-2, cpg);
+									nearestCpg = upstreamDistance;
 								}
 							}else{
-								if(i < cpgCollections.size()-1){
-									Interval downstreamCpg = cpgCollections.getIntervals().get(i+1);
-									nearestCpg = Math.abs(CcInferenceUtils.intervalDistance(downstreamCpg, cpg));
+								if(i < cpgCatalog.size()-1){
+									int downstreamDistance = neighbourDistance(cpgs, cpgIndex+1, cpg);
+									nearestCpg = downstreamDistance;
 								}else{
 									
 								}
@@ -618,8 +608,8 @@ public class CpgLociMultiMetricsStats {
 							refBasesExt = BaseUtils.simpleReverseComplement(refBasesExt);
 						}
 						HashMap<String, Double> kmerMapsRef = new HashMap<String, Double>();
-						for(int j = 2; j <= kmerLen; j++){
-								kmerMapsRef.putAll(CcInferenceUtils.kmerFreqSearch(refBasesExt, j));
+						if(kmerCounter != null){
+								CcInferenceUtils.kmerFreqSearch(refBasesExt, kmerCounter, kmerMapsRef);
 								
 						}
 						//overlap with feature in reference genome
@@ -718,24 +708,13 @@ public class CpgLociMultiMetricsStats {
 							for(String key : valueWigReaders.keySet()){
 								int range = valueWigReaders.get(key).getFirst();
 								if(range < 0){
-									BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
+									BigWigValueCache.Chromosome wigChr = valueWigReaders.get(key).getSecond().chromosome(chr);
 									range = 0-range;
-									SummaryStatistics statFeature = wigReader.queryStats(chr, (start-range <= 0 ? 1 : start-range), end+range);
-									
-									if(statFeature.getN()>0){
-										valWigStatCollections.put(key, (double)statFeature.getSum()/(double)(range*2+1));
-									}else{
-										valWigStatCollections.put(key, Double.NaN);
-									}
+									valWigStatCollections.put(key, wigChr.sum((start-range <= 0 ? 1 : start-range), end+range)/(double)(range*2+1));
 									
 								}else{
-									BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
-									SummaryStatistics statFeature = wigReader.queryStats(chr, start-range, end+range);
-									if(statFeature.getN()>0){
-										valWigStatCollections.put(key, statFeature.getMean());
-									}else{
-										valWigStatCollections.put(key, Double.NaN);
-									}
+									BigWigValueCache.Chromosome wigChr = valueWigReaders.get(key).getSecond().chromosome(chr);
+									valWigStatCollections.put(key, wigChr.mean(start-range, end+range));
 								}
 								
 								
@@ -885,7 +864,7 @@ public class CpgLociMultiMetricsStats {
 					
 					
 					wgsReader.close();
-					refParser.close();
+					reference.close();
 
 					
 					if(valueBedReaders != null){
@@ -904,6 +883,14 @@ public class CpgLociMultiMetricsStats {
 	}
 	
 	
+	//absolute distance to the CpG j of the chromosome, the largest distance when it is out of the chromosome (as for a CpG of the next chromosome)
+	private static int neighbourDistance(CpgCatalog.Chromosome cpgs, int j, Interval cpg){
+		if(j < 0 || j >= cpgs.size()){
+			return Integer.MAX_VALUE;
+		}
+		return Math.abs(CcInferenceUtils.intervalDistance(new Interval(cpgs.name(), cpgs.start(j)+1, cpgs.end(j)), cpg));
+	}
+	
 	private boolean failFlagFilter(SAMRecord r){
 		return r.getReadUnmappedFlag() || r.getNotPrimaryAlignmentFlag() || r.getMappingQuality() < minMapQ
 				|| r.getReadFailsVendorQualityCheckFlag() || r.getDuplicateReadFlag() || !r.getReadPairedFlag() || !r.getProperPairFlag();
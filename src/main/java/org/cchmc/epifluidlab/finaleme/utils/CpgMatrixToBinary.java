@@ -0,0 +1,257 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.log4j.Logger;
+import org.cchmc.epifluidlab.finaleme.hmm.FragmentMatrixFile;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+
+/**
+ * Converts the CpG detail matrix of CpgMultiMetricsStats (text or gzipped text)
+ * into the binary, memory-mappable format read by FinaleMe (see
+ * {@link FragmentMatrixFile}). The input needs to be coordinate-sorted (the
+ * output order of CpgMultiMetricsStats): a fragment is written as soon as the
+ * scan is past its end, so only the fragments overlapping the current position
+ * are held in memory, whatever the size of the matrix.
+ */
+public class CpgMatrixToBinary {
+
+	@Option(name="-minFragLen",usage="minimum fragment length used for the feature statistics in the header, should be the same as FinaleMe's -minFragLen. default: 30")
+	public int minFragLen = 30;
+
+	@Option(name="-maxFragLen",usage="maximum fragment length used for the feature statistics in the header, should be the same as FinaleMe's -maxFragLen. fragments are also kept open for at least this distance from their first CpG. default: 500")
+	public int maxFragLen = 500;
+
+	@Option(name="-h",usage="show option information")
+	public boolean help = false;
+
+	final private static String USAGE = "CpgMatrixToBinary [opts] input_matrix.txt.gz output" + FragmentMatrixFile.EXTENSION;
+
+	@Argument
+	private List<String> arguments = new ArrayList<String>();
+
+	private static Logger log = Logger.getLogger(CpgMatrixToBinary.class);
+	private static long startTime = -1;
+
+	private long nbRows = 0;
+	private long nbFragments = 0;
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		CpgMatrixToBinary cmtb = new CpgMatrixToBinary();
+		cmtb.doMain(args);
+	}
+
+	public void doMain(String[] args)
+			throws Exception {
+
+		CmdLineParser parser = new CmdLineParser(this);
+		//parser.setUsageWidth(80);
+		try
+		{
+			if(help || args.length < 2) throw new CmdLineException(parser, USAGE, new Throwable());
+			parser.parseArgument(args);
+
+
+		}
+		catch (CmdLineException e)
+		{
+			System.err.println(e.getMessage());
+			// print the list of available options
+			parser.printUsage(System.err);
+			System.err.println();
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		String inputFile = arguments.get(0);
+		String outputFile = arguments.get(1);
+		if(!FragmentMatrixFile.isBinary(outputFile)){
+			throw new IllegalArgumentException("Output file name should end with " + FragmentMatrixFile.EXTENSION + ": " + outputFile);
+		}
+
+		//the writer reads the statistics when it writes the header at the end
+		SummaryStatistics[] stats = new SummaryStatistics[FragmentMatrixFile.FEATURES];
+		for(int i = 0; i < stats.length; i++){
+			stats[i] = new SummaryStatistics();
+		}
+		FragmentMatrixFile.Writer writer = new FragmentMatrixFile.Writer(outputFile, minFragLen, maxFragLen, stats);
+
+		log.info("Converting input matrix ... ");
+		//fragments in order of first appearance, so the first one is the first to end
+		LinkedHashMap<Long, OpenFragment> openFragments = new LinkedHashMap<Long, OpenFragment>();
+		HashSet<String> finishedChrs = new HashSet<String>();
+		String chr = null;
+		int currentStart = -1;
+		TabFieldReader fields = TabFieldReader.open(inputFile);
+		while(fields.next()){
+			if(fields.startsWith('#'))
+				continue;
+			if(fields.fieldCount() < 12 || fields.fieldEqualsIgnoreCase(1, "start")){
+				continue;
+			}
+			int start = fields.intField(1);
+			if(chr == null || !fields.fieldEquals(0, chr)){
+				if(chr != null){
+					writeFragments(writer, openFragments, Integer.MAX_VALUE);
+					finishedChrs.add(chr);
+				}
+				chr = fields.field(0);
+				if(finishedChrs.contains(chr)){
+					throw new IllegalArgumentException("Input matrix is not coordinate-sorted, " + chr + " appears in more than one block");
+				}
+				writer.startBlock(chr);
+				currentStart = -1;
+			}else if(start < currentStart){
+				throw new IllegalArgumentException("Input matrix is not coordinate-sorted at " + chr + ":" + start + " after " + chr + ":" + currentStart);
+			}
+			if(start > currentStart){
+				currentStart = start;
+				writeFragments(writer, openFragments, start);
+			}
+
+			long fragmentId = fields.fragmentIdField(3);
+			OpenFragment fragment = openFragments.get(fragmentId);
+			if(fragment == null){
+				fragment = new OpenFragment(chr, start, fields.intField(4));
+				openFragments.put(fragmentId, fragment);
+			}
+			int row = fragment.addRow();
+			int fragLen = fields.intField(4);
+			fragment.ends[row] = fields.intField(2);
+			fragment.fragLens[row] = fragLen;
+			fragment.strands[row] = fields.fieldByte(5, 0);
+			fragment.observed[row] = FragmentMatrixFile.observedState(fields, 6);
+			fragment.covs[row] = fields.doubleField(7);
+			fragment.baseQs[row] = fields.floatField(8);
+			fragment.offsets[row] = fields.intField(9);
+			fragment.distFragEnds[row] = fields.doubleField(10);
+			fragment.methyPriors[row] = fields.doubleField(11);
+			fragment.starts[row] = start;
+
+			//same filter as the feature statistics of FinaleMe
+			if(fragLen < maxFragLen && fragLen > minFragLen && fragment.baseQs[row] > 5 && fragment.offsets[row] >= 0 && !Double.isNaN(fragment.methyPriors[row])){
+				stats[0].addValue(fragLen);
+				stats[1].addValue(fragment.covs[row]);
+				stats[2].addValue((double)fragLen/2-fragment.distFragEnds[row]+0.5);
+			}
+			nbRows++;
+		}
+		fields.close();
+		writeFragments(writer, openFragments, Integer.MAX_VALUE);
+		writer.close();
+		log.info(nbRows + " CpG rows in " + nbFragments + " fragments are converted");
+		for(int i = 0; i < stats.length; i++){
+			log.info("Feature " + i + ": " + stats[i]);
+		}
+		finish();
+	}
+
+	//write the fragments that could not get more rows once the scan is at position, in order of first appearance
+	private void writeFragments(FragmentMatrixFile.Writer writer, LinkedHashMap<Long, OpenFragment> openFragments, int position) throws IOException{
+		Iterator<OpenFragment> it = openFragments.values().iterator();
+		while(it.hasNext()){
+			OpenFragment fragment = it.next();
+			if(position != Integer.MAX_VALUE && position - fragment.firstStart <= Math.max(fragment.fragLen, maxFragLen)){
+				break;
+			}
+			fragment.sortByOffset();
+			for(int i = 0; i < fragment.nbRows; i++){
+				writer.addRecord(fragment.chr, fragment.starts[i], fragment.ends[i], fragment.fragLens[i], fragment.offsets[i], fragment.covs[i], fragment.distFragEnds[i],
+						fragment.methyPriors[i], fragment.baseQs[i], fragment.observed[i], (char)fragment.strands[i]);
+			}
+			writer.endFragment();
+			nbFragments++;
+			it.remove();
+		}
+	}
+
+	//rows of a fragment not written yet, in file order
+	private static class OpenFragment{
+		final String chr;
+		final int firstStart;
+		final int fragLen;
+		int nbRows = 0;
+		int[] starts = new int[4];
+		int[] ends = new int[4];
+		int[] fragLens = new int[4];
+		int[] offsets = new int[4];
+		double[] covs = new double[4];
+		double[] distFragEnds = new double[4];
+		double[] methyPriors = new double[4];
+		float[] baseQs = new float[4];
+		byte[] observed = new byte[4];
+		byte[] strands = new byte[4];
+
+		OpenFragment(String chr, int firstStart, int fragLen){
+			this.chr = chr;
+			this.firstStart = firstStart;
+			this.fragLen = fragLen;
+		}
+
+		int addRow(){
+			if(nbRows == starts.length){
+				int capacity = nbRows * 2;
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+				fragLens = Arrays.copyOf(fragLens, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				covs = Arrays.copyOf(covs, capacity);
+				distFragEnds = Arrays.copyOf(distFragEnds, capacity);
+				methyPriors = Arrays.copyOf(methyPriors, capacity);
+				baseQs = Arrays.copyOf(baseQs, capacity);
+				observed = Arrays.copyOf(observed, capacity);
+				strands = Arrays.copyOf(strands, capacity);
+			}
+			return nbRows++;
+		}
+
+		//stable insertion sort by offset, fragments are short
+		void sortByOffset(){
+			for(int i = 1; i < nbRows; i++){
+				int j = i;
+				while(j > 0 && offsets[j - 1] > offsets[j]){
+					swap(j - 1, j);
+					j--;
+				}
+			}
+		}
+
+		private void swap(int a, int b){
+			int t = starts[a]; starts[a] = starts[b]; starts[b] = t;
+			t = ends[a]; ends[a] = ends[b]; ends[b] = t;
+			t = fragLens[a]; fragLens[a] = fragLens[b]; fragLens[b] = t;
+			t = offsets[a]; offsets[a] = offsets[b]; offsets[b] = t;
+			double d = covs[a]; covs[a] = covs[b]; covs[b] = d;
+			d = distFragEnds[a]; distFragEnds[a] = distFragEnds[b]; distFragEnds[b] = d;
+			d = methyPriors[a]; methyPriors[a] = methyPriors[b]; methyPriors[b] = d;
+			float f = baseQs[a]; baseQs[a] = baseQs[b]; baseQs[b] = f;
+			byte c = observed[a]; observed[a] = observed[b]; observed[b] = c;
+			c = strands[a]; strands[a] = strands[b]; strands[b] = c;
+		}
+	}
+
+	private void finish(){
+		long endTime   = System.currentTimeMillis();
+		double totalTime = endTime - startTime;
+		totalTime /= 1000;
+		double totalTimeMins = totalTime/60;
+		double totalTimeHours = totalTime/3600;
+
+		log.info("CpgMatrixToBinary's running time is: " + String.format("%.2f",totalTime) + " secs, " + String.format("%.2f",totalTimeMins) +  " mins, " + String.format("%.2f",totalTimeHours) +  " hours");
+	}
+
+}
@@ -8,17 +8,11 @@ package org.cchmc.epifluidlab.finaleme.utils;
 
 import htsjdk.samtools.util.SequenceUtil;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
@@ -94,36 +88,25 @@ public class CpgMetricsAddKmer {
 					//initiate different kinds of reader
 					//reference genome
 					TwoBitParser refParser = new TwoBitParser(new File(refFile));
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFile)), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(new FileOutputStream(outputFile)), "UTF-8");
 					
 					//basic
 					
 					log.info("Loading file ... ");
 					
-						GZIPInputStream gzipInputStream1 = null;
-						BufferedReader br;
-						if(inputFile.endsWith(".gz")){
-							gzipInputStream1 = new GZIPInputStream(new FileInputStream(inputFile));
-							br = new BufferedReader(new InputStreamReader(gzipInputStream1));
+						TabFieldReader fields = TabFieldReader.open(inputFile);
 							
-						}else{
-							br = new BufferedReader(new FileReader(inputFile));
-						}
-							
-							String line;
 							String prevChr = "";
-							while( (line = br.readLine()) != null){
-								String[] splitLines = line.split("\t");
-								if(line.startsWith("#") || splitLines[1].equalsIgnoreCase("start") || splitLines.length<3)
+							while(fields.next()){
+								if(fields.startsWith('#') || fields.fieldEqualsIgnoreCase(1, "start") || fields.fieldCount()<3)
 									continue;
 								
-								String chr = splitLines[0];
+								String chr = fields.field(0);
 								if(addChr){
 									chr = "chr" + chr;
 								}
-								int start = Integer.parseInt(splitLines[1]);
-								int end = Integer.parseInt(splitLines[2]);
-								String strand = splitLines[5];
+								int start = fields.intField(1);
+								int end = fields.intField(2);
 								if(!chr.equalsIgnoreCase(prevChr)){
 									refParser.close();
 									refParser.setCurrentSequence(chr);
@@ -131,16 +114,13 @@ public class CpgMetricsAddKmer {
 								}
 								byte[] refBasesExt = CcInferenceUtils.toUpperCase(refParser.loadFragment(end-1-kmerLen, kmerLen*2+1).getBytes());
 								
-								if(strand.equalsIgnoreCase("-")){
+								if(fields.fieldEqualsIgnoreCase(5, "-")){
 									SequenceUtil.reverseComplement(refBasesExt);
 								}
-								writer.write(line + "\t" + new String(refBasesExt) + "\n");
+								writer.write(fields.line() + "\t" + new String(refBasesExt) + "\n");
 								points++;
 							}
-							if(inputFile.endsWith(".gz")){
-								gzipInputStream1.close();
-							}
-							br.close();
+							fields.close();
 							writer.close();
 
 							refParser.closeParser();
@@ -16,7 +16,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
@@ -125,7 +124,7 @@ public class CpgMetricsAddKmerFreq {
 							br.close();
 							log.info("Writing file ... ");
 
-							OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFile)), "UTF-8");
+							OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(new FileOutputStream(outputFile)), "UTF-8");
 							gzipInputStream1 = null;
 							if(inputFile.endsWith(".gz")){
 								gzipInputStream1 = new GZIPInputStream(new FileInputStream(inputFile));
@@ -6,6 +6,12 @@
  */
 package org.cchmc.epifluidlab.finaleme.utils;
 
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BrowseableBAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
@@ -18,37 +24,34 @@ import htsjdk.tribble.CloseableTribbleIterator;
 import htsjdk.tribble.TabixFeatureReader;
 import htsjdk.tribble.bed.BEDCodec;
 import htsjdk.tribble.bed.BEDFeature;
+import htsjdk.tribble.index.tabix.TabixFormat;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap; // keyに対応するvalueを格納する辞書型データ構造を生成
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
-import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
 import org.broadinstitute.gatk.utils.BaseUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import edu.unc.genomics.io.BigWigFileReader;
-
 /**
  *
  */
@@ -72,7 +75,7 @@ public class CpgMultiMetricsStats {
 	public int maxDistToFragEnd = 250;
 
 	// カバレッジ正規化に使用するBAMファイル内の総リード数
-	@Option(name = "-totalReadsInBam", usage = "total number of reads used to normalize coverage column. default estimate from bam file by program. Default: -1")
+	@Option(name = "-totalReadsInBam", usage = "total number of reads used to normalize coverage column. default use the number of reads in the bam index, or count the reads passing the filters in the bam file when the index has no such meta data. Default: -1")
 	public long totalReadsInBam = -1;
 
 	// 高カバレッジCpGを除去するための閾値
@@ -80,7 +83,7 @@ public class CpgMultiMetricsStats {
 	public int maxCov = 250;
 
 	// k-merの最大の長さ
-	@Option(name = "-kmerLen", usage = "the K-mer length to check. Default: 0")
+	@Option(name = "-kmerLen", usage = "the K-mer length to check, at most 12. Default: 0")
 	public int kmerLen = 0;
 
 	// 使用するk-merを指定するファイル
@@ -142,6 +145,17 @@ public class CpgMultiMetricsStats {
 	@Option(name = "-useNoChrPrefixBam", usage = "use bam file with GRch37 instead of hg19 coordinate. Default: false")
 	public boolean useNoChrPrefixBam = false;
 
+	// spanに分けて並列に処理するスレッド数
+	@Option(name = "-threads", usage = "number of threads. the genome is split into spans of similar number of reads by the bam index, and the output does not depend on the number of threads. Default: 1")
+	public int threads = 1;
+
+	@Option(name = "-tabix", usage = "also write a tabix index (.tbi) of the detail file. Default: false")
+	public boolean tabix = false;
+
+	// リード名の代わりに64bitのフラグメントIDを出力する
+	@Option(name = "-fragmentId", usage = "write a 64-bit fragment id (a hash of the read name) in the readName column instead of the read name, to save memory and disk space in FinaleMe and the other tools reading the detail file. Default: false")
+	public boolean fragmentId = false;
+
 	@Option(name = "-h", usage = "show option information")
 	public boolean help = false;
 
@@ -157,6 +171,33 @@ public class CpgMultiMetricsStats {
 	private static long startTime = -1;
 	private static long points = 0;
 
+	// spanの区切りの単位（BAIの最下層ビン 16kb）と1スレッドあたりのspan数
+	private static final int SPAN_BIN_SHIFT = 14;
+	private static final int SPANS_PER_THREAD = 8;
+
+	// 読み込んだ区間・k-merなどは全spanで共有し、処理中は読み出しのみ行う
+	private String refFile;
+	private String wgsBamFile;
+	private CpgCatalog cpgCatalog;
+	private CpgCatalog allCpgCatalog;
+	private HashMap<String, HashMap<String, IntervalTree<Integer>>> overlapLocStringCollections;
+	private LinkedHashSet<String> overlapLocString;
+	private HashMap<String, HashMap<String, IntervalTree<String>>> distantLocStringCollections;
+	private LinkedHashSet<String> distantLocString;
+	private HashMap<String, Pair<Integer, String>> valueBedFiles;
+	private LinkedHashSet<String> valueBedLocString;
+	private HashMap<String, Pair<Integer, BigWigValueCache>> valueWigCaches;
+	private LinkedHashSet<String> valueWigLocString;
+	private LinkedHashSet<String> kmerCollections;
+	// kmerCollectionsの各列のk-merの長さと2-bitコード（kmerLen外や非ACGTは-1で、以前と同じく欠損値として出力）
+	private int[] kmerColumnLens;
+	private int[] kmerColumnCodes;
+	private TwoBitReference reference;
+	private double readsNumTotal = 0;
+	private final AtomicLong processedCpgs = new AtomicLong();
+	// -fragmentIdで出力したIDの索引（別のリード名が同じIDになっていないかを全spanで確かめる）
+	private FragmentIndex fragmentIds;
+
 	/**
 	 * @param args
 	 * @throws Exception
@@ -182,6 +223,9 @@ public class CpgMultiMetricsStats {
 				throw new CmdLineException(parser, USAGE, new Throwable());
 			// コマンドライン引数を変換・格納
 			parser.parseArgument(args);
+			// k-merの表はint[4^k]なので、長すぎるk-merはここで弾く
+			if (kmerLen > KmerCounter.MAX_K)
+				throw new CmdLineException(parser, "-kmerLen can not be larger than " + KmerCounter.MAX_K + ": " + kmerLen, new Throwable());
 
 		} catch (CmdLineException e) {
 			System.err.println(e.getMessage());
@@ -191,17 +235,17 @@ public class CpgMultiMetricsStats {
 		}
 
 		// 位置引数から入力ファイル・出力ファイルを取得
-		String refFile = arguments.get(0); // 参照ゲノム(2bit)
+		refFile = arguments.get(0); // 参照ゲノム(2bit)
 		String cpgListFile = arguments.get(1); // CpGリストファイル(BED)
 		String allCpgFile = arguments.get(2); // ゲノム全体のCpGファイル(BED)
-		String wgsBamFile = arguments.get(3); // WGS BAMファイル
+		wgsBamFile = arguments.get(3); // WGS BAMファイル
 		String detailFile = arguments.get(4); // HMMに渡すCpG × 特徴量ファイル(gzip)
 
 		// 開始時刻を記録
 		initiate();
 
-		// 2bit参照ゲノムファイルの読み込み
-		TwoBitParser refParser = new TwoBitParser(new File(refFile));
+		// 2bit参照ゲノムファイルの読み込み（染色体ごとに一度だけデコードし、全spanで共有）
+		reference = new TwoBitReference(new File(refFile), Math.max(threads, 2));
 
 		// String[] names = p.getSequenceNames();
 		// for(int i=0;i<names.length;i++) {
@@ -271,63 +315,16 @@ public class CpgMultiMetricsStats {
 
 		// -includeCpgDistオプションがTrueに指定された場合はCpG間の距離を計算（渡されたCpG座標を使用）
 		// keyに対応する除外区間を格納する辞書型データ構造を生成（染色体ごとにCpG座標を格納）
-		HashMap<String, IntervalTree<String>> allCpgLocCollections = new HashMap<String, IntervalTree<String>>();
+		allCpgCatalog = null;
 		if (includeCpgDist) {
 			log.info("Loading all CpG intervals ... ");
-			GZIPInputStream gzipInputStream = null;
-			BufferedReader br1;
-			// .gzファイルの場合はGZIPInputStreamを使用して読み込む
-			if (allCpgFile.endsWith(".gz")) {
-				gzipInputStream = new GZIPInputStream(new FileInputStream(allCpgFile));
-				br1 = new BufferedReader(new InputStreamReader(gzipInputStream));
-
-			} else {
-				br1 = new BufferedReader(new FileReader(allCpgFile));
-			}
-
-			String line1;
-
-			while ((line1 = br1.readLine()) != null) {
-				if (line1.startsWith("#"))
-					continue;
-				String[] splitLines = line1.split("\t");
-				if (splitLines.length < 3) {
-					continue;
-				}
-				String chr = splitLines[0];
-				int start = Integer.parseInt(splitLines[1]);
-				int end = Integer.parseInt(splitLines[2]);
-				IntervalTree<String> tree;
-
-				if (allCpgLocCollections.containsKey(chr)) {
-					tree = allCpgLocCollections.get(chr);
-				} else {
-					tree = new IntervalTree<String>();
-				}
-				// strandはゲノム配列に対する向きを示す
-				String strand = ".";
-				// strandがある場合は取得
-				if (splitLines.length >= 6) {
-					if (splitLines[5].equalsIgnoreCase("-")) {
-						strand = "-";
-					} else if (splitLines[5].equalsIgnoreCase("+")) {
-						strand = "+";
-					}
-					// strand = splitLines[5].equalsIgnoreCase("-") ? "-" : "+";
-				}
-				tree.put(start, end, strand);
-				allCpgLocCollections.put(chr, tree);
-			}
-			if (allCpgFile.endsWith(".gz")) {
-				gzipInputStream.close();
-			}
-			br1.close();
+			allCpgCatalog = CpgCatalog.load(allCpgFile);
 		}
 
 		// -overlapRegionsで指定されたBEDファイルの読み込み
 		// CpGがBED区間と重複するかどうかを追加カラムとして出力するために使用(0 or 1)
-		HashMap<String, HashMap<String, IntervalTree<Integer>>> overlapLocStringCollections = null;
-		LinkedHashSet<String> overlapLocString = new LinkedHashSet<String>();
+		overlapLocStringCollections = null;
+		overlapLocString = new LinkedHashSet<String>();
 		if (overlapRegions != null && !overlapRegions.isEmpty()) {
 			log.info("Overalpped intervals ... ");
 			overlapLocStringCollections = new HashMap<String, HashMap<String, IntervalTree<Integer>>>();
@@ -371,8 +368,8 @@ public class CpgMultiMetricsStats {
 
 		// -distantRegionsで指定されたBEDファイルの読み込み
 		// CpGからBED区間までの距離を追加カラムとして出力するために使用
-		HashMap<String, HashMap<String, IntervalTree<String>>> distantLocStringCollections = null;
-		LinkedHashSet<String> distantLocString = new LinkedHashSet<String>();
+		distantLocStringCollections = null;
+		distantLocString = new LinkedHashSet<String>();
 		if (distantRegions != null && !distantRegions.isEmpty()) {
 			log.info(" Intervals used to calculate distances... ");
 			distantLocStringCollections = new HashMap<String, HashMap<String, IntervalTree<String>>>();
@@ -425,11 +422,12 @@ public class CpgMultiMetricsStats {
 			}
 		}
 
-		HashMap<String, Pair<Integer, TabixFeatureReader<BEDFeature, ?>>> valueBedReaders = null;
-		LinkedHashSet<String> valueBedLocString = new LinkedHashSet<String>();
+		// リーダーはspanごとに開き、spanのCpGと同じ順に読む
+		valueBedFiles = null;
+		valueBedLocString = new LinkedHashSet<String>();
 		if (valueBeds != null) {
 			log.info("Loading value interval bed file ... ");
-			valueBedReaders = new HashMap<String, Pair<Integer, TabixFeatureReader<BEDFeature, ?>>>();
+			valueBedFiles = new HashMap<String, Pair<Integer, String>>();
 			for (String valueBedString : valueBeds) {
 				String[] splitStrings = valueBedString.split(":");
 				if (splitStrings.length < 3) {
@@ -439,17 +437,17 @@ public class CpgMultiMetricsStats {
 				int valueBedExt = Integer.parseInt(splitStrings[1]);
 				String valueRegion = splitStrings[2];
 				valueBedLocString.add(valueBedName);
-				valueBedReaders.put(valueBedName, new Pair<Integer, TabixFeatureReader<BEDFeature, ?>>(valueBedExt,
-						new TabixFeatureReader(valueRegion, new BEDCodec())));
+				valueBedFiles.put(valueBedName, new Pair<Integer, String>(valueBedExt, valueRegion));
 			}
 
 		}
 
-		HashMap<String, Pair<Integer, BigWigFileReader>> valueWigReaders = null;
-		LinkedHashSet<String> valueWigLocString = new LinkedHashSet<String>();
+		// 値は染色体ごとに一度だけ読み込んでメモリに保持し、全spanで共有する
+		valueWigCaches = null;
+		valueWigLocString = new LinkedHashSet<String>();
 		if (valueWigs != null) {
 			log.info("Loading value interval big wig file ... ");
-			valueWigReaders = new HashMap<String, Pair<Integer, BigWigFileReader>>();
+			valueWigCaches = new HashMap<String, Pair<Integer, BigWigValueCache>>();
 			for (String valueWigString : valueWigs) {
 				String[] splitStrings = valueWigString.split(":");
 				if (splitStrings.length < 3) {
@@ -459,8 +457,8 @@ public class CpgMultiMetricsStats {
 				int valueWigExt = Integer.parseInt(splitStrings[1]);
 				String valueRegion = splitStrings[2];
 				valueWigLocString.add(valueWigName);
-				valueWigReaders.put(valueWigName, new Pair<Integer, BigWigFileReader>(valueWigExt,
-						new BigWigFileReader(new File(valueRegion).toPath())));
+				valueWigCaches.put(valueWigName, new Pair<Integer, BigWigValueCache>(valueWigExt,
+						new BigWigValueCache(new File(valueRegion), Math.max(threads, 2))));
 			}
 
 		}
@@ -469,7 +467,7 @@ public class CpgMultiMetricsStats {
 		// -kmerString : 特徴量として扱いたいk-merを指定
 		// -kmerStringオプションで指定されたファイルからk-merを読み込むか、kmerLenオプションで指定された長さまでの全k-merを自動生成
 		// 最終的に列として出力するk-merの集合
-		LinkedHashSet<String> kmerCollections = new LinkedHashSet<String>(); // 重複なしで順序を保持する集合
+		kmerCollections = new LinkedHashSet<String>(); // 重複なしで順序を保持する集合
 		// k-merファイルが指定されていればそれを読み込む
 		if (kmerString != null) {
 			log.info("Loading selected K-mer file ... ");
@@ -493,6 +491,14 @@ public class CpgMultiMetricsStats {
 			}
 
 		}
+		kmerColumnLens = new int[kmerCollections.size()];
+		kmerColumnCodes = new int[kmerCollections.size()];
+		int kmerColumn = 0;
+		for (String key : kmerCollections) {
+			kmerColumnLens[kmerColumn] = key.length();
+			kmerColumnCodes[kmerColumn] = key.length() >= 2 && key.length() <= kmerLen ? KmerCounter.encode(key) : -1;
+			kmerColumn++;
+		}
 
 		// 出力ファイルの追加カラム名を準備
 		// headerという空の文字列を作成
@@ -532,72 +538,23 @@ public class CpgMultiMetricsStats {
 
 		// 解析対象CpGリストを染色体ごとにまとめて保持するための準備
 		log.info("Loading CpG interval file ... ");
-		// 解析対象CpGを染色体ごとに整理して持つ辞書
-		HashMap<String, IntervalTree<String>> cpgCollections = new HashMap<String, IntervalTree<String>>();
-		GZIPInputStream gzipInputStream1 = null;
-		BufferedReader br;
-		if (allCpgFile.endsWith(".gz")) {
-			gzipInputStream1 = new GZIPInputStream(new FileInputStream(cpgListFile));
-			br = new BufferedReader(new InputStreamReader(gzipInputStream1));
-
-		} else {
-			br = new BufferedReader(new FileReader(cpgListFile));
-		}
-
-		// 行を読むための変数を用意
-		String line;
-
-		while ((line = br.readLine()) != null) {
-			// コメント行や不要な行は無視
-			if (line.startsWith("#"))
-				continue;
-			String[] splitLines = line.split("\t");
-			if (splitLines.length < 3) {
-				continue;
-			}
-			// BEDファイルから染色体名を抽出
-			String chr = splitLines[0];
-			// 開始位置を抽出
-			int start = Integer.parseInt(splitLines[1]);
-			// 終了位置を抽出
-			int end = Integer.parseInt(splitLines[2]);
-			// key : 染色体名
-			// value : CpG区間の集合
-			IntervalTree<String> tree;
-
-			// cpgCollectionsは染色体→CpG集合の辞書
-			if (cpgCollections.containsKey(chr)) {
-				tree = cpgCollections.get(chr);
-			} else {
-				tree = new IntervalTree<String>();
-			}
-			// BED6以上だったらstrandを読んで登録
-			String strand = ".";
-			if (splitLines.length >= 6) {
-				if (splitLines[5].equalsIgnoreCase("-")) {
-					strand = "-";
-				} else if (splitLines[5].equalsIgnoreCase("+")) {
-					strand = "+";
-				}
-				// strand = splitLines[5].equalsIgnoreCase("-") ? "-" : "+";
-			}
-			tree.put(start, end, strand);
-			cpgCollections.put(chr, tree);
-		}
-		if (cpgListFile.endsWith(".gz")) {
-			gzipInputStream1.close();
-		}
-		br.close();
+		// 解析対象CpGを染色体ごとに座標順の配列で持つ（染色体は核型順）
+		cpgCatalog = CpgCatalog.load(cpgListFile);
 
 		// 正規化用の総リード数を計算
-		// -totalReadsInBamオプションが指定されていればそれを使用、そうでなければBAMファイルから計算
+		// -totalReadsInBamオプションが指定されていればそれを使用、そうでなければBAMインデックスのメタデータから取得
+		// （BAM全体をもう一度読まずに済む）。メタデータがない場合のみBAMファイルから計算
 		// 総リード数を入れる変数を準備
-		double readsNumTotal = 0;
+		readsNumTotal = 0;
+		long readsInIndex = -1;
 		if (totalReadsInBam > 0) {
 			log.info("Get total reads number used for scaling from input option -totalReadsInBam ... ");
 			readsNumTotal = totalReadsInBam;
+		} else if ((readsInIndex = CcInferenceUtils.totalReadsFromIndex(wgsReader)) > 0) {
+			log.info("Get total reads number used for scaling from bam index... ");
+			readsNumTotal = readsInIndex;
 		} else {
-			log.info("Get total reads number used for scaling from bam file... ");
+			log.warn("No read count in the bam index, get total reads number used for scaling from bam file... ");
 			SAMRecordIterator wgsIt = wgsReader.iterator();
 
 			while (wgsIt.hasNext()) {
@@ -619,561 +576,698 @@ public class CpgMultiMetricsStats {
 		readsNumTotal = readsNumTotal / 1000000;
 		log.info("Output value for each CpG in each DNA fragment ... ");
 		FileOutputStream output = new FileOutputStream(detailFile);
-		// 出力ファイルを開いてヘッダーを書き込む
-		OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+		// 出力ファイルを開いてヘッダーを書き込む（BGZFで圧縮し、-tabixなら索引も同時に作る）
+		BgzfOutputStream gzipOutput = tabix
+				? new BgzfOutputStream(output, threads, new TabixFormat(TabixFormat.UCSC_FLAGS, 1, 2, 3, '#', 1),
+						new File(detailFile + ".tbi"))
+				: new BgzfOutputStream(output, threads);
+		// spanのファイルにはヘッダー行がない
+		final TabixFormat spanFormat = new TabixFormat(TabixFormat.UCSC_FLAGS, 1, 2, 3, '#', 0);
+		OutputStreamWriter writer = new OutputStreamWriter(gzipOutput, "UTF-8");
 
 		// basic
 		writer.write(
-				"chr\tstart\tend\treadName\tFragLen\tFrag_strand\tmethy_stat\tNorm_Frag_cov\tbaseQ\tOffset_frag\tDist_frag_end");
+				"chr\tstart\tend\t" + (fragmentId ? "fragmentId" : "readName") + "\tFragLen\tFrag_strand\tmethy_stat\tNorm_Frag_cov\tbaseQ\tOffset_frag\tDist_frag_end");
 		if (includeCpgDist) {
 			writer.write("\tdist_nearest_CpG");
 		}
 		writer.write(header + "\n");
+		if (fragmentId) {
+			fragmentIds = new FragmentIndex();
+		}
 		// fragment k-mer
 
 		//
 
-		long i = 0;
-		String prevChr = "";
-		// cpgCollectionsは解析対象CpGのIntervalTreeをchrごとに持っている（辞書型データ構造）
-		// keyset()で染色体ごとに処理を回す
-		for (String chr : cpgCollections.keySet()) {
-			if (chr.equalsIgnoreCase("chrM")) {
-				continue;
+		// 染色体ごとのCpGをspanに分け、-threadsが2以上なら各spanを別スレッドで処理する
+		ArrayList<String> chrs = new ArrayList<String>();
+		for (String chr : cpgCatalog.chromosomes()) {
+			if (!chr.equalsIgnoreCase("chrM")) {
+				chrs.add(chr);
+			}
+		}
+		wgsReader.close();
+		ArrayList<Span> spans = balancedSpans(chrs);
 
+		if (threads <= 1) {
+			for (Span span : spans) {
+				points += extractSpan(span, writer);
 			}
-			if (prevChr.equalsIgnoreCase("")) {
-				prevChr = chr;
-				refParser.setCurrentSequence(chr);
+			writer.close();
+		} else {
+			// 各spanの結果（BGZF）を座標順にブロックのまま連結する
+			writer.flush();
+			log.info("Split CpGs into " + spans.size() + " spans for " + threads + " threads ... ");
+			final File tmpDir = new File(detailFile).getAbsoluteFile().getParentFile();
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			List<Future<SpanOutput>> results = new ArrayList<Future<SpanOutput>>(spans.size());
+			for (final Span span : spans) {
+				results.add(pool.submit(new Callable<SpanOutput>() {
+					public SpanOutput call() throws Exception {
+						File spanFile = File.createTempFile("CpgMultiMetricsStats.", ".txt.gz", tmpDir);
+						spanFile.deleteOnExit();
+						// -tabixなら各行の座標とファイル内の位置をこのスレッドで記録し、連結時にそのまま索引に加える
+						BgzfOutputStream spanOutput = tabix
+								? new BgzfOutputStream(new FileOutputStream(spanFile), 0, spanFormat)
+								: new BgzfOutputStream(new FileOutputStream(spanFile), 0);
+						OutputStreamWriter spanWriter = new OutputStreamWriter(spanOutput, "UTF-8");
+						long spanPoints = extractSpan(span, spanWriter);
+						spanWriter.close();
+						return new SpanOutput(spanFile, spanPoints, spanOutput.lineFeatures());
+					}
+				}));
 			}
-			// useNoChrPrefixBamがtrueの場合はchrを削除して表記を合わせる
-			String bamChr = chr;
-			if (useNoChrPrefixBam) {
-
-				Pattern replace = Pattern.compile("^chr");
-				Matcher matcher1 = replace.matcher(bamChr);
-				bamChr = matcher1.replaceAll("");
+			for (Future<SpanOutput> result : results) {
+				SpanOutput spanResult = result.get();
+				gzipOutput.appendBgzf(spanResult.file, spanResult.features);
+				spanResult.file.delete();
+				points += spanResult.points;
 			}
-			IntervalTree<String> cpgChrCollections = cpgCollections.get(chr);
-			// 染色体に属するCpGを1つずつ抽出
-			Iterator<Node<String>> cpgIterator = cpgChrCollections.iterator();
-			while (cpgIterator.hasNext()) {
-				Node<String> cpg = cpgIterator.next();
-				int start = cpg.getStart();
-				int end = cpg.getEnd();
-				int fragMostLeft = start + 1;
-				int fragMostRight = end;
-
-				// 各CpGについてBAMファイルからCpGに重なるリードを取得
-				SAMRecordIterator wgsIt = wgsReader.queryOverlapping(bamChr, start + 1, end);// start 1-based, inclusive
-																								// start of interval of
-																								// interest. Zero
-																								// implies start of the
-																								// reference sequence.
-				// フラグメント単位に準備
-				HashMap<String, SAMRecord> countedReads = new HashMap<String, SAMRecord>();
-				// log.info("testincpg" + i + "\t" + cpgCollections.size() + "\t" +
-				// wgsIt.hasNext() + "\t" + chr + "\t" + start + "\t" + end);
-				int readNumber = 0;
-				// log.info(r.getReadName() + "\t" + failFlagFilter(r));
-				while (wgsIt.hasNext()) {
-					SAMRecord r = wgsIt.next();
-					// log.info(r.getReadName() + "\t" + failFlagFilter(r));
-					if (failFlagFilter(r)) {
-						continue;
-					} else {
-						if (stringentPaired && !CcInferenceUtils.passReadPairOrientation(r)) {
-							continue;
-						}
-						readNumber++;
-						boolean negStrand = r.getReadNegativeStrandFlag();
-						boolean secondEnd = r.getReadPairedFlag() && r.getSecondOfPairFlag();
-						if (secondEnd) {
-							negStrand = !negStrand;
-						}
-
-						int bisulfitePos = 0;
-						if (!wgsMode) {
-							if (r.getTransientAttribute("BS") != null) { // if the reads had been processed before
-								bisulfitePos = Integer.parseInt((String) r.getTransientAttribute("BS"));
-							} else {
-								bisulfitePos = CcInferenceUtils.bisulfiteIncompleteReads(r);
-								r.setTransientAttribute("BS", bisulfitePos);
-
-							}
-						}
-
-						// log.info("testin" + readsNumTotal + "\t" + bisulfitePos);
-						int offSet = r.getReadPositionAtReferencePosition(end) - 1;
-						if (bisulfitePos < 0) {
-							continue;
-						} else if (bisulfitePos > 0) {
-							if ((!negStrand && offSet < bisulfitePos) || (negStrand && offSet >= bisulfitePos)) {
-								continue;
-							}
-						}
-						if (offSet < 0) {
-							// log.info(r.getReadName() + "\t" + offSet + "\t" + end + "\t" +
-							// r.getAlignmentStart() + "\t" + r.getAlignmentEnd());
-							continue;
-						}
-
-						if (r.getAlignmentStart() < fragMostLeft) {
-							fragMostLeft = r.getAlignmentStart();
-						}
-						if (r.getMateAlignmentStart() < fragMostLeft) {
-							fragMostLeft = r.getMateAlignmentStart();
-						}
-
-						if (r.getAlignmentEnd() > fragMostRight) {
-							fragMostRight = r.getAlignmentEnd();
-						}
-						int mateEnd = CcInferenceUtils.getMateAlignmentEndByMateCigar(r);
-						if (mateEnd > fragMostRight) {
-							fragMostRight = mateEnd;
-						}
+			pool.shutdown();
+			writer.close();
+		}
+		reference.close();
+		if (valueWigCaches != null) {
+			for (String key : valueWigCaches.keySet()) {
+				valueWigCaches.get(key).getSecond().close();
+			}
+		}
 
-						String readName = r.getReadName();
-						if (countedReads.containsKey(readName)) {// to filter overlapped fragments, which affect a lot
-																	// in cfDNA
-							SAMRecord prev = countedReads.get(readName);
-							int offSetPrev = prev.getReadPositionAtReferencePosition(end) - 1;
-							if (offSet < r.getBaseQualities().length && offSetPrev < prev.getBaseQualities().length) {
-								byte baseQ = r.getBaseQualities()[offSet];
-								byte base = CcInferenceUtils.toUpperCase(r.getReadBases()[offSet]);
+		// 終了時刻を記録
+		finish();
 
-								byte baseQPrev = prev.getBaseQualities()[offSetPrev];
-								byte basePrev = CcInferenceUtils.toUpperCase(prev.getReadBases()[offSetPrev]);
+	}
 
-								if (!BaseUtils.basesAreEqual(base, basePrev)) {
-									if (baseQ > baseQPrev) {
-										countedReads.put(readName, r);
-									} else if (baseQ < baseQPrev) {
+	// kmerCollectionsの順にk-mer頻度の列を作る
+	private String kmerColumns(KmerCounter kmerCounter) {
+		StringBuilder columns = new StringBuilder();
+		for (int i = 0; i < kmerColumnCodes.length; i++) {
+			if (kmerColumnCodes[i] < 0) {
+				columns.append("\t").append(String.format("%.3f", (Object) null));
+			} else {
+				columns.append("\t").append(String.format("%.3f", kmerCounter.frequency(kmerColumnLens[i], kmerColumnCodes[i])));
+			}
+		}
+		return columns.toString();
+	}
 
-									} else {
-										if (!secondEnd) {
-											countedReads.put(readName, r);
-										}
-									}
-								}
-							}
+	// spanに含まれるCpG（開始位置がfrom以上to未満）について、重なる各リードの行を書き出す
+	// BAMとvalue bedのリーダー、注釈のカーソルはspanごとに作り、参照配列とwigの値は共有するので、spanは並列に処理できる
+	// リード名のフラグメントID。別のリード名に同じIDが付いていれば例外を投げる
+	private long fragmentId(String readName) {
+		long id = FragmentId.of(readName);
+		synchronized (fragmentIds) {
+			fragmentIds.indexOf(id, readName.hashCode());
+		}
+		return id;
+	}
 
-						} else {
-							countedReads.put(readName, r);
-						}
-					}
+	private long extractSpan(Span span, Writer spanWriter) throws Exception {
+		String chr = span.chr;
+		CpgCatalog.Chromosome cpgs = cpgCatalog.chromosome(chr);
+		int cpg = cpgs.ceiling(span.from, span.from);
+		if (cpg >= cpgs.size() || cpgs.start(cpg) >= span.to) {
+			return 0;
+		}
+		SamReader wgsReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+				.open(new File(wgsBamFile));
+		TwoBitReference.Chromosome refChr = reference.chromosome(chr);
+
+		// 注釈トラックはCpGと同じ順に前方へ走査するカーソルで参照する（トラックごと、spanごとに作成）
+		// 結果はトラックの出力順の配列に書き、CpGごとにmapを作らない
+		ArrayList<IntervalCursor<Node<Integer>>> overlapCursors = new ArrayList<IntervalCursor<Node<Integer>>>();
+		for (String key : overlapLocString) {
+			IntervalTree<Integer> tree = overlapLocStringCollections.get(key).get(chr);
+			overlapCursors.add(tree == null ? null : IntervalCursor.overTree(tree));
+		}
+		int[] overlapStats = new int[overlapCursors.size()];
 
+		ArrayList<IntervalCursor<Node<String>>> distantCursors = new ArrayList<IntervalCursor<Node<String>>>();
+		for (String key : distantLocString) {
+			IntervalTree<String> tree = distantLocStringCollections.get(key).get(chr);
+			distantCursors.add(tree == null || tree.size() == 0 ? null : IntervalCursor.overTree(tree));
+		}
+		int[] distStats = new int[distantCursors.size()];
+
+		// value bedはspanの最初のCpGから染色体末尾までを一度だけtabixで問い合わせ、順に読む
+		int[] valueBedRanges = new int[valueBedLocString.size()];
+		ArrayList<TabixFeatureReader<BEDFeature, ?>> valueBedReaders = new ArrayList<TabixFeatureReader<BEDFeature, ?>>();
+		ArrayList<CloseableTribbleIterator<BEDFeature>> valueBedIts = new ArrayList<CloseableTribbleIterator<BEDFeature>>();
+		ArrayList<IntervalCursor<BEDFeature>> valueBedCursors = new ArrayList<IntervalCursor<BEDFeature>>();
+		for (String key : valueBedLocString) {
+			int range = valueBedFiles.get(key).getFirst();
+			valueBedRanges[valueBedReaders.size()] = range;
+			range = Math.abs(range);
+			TabixFeatureReader<BEDFeature, ?> bedReader = new TabixFeatureReader(valueBedFiles.get(key).getSecond(),
+					new BEDCodec());
+			CloseableTribbleIterator<BEDFeature> featureIt = bedReader.query(chr,
+					(cpgs.start(cpg) - range < 0 ? 1 : cpgs.start(cpg) - range + 1), refChr.length() + range);
+			valueBedReaders.add(bedReader);
+			valueBedIts.add(featureIt);
+			valueBedCursors.add(IntervalCursor.overFeatures(featureIt));
+		}
+		double[] valBedStats = new double[valueBedCursors.size()];
+		ArrayList<BEDFeature> overlappingFeatures = new ArrayList<BEDFeature>();
+		double[] featureScores = new double[16];
+
+		int[] valueWigRanges = new int[valueWigLocString.size()];
+		BigWigValueCache.Chromosome[] valueWigChrs = new BigWigValueCache.Chromosome[valueWigLocString.size()];
+		int wigIndex = 0;
+		for (String key : valueWigLocString) {
+			valueWigRanges[wigIndex] = valueWigCaches.get(key).getFirst();
+			valueWigChrs[wigIndex] = valueWigCaches.get(key).getSecond().chromosome(chr);
+			wigIndex++;
+		}
+		double[] valWigStats = new double[valueWigChrs.length];
+
+		// CpGは開始位置順なので、BAMはspanごとに一度だけ座標順に読み、
+		// 現在のCpGに重なりうるリードだけをactiveReadsに保持する（フィルタはリードごとに一度）
+		// spanの境界をまたぐリードは両方のspanで読まれるが、各CpGは一つのspanにしか属さない
+		SAMRecordIterator wgsIt = wgsReader.queryOverlapping(bamChr(chr), cpgs.start(cpg) + 1, 0);
+		ArrayList<SAMRecord> activeReads = new ArrayList<SAMRecord>();
+		SAMRecord pendingRead = null;
+		// 2..kmerLenの全k-merを一度の走査で数える（span内で使い回す）
+		KmerCounter kmerCounter = kmerLen >= 2 ? new KmerCounter(2, kmerLen) : null;
+		long spanPoints = 0;
+		long spanCpgs = 0;
+		for (; cpg < cpgs.size() && cpgs.start(cpg) < span.to; cpg++) {
+			spanCpgs++;
+			long cpgNumber = processedCpgs.incrementAndGet();
+			if (cpgNumber % 1000 == 0) {
+				log.info("Processing Cpg " + cpgNumber + " ...");
+			}
+			if (spanCpgs % 1000 == 0) {
+				spanWriter.flush();
+			}
+			int start = cpgs.start(cpg);
+			int end = cpgs.end(cpg);
+			int fragMostLeft = start + 1;
+			int fragMostRight = end;
+
+			// CpGの終了位置までに始まるリードを取り込む
+			while (pendingRead != null || wgsIt.hasNext()) {
+				SAMRecord r = pendingRead != null ? pendingRead : wgsIt.next();
+				if (r.getAlignmentStart() > end) {
+					pendingRead = r;
+					break;
 				}
-				wgsIt.close();
-				// if(end==152011200){
-				// log.info(countedReads.size() + " reads finally used ...");
-				// }
-				// log.info(countedReads.size() + " reads finally used ...");
-				if (readNumber >= maxCov || countedReads.size() == 0) {
+				pendingRead = null;
+				if (failFlagFilter(r) || (stringentPaired && !CcInferenceUtils.passReadPairOrientation(r))) {
 					continue;
 				}
-				// log.info("test" + readsNumTotal + "\t" + countedReads.size());
-				double normalizedFragCov = (double) readNumber / readsNumTotal;
-				// System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" +
-				// readsNumTotal);
-
-				// System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" +
-				// readsNumTotal);
-				if (!chr.equalsIgnoreCase(prevChr)) {
-					refParser.close();
-					refParser.setCurrentSequence(chr);
-					prevChr = chr;
+				activeReads.add(r);
+			}
+			// CpGより手前で終わるリードを除く（順序は保持）
+			int kept = 0;
+			for (SAMRecord r : activeReads) {
+				if (r.getAlignmentEnd() >= start + 1) {
+					activeReads.set(kept++, r);
 				}
-				byte[] refBasesExt = CcInferenceUtils
-						.toUpperCase(refParser.loadFragment(end - 1 - kmerExt, kmerExt * 2 + 1).getBytes());
-				byte refBase = refBasesExt[kmerExt];
-
-				// if(end==152011200){
-				// log.info(new String(refBasesExt) + "\t" + (end-1-kmerExt) + "\t" +
-				// (kmerExt*2+1) + "\t" + kmerExt + "\t" + (char)refBasesExt[kmerExt]);
-
-				// }
-
-				HashMap<String, Double> kmerMapsRef = new HashMap<String, Double>();
-				if (!useFragBaseKmer) {
-					for (int j = 2; j <= kmerLen; j++) {
-						kmerMapsRef.putAll(CcInferenceUtils.kmerFreqSearch(refBasesExt, j));
-
+			}
+			activeReads.subList(kept, activeReads.size()).clear();
+
+			// フラグメント単位に準備
+			HashMap<String, SAMRecord> countedReads = new HashMap<String, SAMRecord>();
+			// log.info("testincpg" + i + "\t" + cpgCollections.size() + "\t" +
+			// wgsIt.hasNext() + "\t" + chr + "\t" + start + "\t" + end);
+			int readNumber = 0;
+			// log.info(r.getReadName() + "\t" + failFlagFilter(r));
+			for (SAMRecord r : activeReads) {
+				if (r.getAlignmentStart() > end) {
+					continue;
+				} else {
+					readNumber++;
+					boolean negStrand = r.getReadNegativeStrandFlag();
+					boolean secondEnd = r.getReadPairedFlag() && r.getSecondOfPairFlag();
+					if (secondEnd) {
+						negStrand = !negStrand;
 					}
-				}
-
-				// nearest cpg's distance in reference genome
 
-				IntervalTree<String> cpgLocCollections = null;
-				double nearestCpg = Double.NaN;
-				if (includeCpgDist) {
-					cpgLocCollections = allCpgLocCollections.get(chr);
-					Iterator<Node<String>> upstreamCpgIt = null;
-					Iterator<Node<String>> downstreamCpgIt = null;
-					if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)) {
-						upstreamCpgIt = cpgLocCollections.reverseIterator(start - 1, end - 1);
-						downstreamCpgIt = cpgLocCollections.iterator(start + 2, end + 2);
+					// CIGAR/MD はリードごとに一度だけデコードし、リードが有効な間は再利用する
+					ReadCursor cursor = ReadCursor.of(r);
+					int bisulfitePos = 0;
+					if (!wgsMode) {
+						bisulfitePos = cursor.bisulfitePos();
+					}
 
-					} else if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)) {
-						upstreamCpgIt = cpgLocCollections.reverseIterator(start - 2, end - 2);
-						downstreamCpgIt = cpgLocCollections.iterator(start + 1, end + 1);
-					} else {
+					// log.info("testin" + readsNumTotal + "\t" + bisulfitePos);
+					int offSet = cursor.readOffset(end);
+					if (bisulfitePos < 0) {
+						continue;
+					} else if (bisulfitePos > 0) {
+						if ((!negStrand && offSet < bisulfitePos) || (negStrand && offSet >= bisulfitePos)) {
+							continue;
+						}
+					}
+					if (offSet < 0) {
+						// log.info(r.getReadName() + "\t" + offSet + "\t" + end + "\t" +
+						// r.getAlignmentStart() + "\t" + r.getAlignmentEnd());
 						continue;
 					}
 
-					if (upstreamCpgIt == null || !upstreamCpgIt.hasNext()) {
-						IntervalTree.Node<String> downstream = downstreamCpgIt.next();
-						nearestCpg = CcInferenceUtils.intervalDistance(downstream, cpg);
-						// System.err.println(downstream.toString());
-					} else if (downstreamCpgIt == null || !downstreamCpgIt.hasNext()) {
-						IntervalTree.Node<String> upstream = upstreamCpgIt.next();
-						nearestCpg = CcInferenceUtils.intervalDistance(upstream, cpg);
-						// System.err.println(upstream.toString());
-					} else {
-						IntervalTree.Node<String> upstream = upstreamCpgIt.next();
-						IntervalTree.Node<String> downstream = downstreamCpgIt.next();
-						// System.err.println(upstream.toString());
-						// System.err.println(downstream.toString());
+					if (r.getAlignmentStart() < fragMostLeft) {
+						fragMostLeft = r.getAlignmentStart();
+					}
+					if (r.getMateAlignmentStart() < fragMostLeft) {
+						fragMostLeft = r.getMateAlignmentStart();
+					}
 
-						int dist1 = CcInferenceUtils.intervalDistance(upstream, cpg);
-						int dist2 = CcInferenceUtils.intervalDistance(downstream, cpg);
-						if (Math.abs(dist1) < Math.abs(dist2)) {
-							nearestCpg = dist1;
-						} else {
-							nearestCpg = dist2;
-						}
+					if (r.getAlignmentEnd() > fragMostRight) {
+						fragMostRight = r.getAlignmentEnd();
+					}
+					int mateEnd = cursor.mateAlignmentEnd();
+					if (mateEnd > fragMostRight) {
+						fragMostRight = mateEnd;
 					}
-				}
 
-				// overlap with feature in reference genome
-
-				HashMap<String, Integer> overlapStatCollections = new HashMap<String, Integer>();
-				if (overlapRegions != null && !overlapRegions.isEmpty()) {
-					for (String key : overlapLocStringCollections.keySet()) {
-						HashMap<String, IntervalTree<Integer>> tmp = overlapLocStringCollections.get(key);
-						if (tmp.containsKey(chr)) {
-							if (tmp.get(chr).minOverlapper(start, end) == null) {
-								overlapStatCollections.put(key, 0);
-							} else {
-								overlapStatCollections.put(key, 1);
-							}
+					String readName = r.getReadName();
+					if (countedReads.containsKey(readName)) {// to filter overlapped fragments, which affect a lot
+																// in cfDNA
+						SAMRecord prev = countedReads.get(readName);
+						int offSetPrev = ReadCursor.of(prev).readOffset(end);
+						if (offSet < r.getBaseQualities().length && offSetPrev < prev.getBaseQualities().length) {
+							byte baseQ = r.getBaseQualities()[offSet];
+							byte base = CcInferenceUtils.toUpperCase(r.getReadBases()[offSet]);
 
-						} else {
-							overlapStatCollections.put(key, 0);
-						}
+							byte baseQPrev = prev.getBaseQualities()[offSetPrev];
+							byte basePrev = CcInferenceUtils.toUpperCase(prev.getReadBases()[offSetPrev]);
 
-					}
-				}
+							if (!BaseUtils.basesAreEqual(base, basePrev)) {
+								if (baseQ > baseQPrev) {
+									countedReads.put(readName, r);
+								} else if (baseQ < baseQPrev) {
 
-				// distance with feature in reference genome
-				HashMap<String, Integer> distStatCollections = new HashMap<String, Integer>();
-				if (distantRegions != null && !distantRegions.isEmpty()) {
-					for (String key : distantLocStringCollections.keySet()) {
-						IntervalTree<String> locCollections = distantLocStringCollections.get(key).get(chr);
-
-						// IntervalTree.Node<String> upstream = locCollections.max(start, end);
-						// IntervalTree.Node<String> downstream = locCollections.min(start, end);
-						int distanceNearest = Integer.MAX_VALUE;
-						if (locCollections != null && locCollections.size() > 0) {
-							Iterator<Node<String>> upstreamIt = locCollections.reverseIterator(start, end);
-							Iterator<Node<String>> downstreamIt = locCollections.iterator(start, end);
-							if (!upstreamIt.hasNext()) {
-								IntervalTree.Node<String> downstream = locCollections.min(start, end);
-								distanceNearest = CcInferenceUtils.intervalDistance(downstream, cpg);
-								// System.err.println(downstream.toString());
-							} else if (!downstreamIt.hasNext()) {
-								IntervalTree.Node<String> upstream = locCollections.max(start, end);
-								distanceNearest = CcInferenceUtils.intervalDistance(upstream, cpg);
-								// System.err.println(upstream.toString());
-							} else {
-								IntervalTree.Node<String> upstream = locCollections.max(start, end);
-								IntervalTree.Node<String> downstream = locCollections.min(start, end);
-								// System.err.println(upstream.toString());
-								// System.err.println(downstream.toString());
-
-								int dist1 = CcInferenceUtils.intervalDistance(upstream, cpg);
-								int dist2 = CcInferenceUtils.intervalDistance(downstream, cpg);
-								if (Math.abs(dist1) < Math.abs(dist2)) {
-									distanceNearest = dist1;
 								} else {
-									distanceNearest = dist2;
+									if (!secondEnd) {
+										countedReads.put(readName, r);
+									}
 								}
 							}
 						}
 
-						distStatCollections.put(key, distanceNearest);
+					} else {
+						countedReads.put(readName, r);
 					}
 				}
 
-				// value in bed file
-				// key: trackname
-				// value: Integer = 拡張領域(bp), TabixFeatureReader<BEDFeature, ?> = 高速区間検索用リーダー
-				HashMap<String, Double> valBedStatCollections = new HashMap<String, Double>();
-				if (valueBedReaders != null) {
-					for (String key : valueBedReaders.keySet()) {
-						int range = valueBedReaders.get(key).getFirst();
-						boolean mean0 = range < 0 ? true : false;
-						if (mean0) {
-							range = 0 - range;
-						}
-						TabixFeatureReader<BEDFeature, ?> bedReader = valueBedReaders.get(key).getSecond();
-						// CpGの位置を中心にrange bp拡張した区間のBED特徴量を取得
-						CloseableTribbleIterator<BEDFeature> featureIt = bedReader.query(chr,
-								(start - range < 0 ? 1 : start - range + 1), end + range);
-						DescriptiveStatistics statFeature = new DescriptiveStatistics();
-						while (featureIt.hasNext()) {
-							BEDFeature term = featureIt.next();
-							// BEDのscore値を統計量に追加
-							if (!Double.isNaN(term.getScore())) {
-								statFeature.addValue(term.getScore());
-							}
-
-						}
-						featureIt.close();
-						if (statFeature.getN() > 0) {
-							if (mean0) {
-								valBedStatCollections.put(key,
-										(double) statFeature.getSum() / (double) (range * 2 + 1));
-							} else {
-								valBedStatCollections.put(key, statFeature.getMean());
-							}
+			}
+			// if(end==152011200){
+			// log.info(countedReads.size() + " reads finally used ...");
+			// }
+			// log.info(countedReads.size() + " reads finally used ...");
+			if (readNumber >= maxCov || countedReads.size() == 0) {
+				continue;
+			}
+			// log.info("test" + readsNumTotal + "\t" + countedReads.size());
+			double normalizedFragCov = (double) readNumber / readsNumTotal;
+			// System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" +
+			// readsNumTotal);
+
+			// System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" +
+			// readsNumTotal);
+			byte[] refBasesExt = refChr.sliceUpperCase(end - 1 - kmerExt, kmerExt * 2 + 1);
+			byte refBase = refBasesExt[kmerExt];
+
+			// if(end==152011200){
+			// log.info(new String(refBasesExt) + "\t" + (end-1-kmerExt) + "\t" +
+			// (kmerExt*2+1) + "\t" + kmerExt + "\t" + (char)refBasesExt[kmerExt]);
+
+			// }
+
+			// 参照配列のk-mer頻度はCpGごとに一度だけ計算し、出力する列の文字列も使い回す
+			String kmerColumnsRef = "";
+			if (!useFragBaseKmer && kmerCounter != null) {
+				kmerCounter.count(refBasesExt, 0, refBasesExt.length);
+				kmerColumnsRef = kmerColumns(kmerCounter);
+			}
 
-						} else {
-							valBedStatCollections.put(key, Double.NaN);
-						}
+			// nearest cpg's distance in reference genome
+
+			// 上流はCpG以前で最後、下流は以後で最初のCpG（全CpGの配列を二分探索）
+			double nearestCpg = Double.NaN;
+			if (includeCpgDist) {
+				CpgCatalog.Chromosome allCpgs = allCpgCatalog.chromosome(chr);
+				int upstream;
+				int downstream;
+				if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)) {
+					upstream = allCpgs.floor(start - 1, end - 1);
+					downstream = allCpgs.ceiling(start + 2, end + 2);
+				} else if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)) {
+					upstream = allCpgs.floor(start - 2, end - 2);
+					downstream = allCpgs.ceiling(start + 1, end + 1);
+				} else {
+					continue;
+				}
 
+				if (upstream < 0) {
+					nearestCpg = allCpgs.distance(downstream, start, end);
+				} else if (downstream >= allCpgs.size()) {
+					nearestCpg = allCpgs.distance(upstream, start, end);
+				} else {
+					int dist1 = allCpgs.distance(upstream, start, end);
+					int dist2 = allCpgs.distance(downstream, start, end);
+					if (Math.abs(dist1) < Math.abs(dist2)) {
+						nearestCpg = dist1;
+					} else {
+						nearestCpg = dist2;
 					}
 				}
+			}
 
-				// value in wig file
-				// key: trackname
-				// value: Integer = 拡張領域(bp), BigWigFileReader = 高速区間検索用リーダー
-				HashMap<String, Double> valWigStatCollections = new HashMap<String, Double>();
-				if (valueWigReaders != null) {
-					for (String key : valueWigReaders.keySet()) {
-						int range = valueWigReaders.get(key).getFirst();
-						if (range < 0) {
-							BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
-							range = 0 - range;
-							// queryStatsでmean/sum/Nを取得
-							SummaryStatistics statFeature = wigReader.queryStats(chr,
-									(start - range < 0 ? 1 : start - range), end + range);
-
-							if (statFeature.getN() > 0) {
-								valWigStatCollections.put(key,
-										(double) statFeature.getSum() / (double) (range * 2 + 1));
-							} else {
-								valWigStatCollections.put(key, Double.NaN);
-							}
+			// overlap with feature in reference genome
+			for (int i = 0; i < overlapStats.length; i++) {
+				IntervalCursor<Node<Integer>> cursor = overlapCursors.get(i);
+				overlapStats[i] = cursor != null && cursor.overlaps(start, end) ? 1 : 0;
+			}
 
+			// distance with feature in reference genome
+			// CpG以前で最後の区間(floor)と以後で最初の区間(ceiling)のうち近い方（同じ距離ならceiling）
+			for (int i = 0; i < distStats.length; i++) {
+				IntervalCursor<Node<String>> cursor = distantCursors.get(i);
+				int distanceNearest = Integer.MAX_VALUE;
+				if (cursor != null) {
+					IntervalTree.Node<String> upstream = cursor.floor(start, end);
+					IntervalTree.Node<String> downstream = cursor.ceiling(start, end);
+					if (upstream == null) {
+						distanceNearest = CcInferenceUtils.intervalDistance(downstream, start, end);
+					} else if (downstream == null) {
+						distanceNearest = CcInferenceUtils.intervalDistance(upstream, start, end);
+					} else {
+						int dist1 = CcInferenceUtils.intervalDistance(upstream, start, end);
+						int dist2 = CcInferenceUtils.intervalDistance(downstream, start, end);
+						if (Math.abs(dist1) < Math.abs(dist2)) {
+							distanceNearest = dist1;
 						} else {
-							BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
-							SummaryStatistics statFeature = wigReader.queryStats(chr, start - range, end + range);
-							if (statFeature.getN() > 0) {
-								valWigStatCollections.put(key, statFeature.getMean());
-							} else {
-								valWigStatCollections.put(key, Double.NaN);
-							}
+							distanceNearest = dist2;
 						}
-
 					}
 				}
+				distStats[i] = distanceNearest;
+			}
 
-				for (String readName : countedReads.keySet()) {
-					SAMRecord r = countedReads.get(readName);
-					boolean negStrand = r.getReadNegativeStrandFlag();
-					boolean secondEnd = r.getReadPairedFlag() && r.getSecondOfPairFlag();
-					if (secondEnd) {
-						negStrand = !negStrand;
-					}
-					int offSet = r.getReadPositionAtReferencePosition(end) - 1;
-					if (offSet < 0) { // even it is within the reference interval, but it might be Deletion in the
-										// reads
-						continue;
+			// value in bed file
+			// CpGの位置を中心にrange bp拡張した区間に重なるBEDのscore値の平均（range < 0なら区間長あたりの合計）
+			for (int i = 0; i < valBedStats.length; i++) {
+				int range = valueBedRanges[i];
+				boolean mean0 = range < 0 ? true : false;
+				if (mean0) {
+					range = 0 - range;
+				}
+				valueBedCursors.get(i).overlapping((start - range < 0 ? 1 : start - range + 1), end + range,
+						overlappingFeatures);
+				int n = 0;
+				for (BEDFeature term : overlappingFeatures) {
+					// BEDのscore値を統計量に追加
+					if (!Double.isNaN(term.getScore())) {
+						if (n == featureScores.length) {
+							featureScores = Arrays.copyOf(featureScores, n * 2);
+						}
+						featureScores[n++] = term.getScore();
 					}
-					char methyStat = '.';
-					byte[] bases = r.getReadBases();
-
-					// System.err.println(readName + "\t" + offSet + "\t" + new String(bases) + "\t"
-					// + negStrand + "\t" + secondEnd + "\t" + end + "\t" + r.getAlignmentStart() +
-					// "\t" + r.getAlignmentEnd());
-					byte base = bases[offSet];
-					byte[] baseQs = r.getBaseQualities();
-					byte baseQ = baseQs[offSet];
-					if (baseQ <= minBaseQ) {
-						continue;
+				}
+				if (n > 0) {
+					if (mean0) {
+						valBedStats[i] = StatUtils.sum(featureScores, 0, n) / (double) (range * 2 + 1);
+					} else {
+						valBedStats[i] = StatUtils.mean(featureScores, 0, n);
 					}
+				} else {
+					valBedStats[i] = Double.NaN;
+				}
+			}
+
+			// value in wig file
+			for (int i = 0; i < valWigStats.length; i++) {
+				int range = valueWigRanges[i];
+				if (range < 0) {
+					range = 0 - range;
+					// 値のある塩基の合計を区間長で割る（値がなければNaN）
+					valWigStats[i] = valueWigChrs[i].sum((start - range < 0 ? 1 : start - range), end + range)
+							/ (double) (range * 2 + 1);
+				} else {
+					valWigStats[i] = valueWigChrs[i].mean(start - range, end + range);
+				}
+			}
+
+			for (String readName : countedReads.keySet()) {
+				SAMRecord r = countedReads.get(readName);
+				boolean negStrand = r.getReadNegativeStrandFlag();
+				boolean secondEnd = r.getReadPairedFlag() && r.getSecondOfPairFlag();
+				if (secondEnd) {
+					negStrand = !negStrand;
+				}
+				int offSet = ReadCursor.of(r).readOffset(end);
+				if (offSet < 0) { // even it is within the reference interval, but it might be Deletion in the
+									// reads
+					continue;
+				}
+				char methyStat = '.';
+				byte[] bases = r.getReadBases();
+
+				// System.err.println(readName + "\t" + offSet + "\t" + new String(bases) + "\t"
+				// + negStrand + "\t" + secondEnd + "\t" + end + "\t" + r.getAlignmentStart() +
+				// "\t" + r.getAlignmentEnd());
+				byte base = bases[offSet];
+				byte[] baseQs = r.getBaseQualities();
+				byte baseQ = baseQs[offSet];
+				if (baseQ <= minBaseQ) {
+					continue;
+				}
+				// if(end==152011200){
+				// log.info(readName + "\t" + refBase);
+				// }
+				if (negStrand) {
 					// if(end==152011200){
-					// log.info(readName + "\t" + refBase);
+					// log.info(refBase + "\t" + base + "\t" + BaseUtils.basesAreEqual(refBase,
+					// BaseUtilsMore.G) + "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.G) +
+					// "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.A));
 					// }
-					if (negStrand) {
-						// if(end==152011200){
-						// log.info(refBase + "\t" + base + "\t" + BaseUtils.basesAreEqual(refBase,
-						// BaseUtilsMore.G) + "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.G) +
-						// "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.A));
-						// }
-						if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)) {
-							if (BaseUtils.basesAreEqual(base, BaseUtilsMore.G)) {
-								methyStat = 'm';
-							} else if (BaseUtils.basesAreEqual(base, BaseUtilsMore.A)) {
-								methyStat = 'u';
-							} else {
-								continue;
-							}
+					if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)) {
+						if (BaseUtils.basesAreEqual(base, BaseUtilsMore.G)) {
+							methyStat = 'm';
+						} else if (BaseUtils.basesAreEqual(base, BaseUtilsMore.A)) {
+							methyStat = 'u';
 						} else {
 							continue;
 						}
 					} else {
-						if (end == 152011200) {
-							// log.info(refBase + "\t" + base + "\t" + BaseUtils.basesAreEqual(refBase,
-							// BaseUtilsMore.C) + "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.C) +
-							// "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.T));
-						}
-						if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)) {
-							if (BaseUtils.basesAreEqual(base, BaseUtilsMore.C)) {
-								methyStat = 'm';
-							} else if (BaseUtils.basesAreEqual(base, BaseUtilsMore.T)) {
-								methyStat = 'u';
-							} else {
-								continue;
-							}
+						continue;
+					}
+				} else {
+					if (end == 152011200) {
+						// log.info(refBase + "\t" + base + "\t" + BaseUtils.basesAreEqual(refBase,
+						// BaseUtilsMore.C) + "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.C) +
+						// "\t" + BaseUtils.basesAreEqual(base, BaseUtilsMore.T));
+					}
+					if (BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)) {
+						if (BaseUtils.basesAreEqual(base, BaseUtilsMore.C)) {
+							methyStat = 'm';
+						} else if (BaseUtils.basesAreEqual(base, BaseUtilsMore.T)) {
+							methyStat = 'u';
 						} else {
 							continue;
 						}
+					} else {
+						continue;
 					}
+				}
 
-					// if(end==152011200){
-					// log.info("after " + readName);
-					// }
+				// if(end==152011200){
+				// log.info("after " + readName);
+				// }
 
-					int fragLen = Math.abs(r.getInferredInsertSize());
-					if (fragLen > maxFragLen) {
-						continue;
-					}
-					int cpgOffset = CcInferenceUtils.getFragOffsetFromReadsOffset(r, offSet);
-					// int distToFragEnd = Math.min((fragLen-cpgOffset), cpgOffset);
-					int distToFragEnd = CcInferenceUtils.getDistFragEndFromReadsOffset(r, offSet);
-					if (distToFragEnd > maxDistToFragEnd) {
-						continue;
-					}
-					// if(negStrand){
-					// offSet = fragLen-offSet;
-					// }
+				int fragLen = Math.abs(r.getInferredInsertSize());
+				if (fragLen > maxFragLen) {
+					continue;
+				}
+				int cpgOffset = CcInferenceUtils.getFragOffsetFromReadsOffset(r, offSet);
+				// int distToFragEnd = Math.min((fragLen-cpgOffset), cpgOffset);
+				int distToFragEnd = CcInferenceUtils.getDistFragEndFromReadsOffset(r, offSet);
+				if (distToFragEnd > maxDistToFragEnd) {
+					continue;
+				}
+				// if(negStrand){
+				// offSet = fragLen-offSet;
+				// }
 
-					char fragStrand = negStrand ? '-' : '+';
+				char fragStrand = negStrand ? '-' : '+';
 
-					// get k-mer for the fragment
-					int fragStart = Math.min(r.getAlignmentStart(), r.getAlignmentStart() + r.getInferredInsertSize());
-					int fragEnd = Math.max(r.getAlignmentStart(), r.getAlignmentStart() + r.getInferredInsertSize());
-					if (r.getInferredInsertSize() == 0) {
-						continue;
-					}
+				// get k-mer for the fragment
+				int fragStart = Math.min(r.getAlignmentStart(), r.getAlignmentStart() + r.getInferredInsertSize());
+				int fragEnd = Math.max(r.getAlignmentStart(), r.getAlignmentStart() + r.getInferredInsertSize());
+				if (r.getInferredInsertSize() == 0) {
+					continue;
+				}
 
-					// byte[] refBasesFragAll = refParser.loadFragment(fragMostLeft,
-					// fragMostRight-fragMostLeft+1).getBytes();
-					// byte[] refBasesFrag = new byte[fragLen]; //TODO check if it is correct
-					// here!!!!
-					// System.err.println(r.getAlignmentStart() + "\t" + r.getMateAlignmentStart() +
-					// "\t" + fragLen + "\t" + refBasesFragAll.length + "\t" + fragStart + "\t" +
-					// fragMostLeft + "\t" + r.getReadName());
-					// for(int j = fragStart-fragMostLeft, index = 0; index < fragLen; j++,
-					// index++){
-					// refBasesFrag[index] = refBasesFragAll[j];
-					// }
-					byte[] refBasesFrag = refParser.loadFragment(fragMostLeft, fragMostRight - fragMostLeft + 1)
-							.getBytes();
-					if (negStrand && useStrandSpecificFragBase) {
-						SequenceUtil.reverseComplement(refBasesFrag);
-					}
-					HashMap<String, Double> kmerMapsFrag = new HashMap<String, Double>();
-					if (useFragBaseKmer) {
-						for (int j = 2; j <= kmerLen; j++) {
-							kmerMapsFrag.putAll(CcInferenceUtils.kmerFreqSearch(refBasesFrag, j));
-						}
-					}
+				// byte[] refBasesFragAll = refParser.loadFragment(fragMostLeft,
+				// fragMostRight-fragMostLeft+1).getBytes();
+				// byte[] refBasesFrag = new byte[fragLen]; //TODO check if it is correct
+				// here!!!!
+				// System.err.println(r.getAlignmentStart() + "\t" + r.getMateAlignmentStart() +
+				// "\t" + fragLen + "\t" + refBasesFragAll.length + "\t" + fragStart + "\t" +
+				// fragMostLeft + "\t" + r.getReadName());
+				// for(int j = fragStart-fragMostLeft, index = 0; index < fragLen; j++,
+				// index++){
+				// refBasesFrag[index] = refBasesFragAll[j];
+				// }
+				String kmerColumnsFrag = "";
+				if (useFragBaseKmer && kmerCounter != null) {
+					byte[] refBasesFrag = negStrand && useStrandSpecificFragBase
+							? refChr.reverseComplement(fragMostLeft, fragMostRight - fragMostLeft + 1)
+							: refChr.slice(fragMostLeft, fragMostRight - fragMostLeft + 1);
+					kmerCounter.count(refBasesFrag, 0, refBasesFrag.length);
+					kmerColumnsFrag = kmerColumns(kmerCounter);
+				}
 
-					// System.err.println(CcInferenceUtils.getFragOffsetFromReadsOffset(r, offSet));
-					writer.write(chr + "\t" + start + "\t" + end + "\t" + readName + "\t" + fragLen + "\t" + fragStrand
-							+ "\t" + methyStat + "\t" + String.format("%.6f", normalizedFragCov)
-							+ "\t" + (int) baseQ + "\t" + cpgOffset + "\t" + distToFragEnd);
-					if (includeCpgDist) {
-						writer.write("\t" + nearestCpg);
-					}
-					// overlap regions
-					if (overlapStatCollections.size() > 0) {
-						for (String key : overlapLocString) {
-							writer.write("\t" + overlapStatCollections.get(key));
-						}
-					}
+				// System.err.println(CcInferenceUtils.getFragOffsetFromReadsOffset(r, offSet));
+				spanWriter.write(chr + "\t" + start + "\t" + end + "\t" + (fragmentId ? fragmentId(readName) : readName) + "\t" + fragLen + "\t" + fragStrand
+						+ "\t" + methyStat + "\t" + String.format("%.6f", normalizedFragCov)
+						+ "\t" + (int) baseQ + "\t" + cpgOffset + "\t" + distToFragEnd);
+				if (includeCpgDist) {
+					spanWriter.write("\t" + nearestCpg);
+				}
+				// overlap regions
+				for (int i = 0; i < overlapStats.length; i++) {
+					spanWriter.write("\t" + overlapStats[i]);
+				}
 
-					// distant regions
-					if (distStatCollections.size() > 0) {
-						for (String key : distantLocString) {
-							writer.write("\t" + distStatCollections.get(key));
-						}
-					}
+				// distant regions
+				for (int i = 0; i < distStats.length; i++) {
+					spanWriter.write("\t" + distStats[i]);
+				}
 
-					// valBed regions
-					if (valBedStatCollections.size() > 0) {
-						for (String key : valueBedLocString) {
-							writer.write("\t" + String.format("%.3f", valBedStatCollections.get(key)));
-						}
-					}
+				// valBed regions
+				for (int i = 0; i < valBedStats.length; i++) {
+					spanWriter.write("\t" + String.format("%.3f", valBedStats[i]));
+				}
 
-					// valWig regions
-					if (valWigStatCollections.size() > 0) {
-						for (String key : valueWigLocString) {
-							writer.write("\t" + String.format("%.3f", valWigStatCollections.get(key)));
-						}
-					}
-					// k-mer in reference genome
-					// if(kmerMapsRef.size()>0 && useRefSeqBaseKmer){
-					if (kmerMapsRef.size() > 0) {
-						for (String key : kmerCollections) {
-							writer.write("\t" + String.format("%.3f", kmerMapsRef.get(key)));
-						}
-					}
+				// valWig regions
+				for (int i = 0; i < valWigStats.length; i++) {
+					spanWriter.write("\t" + String.format("%.3f", valWigStats[i]));
+				}
+				// k-mer in reference genome
+				spanWriter.write(kmerColumnsRef);
 
-					// k-mer in fragment
-					// if(kmerMapsFrag.size()>0 && !useRefSeqBaseKmer){
-					if (kmerMapsFrag.size() > 0) {
-						for (String key : kmerCollections) {
-							writer.write("\t" + String.format("%.3f", kmerMapsFrag.get(key)));
-						}
-					}
+				// k-mer in fragment
+				spanWriter.write(kmerColumnsFrag);
 
-					writer.write("\n");
-					points++;
+				spanWriter.write("\n");
+				spanPoints++;
 
-				}
-				i++;
-				if (i % 1000 == 0) {
-					log.info("Processing Cpg " + i + " ...");
-					writer.flush();
-				}
 			}
 		}
-		writer.close();
-		output.close();
-
+		wgsIt.close();
 		wgsReader.close();
-		refParser.closeParser();
-		;
+		for (int i = 0; i < valueBedReaders.size(); i++) {
+			valueBedIts.get(i).close();
+			valueBedReaders.get(i).close();
+		}
+		return spanPoints;
+	}
 
-		if (valueBedReaders != null) {
-			for (String key : valueBedReaders.keySet()) {
-				valueBedReaders.get(key).getSecond().close();
+	// BAIの最下層ビン（16kb）のチャンクの圧縮サイズから作業量を見積もり、
+	// 1スレッドあたりSPANS_PER_THREAD個程度のspanになるように染色体を区切る
+	// -threadsが1またはインデックスが使えない場合は染色体ごとに1つのspan
+	private ArrayList<Span> balancedSpans(List<String> chrs) throws IOException {
+		ArrayList<Span> spans = new ArrayList<Span>();
+		SamReader reader = null;
+		if (threads > 1) {
+			// ビン単位で参照できるインデックス（CachingBAMFileIndex）で開く
+			reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES)
+					.validationStringency(ValidationStringency.SILENT).open(new File(wgsBamFile));
+		}
+		if (reader == null || !reader.hasIndex() || !reader.indexing().hasBrowseableIndex()) {
+			for (String chr : chrs) {
+				spans.add(new Span(chr, 0, Integer.MAX_VALUE));
 			}
+			if (reader != null) {
+				reader.close();
+			}
+			return spans;
 		}
-		if (valueWigReaders != null) {
-			for (String key : valueWigReaders.keySet()) {
-				valueWigReaders.get(key).getSecond().close();
+		BrowseableBAMIndex index = reader.indexing().getBrowseableIndex();
+		SAMFileHeader bamHeader = reader.getFileHeader();
+		int leafLevel = AbstractBAMFileIndex.getNumIndexLevels() - 1;
+		ArrayList<long[]> chrCosts = new ArrayList<long[]>(chrs.size());
+		long totalCost = 0;
+		for (String chr : chrs) {
+			int refIndex = bamHeader.getSequenceIndex(bamChr(chr));
+			if (refIndex < 0) {
+				chrCosts.add(new long[1]);
+				continue;
 			}
+			int length = bamHeader.getSequence(refIndex).getSequenceLength();
+			long[] cost = new long[(length >> SPAN_BIN_SHIFT) + 1];
+			for (Bin bin : index.getBinsOverlapping(refIndex, 1, length)) {
+				if (index.getLevelForBin(bin) != leafLevel) {
+					continue;
+				}
+				BAMFileSpan binSpan = index.getSpanOverlapping(bin);
+				if (binSpan == null) {
+					continue;
+				}
+				int w = Math.min((index.getFirstLocusInBin(bin) - 1) >> SPAN_BIN_SHIFT, cost.length - 1);
+				for (Chunk chunk : binSpan.getChunks()) {
+					long binCost = (chunk.getChunkEnd() >>> 16) - (chunk.getChunkStart() >>> 16) + 1;
+					cost[w] += binCost;
+					totalCost += binCost;
+				}
+			}
+			chrCosts.add(cost);
+		}
+		reader.close();
+
+		long target = Math.max(totalCost / ((long) threads * SPANS_PER_THREAD), 1);
+		for (int c = 0; c < chrs.size(); c++) {
+			long[] cost = chrCosts.get(c);
+			long acc = 0;
+			int from = 0;
+			for (int w = 0; w < cost.length - 1; w++) {
+				acc += cost[w];
+				if (acc >= target) {
+					int to = (w + 1) << SPAN_BIN_SHIFT;
+					spans.add(new Span(chrs.get(c), from, to));
+					from = to;
+					acc = 0;
+				}
+			}
+			spans.add(new Span(chrs.get(c), from, Integer.MAX_VALUE));
 		}
+		return spans;
+	}
 
-		// 終了時刻を記録
-		finish();
+	// useNoChrPrefixBamがtrueの場合はchrを削除して表記を合わせる
+	private String bamChr(String chr) {
+		if (useNoChrPrefixBam) {
+			return chr.replaceFirst("^chr", "");
+		}
+		return chr;
+	}
+
+	// 同じ染色体のCpG区間 [from, to)（0-based開始位置）
+	private static class Span {
+		final String chr;
+		final int from;
+		final int to;
+
+		Span(String chr, int from, int to) {
+			this.chr = chr;
+			this.from = from;
+			this.to = to;
+		}
+	}
 
+	// 一時ファイルに書き出したspanの結果
+	private static class SpanOutput {
+		final File file;
+		final long points;
+		final BgzfOutputStream.LineFeatures features;
+
+		SpanOutput(File file, long points, BgzfOutputStream.LineFeatures features) {
+			this.file = file;
+			this.points = points;
+			this.features = features;
+		}
 	}
 
 	private boolean failFlagFilter(SAMRecord r) {
@@ -36,10 +36,8 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
 import org.biojava.nbio.core.sequence.DNASequence;
@@ -50,8 +48,6 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import edu.unc.genomics.io.BigWigFileReader;
-
 /**
  *
  */
@@ -72,7 +68,7 @@ public class CpgMultiMetricsStatsInMemory {
 	@Option(name="-maxCov",usage="maximum coverage allowed to check. Default: 250")
 	public int maxCov = 250;
 	
-	@Option(name="-kmerLen",usage="the K-mer length to check. Default: 4")
+	@Option(name="-kmerLen",usage="the K-mer length to check, at most 12. Default: 4")
 	public int kmerLen = 4;
 
 	@Option(name="-kmerString",usage="the fiel contain selected K-mer to check. Otherwise, use -kmerLen to automately generate all the k-mer. Default: null")
@@ -146,6 +142,8 @@ public class CpgMultiMetricsStatsInMemory {
 					{
 						if(help || args.length < 5) throw new CmdLineException(parser, USAGE, new Throwable());
 						parser.parseArgument(args);
+						if(kmerLen > KmerCounter.MAX_K)
+							throw new CmdLineException(parser, "-kmerLen can not be larger than " + KmerCounter.MAX_K + ": " + kmerLen, new Throwable());
 						
 					
 					}
@@ -391,11 +389,11 @@ public class CpgMultiMetricsStatsInMemory {
 						
 					}
 					
-					HashMap<String, Pair<Integer, BigWigFileReader>> valueWigReaders = null;
+					HashMap<String, Pair<Integer, BigWigValueCache>> valueWigReaders = null;
 					LinkedHashSet<String> valueWigLocString = new LinkedHashSet<String>();
 					if(valueWigs != null){
 						log.info("Loading value interval big wig file ... ");
-						valueWigReaders =  new HashMap<String, Pair<Integer,BigWigFileReader>>();
+						valueWigReaders =  new HashMap<String, Pair<Integer, BigWigValueCache>>();
 						for(String valueWigString : valueWigs){
 							String[] splitStrings = valueWigString.split(":");
 							if(splitStrings.length < 3){
@@ -405,7 +403,7 @@ public class CpgMultiMetricsStatsInMemory {
 							int valueWigExt = Integer.parseInt(splitStrings[1]);
 							String valueRegion = splitStrings[2];
 							valueWigLocString.add(valueWigName);
-							valueWigReaders.put(valueWigName,new Pair<Integer, BigWigFileReader>(valueWigExt,new BigWigFileReader(new File(valueRegion).toPath())));
+							valueWigReaders.put(valueWigName,new Pair<Integer, BigWigValueCache>(valueWigExt,new BigWigValueCache(new File(valueRegion))));
 						}
 						
 					}
@@ -549,7 +547,7 @@ public class CpgMultiMetricsStatsInMemory {
 					readsNumTotal = readsNumTotal/1000000;
 					log.info("Output value for each CpG in each DNA fragment ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//basic
 					writer.write("chr\tstart\tend\treadName\tFragLen\tFrag_strand\tmethy_stat\tNorm_Frag_cov\tbaseQ\tOffset_frag\tDist_frag_end");
@@ -562,6 +560,8 @@ public class CpgMultiMetricsStatsInMemory {
 					
 					//
 					long i = 0;
+					//k-mers of length 2 to kmerLen are counted once per window, with the same counter for every CpG and fragment
+					KmerCounter kmerCounter = kmerLen >= 2 ? new KmerCounter(2, kmerLen) : null;
 					for(String chr : cpgCollections.keySet()){
 						if(chr.equalsIgnoreCase("chrM")){
 							continue;
@@ -694,8 +694,8 @@ public class CpgMultiMetricsStatsInMemory {
 						
 						HashMap<String, Double> kmerMapsRef = new HashMap<String, Double>();
 						//if(useRefSeqBaseKmer){
-							for(int j = 2; j <= kmerLen; j++){
-								kmerMapsRef.putAll(CcInferenceUtils.kmerFreqSearch(refBasesExt, j));
+							if(kmerCounter != null){
+								CcInferenceUtils.kmerFreqSearch(refBasesExt, kmerCounter, kmerMapsRef);
 								
 							}
 						//}
@@ -847,24 +847,13 @@ public class CpgMultiMetricsStatsInMemory {
 							for(String key : valueWigReaders.keySet()){
 								int range = valueWigReaders.get(key).getFirst();
 								if(range < 0){
-									BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
+									BigWigValueCache.Chromosome wigChr = valueWigReaders.get(key).getSecond().chromosome(chr);
 									range = 0-range;
-									SummaryStatistics statFeature = wigReader.queryStats(chr, (start-range < 0 ? 1 : start-range+1), end+range);
-									
-									if(statFeature.getN()>0){
-										valWigStatCollections.put(key, (double)statFeature.getSum()/(double)(range*2+1));
-									}else{
-										valWigStatCollections.put(key, Double.NaN);
-									}
+									valWigStatCollections.put(key, wigChr.sum((start-range < 0 ? 1 : start-range+1), end+range)/(double)(range*2+1));
 									
 								}else{
-									BigWigFileReader wigReader = valueWigReaders.get(key).getSecond();
-									SummaryStatistics statFeature = wigReader.queryStats(chr, start-range+1, end+range);
-									if(statFeature.getN()>0){
-										valWigStatCollections.put(key, statFeature.getMean());
-									}else{
-										valWigStatCollections.put(key, Double.NaN);
-									}
+									BigWigValueCache.Chromosome wigChr = valueWigReaders.get(key).getSecond().chromosome(chr);
+									valWigStatCollections.put(key, wigChr.mean(start-range+1, end+range));
 								}
 								
 								
@@ -953,8 +942,8 @@ public class CpgMultiMetricsStatsInMemory {
 							byte[] refBasesFrag = CcInferenceUtils.toUpperCase(refs.get(chr).getSubSequence(fragStart, fragEnd).getSequenceAsString().getBytes());
 							HashMap<String, Double> kmerMapsFrag = new HashMap<String, Double>();
 							//if(!useRefSeqBaseKmer){
-								for(int j = 2; j <= kmerLen; j++){
-									kmerMapsFrag.putAll(CcInferenceUtils.kmerFreqSearch(refBasesFrag, j));
+								if(kmerCounter != null){
+									CcInferenceUtils.kmerFreqSearch(refBasesFrag, kmerCounter, kmerMapsFrag);
 								}
 							//}
 							
@@ -17,24 +17,19 @@ import htsjdk.tribble.bed.BEDFeature;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
-import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
 import org.broadinstitute.gatk.utils.BaseUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -48,7 +43,7 @@ import edu.unc.genomics.io.BigWigFileReader;
  */
 public class CpgMultiMetricsStatsNoBam {
 
-	@Option(name="-kmerLen",usage="the K-mer length to check. Default: 4")
+	@Option(name="-kmerLen",usage="the K-mer length to check, at most 12. Default: 4")
 	public int kmerLen = 4;
 
 	@Option(name="-kmerString",usage="the fiel contain selected K-mer to check. Otherwise, use -kmerLen to automately generate all the k-mer. Default: null")
@@ -110,6 +105,8 @@ public class CpgMultiMetricsStatsNoBam {
 					{
 						if(help || args.length < 4) throw new CmdLineException(parser, USAGE, new Throwable());
 						parser.parseArgument(args);
+						if(kmerLen > KmerCounter.MAX_K)
+							throw new CmdLineException(parser, "-kmerLen can not be larger than " + KmerCounter.MAX_K + ": " + kmerLen, new Throwable());
 						
 					
 					}
@@ -133,7 +130,8 @@ public class CpgMultiMetricsStatsNoBam {
 					
 					//initiate different kinds of reader
 					//reference genome
-					TwoBitParser refParser = new TwoBitParser(new File(refFile));
+					TwoBitReference reference = new TwoBitReference(new File(refFile));
+					TwoBitReference.Chromosome refChr = null;
 					
 					//String[] names = p.getSequenceNames();
 					//for(int i=0;i<names.length;i++) {
@@ -181,54 +179,10 @@ public class CpgMultiMetricsStatsNoBam {
 					}
 					
 					
-						HashMap<String,IntervalTree<String>> allCpgLocCollections = new HashMap<String,IntervalTree<String>>();
+						CpgCatalog allCpgCatalog = null;
 						if(!skipCpgDist){
 							log.info("Loading all CpG intervals ... ");
-							GZIPInputStream gzipInputStream = null;
-							BufferedReader br1;
-							if(allCpgFile.endsWith(".gz")){
-								gzipInputStream = new GZIPInputStream(new FileInputStream(allCpgFile));
-								br1 = new BufferedReader(new InputStreamReader(gzipInputStream));
-								
-							}else{
-								br1 = new BufferedReader(new FileReader(allCpgFile));
-							}
-								
-								String line1;
-								
-								while( (line1 = br1.readLine()) != null){
-									if(line1.startsWith("#"))
-										continue;
-									String[] splitLines = line1.split("\t");
-									if(splitLines.length<3){
-										continue;
-									}
-									String chr = splitLines[0];
-									int start = Integer.parseInt(splitLines[1]);
-									int end = Integer.parseInt(splitLines[2]);
-									IntervalTree<String> tree;
-									
-									if(allCpgLocCollections.containsKey(chr)){
-										tree = allCpgLocCollections.get(chr);
-									}else{
-										tree = new IntervalTree<String>();
-									}
-									String strand = ".";
-									if(splitLines.length >= 6){
-										if(splitLines[5].equalsIgnoreCase("-")){
-											strand = "-";
-										}else if(splitLines[5].equalsIgnoreCase("+")){
-											strand = "+";
-										}
-										//strand = splitLines[5].equalsIgnoreCase("-") ? "-" : "+";
-									}
-									tree.put(start, end, strand);
-									allCpgLocCollections.put(chr, tree);
-								}
-								if(allCpgFile.endsWith(".gz")){
-									gzipInputStream.close();
-								}
-								br1.close();
+							allCpgCatalog = CpgCatalog.load(allCpgFile);
 						}
 						
 						
@@ -431,56 +385,11 @@ public class CpgMultiMetricsStatsNoBam {
 					
 					
 					log.info("Loading CpG interval file ... ");
-					HashMap<String,IntervalTree<String>> cpgCollections = new HashMap<String,IntervalTree<String>>();
-						GZIPInputStream gzipInputStream1 = null;
-						BufferedReader br;
-						if(allCpgFile.endsWith(".gz")){
-							gzipInputStream1 = new GZIPInputStream(new FileInputStream(cpgListFile));
-							br = new BufferedReader(new InputStreamReader(gzipInputStream1));
-							
-						}else{
-							br = new BufferedReader(new FileReader(cpgListFile));
-						}
-							
-							String line;
-							
-							while( (line = br.readLine()) != null){
-								if(line.startsWith("#"))
-									continue;
-								String[] splitLines = line.split("\t");
-								if(splitLines.length<3){
-									continue;
-								}
-								String chr = splitLines[0];
-								int start = Integer.parseInt(splitLines[1]);
-								int end = Integer.parseInt(splitLines[2]);
-								IntervalTree<String> tree;
-								
-								if(cpgCollections.containsKey(chr)){
-									tree = cpgCollections.get(chr);
-								}else{
-									tree = new IntervalTree<String>();
-								}
-								String strand = ".";
-								if(splitLines.length >= 6){
-									if(splitLines[5].equalsIgnoreCase("-")){
-										strand = "-";
-									}else if(splitLines[5].equalsIgnoreCase("+")){
-										strand = "+";
-									}
-									//strand = splitLines[5].equalsIgnoreCase("-") ? "-" : "+";
-								}
-								tree.put(start, end, strand);
-								cpgCollections.put(chr, tree);
-							}
-							if(cpgListFile.endsWith(".gz")){
-								gzipInputStream1.close();
-							}
-							br.close();
+					CpgCatalog cpgCatalog = CpgCatalog.load(cpgListFile);
 
 					log.info("Output value for each CpG  ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//basic
 					writer.write("chr\tstart\tend");
@@ -495,32 +404,31 @@ public class CpgMultiMetricsStatsNoBam {
 					
 					long i = 0;
 					String prevChr = "";
-					for(String chr : cpgCollections.keySet()){
+					//k-mers of length 2 to kmerLen are counted once per window, with the same counter for every CpG
+					KmerCounter kmerCounter = kmerLen >= 2 ? new KmerCounter(2, kmerLen) : null;
+					for(String chr : cpgCatalog.chromosomes()){
 						if(chr.equalsIgnoreCase("chrM")){
 							continue;
 							
 						}
 						if(prevChr.equalsIgnoreCase("")){
 							prevChr = chr;
-							refParser.setCurrentSequence(chr);
+							refChr = reference.chromosome(chr);
 						}
 						
-						IntervalTree<String> cpgChrCollections = cpgCollections.get(chr);
-						Iterator<Node<String>> cpgIterator = cpgChrCollections.iterator();
-						while(cpgIterator.hasNext()){
-							Node<String> cpg = cpgIterator.next();
-							int start = cpg.getStart();
-							int end = cpg.getEnd();
+						CpgCatalog.Chromosome cpgs = cpgCatalog.chromosome(chr);
+						for(int cpg = 0; cpg < cpgs.size(); cpg++){
+							int start = cpgs.start(cpg);
+							int end = cpgs.end(cpg);
 							int fragMostLeft = start+1;
 							int fragMostRight = end;
 							
 							
 						if(!chr.equalsIgnoreCase(prevChr)){
-							refParser.close();
-							refParser.setCurrentSequence(chr);
+							refChr = reference.chromosome(chr);
 							prevChr = chr;
 						}
-						byte[] refBasesExt = CcInferenceUtils.toUpperCase(refParser.loadFragment(end-1-kmerExt, kmerExt*2+1).getBytes());
+						byte[] refBasesExt = refChr.sliceUpperCase(end-1-kmerExt, kmerExt*2+1);
 						byte refBase = refBasesExt[kmerExt];
 						
 						//if(end==16217220){
@@ -531,47 +439,37 @@ public class CpgMultiMetricsStatsNoBam {
 						
 						HashMap<String, Double> kmerMapsRef = new HashMap<String, Double>();
 						//if(useRefSeqBaseKmer){
-							for(int j = 2; j <= kmerLen; j++){
-								kmerMapsRef.putAll(CcInferenceUtils.kmerFreqSearch(refBasesExt, j));
+							if(kmerCounter != null){
+								CcInferenceUtils.kmerFreqSearch(refBasesExt, kmerCounter, kmerMapsRef);
 								
 							}
 						//}
 						
 						//nearest cpg's distance in reference genome
 							
-						IntervalTree<String> cpgLocCollections = null;
 						double nearestCpg = Double.NaN;
 						if(!skipCpgDist){
-							cpgLocCollections = allCpgLocCollections.get(chr);
-							Iterator<Node<String>> upstreamCpgIt = null;
-							Iterator<Node<String>> downstreamCpgIt = null;
+							CpgCatalog.Chromosome allCpgs = allCpgCatalog.chromosome(chr);
+							int upstream;
+							int downstream;
 							if(BaseUtils.basesAreEqual(refBase, BaseUtilsMore.C)){
-								upstreamCpgIt = cpgLocCollections.reverseIterator(start-1, end-1);
-								downstreamCpgIt = cpgLocCollections.iterator(start+2, end+2);
+								upstream = allCpgs.floor(start-1, end-1);
+								downstream = allCpgs.ceiling(start+2, end+2);
 								
 							}else if(BaseUtils.basesAreEqual(refBase, BaseUtilsMore.G)){
-								upstreamCpgIt = cpgLocCollections.reverseIterator(start-2, end-2);
-								downstreamCpgIt = cpgLocCollections.iterator(start+1, end+1);
+								upstream = allCpgs.floor(start-2, end-2);
+								downstream = allCpgs.ceiling(start+1, end+1);
 							}else{
 								continue;
 							}
 							
-							if(upstreamCpgIt== null || !upstreamCpgIt.hasNext()){
-								IntervalTree.Node<String> downstream = downstreamCpgIt.next();
-								nearestCpg = CcInferenceUtils.intervalDistance(downstream,cpg);
-								//System.err.println(downstream.toString());
-							}else if(downstreamCpgIt==null || !downstreamCpgIt.hasNext()){
-								IntervalTree.Node<String> upstream = upstreamCpgIt.next();
-								nearestCpg = CcInferenceUtils.intervalDistance(upstream,cpg);
-								//System.err.println(upstream.toString());
+							if(upstream < 0){
+								nearestCpg = allCpgs.distance(downstream, start, end);
+							}else if(downstream >= allCpgs.size()){
+								nearestCpg = allCpgs.distance(upstream, start, end);
 							}else{
-								IntervalTree.Node<String> upstream = upstreamCpgIt.next();
-								IntervalTree.Node<String> downstream = downstreamCpgIt.next();
-								//System.err.println(upstream.toString());
-								//System.err.println(downstream.toString());
-								
-								int dist1 = CcInferenceUtils.intervalDistance(upstream, cpg);
-								int dist2 = CcInferenceUtils.intervalDistance(downstream, cpg);
+								int dist1 = allCpgs.distance(upstream, start, end);
+								int dist2 = allCpgs.distance(downstream, start, end);
 								if(Math.abs(dist1) < Math.abs(dist2)){
 									nearestCpg = dist1;
 								}else{
@@ -614,11 +512,11 @@ public class CpgMultiMetricsStatsNoBam {
 									Iterator<Node<String>> downstreamIt = locCollections.iterator(start, end);
 									if(!upstreamIt.hasNext()){
 										IntervalTree.Node<String> downstream = locCollections.min(start, end);
-										distanceNearest = CcInferenceUtils.intervalDistance(downstream,cpg);
+										distanceNearest = CcInferenceUtils.intervalDistance(downstream, start, end);
 										//System.err.println(downstream.toString());
 									}else if(!downstreamIt.hasNext()){
 										IntervalTree.Node<String> upstream = locCollections.max(start, end);
-										distanceNearest = CcInferenceUtils.intervalDistance(upstream,cpg);
+										distanceNearest = CcInferenceUtils.intervalDistance(upstream, start, end);
 										//System.err.println(upstream.toString());
 									}else{
 										IntervalTree.Node<String> upstream = locCollections.max(start, end);
@@ -626,8 +524,8 @@ public class CpgMultiMetricsStatsNoBam {
 										//System.err.println(upstream.toString());
 										//System.err.println(downstream.toString());
 										
-										int dist1 = CcInferenceUtils.intervalDistance(upstream, cpg);
-										int dist2 = CcInferenceUtils.intervalDistance(downstream, cpg);
+										int dist1 = CcInferenceUtils.intervalDistance(upstream, start, end);
+										int dist2 = CcInferenceUtils.intervalDistance(downstream, start, end);
 										if(Math.abs(dist1) < Math.abs(dist2)){
 											distanceNearest = dist1;
 										}else{
@@ -769,7 +667,7 @@ public class CpgMultiMetricsStatsNoBam {
 					
 					
 
-					refParser.closeParser();;
+					reference.close();
 
 					
 					if(valueBedReaders != null){
@@ -12,7 +12,6 @@ import htsjdk.samtools.util.IntervalTree;
 import htsjdk.samtools.util.IntervalTree.Node;
 import htsjdk.samtools.util.SequenceUtil;
 import org.apache.log4j.Logger;
-import org.biojava.nbio.genome.parsers.twobit.TwoBitParser;
 import org.broadinstitute.gatk.utils.BaseUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -24,7 +23,6 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -125,7 +123,8 @@ public class CpgMultiMetricsStatsV2 {
 					
 					//initiate different kinds of reader
 					//reference genome
-					TwoBitParser refParser = new TwoBitParser(new File(refFile));
+					TwoBitReference reference = new TwoBitReference(new File(refFile));
+					TwoBitReference.Chromosome refChr = null;
 					
 					//String[] names = p.getSequenceNames();
 					//for(int i=0;i<names.length;i++) {
@@ -260,7 +259,7 @@ public class CpgMultiMetricsStatsV2 {
 					readsNumTotal = readsNumTotal/1000000;
 					log.info("Output value for each CpG in each DNA fragment ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//basic
 					writer.write("chr\tstart\tend\treadName\tFragLen\tFrag_strand\tmethy_stat\tNorm_Frag_cov\tbaseQ\tOffset_frag\tDist_frag_end");
@@ -279,7 +278,7 @@ public class CpgMultiMetricsStatsV2 {
 						}
 						if(prevChr.equalsIgnoreCase("")){
 							prevChr = chr;
-							refParser.setCurrentSequence(chr);
+							refChr = reference.chromosome(chr);
 						}
 						String bamChr = chr;
 						if(useNoChrPrefixBam){
@@ -404,11 +403,10 @@ public class CpgMultiMetricsStatsV2 {
 						
 						//System.err.println(normalizedFragCov + "\t" + countedReads.size() + "\t" + readsNumTotal);
 						if(!chr.equalsIgnoreCase(prevChr)){
-							refParser.close();
-							refParser.setCurrentSequence(chr);
+							refChr = reference.chromosome(chr);
 							prevChr = chr;
 						}
-						byte[] refBasesExt = CcInferenceUtils.toUpperCase(refParser.loadFragment(end-2-kmerLen, kmerLen*2+3).getBytes());
+						byte[] refBasesExt = refChr.sliceUpperCase(end-2-kmerLen, kmerLen*2+3);
 						byte refBase = refBasesExt[kmerLen+1];
 						
 						//if(end==152011200){
@@ -534,7 +532,7 @@ public class CpgMultiMetricsStatsV2 {
 					
 					
 					wgsReader.close();
-					refParser.closeParser();;
+					reference.close();
 					
 					finish();
 
@@ -21,7 +21,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.log4j.BasicConfigurator;
@@ -227,7 +226,7 @@ public class DistFragEndMethyCor {
 	
 	private void initiate(String outputFile) throws Exception{
 		startTime = System.currentTimeMillis();
-		writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFile)), "UTF-8");
+		writer = new OutputStreamWriter(new BgzfOutputStream(new FileOutputStream(outputFile)), "UTF-8");
 
 	}
 
@@ -20,7 +20,6 @@ import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.tuple.Triple;
 import org.apache.log4j.BasicConfigurator;
@@ -110,7 +109,7 @@ public class FragComplexMetricsStats {
 					log.info("Processing bam file ... ");
 					SamReader wgsReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(wgsBamFile));
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					writer.write("#chr\tstart\tend\treadName\tFragLen\tFrag_strand\tfrac_methy_CG\tmethy_density_CG\tmethy_CG\tunmethy_CG\tGC_perc");
 					for(int i=2; i <= kmerLen; i++){
 						for(byte[] kmer : SequenceUtil.generateAllKmers(i)){
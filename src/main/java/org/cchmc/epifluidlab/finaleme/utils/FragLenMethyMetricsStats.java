@@ -17,14 +17,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 
 
 
 import java.util.TreeMap;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.exception.MathIllegalArgumentException;
 import org.apache.commons.math3.exception.MathIllegalStateException;
@@ -63,6 +61,9 @@ public class FragLenMethyMetricsStats {
 	@Option(name="-skipSecondEnd",usage="skip the 2nd end for the statistics. Default: false")
 	public boolean skipSecondEnd = false;
 	
+	@Option(name="-fragmentId",usage="write a 64-bit fragment id (a hash of the read name) instead of the read name in the detail file, so the read names are not kept in memory. Default: false")
+	public boolean fragmentId = false;
+	
 	@Option(name="-h",usage="show option information")
 	public boolean help = false;
 
@@ -123,7 +124,9 @@ public class FragLenMethyMetricsStats {
 					SamReader wgsReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(wgsBamFile));
 					
 					SAMRecordIterator wgsIt = wgsReader.iterator();
-					HashMap<String,FragMethyDatum> readsStat = new HashMap<String,FragMethyDatum>();
+					//fragments in order of first appearance, looked up by fragment id rather than by read name
+					ArrayList<FragMethyDatum> readsStat = new ArrayList<FragMethyDatum>();
+					FragmentIndex readIndex = new FragmentIndex();
 					long num = 0;
 					
 					while(wgsIt.hasNext()){
@@ -131,11 +134,16 @@ public class FragLenMethyMetricsStats {
 						if(skipSecondEnd && r.getReadPairedFlag() && r.getSecondOfPairFlag())
 							continue;
 						FragMethyDatum fragMethyDatum = processRead(r, wgsReader);
-						String readName = r.getReadName();
-						if(readsStat.containsKey(readName)){ //second pair of read, only add methylation, not fragment length
-								readsStat.put(readName, readsStat.get(readName).add(fragMethyDatum));
+						long readId = FragmentId.of(r.getReadName());
+						int read = readIndex.indexOf(readId, r.getReadName().hashCode());
+						if(read < readsStat.size()){ //second pair of read, only add methylation, not fragment length
+								readsStat.get(read).add(fragMethyDatum);
 						}else{
-								readsStat.put(readName, fragMethyDatum);
+								fragMethyDatum.fragmentId = readId;
+								if(!fragmentId){
+									fragMethyDatum.readName = r.getReadName();
+								}
+								readsStat.add(fragMethyDatum);
 						}
 
 						
@@ -146,24 +154,24 @@ public class FragLenMethyMetricsStats {
 					}
 					wgsIt.close();
 					wgsReader.close();
+					readIndex = null;
 					
 					//
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
-					writer.write("#readName\tFragLen\tfrac_methy_CG\tmethy_CG\tunmethy_CG\tfrac_methy_CH\tmethy_CH\tunmethy_CH\n");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
+					writer.write("#" + (fragmentId ? "fragmentId" : "readName") + "\tFragLen\tfrac_methy_CG\tmethy_CG\tunmethy_CG\tfrac_methy_CH\tmethy_CH\tunmethy_CH\n");
 					
 					log.info("Summarize fragment informaiton ... ");
 					TreeMap<Integer,DescriptiveStatistics> fragLenMethySummary = new TreeMap<Integer,DescriptiveStatistics>();
 					TreeMap<Integer,DescriptiveStatistics> fragMethyLenSummary = new TreeMap<Integer,DescriptiveStatistics>();
-					for(String key : readsStat.keySet()){
-						FragMethyDatum fm = readsStat.get(key);
+					for(FragMethyDatum fm : readsStat){
 						if(excludeFragNoCG && (fm.methy_CG + fm.unmethy_CG)==0){
 							continue;
 						}
 						if(fm.fragLen > maxFragLen || (double)fm.methy_CH/(double)(fm.methy_CH + fm.unmethy_CH) > excludeFragCHmethy){
 							continue;
 						}
-						writer.write(key + "\t" + fm.fragLen+ "\t" + String.format("%.3f",100*(double)fm.methy_CG/(double)(fm.methy_CG + fm.unmethy_CG))  + "\t" + fm.methy_CG + "\t" + fm.unmethy_CG + "\t" 
+						writer.write((fragmentId ? Long.toString(fm.fragmentId) : fm.readName) + "\t" + fm.fragLen+ "\t" + String.format("%.3f",100*(double)fm.methy_CG/(double)(fm.methy_CG + fm.unmethy_CG))  + "\t" + fm.methy_CG + "\t" + fm.unmethy_CG + "\t" 
 								 + String.format("%.3f",100*(double)fm.methy_CH/(double)(fm.methy_CH + fm.unmethy_CH))  + "\t" + fm.methy_CH + "\t" + fm.unmethy_CH + "\n");
 						if(fragLenMethySummary.containsKey(fm.fragLen)){
 							DescriptiveStatistics stats = fragLenMethySummary.get(fm.fragLen);
@@ -201,7 +209,7 @@ public class FragLenMethyMetricsStats {
 					
 					log.info("Output fragment summary informaiton ... ");
 					FileOutputStream outputFragLenMethySummary = new FileOutputStream(fragLenMethySummaryFile);
-					OutputStreamWriter writerFragLenMethySummary = new OutputStreamWriter(new GZIPOutputStream(outputFragLenMethySummary), "UTF-8");
+					OutputStreamWriter writerFragLenMethySummary = new OutputStreamWriter(new BgzfOutputStream(outputFragLenMethySummary), "UTF-8");
 					writerFragLenMethySummary.write("#FragLen\tFracMethy_mean\tFracMethy_sd\tFracMethy_median\n");
 					for(Integer key : fragLenMethySummary.keySet()){
 						DescriptiveStatistics stat = fragLenMethySummary.get(key);
@@ -212,7 +220,7 @@ public class FragLenMethyMetricsStats {
 					outputFragLenMethySummary.close();
 					
 					FileOutputStream outputFragMethyLenSummary = new FileOutputStream(fragMethyLenSummaryFile);
-					OutputStreamWriter writerFragMethyLenSummary = new OutputStreamWriter(new GZIPOutputStream(outputFragMethyLenSummary), "UTF-8");
+					OutputStreamWriter writerFragMethyLenSummary = new OutputStreamWriter(new BgzfOutputStream(outputFragMethyLenSummary), "UTF-8");
 					writerFragMethyLenSummary.write("#FragLen\tFracLen_mean\tFracLen_sd\tFracLen_median\n");
 					for(Integer key : fragMethyLenSummary.keySet()){
 						DescriptiveStatistics stat = fragMethyLenSummary.get(key);
@@ -259,6 +267,8 @@ public class FragLenMethyMetricsStats {
 		public long methy_CH = 0L;
 		public long unmethy_CH = 0L;
 		public int fragLen = 0;
+		public long fragmentId = -1L;
+		public String readName = null; //only kept without -fragmentId, to be written in the detail file
 		
 		public FragMethyDatum(){
 			
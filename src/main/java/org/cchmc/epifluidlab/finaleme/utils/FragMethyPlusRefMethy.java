@@ -21,9 +21,7 @@ import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.TreeMap;
-import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.Argument;
@@ -31,7 +29,6 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import edu.unc.genomics.io.BigWigFileReader;
 import edu.unc.genomics.io.WigFileException;
 
 /**
@@ -63,6 +60,9 @@ public class FragMethyPlusRefMethy {
 	
 	@Option(name="-getRidOffChrPrefix",usage="get rid of chr prefix for bam file mapped in hg19, while provided big wig file is in GRch37. Default: false")
 	public boolean getRidOffChrPrefix = false;
+
+	@Option(name="-cachedChrs",usage="number of chromosomes of each big wig file kept in memory. the bam file is sorted by read name, so raising it to the number of chromosomes avoids reloading them, when memory allows. Default: 2")
+	public int cachedChrs = 2;
 		
 	@Option(name="-h",usage="show option information")
 	public boolean help = false;
@@ -124,11 +124,11 @@ public class FragMethyPlusRefMethy {
 					//log.info("Processing interval file ... ");
 					SamReader wgsReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(wgsBamFile));
 					
-					HashMap<String, BigWigFileReader> valueWigReaders = null;
+					HashMap<String, BigWigValueCache> valueWigReaders = null;
 					LinkedHashSet<String> valueWigLocString = new LinkedHashSet<String>();
 					if(valueWigs != null){
 						log.info("Loading value interval big wig file ... ");
-						valueWigReaders =  new HashMap<String, BigWigFileReader>();
+						valueWigReaders =  new HashMap<String, BigWigValueCache>();
 						for(String valueWigString : valueWigs){
 							String[] splitStrings = valueWigString.split(":");
 							if(splitStrings.length < 2){
@@ -137,16 +137,16 @@ public class FragMethyPlusRefMethy {
 							String valueWigName = splitStrings[0];
 							String valueRegion = splitStrings[1];
 							valueWigLocString.add(valueWigName);
-							valueWigReaders.put(valueWigName,new BigWigFileReader(new File(valueRegion).toPath()));
+							valueWigReaders.put(valueWigName,new BigWigValueCache(new File(valueRegion), cachedChrs));
 						}
 						
 					}
 					
-					HashMap<String, BigWigFileReader> covWigReaders = null;
+					HashMap<String, BigWigValueCache> covWigReaders = null;
 					LinkedHashSet<String> covWigLocString = new LinkedHashSet<String>();
 					if(covWigs != null){
 						log.info("Loading coverage interval big wig file ... ");
-						covWigReaders =  new HashMap<String, BigWigFileReader>();
+						covWigReaders =  new HashMap<String, BigWigValueCache>();
 						for(String covWigString : covWigs){
 							String[] splitStrings = covWigString.split(":");
 							if(splitStrings.length < 2){
@@ -155,14 +155,14 @@ public class FragMethyPlusRefMethy {
 							String covWigName = splitStrings[0];
 							String covRegion = splitStrings[1];
 							covWigLocString.add(covWigName);
-							covWigReaders.put(covWigName,new BigWigFileReader(new File(covRegion).toPath()));
+							covWigReaders.put(covWigName,new BigWigValueCache(new File(covRegion), cachedChrs));
 						}
 						
 					}
 					
 					log.info("Processing bam file ... ");
 					FileOutputStream output = new FileOutputStream(detailFile);
-					OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
+					OutputStreamWriter writer = new OutputStreamWriter(new BgzfOutputStream(output), "UTF-8");
 					
 					//header file
 					writer.write("#readName\tnumCg\treadMethy");
@@ -323,23 +323,24 @@ public class FragMethyPlusRefMethy {
 				|| r.getReadFailsVendorQualityCheckFlag() || r.getDuplicateReadFlag() || !r.getReadPairedFlag() || !r.getProperPairFlag();
 	}
 	
-	private Pair<Double, Integer> fragRefMethy(BigWigFileReader reader, BigWigFileReader covReader, TreeMap<Integer, Integer> cpgMethy, String chr) throws WigFileException, IOException{
+	private Pair<Double, Integer> fragRefMethy(BigWigValueCache reader, BigWigValueCache covReader, TreeMap<Integer, Integer> cpgMethy, String chr) throws WigFileException, IOException{
 
 		if(getRidOffChrPrefix){
 			chr = chr.replace("chr", "");
 		}
+		BigWigValueCache.Chromosome values = reader.chromosome(chr);
+		BigWigValueCache.Chromosome covValues = covReader.chromosome(chr);
 
 		int methyCountSumReads = 0;
 		int totalCountSumReads = 0;
 		
 		for(Integer pos : cpgMethy.keySet()){
-			SummaryStatistics stat = reader.queryStats(chr, pos, pos);
-			SummaryStatistics statCov = covReader.queryStats(chr, pos, pos);
-			if(stat.getN()>0){
+			double methy = values.mean(pos, pos);
+			if(!Double.isNaN(methy)){
 				//double methyMean = (double)stat.getMean();
-				int methyCov = (int)statCov.getMean();
+				int methyCov = (int)covValues.mean(pos, pos);
 				//int methylatedCount = (int)(methyCov*methyMean);
-				int methylatedCount = (int)stat.getMean();
+				int methylatedCount = (int)methy;
 				methyCountSumReads +=methylatedCount;
 				totalCountSumReads +=methyCov;
 				
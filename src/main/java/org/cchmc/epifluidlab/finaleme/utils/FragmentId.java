@@ -0,0 +1,66 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 64-bit identifier of a fragment, used in place of its read name. Read names
+ * are 40-70 characters long, and the maps from read name to fragment hold
+ * millions of them; a long key avoids the String and its map entry.
+ *
+ * A name made of 1 to 18 decimal digits without a leading zero (an identifier
+ * already written by CpgMultiMetricsStats -fragmentId) is its own identifier,
+ * so "007" and "7" are not taken for the same fragment; any other name is
+ * hashed to 63 bits. So a matrix with read names and the same matrix with
+ * identifiers give the same fragments. Two different names collide with a
+ * probability of about n^2 / 2^64 for n fragments (0.05% for 100 million);
+ * {@link FragmentIndex} reports such a collision where the identifiers are
+ * given to read names.
+ */
+public class FragmentId {
+
+	private FragmentId() {
+	}
+
+	public static long of(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return of(bytes, 0, bytes.length);
+	}
+
+	public static long of(byte[] bytes, int offset, int length) {
+		// only canonical numbers, which Long.toString() gives back unchanged
+		if (length > 0 && length <= 18 && (length == 1 || bytes[offset] != '0')) {
+			long value = 0;
+			int i = offset;
+			for (; i < offset + length; i++) {
+				int d = bytes[i] - '0';
+				if (d < 0 || d > 9) {
+					break;
+				}
+				value = value * 10 + d;
+			}
+			if (i == offset + length) {
+				return value;
+			}
+		}
+		// FNV-1a, then the murmur3 finalizer to spread the bits of short names
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash) & Long.MAX_VALUE;
+	}
+
+	/**
+	 * murmur3 64-bit finalizer.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.Arrays;
+
+/**
+ * Numbers fragments 0, 1, 2... in order of first appearance, looked up by
+ * their {@link FragmentId}. The hash code of the read name is kept with each
+ * fragment, so two different read names hashed to the same identifier are
+ * reported instead of being taken for one fragment.
+ */
+public class FragmentIndex {
+
+	private final LongIntHashMap indexes = new LongIntHashMap();
+	private int[] nameHashes = new int[16];
+
+	/**
+	 * @param id
+	 *            FragmentId.of(name)
+	 * @param nameHash
+	 *            name.hashCode()
+	 * @return The index of the fragment, size() - 1 for a new fragment.
+	 * @throws IllegalStateException
+	 *             if a fragment with another read name has the same identifier.
+	 */
+	public int indexOf(long id, int nameHash) {
+		int index = indexes.get(id);
+		if (index < 0) {
+			index = indexes.size();
+			indexes.put(id, index);
+			if (index == nameHashes.length) {
+				nameHashes = Arrays.copyOf(nameHashes, (int) Math.min(index * 2L, Integer.MAX_VALUE - 8));
+			}
+			nameHashes[index] = nameHash;
+		} else if (nameHashes[index] != nameHash) {
+			throw new IllegalStateException("Two different read names have the same fragment id " + id);
+		}
+		return index;
+	}
+
+	public int indexOf(String name) {
+		return indexOf(FragmentId.of(name), name.hashCode());
+	}
+
+	public int size() {
+		return indexes.size();
+	}
+
+}
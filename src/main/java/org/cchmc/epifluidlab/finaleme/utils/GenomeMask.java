@@ -0,0 +1,315 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of genomic regions, such as the -region and -exclude BED files of
+ * FinaleMe or a blacklist, held per chromosome as sorted and merged intervals
+ * in two int arrays. Any number of BED files can be merged into one mask, and
+ * the mask can be saved as a binary file ({@link #EXTENSION}, see
+ * BedToGenomeMask) that is read back without parsing the BED files again.
+ *
+ * Intervals are closed ([start, end]) and coordinates are compared as given,
+ * so {@link #overlaps(String, int, int)} answers as
+ * IntervalTree.minOverlapper(start, end) != null on a tree of the same
+ * intervals. A membership test is a binary search, and a {@link Cursor} makes
+ * it amortized O(1) for queries sorted by start.
+ */
+public class GenomeMask {
+
+	public static final String EXTENSION = ".gmask";
+	public static final int MAGIC = 0x474D4B31; // "GMK1"
+	public static final int VERSION = 1;
+
+	private final HashMap<String, Intervals> chrs;
+
+	private GenomeMask(HashMap<String, Intervals> chrs) {
+		this.chrs = chrs;
+	}
+
+	public static boolean isBinary(String path) {
+		return path.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Loads a binary mask, or builds the mask of a BED file (plain or gzip).
+	 */
+	public static GenomeMask load(String file) throws IOException {
+		if (isBinary(file)) {
+			return read(file);
+		}
+		return new Builder().add(file).build();
+	}
+
+	/**
+	 * @return The union of the regions of the files, binary masks or BED files.
+	 */
+	public static GenomeMask load(List<String> files) throws IOException {
+		Builder builder = new Builder();
+		for (String file : files) {
+			builder.add(file);
+		}
+		return builder.build();
+	}
+
+	public boolean hasChr(String chr) {
+		return chrs.containsKey(chr);
+	}
+
+	/**
+	 * @return The number of merged intervals.
+	 */
+	public int size() {
+		int size = 0;
+		for (Intervals intervals : chrs.values()) {
+			size += intervals.starts.length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return Whether [start, end] overlaps one of the regions.
+	 */
+	public boolean overlaps(String chr, int start, int end) {
+		Intervals intervals = chrs.get(chr);
+		if (intervals == null) {
+			return false;
+		}
+		int i = lowerBound(intervals.ends, 0, start);
+		return i < intervals.ends.length && intervals.starts[i] <= end;
+	}
+
+	/**
+	 * @return A new cursor for the queries of one pass over an input.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Writes the mask in the binary format read by {@link #load(String)}.
+	 */
+	public void save(String file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(chrs.size());
+			for (Map.Entry<String, Intervals> entry : new TreeMap<String, Intervals>(chrs).entrySet()) {
+				Intervals intervals = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(intervals.starts.length);
+				for (int i = 0; i < intervals.starts.length; i++) {
+					out.writeInt(intervals.starts[i]);
+					out.writeInt(intervals.ends[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static GenomeMask read(String file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IllegalArgumentException("Not a genome mask file: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported genome mask version " + version + " in " + file);
+			}
+			int nbChrs = in.readInt();
+			HashMap<String, Intervals> chrs = new HashMap<String, Intervals>();
+			for (int c = 0; c < nbChrs; c++) {
+				String chr = in.readUTF();
+				int n = in.readInt();
+				int[] starts = new int[n];
+				int[] ends = new int[n];
+				for (int i = 0; i < n; i++) {
+					starts[i] = in.readInt();
+					ends[i] = in.readInt();
+				}
+				chrs.put(chr, new Intervals(starts, ends));
+			}
+			return new GenomeMask(chrs);
+		} finally {
+			in.close();
+		}
+	}
+
+	// first index whose end is >= start; the ends of merged intervals are sorted
+	private static int lowerBound(int[] ends, int from, int start) {
+		int low = from;
+		int high = ends.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (ends[mid] < start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static class Intervals {
+		final int[] starts;
+		final int[] ends;
+
+		Intervals(int[] starts, int[] ends) {
+			this.starts = starts;
+			this.ends = ends;
+		}
+	}
+
+	/**
+	 * Membership tests of one pass over an input. For queries sorted by start
+	 * within a chromosome, the cursor only moves forward from the interval of
+	 * the previous query; other queries fall back to a binary search. A cursor
+	 * is not thread-safe, the mask is.
+	 */
+	public class Cursor {
+
+		private String chr = null;
+		private Intervals intervals = null;
+		// intervals before index end before the previous query start
+		private int index = 0;
+		private int lastStart = Integer.MIN_VALUE;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Same as {@link GenomeMask#overlaps(String, int, int)}.
+		 */
+		public boolean overlaps(String chr, int start, int end) {
+			if (chr != this.chr && !chr.equals(this.chr)) {
+				this.chr = chr;
+				intervals = chrs.get(chr);
+				index = 0;
+				lastStart = Integer.MIN_VALUE;
+			}
+			if (intervals == null) {
+				return false;
+			}
+			if (start < lastStart) {
+				index = 0;
+			}
+			lastStart = start;
+			int[] ends = intervals.ends;
+			// a few steps for close queries, a binary search for a jump
+			for (int step = 0; index < ends.length && ends[index] < start; step++) {
+				if (step == 4) {
+					index = lowerBound(ends, index, start);
+					break;
+				}
+				index++;
+			}
+			return index < ends.length && intervals.starts[index] <= end;
+		}
+	}
+
+	/**
+	 * Collects intervals in any order, then sorts and merges them.
+	 */
+	public static class Builder {
+
+		private final HashMap<String, long[]> pending = new HashMap<String, long[]>();
+		private final HashMap<String, Integer> sizes = new HashMap<String, Integer>();
+
+		/**
+		 * Adds the closed interval [start, end]. Intervals with end < start are
+		 * ignored.
+		 */
+		public Builder add(String chr, int start, int end) {
+			if (end < start) {
+				return this;
+			}
+			long[] intervals = pending.get(chr);
+			int size = intervals == null ? 0 : sizes.get(chr);
+			if (intervals == null) {
+				intervals = new long[16];
+				pending.put(chr, intervals);
+			} else if (size == intervals.length) {
+				intervals = Arrays.copyOf(intervals, size * 2);
+				pending.put(chr, intervals);
+			}
+			// sorted by start, then end, as signed longs
+			intervals[size] = ((long) start << 32) | ((long) end - start);
+			sizes.put(chr, size + 1);
+			return this;
+		}
+
+		/**
+		 * Adds the regions of a binary mask or of a BED file (plain or gzip), whose
+		 * first three columns are taken as given, as -region and -exclude always
+		 * did.
+		 */
+		public Builder add(String file) throws IOException {
+			if (isBinary(file)) {
+				for (Map.Entry<String, Intervals> entry : read(file).chrs.entrySet()) {
+					Intervals intervals = entry.getValue();
+					for (int i = 0; i < intervals.starts.length; i++) {
+						add(entry.getKey(), intervals.starts[i], intervals.ends[i]);
+					}
+				}
+				return this;
+			}
+			TabFieldReader fields = TabFieldReader.open(file);
+			try {
+				String chr = null;
+				while (fields.next()) {
+					if (fields.startsWith('#') || fields.fieldCount() < 3) {
+						continue;
+					}
+					chr = fields.field(0, chr);
+					add(chr, fields.intField(1), fields.intField(2));
+				}
+			} finally {
+				fields.close();
+			}
+			return this;
+		}
+
+		public GenomeMask build() {
+			HashMap<String, Intervals> chrs = new HashMap<String, Intervals>();
+			for (Map.Entry<String, long[]> entry : pending.entrySet()) {
+				long[] intervals = entry.getValue();
+				int size = sizes.get(entry.getKey());
+				Arrays.sort(intervals, 0, size);
+				int[] starts = new int[size];
+				int[] ends = new int[size];
+				int n = 0;
+				for (int i = 0; i < size; i++) {
+					int start = (int) (intervals[i] >> 32);
+					int end = (int) (start + (intervals[i] & 0xFFFFFFFFL));
+					// closed integer intervals that touch are merged too
+					if (n > 0 && (long) start <= (long) ends[n - 1] + 1) {
+						ends[n - 1] = Math.max(ends[n - 1], end);
+					} else {
+						starts[n] = start;
+						ends[n] = end;
+						n++;
+					}
+				}
+				chrs.put(entry.getKey(), new Intervals(Arrays.copyOf(starts, n), Arrays.copyOf(ends, n)));
+			}
+			pending.clear();
+			sizes.clear();
+			return new GenomeMask(chrs);
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import htsjdk.samtools.util.IntervalTree;
+import htsjdk.samtools.util.IntervalTree.Node;
+import htsjdk.samtools.util.Locatable;
+
+/**
+ * Forward-only cursor over the intervals of one chromosome, sorted by start,
+ * for queries that come sorted by start too, as the CpGs of a span do. Each
+ * interval is read once from the source and kept only while a later query can
+ * still use it, so a sweep over n queries and m intervals costs O(n + m)
+ * instead of one tree or tabix lookup per query.
+ *
+ * Intervals are closed ([start, end]) and coordinates are compared as given,
+ * like htsjdk IntervalTree. {@link #floor(int, int)} and
+ * {@link #ceiling(int, int)} also need the intervals sorted by end within the
+ * same start, as an IntervalTree iterates them.
+ */
+public abstract class IntervalCursor<T> {
+
+	private final Iterator<? extends T> source;
+	private T pending;
+	// intervals starting at or before the last query end, in source order
+	private final ArrayList<T> window = new ArrayList<T>();
+	// index in window of the first interval >= the last query in (start, end) order
+	private int ceiling = 0;
+	private int lastStart = Integer.MIN_VALUE;
+
+	protected IntervalCursor(Iterator<? extends T> source) {
+		this.source = source;
+		pending = source.hasNext() ? source.next() : null;
+	}
+
+	protected abstract int start(T interval);
+
+	protected abstract int end(T interval);
+
+	public static <V> IntervalCursor<Node<V>> overTree(IntervalTree<V> tree) {
+		return new IntervalCursor<Node<V>>(tree.iterator()) {
+			@Override
+			protected int start(Node<V> node) {
+				return node.getStart();
+			}
+
+			@Override
+			protected int end(Node<V> node) {
+				return node.getEnd();
+			}
+		};
+	}
+
+	/**
+	 * @param features sorted features, e.g. from a tabix query
+	 */
+	public static <F extends Locatable> IntervalCursor<F> overFeatures(Iterator<F> features) {
+		return new IntervalCursor<F>(features) {
+			@Override
+			protected int start(F feature) {
+				return feature.getStart();
+			}
+
+			@Override
+			protected int end(F feature) {
+				return feature.getEnd();
+			}
+		};
+	}
+
+	/**
+	 * Same as IntervalTree.minOverlapper(start, end) != null.
+	 */
+	public boolean overlaps(int start, int end) {
+		seek(start, end);
+		for (int i = 0; i < window.size(); i++) {
+			if (end(window.get(i)) >= start) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fills <code>overlapping</code> with the intervals overlapping [start, end]
+	 * in source order, and returns their number.
+	 */
+	public int overlapping(int start, int end, List<T> overlapping) {
+		seek(start, end);
+		overlapping.clear();
+		for (int i = 0; i < window.size(); i++) {
+			T interval = window.get(i);
+			if (end(interval) >= start) {
+				overlapping.add(interval);
+			}
+		}
+		return overlapping.size();
+	}
+
+	/**
+	 * Same as IntervalTree.max(start, end): the last interval <= [start, end] in
+	 * (start, end) order, null if there is none.
+	 */
+	public T floor(int start, int end) {
+		T next = ceiling(start, end);
+		if (next != null && start(next) == start && end(next) == end) {
+			return next;
+		}
+		return ceiling > 0 ? window.get(ceiling - 1) : null;
+	}
+
+	/**
+	 * Same as IntervalTree.min(start, end): the first interval >= [start, end]
+	 * in (start, end) order, null if there is none.
+	 */
+	public T ceiling(int start, int end) {
+		seek(start, end);
+		return ceiling < window.size() ? window.get(ceiling) : pending;
+	}
+
+	private void seek(int start, int end) {
+		if (start < lastStart) {
+			throw new IllegalArgumentException("Queries need to be sorted by start: " + start + " after " + lastStart);
+		}
+		lastStart = start;
+		while (pending != null && start(pending) <= end) {
+			window.add(pending);
+			pending = source.hasNext() ? source.next() : null;
+		}
+		while (ceiling < window.size() && compare(window.get(ceiling), start, end) < 0) {
+			ceiling++;
+		}
+		// intervals ending before this start cannot overlap any later query, only
+		// the one before the ceiling is still needed as floor
+		int kept = 0;
+		int keptCeiling = ceiling;
+		for (int i = 0; i < window.size(); i++) {
+			T interval = window.get(i);
+			if (end(interval) < start && i != ceiling - 1) {
+				if (i < ceiling) {
+					keptCeiling--;
+				}
+				continue;
+			}
+			window.set(kept++, interval);
+		}
+		if (kept < window.size()) {
+			window.subList(kept, window.size()).clear();
+		}
+		ceiling = keptCeiling;
+	}
+
+	private int compare(T interval, int start, int end) {
+		if (start(interval) != start) {
+			return start(interval) < start ? -1 : 1;
+		}
+		return end(interval) < end ? -1 : (end(interval) == end ? 0 : 1);
+	}
+
+}
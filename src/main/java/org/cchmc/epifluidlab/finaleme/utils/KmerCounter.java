@@ -0,0 +1,161 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.util.SequenceUtil;
+
+/**
+ * Counts the k-mers of a sequence for every k from <code>minK</code> to
+ * <code>maxK</code> in one pass. The k-mer is kept as a rolling 2-bit code
+ * (A=0, C=1, G=2, T=3, the first base in the highest bits) updated once per
+ * base, and counted in an <code>int[4^k]</code> array that is reused between
+ * sequences. As in {@link CcInferenceUtils#kmerFreqSearch(byte[], int)}, bases
+ * are case insensitive and a window containing any other base (e.g. N) counts
+ * in the total but in no k-mer. k is at most {@link #MAX_K}, the tools
+ * reject a longer -kmerLen when they parse their options.
+ */
+public class KmerCounter {
+
+	public static final int MAX_K = 12;
+
+	private final int minK;
+	private final int maxK;
+	private final int[][] counts;
+	private final int[] totals;
+	// codes counted since the last reset, so only those are cleared
+	private int[][] touched;
+	private final int[] nbTouched;
+	// k-mers in the order of SequenceUtil.generateAllKmers and their codes, built on the first putFrequencies call for k
+	private final String[][] names;
+	private final int[][] nameCodes;
+
+	public KmerCounter(int minK, int maxK) {
+		if (minK < 1 || maxK < minK || maxK > MAX_K)
+			throw new IllegalArgumentException("k-mer length must be between 1 and " + MAX_K + ": " + minK + "-" + maxK);
+		this.minK = minK;
+		this.maxK = maxK;
+		counts = new int[maxK + 1][];
+		touched = new int[maxK + 1][];
+		for (int k = minK; k <= maxK; k++) {
+			counts[k] = new int[1 << (2 * k)];
+			touched[k] = new int[64];
+		}
+		totals = new int[maxK + 1];
+		nbTouched = new int[maxK + 1];
+		names = new String[maxK + 1][];
+		nameCodes = new int[maxK + 1][];
+	}
+
+	public int minK() {
+		return minK;
+	}
+
+	public int maxK() {
+		return maxK;
+	}
+
+	/**
+	 * Counts the k-mers of <code>bases[from]</code> to <code>bases[to-1]</code>,
+	 * replacing the previous counts.
+	 */
+	public void count(byte[] bases, int from, int to) {
+		reset();
+		int code = 0;
+		int valid = 0; // number of A/C/G/T bases ending at the current position
+		for (int i = from; i < to; i++) {
+			int c = TwoBitReference.baseCode(bases[i]);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			code = (code << 2) | c;
+			valid++;
+			for (int k = minK; k <= maxK && k <= valid; k++) {
+				int kmer = code & ((1 << (2 * k)) - 1);
+				if (counts[k][kmer]++ == 0) {
+					if (nbTouched[k] == touched[k].length)
+						touched[k] = Arrays.copyOf(touched[k], touched[k].length * 2);
+					touched[k][nbTouched[k]++] = kmer;
+				}
+			}
+		}
+		for (int k = minK; k <= maxK; k++)
+			totals[k] = Math.max(to - from - k + 1, 0);
+	}
+
+	public int count(int k, int code) {
+		return counts[k][code];
+	}
+
+	/**
+	 * Number of windows of length <code>k</code>, including the ones with N.
+	 */
+	public int total(int k) {
+		return totals[k];
+	}
+
+	/**
+	 * Percentage of the windows of length <code>k</code> that are the k-mer
+	 * <code>code</code>, 0 for a sequence shorter than k.
+	 */
+	public double frequency(int k, int code) {
+		int count = counts[k][code];
+		if (count == 0)
+			return 0.0;
+		return 100 * (double) count / (double) totals[k];
+	}
+
+	/**
+	 * Puts the frequency of every k-mer of length <code>k</code> in
+	 * <code>kmerFreq</code>, with the keys and values of
+	 * {@link CcInferenceUtils#kmerFreqSearch(byte[], int)} and in the same order.
+	 */
+	public void putFrequencies(int k, Map<String, Double> kmerFreq) {
+		if (names[k] == null) {
+			List<byte[]> kmers = SequenceUtil.generateAllKmers(k);
+			names[k] = new String[kmers.size()];
+			nameCodes[k] = new int[kmers.size()];
+			for (int i = 0; i < kmers.size(); i++) {
+				names[k][i] = new String(kmers.get(i));
+				nameCodes[k][i] = encode(kmers.get(i));
+			}
+		}
+		for (int i = 0; i < names[k].length; i++)
+			kmerFreq.put(names[k][i], frequency(k, nameCodes[k][i]));
+	}
+
+	private void reset() {
+		for (int k = minK; k <= maxK; k++) {
+			for (int i = 0; i < nbTouched[k]; i++)
+				counts[k][touched[k][i]] = 0;
+			nbTouched[k] = 0;
+			totals[k] = 0;
+		}
+	}
+
+	/**
+	 * Code of an upper case k-mer (the keys of kmerFreqSearch), -1 if it has
+	 * another character or is longer than {@link #MAX_K}.
+	 */
+	public static int encode(byte[] kmer) {
+		if (kmer.length == 0 || kmer.length > MAX_K)
+			return -1;
+		int code = 0;
+		for (byte b : kmer) {
+			if (b < 'A' || b > 'Z')
+				return -1;
+			int c = TwoBitReference.baseCode(b);
+			if (c < 0)
+				return -1;
+			code = (code << 2) | c;
+		}
+		return code;
+	}
+
+	public static int encode(String kmer) {
+		return encode(kmer.getBytes());
+	}
+
+}
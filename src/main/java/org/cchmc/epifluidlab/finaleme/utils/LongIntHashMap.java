@@ -0,0 +1,129 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to non-negative int values, with open addressing and
+ * linear probing in two primitive arrays: no boxing and no entry object per
+ * key. Meant to map fragment identifiers ({@link FragmentId}) to an index in a
+ * list, for the millions of fragments of a matrix.
+ *
+ * The table grows up to 2^30 slots (12 GB); it holds at most
+ * {@link #MAX_SIZE} keys.
+ */
+public class LongIntHashMap {
+
+	private static final int EMPTY = -1;
+
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * Largest number of keys: 3/4 of the largest table, which is filled past
+	 * the usual load factor of 1/2 rather than failing.
+	 */
+	public static final int MAX_SIZE = MAX_CAPACITY / 4 * 3;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		if (expectedSize > MAX_SIZE) {
+			throw new IllegalArgumentException(tooManyKeys(expectedSize));
+		}
+		long capacity = Long.highestOneBit(Math.max(expectedSize, 8) * 2L - 1) * 2;
+		allocate((int) Math.min(capacity, MAX_CAPACITY));
+	}
+
+	/**
+	 * @return The value of <code>key</code>, -1 if it is not in the map.
+	 */
+	public int get(long key) {
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			if (values[slot] == EMPTY) {
+				return EMPTY;
+			}
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != EMPTY;
+	}
+
+	/**
+	 * @return The previous value of <code>key</code>, -1 if it was not in the map.
+	 */
+	public int put(long key, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value: " + value);
+		}
+		int slot = slot(key);
+		for (; values[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				int previous = values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+		if (size == MAX_SIZE) {
+			throw new IllegalStateException(tooManyKeys(size + 1L));
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		// load factor of 1/2
+		if (size > keys.length / 2 && keys.length < MAX_CAPACITY) {
+			rehash();
+		}
+		return EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(values, EMPTY);
+		size = 0;
+	}
+
+	private int slot(long key) {
+		return (int) FragmentId.mix(key) & mask;
+	}
+
+	private static String tooManyKeys(long size) {
+		return "Too many keys: " + size + ", a LongIntHashMap holds at most " + MAX_SIZE;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != EMPTY) {
+				int slot = slot(oldKeys[i]);
+				while (values[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+}
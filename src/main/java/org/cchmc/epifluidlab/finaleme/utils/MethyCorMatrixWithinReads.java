@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.Argument;
@@ -156,9 +155,9 @@ public class MethyCorMatrixWithinReads {
 		
 		log.info("Output value for each Locus in each DNA fragment ... ");
 		FileOutputStream outputCor = new FileOutputStream(corDetailFile);
-		OutputStreamWriter writerCor = new OutputStreamWriter(new GZIPOutputStream(outputCor), "UTF-8");
+		OutputStreamWriter writerCor = new OutputStreamWriter(new BgzfOutputStream(outputCor), "UTF-8");
 		FileOutputStream outputMethy = new FileOutputStream(methyDetailFile);
-		OutputStreamWriter writerMethy = new OutputStreamWriter(new GZIPOutputStream(outputMethy), "UTF-8");
+		OutputStreamWriter writerMethy = new OutputStreamWriter(new BgzfOutputStream(outputMethy), "UTF-8");
 		ArrayList<Double[]> dataMatrix = new ArrayList<Double[]>();
 
 		for( int i = 0; i < cpgCollections.size(); i++){
@@ -17,7 +17,6 @@ import org.kohsuke.args4j.Option;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -139,7 +138,7 @@ public class MethyCorMatrixWithinReadsSortBam {
 */
 		log.info("Output value for each Locus in each DNA fragment ... ");
 		FileOutputStream outputCor = new FileOutputStream(corDetailFile);
-		OutputStreamWriter writerCor = new OutputStreamWriter(new GZIPOutputStream(outputCor), "UTF-8");
+		OutputStreamWriter writerCor = new OutputStreamWriter(new BgzfOutputStream(outputCor), "UTF-8");
 		//FileOutputStream output = new FileOutputStream(corSummaryFile);
 		//OutputStreamWriter writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
 		//ArrayList<Double[]> dataMatrix = new ArrayList<Double[]>();
@@ -0,0 +1,99 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * What CpgMultiMetricsStats looks up in a read for every CpG it covers,
+ * decoded once per read: the read offset of every reference position of the
+ * alignment (from the CIGAR), the end of the mate (from the MC tag) and the
+ * bisulfite conversion filter (from the MD tag). The cursor is kept in a
+ * transient attribute of the SAMRecord, so it lives as long as the read is
+ * active, and each lookup is an array access instead of a walk of the CIGAR.
+ */
+public class ReadCursor {
+
+	private static final Object KEY = ReadCursor.class;
+
+	private final SAMRecord read;
+	private final int alignmentStart;
+	// 0-based read offset (soft clips included) of each reference position from
+	// the alignment start, -1 for deleted or skipped positions
+	private final int[] readOffsets;
+	private final int mateAlignmentEnd;
+	private boolean bisulfiteChecked = false;
+	private int bisulfitePos;
+
+	private ReadCursor(SAMRecord read) {
+		this.read = read;
+		alignmentStart = read.getAlignmentStart();
+		readOffsets = new int[Math.max(read.getCigar().getReferenceLength(), 0)];
+		Arrays.fill(readOffsets, -1);
+		int readPos = 0;
+		int refPos = 0;
+		for (CigarElement element : read.getCigar().getCigarElements()) {
+			CigarOperator op = element.getOperator();
+			int length = element.getLength();
+			if (op.consumesReadBases() && op.consumesReferenceBases()) {
+				for (int i = 0; i < length; i++) {
+					readOffsets[refPos + i] = readPos + i;
+				}
+				readPos += length;
+				refPos += length;
+			} else if (op.consumesReadBases()) {
+				readPos += length;
+			} else if (op.consumesReferenceBases()) {
+				refPos += length;
+			}
+		}
+		mateAlignmentEnd = CcInferenceUtils.getMateAlignmentEndByMateCigar(read);
+	}
+
+	/**
+	 * @return The cursor of <code>read</code>, decoded at the first call.
+	 */
+	public static ReadCursor of(SAMRecord read) {
+		ReadCursor cursor = (ReadCursor) read.getTransientAttribute(KEY);
+		if (cursor == null) {
+			cursor = new ReadCursor(read);
+			read.setTransientAttribute(KEY, cursor);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Same as SAMRecord.getReadPositionAtReferencePosition(refPos) - 1: the
+	 * 0-based offset in the read bases of the 1-based reference position, -1 if
+	 * it is deleted or out of the alignment.
+	 */
+	public int readOffset(int refPos) {
+		int i = refPos - alignmentStart;
+		if (i < 0 || i >= readOffsets.length) {
+			return -1;
+		}
+		return readOffsets[i];
+	}
+
+	/**
+	 * Same as CcInferenceUtils.getMateAlignmentEndByMateCigar(read).
+	 */
+	public int mateAlignmentEnd() {
+		return mateAlignmentEnd;
+	}
+
+	/**
+	 * Same as CcInferenceUtils.bisulfiteIncompleteReads(read), computed at the
+	 * first call.
+	 */
+	public int bisulfitePos() throws Exception {
+		if (!bisulfiteChecked) {
+			bisulfitePos = CcInferenceUtils.bisulfiteIncompleteReads(read);
+			bisulfiteChecked = true;
+		}
+		return bisulfitePos;
+	}
+
+}
@@ -4,7 +4,8 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+
+import org.cchmc.epifluidlab.finaleme.utils.BgzfOutputStream;
 
 public class SplitInputMatrix {
 
@@ -131,7 +132,7 @@ public class SplitInputMatrix {
 
     private static void gzipFile(Path inTsv, Path outGz) throws IOException {
         try (InputStream is = new BufferedInputStream(Files.newInputStream(inTsv));
-                OutputStream os = new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(outGz,
+                OutputStream os = new BufferedOutputStream(new BgzfOutputStream(Files.newOutputStream(outGz,
                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))) {
 
             byte[] buf = new byte[1024 * 1024];
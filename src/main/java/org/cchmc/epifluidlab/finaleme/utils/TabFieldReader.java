@@ -0,0 +1,356 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Line by line reader of tab-delimited text, for the large matrices and BED
+ * files the tools load. Lines are kept as bytes in one reusable buffer and only
+ * the tab positions are recorded, so a row is neither decoded to a String nor
+ * split into a String[]: the caller parses the columns it needs, and ints and
+ * doubles are parsed from the ASCII digits directly.
+ *
+ * Lines end with '\n' or "\r\n" as for BufferedReader.readLine(). Numbers give
+ * the same value, or throw the same NumberFormatException, as
+ * Integer.parseInt(), Float.parseFloat() and Double.parseDouble() on the
+ * field; uncommon forms (too many digits, large exponents, NaN...) are handed
+ * to these methods.
+ */
+public class TabFieldReader implements Closeable {
+
+	// powers of ten exactly representable as double and float
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+			1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final float[] POW10F = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	private final InputStream in;
+	private byte[] buffer = new byte[1 << 16];
+	private int limit = 0;
+	private boolean eof = false;
+	private int lineStart = 0;
+	private int lineEnd = 0;
+	private int nextLine = 0;
+	// position of the tabs of the current line
+	private int[] tabs = new int[32];
+	private int nbTabs = 0;
+	// sign and power of ten of the last parseMantissa() call
+	private boolean negativeNumber;
+	private int decimalExponent;
+
+	public TabFieldReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Opens a plain or gzip (".gz") text file.
+	 */
+	public static TabFieldReader open(String file) throws IOException {
+		if (file.endsWith(".gz")) {
+			return new TabFieldReader(new GZIPInputStream(new FileInputStream(file), 1 << 16));
+		}
+		return new TabFieldReader(new FileInputStream(file));
+	}
+
+	/**
+	 * Moves to the next line.
+	 *
+	 * @return false at the end of the input.
+	 */
+	public boolean next() throws IOException {
+		lineStart = nextLine;
+		nbTabs = 0;
+		int i = lineStart;
+		while (true) {
+			for (; i < limit; i++) {
+				byte b = buffer[i];
+				if (b == '\n') {
+					lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+					nextLine = i + 1;
+					return true;
+				} else if (b == '\t') {
+					if (nbTabs == tabs.length) {
+						tabs = Arrays.copyOf(tabs, nbTabs * 2);
+					}
+					tabs[nbTabs++] = i;
+				}
+			}
+			if (eof) {
+				if (lineStart == limit) {
+					return false;
+				}
+				lineEnd = buffer[limit - 1] == '\r' ? limit - 1 : limit;
+				nextLine = limit;
+				return true;
+			}
+			// keep the beginning of the line and read more
+			if (lineStart > 0) {
+				System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+				for (int t = 0; t < nbTabs; t++) {
+					tabs[t] -= lineStart;
+				}
+				limit -= lineStart;
+				i -= lineStart;
+				lineStart = 0;
+			} else if (limit == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				eof = true;
+			} else {
+				limit += n;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of fields of the line, counted as
+	 *         line.split("\t").length does, without the trailing empty fields.
+	 */
+	public int fieldCount() {
+		if (lineEnd == lineStart) {
+			return 1;
+		}
+		int count = nbTabs + 1;
+		while (count > 0 && fieldEnd(count - 1) == fieldStart(count - 1)) {
+			count--;
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return lineEnd == lineStart;
+	}
+
+	public boolean startsWith(char c) {
+		return lineEnd > lineStart && buffer[lineStart] == c;
+	}
+
+	/**
+	 * @return The whole line, without the line terminator.
+	 */
+	public String line() {
+		return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	public String field(int i) {
+		int start = fieldStart(i);
+		return new String(buffer, start, fieldEnd(i) - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return <code>previous</code> when the field is equal to it, a new String
+	 *         otherwise. Saves a String per row for sorted columns such as the
+	 *         chromosome.
+	 */
+	public String field(int i, String previous) {
+		return previous != null && fieldEquals(i, previous) ? previous : field(i);
+	}
+
+	/**
+	 * @return field(i).hashCode() for an ASCII field, without creating the String.
+	 */
+	public int fieldHashCode(int i) {
+		int hash = 0;
+		for (int p = fieldStart(i); p < fieldEnd(i); p++) {
+			hash = 31 * hash + (buffer[p] & 0xff);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return FragmentId.of(field(i)), without creating the String.
+	 */
+	public long fragmentIdField(int i) {
+		int start = fieldStart(i);
+		return FragmentId.of(buffer, start, fieldEnd(i) - start);
+	}
+
+	/**
+	 * Writes the bytes of the line, followed by '\n'.
+	 */
+	public void writeLine(OutputStream out) throws IOException {
+		out.write(buffer, lineStart, lineEnd - lineStart);
+		out.write('\n');
+	}
+
+	public int fieldLength(int i) {
+		return fieldEnd(i) - fieldStart(i);
+	}
+
+	public byte fieldByte(int i, int pos) {
+		if (pos < 0 || pos >= fieldLength(i)) {
+			throw new StringIndexOutOfBoundsException(pos);
+		}
+		return buffer[fieldStart(i) + pos];
+	}
+
+	public boolean fieldEquals(int i, String s) {
+		int start = fieldStart(i);
+		if (fieldEnd(i) - start != s.length()) {
+			return false;
+		}
+		for (int k = 0; k < s.length(); k++) {
+			if (buffer[start + k] != s.charAt(k)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean fieldEqualsIgnoreCase(int i, String s) {
+		int start = fieldStart(i);
+		if (fieldEnd(i) - start != s.length()) {
+			return false;
+		}
+		for (int k = 0; k < s.length(); k++) {
+			char c = (char) (buffer[start + k] & 0xff);
+			if (c != s.charAt(k) && Character.toUpperCase(c) != Character.toUpperCase(s.charAt(k))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int intField(int i) {
+		int start = fieldStart(i);
+		int end = fieldEnd(i);
+		int p = start;
+		boolean negative = false;
+		if (p < end && (buffer[p] == '-' || buffer[p] == '+')) {
+			negative = buffer[p] == '-';
+			p++;
+		}
+		// up to 9 digits could not overflow
+		if (p == end || end - p > 9) {
+			return Integer.parseInt(field(i));
+		}
+		int value = 0;
+		for (; p < end; p++) {
+			int d = buffer[p] - '0';
+			if (d < 0 || d > 9) {
+				return Integer.parseInt(field(i));
+			}
+			value = value * 10 + d;
+		}
+		return negative ? -value : value;
+	}
+
+	public double doubleField(int i) {
+		int start = fieldStart(i);
+		int end = fieldEnd(i);
+		long mantissa = parseMantissa(start, end, 1L << 53);
+		if (mantissa >= 0) {
+			int exponent = decimalExponent;
+			// mantissa and 10^|exponent| are exact, so one multiplication or
+			// division is correctly rounded, as Double.parseDouble is
+			if (exponent >= -22 && exponent <= 22) {
+				double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+				return negativeNumber ? -value : value;
+			}
+		}
+		return Double.parseDouble(field(i));
+	}
+
+	public float floatField(int i) {
+		int start = fieldStart(i);
+		int end = fieldEnd(i);
+		long mantissa = parseMantissa(start, end, 1L << 24);
+		if (mantissa >= 0) {
+			int exponent = decimalExponent;
+			if (exponent >= -10 && exponent <= 10) {
+				float value = exponent >= 0 ? mantissa * POW10F[exponent] : mantissa / POW10F[-exponent];
+				return negativeNumber ? -value : value;
+			}
+		}
+		return Float.parseFloat(field(i));
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int fieldStart(int i) {
+		if (i < 0 || i > nbTabs) {
+			throw new ArrayIndexOutOfBoundsException(i);
+		}
+		return i == 0 ? lineStart : tabs[i - 1] + 1;
+	}
+
+	private int fieldEnd(int i) {
+		return i == nbTabs ? lineEnd : tabs[i];
+	}
+
+	/**
+	 * Parses [+-]digits[.digits][(e|E)[+-]digits] into mantissa *
+	 * 10^decimalExponent.
+	 *
+	 * @return The mantissa, -1 if the number has another form or the mantissa
+	 *         exceeds maxMantissa.
+	 */
+	private long parseMantissa(int start, int end, long maxMantissa) {
+		int p = start;
+		negativeNumber = false;
+		if (p < end && (buffer[p] == '-' || buffer[p] == '+')) {
+			negativeNumber = buffer[p] == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean point = false;
+		for (; p < end; p++) {
+			byte b = buffer[p];
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				if (mantissa > maxMantissa) {
+					return -1;
+				}
+				digits++;
+				if (point) {
+					exponent--;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return -1;
+		}
+		if (p < end) {
+			if (buffer[p] != 'e' && buffer[p] != 'E') {
+				return -1;
+			}
+			p++;
+			boolean negativeExponent = false;
+			if (p < end && (buffer[p] == '-' || buffer[p] == '+')) {
+				negativeExponent = buffer[p] == '-';
+				p++;
+			}
+			if (p == end || end - p > 4) {
+				return -1;
+			}
+			int e = 0;
+			for (; p < end; p++) {
+				int d = buffer[p] - '0';
+				if (d < 0 || d > 9) {
+					return -1;
+				}
+				e = e * 10 + d;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		decimalExponent = exponent;
+		return mantissa;
+	}
+
+}
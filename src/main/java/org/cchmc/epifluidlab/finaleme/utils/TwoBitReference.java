@@ -0,0 +1,294 @@
+package org.cchmc.epifluidlab.finaleme.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Reference genome in .2bit format. Each chromosome is decoded once into a
+ * <code>byte[]</code> (one base per byte, soft-masked bases in lower case and
+ * N blocks as 'N', as returned by TwoBitParser) and kept while it is used, so
+ * the bases of a CpG or a fragment are read from memory without touching the
+ * file. The most recently used chromosomes are cached, and the instance can be
+ * shared by several threads.
+ */
+public class TwoBitReference implements Closeable {
+
+	private static final int SIGNATURE = 0x1A412743;
+	private static final byte[] BASES = { 'T', 'C', 'A', 'G' };
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteOrder order;
+	private final LinkedHashMap<String, Long> offsets = new LinkedHashMap<String, Long>();
+	private final int maxCached;
+	private final LinkedHashMap<String, Chromosome> cache = new LinkedHashMap<String, Chromosome>(16, 0.75f, true);
+
+	public TwoBitReference(File file) throws IOException {
+		this(file, 2);
+	}
+
+	/**
+	 * @param maxCached number of decoded chromosomes kept in memory
+	 */
+	public TwoBitReference(File file, int maxCached) throws IOException {
+		this.maxCached = Math.max(maxCached, 1);
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		ByteBuffer header = read(0, 16, ByteOrder.LITTLE_ENDIAN);
+		int signature = header.getInt(0);
+		if (signature == SIGNATURE) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else if (Integer.reverseBytes(signature) == SIGNATURE) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else {
+			raf.close();
+			throw new IllegalArgumentException("Not a 2bit file: " + file);
+		}
+		header.order(order);
+		int seqCount = header.getInt(8);
+		long pos = 16;
+		for (int i = 0; i < seqCount; i++) {
+			int nameSize = read(pos, 1, order).get(0) & 0xFF;
+			ByteBuffer entry = read(pos + 1, nameSize + 4, order);
+			byte[] name = new byte[nameSize];
+			entry.get(name);
+			offsets.put(new String(name, "US-ASCII"), entry.getInt() & 0xFFFFFFFFL);
+			pos += 1 + nameSize + 4;
+		}
+	}
+
+	public String[] getSequenceNames() {
+		return offsets.keySet().toArray(new String[offsets.size()]);
+	}
+
+	public boolean hasSequence(String chr) {
+		return offsets.containsKey(chr);
+	}
+
+	/**
+	 * Returns the decoded chromosome, decoding it from the file if it is not
+	 * cached yet.
+	 */
+	public synchronized Chromosome chromosome(String chr) throws IOException {
+		Chromosome chromosome = cache.get(chr);
+		if (chromosome == null) {
+			Long offset = offsets.get(chr);
+			if (offset == null) {
+				throw new IllegalArgumentException("Sequence " + chr + " is not in the 2bit file");
+			}
+			chromosome = new Chromosome(chr, decode(offset));
+			cache.put(chr, chromosome);
+			Iterator<String> it = cache.keySet().iterator();
+			while (cache.size() > maxCached) {
+				it.next();
+				it.remove();
+			}
+		}
+		return chromosome;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		cache.clear();
+		raf.close();
+	}
+
+	private byte[] decode(long offset) throws IOException {
+		ByteBuffer sizes = read(offset, 8, order);
+		int dnaSize = sizes.getInt(0);
+		int nBlockCount = sizes.getInt(4);
+		ByteBuffer nBlocks = read(offset + 8, nBlockCount * 8, order);
+		long pos = offset + 8 + nBlockCount * 8L;
+		int maskBlockCount = read(pos, 4, order).getInt(0);
+		ByteBuffer maskBlocks = read(pos + 4, maskBlockCount * 8, order);
+		pos += 4 + maskBlockCount * 8L + 4;
+
+		byte[] bases = new byte[dnaSize];
+		ByteBuffer packed = channel.map(FileChannel.MapMode.READ_ONLY, pos, (dnaSize + 3) / 4);
+		int i = 0;
+		for (int b = 0; b < dnaSize / 4; b++) {
+			int packedByte = packed.get(b);
+			bases[i++] = BASES[(packedByte >> 6) & 3];
+			bases[i++] = BASES[(packedByte >> 4) & 3];
+			bases[i++] = BASES[(packedByte >> 2) & 3];
+			bases[i++] = BASES[packedByte & 3];
+		}
+		if (i < dnaSize) {
+			int packedByte = packed.get(dnaSize / 4);
+			for (int shift = 6; i < dnaSize; shift -= 2) {
+				bases[i++] = BASES[(packedByte >> shift) & 3];
+			}
+		}
+		for (int b = 0; b < maskBlockCount; b++) {
+			int start = maskBlocks.getInt(b * 4);
+			int end = Math.min(start + maskBlocks.getInt((maskBlockCount + b) * 4), dnaSize);
+			for (int j = start; j < end; j++) {
+				bases[j] = (byte) (bases[j] | 0x20);
+			}
+		}
+		for (int b = 0; b < nBlockCount; b++) {
+			int start = nBlocks.getInt(b * 4);
+			int end = Math.min(start + nBlocks.getInt((nBlockCount + b) * 4), dnaSize);
+			for (int j = start; j < end; j++) {
+				bases[j] = 'N';
+			}
+		}
+		return bases;
+	}
+
+	private ByteBuffer read(long pos, int len, ByteOrder byteOrder) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(len).order(byteOrder);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pos + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of 2bit file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Bases of one chromosome, positions are 0-based.
+	 */
+	public static class Chromosome {
+		private final String name;
+		private final byte[] bases;
+
+		Chromosome(String name, byte[] bases) {
+			this.name = name;
+			this.bases = bases;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public int length() {
+			return bases.length;
+		}
+
+		/**
+		 * @return the backing array (not a copy), must not be modified.
+		 */
+		public byte[] bases() {
+			return bases;
+		}
+
+		public byte base(int pos) {
+			return bases[pos];
+		}
+
+		/**
+		 * Copy of <code>len</code> bases from <code>pos</code>, truncated at the
+		 * end of the chromosome like TwoBitParser.loadFragment(pos, len). Positions
+		 * before the chromosome start are filled with 'N', so a window centered on
+		 * a base keeps that base at its center.
+		 */
+		public byte[] slice(int pos, int len) {
+			if (pos > bases.length) {
+				throw new IllegalArgumentException("Position " + pos + " is out of " + name + " (length " + bases.length + ")");
+			}
+			byte[] slice = new byte[Math.max(Math.min(len, bases.length - pos), 0)];
+			int skip = Math.min(Math.max(-pos, 0), slice.length);
+			Arrays.fill(slice, 0, skip, (byte) 'N');
+			System.arraycopy(bases, pos + skip, slice, skip, slice.length - skip);
+			return slice;
+		}
+
+		public byte[] sliceUpperCase(int pos, int len) {
+			byte[] slice = slice(pos, len);
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = CcInferenceUtils.toUpperCase(slice[i]);
+			}
+			return slice;
+		}
+
+		/**
+		 * Reverse complement of the bases returned by {@link #slice(int, int)}.
+		 */
+		public byte[] reverseComplement(int pos, int len) {
+			byte[] rc = slice(pos, len);
+			for (int i = 0, j = rc.length - 1; i <= j; i++, j--) {
+				byte b = complement(rc[i]);
+				rc[i] = complement(rc[j]);
+				rc[j] = b;
+			}
+			return rc;
+		}
+
+		/**
+		 * 2 bits per base (A=0, C=1, G=2, T=3, case insensitive), the first base
+		 * in the highest bits. -1 if the k-mer contains another base or is not
+		 * within the chromosome.
+		 */
+		public int kmerCode(int pos, int k) {
+			if (pos < 0 || pos + k > bases.length || k > 15) {
+				return -1;
+			}
+			int code = 0;
+			for (int i = pos; i < pos + k; i++) {
+				int c = baseCode(bases[i]);
+				if (c < 0) {
+					return -1;
+				}
+				code = (code << 2) | c;
+			}
+			return code;
+		}
+
+		public String loadFragment(int pos, int len) {
+			return new String(slice(pos, len));
+		}
+	}
+
+	public static int baseCode(byte base) {
+		switch (base) {
+		case 'A':
+		case 'a':
+			return 0;
+		case 'C':
+		case 'c':
+			return 1;
+		case 'G':
+		case 'g':
+			return 2;
+		case 'T':
+		case 't':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	private static byte complement(byte base) {
+		switch (base) {
+		case 'A':
+			return 'T';
+		case 'C':
+			return 'G';
+		case 'G':
+			return 'C';
+		case 'T':
+			return 'A';
+		case 'a':
+			return 't';
+		case 'c':
+			return 'g';
+		case 'g':
+			return 'c';
+		case 't':
+			return 'a';
+		default:
+			return base;
+		}
+	}
+
+}